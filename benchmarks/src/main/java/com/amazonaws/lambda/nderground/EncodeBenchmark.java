@@ -0,0 +1,162 @@
+/** \file
+ *
+ * Feb 25, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.amazonaws.util.Base64;
+import com.amazonaws.util.BinaryUtils;
+
+/**
+ * <h3>
+ * EncodeBenchmark
+ * </h3>
+ * <p>
+ * JMH benchmarks for the S3Service encode path: encodeImage (into a pooled buffer, with the MD5 hash) and
+ * writeBufferedImage, which includes the upload steps. The S3 client is a stub (DiscardS3) that reads and discards
+ * the uploaded data, so the benchmark measures the encode and buffer handling and not the network.
+ * </p>
+ * <p>
+ * Feb 25, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EncodeBenchmark {
+    private final static AbstractLoggerInterface logger = new JavaLoggerWrapper("EncodeBenchmark");
+
+    @Param({ "1", "4", "12" })
+    public int megapixels;
+
+    @Param({ "jpeg", "png", "gif" })
+    public String format;
+
+    @Param({ "rgb", "argb", "gray", "indexed" })
+    public String pixelType;
+
+    private String mContentType;
+    private BufferedImage mImage;
+    private S3Service mS3Service;
+
+    /**
+     * An S3 client that accepts uploads and returns the MD5 hash that was sent with the request, as S3 does when the
+     * data arrives intact.
+     */
+    private static class DiscardS3 extends AbstractAmazonS3 {
+        private final byte[] mDrain = new byte[ 64 * 1024 ];
+
+        private synchronized void drain(InputStream istream) {
+            try {
+                while (istream.read(mDrain) >= 0) {
+                    // discard
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("DiscardS3: " + e.getLocalizedMessage(), e);
+            }
+        }
+
+        @Override
+        public PutObjectResult putObject(PutObjectRequest request) {
+            drain( request.getInputStream() );
+            PutObjectResult result = new PutObjectResult();
+            result.setContentMd5( request.getMetadata().getContentMD5() );
+            return result;
+        }
+
+        @Override
+        public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+            InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+            result.setUploadId("benchmark");
+            return result;
+        }
+
+        @Override
+        public UploadPartResult uploadPart(UploadPartRequest request) {
+            drain( request.getInputStream() );
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber( request.getPartNumber() );
+            result.setETag( BinaryUtils.toHex( Base64.decode( request.getMd5Digest() ) ) );
+            return result;
+        }
+
+        @Override
+        public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+            return new CompleteMultipartUploadResult();
+        }
+
+        @Override
+        public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        int[] dim = ImageCorpus.dimensions( megapixels );
+        // the content type as the scaling requests pass it (see S3Service.getImageType)
+        mContentType = "Content-Type: image/" + format;
+        mImage = ImageCorpus.generate(dim[0], dim[1], ImageCorpus.imageType( pixelType ), megapixels);
+        final AmazonS3 s3 = new DiscardS3();
+        mS3Service = new S3Service("us-west-1", "benchmark", "id", "key") {
+            @Override
+            protected AmazonS3 getS3Client() {
+                return s3;
+            }
+        };
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mImage.flush();
+    }
+
+    @Benchmark
+    public int encodeImage() {
+        int size = 0;
+        PooledImageOutputStream encoded = mS3Service.encodeImage(mImage, mContentType, logger);
+        if (encoded != null) {
+            size = encoded.size();
+            encoded.release();
+        }
+        return size;
+    }
+
+    @Benchmark
+    public boolean writeBufferedImage() {
+        return mS3Service.writeBufferedImage("benchmark.img", mImage, mContentType, logger);
+    }
+
+}
@@ -0,0 +1,138 @@
+/** \file
+ *
+ * Feb 25, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * <h3>
+ * ImageCorpus
+ * </h3>
+ * <p>
+ * Generated images for the benchmarks, so that the benchmarks run without network access or image files. An image
+ * is a color gradient with noise, which gives an encoded size close to a photograph (a flat image compresses to
+ * almost nothing). The same arguments always generate the same image.
+ * </p>
+ * <p>
+ * Feb 25, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class ImageCorpus {
+    private final static int NOISE = 24;
+
+    private ImageCorpus() {}
+
+    /**
+     * @param megapixels the image size in megapixels (1, 4 or 12)
+     * @return the width and height, with a 4:3 aspect ratio, of an image with about megapixels pixels
+     */
+    public static int[] dimensions(int megapixels) {
+        int width = (int)Math.round( Math.sqrt( megapixels * 1000000.0 * 4.0 / 3.0 ) );
+        int height = (width * 3) / 4;
+        return new int[]{ width, height };
+    }
+
+    /**
+     * @param pixelType the pixel type name: rgb, argb, gray or indexed
+     * @return the BufferedImage type for the name
+     */
+    public static int imageType(String pixelType) {
+        int type = BufferedImage.TYPE_INT_RGB;
+        if (pixelType.equals("argb")) {
+            type = BufferedImage.TYPE_INT_ARGB;
+        } else if (pixelType.equals("gray")) {
+            type = BufferedImage.TYPE_BYTE_GRAY;
+        } else if (pixelType.equals("indexed")) {
+            type = BufferedImage.TYPE_BYTE_INDEXED;
+        }
+        return type;
+    }
+
+    /**
+     * Generate an image.
+     * 
+     * @param width the image width
+     * @param height the image height
+     * @param imageType the BufferedImage type
+     * @param seed the seed for the noise
+     * @return the generated image
+     */
+    public static BufferedImage generate(int width, int height, int imageType, long seed) {
+        BufferedImage image = new BufferedImage(width, height, imageType);
+        Random rand = new Random( seed );
+        int[] row = new int[ width ];
+        for (int y = 0; y < height; y++) {
+            int green = (y * 255) / height;
+            for (int x = 0; x < width; x++) {
+                int red = clamp( (x * 255) / width + rand.nextInt( NOISE ) - NOISE / 2 );
+                int blue = clamp( 255 - red + rand.nextInt( NOISE ) - NOISE / 2 );
+                int alpha = 0xff;
+                if (imageType == BufferedImage.TYPE_INT_ARGB) {
+                    alpha = clamp( 128 + (x * 127) / width );
+                }
+                row[x] = (alpha << 24) | (red << 16) | (clamp( green + rand.nextInt( NOISE ) - NOISE / 2 ) << 8) | blue;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    /**
+     * Generate a zone plate: gray concentric rings whose frequency rises from the center toward the Nyquist limit at the
+     * corners. A downscale of a zone plate shows the aliasing of a resize engine, which the gradient image hides.
+     * 
+     * @param width the image width
+     * @param height the image height
+     * @return the generated image (TYPE_INT_RGB)
+     */
+    public static BufferedImage zonePlate(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        double scale = Math.PI / (2.0 * Math.max(width, height));
+        int[] row = new int[ width ];
+        for (int y = 0; y < height; y++) {
+            double dy = y - height / 2.0;
+            for (int x = 0; x < width; x++) {
+                double dx = x - width / 2.0;
+                int gray = clamp( (int)Math.round( 127.5 + 127.5 * Math.cos( scale * (dx * dx + dy * dy) ) ) );
+                row[x] = (0xff << 24) | (gray << 16) | (gray << 8) | gray;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    /**
+     * Encode an image, in the same way that S3Service encodes a scaled image (see PixelFormats.encodeReady).
+     * 
+     * @param image the image
+     * @param format the ImageIO format name: jpeg, png or gif
+     * @return the encoded image
+     * @throws IOException if the image cannot be encoded
+     */
+    public static byte[] encode(BufferedImage image, String format) throws IOException {
+        BufferedImage encodeImage = PixelFormats.encodeReady(image, format);
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        if (! ImageIO.write(encodeImage, format, outStream)) {
+            throw new IOException("No image writer for " + format);
+        }
+        return outStream.toByteArray();
+    }
+
+}
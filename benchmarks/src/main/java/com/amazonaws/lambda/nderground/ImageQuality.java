@@ -0,0 +1,150 @@
+/** \file
+ *
+ * Mar 4, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+
+/**
+ * <h3>
+ * ImageQuality
+ * </h3>
+ * <p>
+ * Full reference image quality measures for the ScalingCalibration tool: the PSNR over the RGB channels and the mean
+ * SSIM of the luma, over 8 x 8 windows. The reference for a downscale is the area average of the original, which
+ * has no aliasing.
+ * </p>
+ * <p>
+ * Mar 4, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class ImageQuality {
+    private final static int WINDOW = 8;
+    private final static int STEP = 4;
+    private final static double C1 = (0.01 * 255) * (0.01 * 255);
+    private final static double C2 = (0.03 * 255) * (0.03 * 255);
+    /** the PSNR of identical images */
+    public final static double MAX_PSNR = 100.0;
+
+    private ImageQuality() {}
+
+    /**
+     * @return the area average downscale of image to width x height (TYPE_INT_RGB)
+     */
+    public static BufferedImage reference(BufferedImage image, int width, int height) {
+        Image scaled = image.getScaledInstance(width, height, Image.SCALE_AREA_AVERAGING);
+        BufferedImage reference = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = reference.createGraphics();
+        try {
+            g.drawImage(scaled, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return reference;
+    }
+
+    private static void checkSize(BufferedImage a, BufferedImage b) {
+        if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight()) {
+            throw new IllegalArgumentException("ImageQuality: the images are not the same size");
+        }
+    }
+
+    /**
+     * @return the PSNR, in dB, of image against reference, over the R, G and B channels. MAX_PSNR if the images are
+     *         identical.
+     */
+    public static double psnr(BufferedImage reference, BufferedImage image) {
+        checkSize(reference, image);
+        int width = reference.getWidth();
+        int height = reference.getHeight();
+        int[] refRow = new int[ width ];
+        int[] row = new int[ width ];
+        double sum = 0;
+        for (int y = 0; y < height; y++) {
+            reference.getRGB(0, y, width, 1, refRow, 0, width);
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    int diff = ((refRow[x] >> shift) & 0xff) - ((row[x] >> shift) & 0xff);
+                    sum += diff * diff;
+                }
+            }
+        }
+        double mse = sum / (3.0 * width * height);
+        double psnr = MAX_PSNR;
+        if (mse > 0) {
+            psnr = Math.min(MAX_PSNR, 10.0 * Math.log10( (255.0 * 255.0) / mse ));
+        }
+        return psnr;
+    }
+
+    /**
+     * @return the luma (Rec. 601) of each pixel, in row order
+     */
+    private static double[] luma(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        double[] luma = new double[ width * height ];
+        int[] row = new int[ width ];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                int rgb = row[x];
+                luma[y * width + x] = 0.299 * ((rgb >> 16) & 0xff) + 0.587 * ((rgb >> 8) & 0xff) + 0.114 * (rgb & 0xff);
+            }
+        }
+        return luma;
+    }
+
+    /**
+     * @return the mean SSIM of the luma of image against reference, over 8 x 8 windows at a step of 4 pixels.
+     *         1.0 for identical images. An image that is smaller than a window is compared as one window.
+     */
+    public static double ssim(BufferedImage reference, BufferedImage image) {
+        checkSize(reference, image);
+        int width = reference.getWidth();
+        int height = reference.getHeight();
+        double[] refLuma = luma( reference );
+        double[] imageLuma = luma( image );
+        int windowWidth = Math.min(WINDOW, width);
+        int windowHeight = Math.min(WINDOW, height);
+        double sum = 0;
+        int windows = 0;
+        for (int top = 0; top + windowHeight <= height; top += STEP) {
+            for (int left = 0; left + windowWidth <= width; left += STEP) {
+                double sumA = 0, sumB = 0, sumAA = 0, sumBB = 0, sumAB = 0;
+                for (int y = top; y < top + windowHeight; y++) {
+                    for (int x = left; x < left + windowWidth; x++) {
+                        double a = refLuma[y * width + x];
+                        double b = imageLuma[y * width + x];
+                        sumA += a;
+                        sumB += b;
+                        sumAA += a * a;
+                        sumBB += b * b;
+                        sumAB += a * b;
+                    }
+                }
+                double n = windowWidth * windowHeight;
+                double meanA = sumA / n;
+                double meanB = sumB / n;
+                double varA = sumAA / n - meanA * meanA;
+                double varB = sumBB / n - meanB * meanB;
+                double covar = sumAB / n - meanA * meanB;
+                sum += ((2 * meanA * meanB + C1) * (2 * covar + C2)) /
+                       ((meanA * meanA + meanB * meanB + C1) * (varA + varB + C2));
+                windows++;
+            }
+        }
+        return sum / windows;
+    }
+
+}
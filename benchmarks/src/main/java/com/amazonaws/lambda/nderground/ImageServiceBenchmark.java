@@ -0,0 +1,162 @@
+/** \file
+ *
+ * Feb 25, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * <h3>
+ * ImageServiceBenchmark
+ * </h3>
+ * <p>
+ * JMH benchmarks for the ImageService functions, over the generated corpus (ImageCorpus): each image size, encoded
+ * format and pixel type. The decode and scale functions read the encoded image from memory, so the benchmark measures
+ * the image code and not S3. The resize and rendition benchmarks start from the decoded image.
+ * </p>
+ * <p>
+ * Run with the GC profiler (see benchmarks/pom.xml), the results include the allocation rate
+ * (gc.alloc.rate.norm is the bytes allocated per operation).
+ * </p>
+ * <p>
+ * Feb 25, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ImageServiceBenchmark {
+    private final static AbstractLoggerInterface logger = new JavaLoggerWrapper("ImageServiceBenchmark");
+    private final static int MAX_DIM = 800;
+    private final static int THUMB_DIM = 150;
+    private final static Dimension[] RENDITIONS = new Dimension[]{ new Dimension(1200, 900), 
+                                                                   new Dimension(640, 480), 
+                                                                   new Dimension(150, 112) };
+
+    @Param({ "1", "4", "12" })
+    public int megapixels;
+
+    @Param({ "jpeg", "png", "gif" })
+    public String format;
+
+    @Param({ "rgb", "argb", "gray", "indexed" })
+    public String pixelType;
+
+    @Param({ "" })
+    public String resizeEngine;
+
+    private byte[] mEncoded;
+    private BufferedImage mDecoded;
+    private ResizeEngine mEngine;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        int[] dim = ImageCorpus.dimensions( megapixels );
+        BufferedImage image = ImageCorpus.generate(dim[0], dim[1], ImageCorpus.imageType( pixelType ), megapixels);
+        mEncoded = ImageCorpus.encode(image, format);
+        image.flush();
+        mDecoded = PixelFormats.normalize( ImageIO.read( new ByteArrayInputStream( mEncoded ) ) );
+        mEngine = ResizeEngines.forName( resizeEngine );
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mDecoded.flush();
+    }
+
+    private static void consume(BufferedImage image, Blackhole blackhole) {
+        blackhole.consume( image );
+        if (image != null) {
+            image.flush();
+        }
+    }
+
+    private ByteArrayInputStream input() {
+        return new ByteArrayInputStream( mEncoded );
+    }
+
+    @Benchmark
+    public void scaleImageMode(Blackhole blackhole) {
+        consume( ImageService.scaleImage(input(), ScaleMode.MAX_DIM, MAX_DIM, MAX_DIM, mEngine, logger), blackhole );
+    }
+
+    @Benchmark
+    public void scaleImageStream(Blackhole blackhole) {
+        ByteArrayImageInputStream imageStream = new ByteArrayImageInputStream(mEncoded, mEncoded.length);
+        consume( ImageService.scaleImage(imageStream, ScaleMode.MAX_DIM, MAX_DIM, MAX_DIM, mEngine, logger), blackhole );
+    }
+
+    @Benchmark
+    public void scaleImageMaxDim(Blackhole blackhole) {
+        consume( ImageService.scaleImage(input(), MAX_DIM, logger), blackhole );
+    }
+
+    @Benchmark
+    public void scaleImageHeightWidth(Blackhole blackhole) {
+        consume( ImageService.scaleImage(input(), MAX_DIM, MAX_DIM, logger), blackhole );
+    }
+
+    @Benchmark
+    public void scaleImageByHeight(Blackhole blackhole) {
+        consume( ImageService.scaleImageByHeight(input(), MAX_DIM, logger), blackhole );
+    }
+
+    @Benchmark
+    public void thumbnailScale(Blackhole blackhole) {
+        consume( ImageService.thumbnailScale(input(), THUMB_DIM, THUMB_DIM, logger), blackhole );
+    }
+
+    @Benchmark
+    public void resize(Blackhole blackhole) {
+        int height = (mDecoded.getHeight() * MAX_DIM) / mDecoded.getWidth();
+        ResizeEngine engine = (mEngine != null) ? mEngine : ImageService.defaultEngine( mDecoded );
+        consume( ImageService.resize(mDecoded, MAX_DIM, height, engine), blackhole );
+    }
+
+    @Benchmark
+    public void scaleRenditions(Blackhole blackhole) {
+        BufferedImage[] renditions = ImageService.scaleRenditions(mDecoded, mDecoded.getWidth(), mDecoded.getHeight(), 
+                                                                  RENDITIONS, mEngine);
+        for (BufferedImage rendition : renditions) {
+            if (rendition != mDecoded) {
+                consume( rendition, blackhole );
+            }
+        }
+    }
+
+    @Benchmark
+    public ResizeEngine defaultEngine() {
+        return ImageService.defaultEngine( mDecoded );
+    }
+
+    @Benchmark
+    public Object calculateThumbDimensions() {
+        return ImageService.calculateThumbDimensions(THUMB_DIM, THUMB_DIM, mDecoded.getHeight(), mDecoded.getWidth());
+    }
+
+}
@@ -0,0 +1,247 @@
+/** \file
+ *
+ * Mar 4, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+/**
+ * <h3>
+ * ScalingCalibration
+ * </h3>
+ * <p>
+ * Build the TableScalingPolicy table from measurements. Each image of the corpus is downscaled at each ratio by each
+ * resize engine. The time of the resize (the fastest of at least REPEATS runs) and the PSNR and SSIM of the result against an
+ * area average reference (see ImageQuality) are printed as CSV. For each ratio and hint, the engine is the engine
+ * with the shortest mean time, in an image size bucket (MEGAPIXEL_LIMITS), of the engines with a mean SSIM that is
+ * within the hint's delta of the best SSIM. The SSIM is averaged over every image size, since it depends on the
+ * ratio and the image content and not on the size. The table, in the IMAGE_SCALING_POLICY syntax, is printed at
+ * the end.
+ * </p>
+ * <p>
+ * The corpus is the images in the directory that is the first argument or, with no argument, generated images
+ * (ImageCorpus): a noisy gradient and a zone plate, at 1, 4 and 12 megapixels. The parallel engine is not measured,
+ * since the policy uses it in place of a Scalr engine for large images.
+ * </p>
+ * <pre>
+ *     mvn -o -f benchmarks/pom.xml compile exec:java -Dexec.mainClass=com.amazonaws.lambda.nderground.ScalingCalibration
+ * </pre>
+ * <p>
+ * Mar 4, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class ScalingCalibration {
+    private final static String[] ENGINES = { "bilinear", "bicubic", "lanczos3", "scalr-speed", "scalr-balanced",
+                                              "scalr-quality", "scalr-ultra_quality" };
+    private final static double[] RATIOS = { 1.5, 2, 3, 4, 8 };
+    private final static double[] MEGAPIXEL_LIMITS = { 2, 8, Double.POSITIVE_INFINITY };
+    private final static int[] CORPUS_MEGAPIXELS = { 1, 4, 12 };
+    private final static int REPEATS = 3;
+    /** small images are resized until this much time has passed, so that their time is not JIT and GC noise */
+    private final static long MIN_MEASURE_NANOS = 500L * 1000 * 1000;
+    private final static String[] HINTS = { ScalingPolicy.HINT_SPEED, ScalingPolicy.HINT_BALANCED, ScalingPolicy.HINT_QUALITY };
+    /** for each hint, how far below the best SSIM the engine may be. quality takes the best SSIM, whatever the time. */
+    private final static double[] SSIM_DELTA = { 0.05, 0.01, 0.0 };
+
+    /** the sums of the measurements, by megapixel bucket, ratio and engine */
+    private final double[][][] mMillis = new double[ MEGAPIXEL_LIMITS.length ][ RATIOS.length ][ ENGINES.length ];
+    private final double[][][] mSSIM = new double[ MEGAPIXEL_LIMITS.length ][ RATIOS.length ][ ENGINES.length ];
+    private final int[][] mCount = new int[ MEGAPIXEL_LIMITS.length ][ RATIOS.length ];
+
+    private static String number(double value) {
+        String text = "*";
+        if (! Double.isInfinite( value )) {
+            text = (value == Math.rint( value )) ? Long.toString( (long)value ) : Double.toString( value );
+        }
+        return text;
+    }
+
+    private static BufferedImage toRGB(BufferedImage image) {
+        BufferedImage rgbImage = image;
+        if (image.getType() != BufferedImage.TYPE_INT_RGB) {
+            rgbImage = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = rgbImage.createGraphics();
+            try {
+                g.drawImage(image, 0, 0, null);
+            } finally {
+                g.dispose();
+            }
+        }
+        return rgbImage;
+    }
+
+    /**
+     * Measure every engine at every ratio for one image, print the measurements and add them to the sums.
+     */
+    private void measure(String name, BufferedImage image) {
+        double megapixels = ((double)image.getWidth() * image.getHeight()) / 1000000.0;
+        int bucket = 0;
+        while (megapixels > MEGAPIXEL_LIMITS[ bucket ]) {
+            bucket++;
+        }
+        for (int r = 0; r < RATIOS.length; r++) {
+            int width = Math.max(1, (int)Math.round( image.getWidth() / RATIOS[r] ));
+            int height = Math.max(1, (int)Math.round( image.getHeight() / RATIOS[r] ));
+            BufferedImage reference = ImageQuality.reference(image, width, height);
+            for (int e = 0; e < ENGINES.length; e++) {
+                ResizeEngine engine = ResizeEngines.forName( ENGINES[e] );
+                BufferedImage scaled = toRGB( engine.resize(image, width, height) );
+                long bestNanos = Long.MAX_VALUE;
+                long totalNanos = 0;
+                for (int i = 0; i < REPEATS || totalNanos < MIN_MEASURE_NANOS; i++) {
+                    long start = System.nanoTime();
+                    engine.resize(image, width, height);
+                    long nanos = System.nanoTime() - start;
+                    bestNanos = Math.min(bestNanos, nanos);
+                    totalNanos += nanos;
+                }
+                double millis = bestNanos / 1000000.0;
+                double ssim = ImageQuality.ssim(reference, scaled);
+                double psnr = ImageQuality.psnr(reference, scaled);
+                System.out.println(String.format("%s,%.2f,%s,%s,%.3f,%.2f,%.5f", name, megapixels, number( RATIOS[r] ),
+                                                 ENGINES[e], millis, psnr, ssim));
+                mMillis[bucket][r][e] += millis;
+                mSSIM[bucket][r][e] += ssim;
+            }
+            mCount[bucket][r]++;
+        }
+    }
+
+    /**
+     * @return the mean SSIM of an engine at a ratio, over every image size
+     */
+    private double meanSSIM(int ratio, int engine) {
+        double sum = 0;
+        int count = 0;
+        for (int b = 0; b < MEGAPIXEL_LIMITS.length; b++) {
+            sum += mSSIM[b][ratio][engine];
+            count += mCount[b][ratio];
+        }
+        return sum / count;
+    }
+
+    /**
+     * @return the index of the fastest engine in the bucket with an SSIM within delta of the best SSIM at the ratio
+     */
+    private int select(int bucket, int ratio, double delta) {
+        double bestSSIM = 0;
+        for (int e = 0; e < ENGINES.length; e++) {
+            bestSSIM = Math.max(bestSSIM, meanSSIM(ratio, e));
+        }
+        int selected = -1;
+        for (int e = 0; e < ENGINES.length; e++) {
+            if (meanSSIM(ratio, e) >= bestSSIM - delta &&
+                (selected < 0 || mMillis[bucket][ratio][e] < mMillis[bucket][ratio][selected])) {
+                selected = e;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * @return the rules for a hint in one megapixel bucket, as maxRatio,engine pairs: the selected engine at each
+     *         ratio, with ratios that select the same engine merged. The last ratio is *.
+     */
+    private List<String> ratioRules(int bucket, double delta) {
+        List<String> rules = new ArrayList<String>();
+        String lastEngine = null;
+        for (int r = 0; r < RATIOS.length; r++) {
+            if (mCount[bucket][r] > 0) {
+                String engine = ENGINES[ select(bucket, r, delta) ];
+                if (engine.equals( lastEngine )) {
+                    rules.remove( rules.size() - 1 );
+                }
+                rules.add( number( RATIOS[r] ) + "," + engine );
+                lastEngine = engine;
+            }
+        }
+        if (rules.size() > 0) {
+            String last = rules.remove( rules.size() - 1 );
+            rules.add( "*" + last.substring( last.indexOf(',') ) );
+        }
+        return rules;
+    }
+
+    /**
+     * @return the policy table. A megapixel bucket with the same rules as the next bucket is left out, and the
+     *         largest bucket is *.
+     */
+    public String table() {
+        StringBuilder table = new StringBuilder();
+        for (int h = 0; h < HINTS.length; h++) {
+            List<List<String>> bucketRules = new ArrayList<List<String>>();
+            List<Double> limits = new ArrayList<Double>();
+            for (int b = 0; b < MEGAPIXEL_LIMITS.length; b++) {
+                List<String> rules = ratioRules(b, SSIM_DELTA[h]);
+                if (rules.size() > 0) {
+                    if (bucketRules.size() > 0 && bucketRules.get( bucketRules.size() - 1 ).equals( rules )) {
+                        bucketRules.remove( bucketRules.size() - 1 );
+                        limits.remove( limits.size() - 1 );
+                    }
+                    bucketRules.add( rules );
+                    limits.add( MEGAPIXEL_LIMITS[b] );
+                }
+            }
+            for (int b = 0; b < bucketRules.size(); b++) {
+                String megapixels = (b == bucketRules.size() - 1) ? "*" : number( limits.get(b) );
+                for (String rule : bucketRules.get(b)) {
+                    String[] fields = rule.split(",");
+                    if (table.length() > 0) {
+                        table.append(';');
+                    }
+                    table.append( HINTS[h] + "," + fields[0] + "," + megapixels + "," + fields[1] );
+                }
+            }
+        }
+        return table.toString();
+    }
+
+    /**
+     * @param args an optional directory of images. With no argument, the generated corpus is used.
+     */
+    public static void main(String[] args) throws IOException {
+        ScalingCalibration calibration = new ScalingCalibration();
+        System.out.println("image,megapixels,ratio,engine,millis,psnr,ssim");
+        if (args.length > 0) {
+            File[] files = new File( args[0] ).listFiles();
+            if (files == null) {
+                throw new IOException("ScalingCalibration: " + args[0] + " is not a directory");
+            }
+            Arrays.sort( files );
+            for (File file : files) {
+                BufferedImage image = file.isFile() ? ImageIO.read( file ) : null;
+                if (image != null) {
+                    calibration.measure(file.getName(), toRGB( image ));
+                }
+            }
+        } else {
+            for (int megapixels : CORPUS_MEGAPIXELS) {
+                int[] dim = ImageCorpus.dimensions( megapixels );
+                calibration.measure("gradient-" + megapixels, ImageCorpus.generate(dim[0], dim[1], BufferedImage.TYPE_INT_RGB, megapixels));
+                calibration.measure("zoneplate-" + megapixels, ImageCorpus.zonePlate(dim[0], dim[1]));
+            }
+        }
+        String table = calibration.table();
+        System.out.println();
+        System.out.println("IMAGE_SCALING_POLICY=" + table);
+        if (TableScalingPolicy.parse( table ) == null) {
+            System.out.println("ScalingCalibration: the table is not valid");
+        }
+    }
+
+}
@@ -22,4 +22,12 @@ public interface AbstractLoggerInterface {
     
     public void log(final String msg);
 
+    /**
+     * Write a metrics record (a CloudWatch Embedded Metric Format JSON object, see ImageMetrics). The record must be
+     * written as one log message, without other text, for CloudWatch to extract the metrics.
+     */
+    public default void logMetrics(final String record) {
+        log( record );
+    }
+
 }
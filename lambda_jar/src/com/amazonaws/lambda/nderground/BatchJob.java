@@ -0,0 +1,51 @@
+/** \file
+ *
+ * Feb 24, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+/**
+ * <h3>
+ * BatchJob
+ * </h3>
+ * <p>
+ * One image in a ScaleImageBatch: the S3 path of the original and a RenditionSpec for the scaled image (the scale
+ * mode, the dimensions for the mode, the scaled image path and an optional content type).
+ * </p>
+ * <p>
+ * Feb 24, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class BatchJob extends RenditionSpec {
+    private String mS3Path;  // path to the original image
+
+    public BatchJob() {}
+
+    public BatchJob(String imagePath, String mode, int height, int width, int maxDim, String scaledImagePath, String contentType) {
+        super(mode, height, width, maxDim, scaledImagePath, contentType);
+        setS3Path( imagePath );
+    }
+
+    /**
+     * @return true if the original path and the rendition arguments are valid
+     */
+    @Override
+    public boolean hasValidArguments() {
+        return mS3Path != null && mS3Path.length() > 0 && super.hasValidArguments();
+    }
+
+    public String getS3Path() {
+        return mS3Path;
+    }
+
+    public void setS3Path(String s3Path) {
+        this.mS3Path = s3Path;
+    }
+
+}
@@ -0,0 +1,139 @@
+/** \file
+ *
+ * Feb 15, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * <h3>
+ * BufferPool
+ * </h3>
+ * <p>
+ * A process wide pool of byte arrays for image files that are read from, or written to, S3. A warm Lambda function
+ * processes a series of images with similar sizes, so reusing the buffers avoids allocating (and garbage collecting)
+ * several megabytes for every image.
+ * </p>
+ * <p>
+ * Buffers are allocated in size classes: four classes for each power of two, so a buffer is at most 25% larger
+ * than the requested size. The total size of the buffers kept in the pool is bounded. A buffer that is released
+ * when the pool is full is left to the garbage collector.
+ * </p>
+ * <p>
+ * Feb 15, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class BufferPool {
+    /** the smallest buffer allocated by the pool */
+    public final static int MIN_BUFFER_SIZE = 64 * 1024;
+    /** the default bound on the total size of the buffers kept in the pool */
+    public final static long DEFAULT_MAX_POOLED_BYTES = 64L * 1024 * 1024;
+
+    private final static BufferPool mPool = new BufferPool( DEFAULT_MAX_POOLED_BYTES );
+
+    private final HashMap<Integer, ArrayDeque<byte[]>> mFreeBuffers = new HashMap<Integer, ArrayDeque<byte[]>>();
+    private final long mMaxPooledBytes;
+    private long mPooledBytes = 0;
+    private long mAllocations = 0;
+    private long mReuses = 0;
+
+    public BufferPool( long maxPooledBytes ) {
+        this.mMaxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * @return the process wide buffer pool
+     */
+    public static BufferPool getPool() {
+        return mPool;
+    }
+
+    /**
+     * @return the size of the buffer that the pool allocates for a request of numBytes
+     */
+    public static int sizeClass(int numBytes) {
+        int size = MIN_BUFFER_SIZE;
+        if (numBytes > MIN_BUFFER_SIZE) {
+            int step = Integer.highestOneBit( numBytes - 1 ) >> 2;
+            long rounded = ((long)(numBytes - 1) / step + 1) * step;
+            size = (int)Math.min(rounded, Integer.MAX_VALUE - 8);
+        }
+        return size;
+    }
+
+    /**
+     * Get a buffer from the pool, or allocate a new buffer if there is no free buffer of the right size.
+     *
+     * @param numBytes the minimum size of the buffer
+     * @return a buffer that is at least numBytes long. The contents of the buffer are undefined.
+     */
+    public byte[] acquire(int numBytes) {
+        int size = sizeClass( numBytes );
+        byte[] buffer = null;
+        synchronized (this) {
+            ArrayDeque<byte[]> free = mFreeBuffers.get( size );
+            if (free != null && free.size() > 0) {
+                buffer = free.pop();
+                mPooledBytes -= size;
+                mReuses++;
+            } else {
+                mAllocations++;
+            }
+        }
+        if (buffer == null) {
+            buffer = new byte[ size ];
+        }
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool. Buffers that were not allocated by a pool (their length is not a size class) are
+     * ignored.
+     *
+     * @param buffer the buffer. The caller must not use the buffer after it is released.
+     */
+    public void release(byte[] buffer) {
+        if (buffer != null && buffer.length == sizeClass( buffer.length )) {
+            synchronized (this) {
+                if (mPooledBytes + buffer.length <= mMaxPooledBytes) {
+                    ArrayDeque<byte[]> free = mFreeBuffers.get( buffer.length );
+                    if (free == null) {
+                        free = new ArrayDeque<byte[]>();
+                        mFreeBuffers.put(buffer.length, free);
+                    }
+                    free.push( buffer );
+                    mPooledBytes += buffer.length;
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove all of the free buffers from the pool.
+     */
+    public synchronized void clear() {
+        mFreeBuffers.clear();
+        mPooledBytes = 0;
+    }
+
+    public synchronized long getPooledBytes() {
+        return mPooledBytes;
+    }
+
+    public synchronized long getAllocations() {
+        return mAllocations;
+    }
+
+    public synchronized long getReuses() {
+        return mReuses;
+    }
+
+}
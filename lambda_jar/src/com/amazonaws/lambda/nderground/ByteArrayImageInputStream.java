@@ -0,0 +1,110 @@
+/** \file
+ *
+ * Feb 15, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.io.IOException;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * <h3>
+ * ByteArrayImageInputStream
+ * </h3>
+ * <p>
+ * An ImageInputStream that reads from a byte array. The image readers can seek anywhere in the stream, so nothing
+ * is cached. (ImageIO.createImageInputStream() wraps an InputStream in a FileCacheImageInputStream, which copies the
+ * stream to a temporary file, or a MemoryCacheImageInputStream, which copies the stream into its own blocks.)
+ * </p>
+ * <p>
+ * If the byte array came from a BufferPool, the array is returned to the pool when the stream is closed.
+ * </p>
+ * <p>
+ * Feb 15, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class ByteArrayImageInputStream extends ImageInputStreamImpl {
+    private byte[] mBuffer;
+    private final int mLength;
+    private final BufferPool mPool;
+
+    /**
+     * @param buffer the image data
+     * @param length the number of bytes of image data in the buffer
+     */
+    public ByteArrayImageInputStream( byte[] buffer, int length ) {
+        this(buffer, length, null);
+    }
+
+    /**
+     * @param buffer the image data
+     * @param length the number of bytes of image data in the buffer
+     * @param pool the pool that the buffer is returned to when the stream is closed, or null.
+     */
+    public ByteArrayImageInputStream( byte[] buffer, int length, BufferPool pool ) {
+        this.mBuffer = buffer;
+        this.mLength = length;
+        this.mPool = pool;
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        int b = -1;
+        if (streamPos < mLength) {
+            bitOffset = 0;
+            b = mBuffer[ (int)streamPos++ ] & 0xff;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException("ByteArrayImageInputStream: bad offset or length");
+        }
+        int numBytes = -1;
+        if (len == 0) {
+            numBytes = 0;
+        } else if (streamPos < mLength) {
+            bitOffset = 0;
+            numBytes = (int)Math.min(len, mLength - streamPos);
+            System.arraycopy(mBuffer, (int)streamPos, b, off, numBytes);
+            streamPos += numBytes;
+        }
+        return numBytes;
+    }
+
+    @Override
+    public long length() {
+        return mLength;
+    }
+
+    @Override
+    public boolean isCached() {
+        return true;
+    }
+
+    @Override
+    public boolean isCachedMemory() {
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        if (mPool != null && mBuffer != null) {
+            mPool.release( mBuffer );
+        }
+        mBuffer = null;
+    }
+
+}
@@ -0,0 +1,94 @@
+/** \file
+ *
+ * Feb 21, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * <h3>
+ * ByteBufferImageInputStream
+ * </h3>
+ * <p>
+ * An ImageInputStream that reads from a ByteBuffer. With a MappedByteBuffer (see LocalObjectCache) the image reader
+ * reads the file through the page cache; the file is not copied onto the heap.
+ * </p>
+ * <p>
+ * Feb 21, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class ByteBufferImageInputStream extends ImageInputStreamImpl {
+    private ByteBuffer mBuffer;
+    private final int mLength;
+
+    /**
+     * @param buffer the image data, from position 0 to the buffer limit. The buffer position is not changed.
+     */
+    public ByteBufferImageInputStream( ByteBuffer buffer ) {
+        this.mBuffer = buffer.duplicate();
+        this.mLength = buffer.limit();
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        int b = -1;
+        if (streamPos < mLength) {
+            bitOffset = 0;
+            b = mBuffer.get( (int)streamPos++ ) & 0xff;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException("ByteBufferImageInputStream: bad offset or length");
+        }
+        int numBytes = -1;
+        if (len == 0) {
+            numBytes = 0;
+        } else if (streamPos < mLength) {
+            bitOffset = 0;
+            numBytes = (int)Math.min(len, mLength - streamPos);
+            mBuffer.position( (int)streamPos );
+            mBuffer.get(b, off, numBytes);
+            streamPos += numBytes;
+        }
+        return numBytes;
+    }
+
+    @Override
+    public long length() {
+        return mLength;
+    }
+
+    @Override
+    public boolean isCached() {
+        return true;
+    }
+
+    @Override
+    public boolean isCachedMemory() {
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        // the mapping is released when the buffer is garbage collected
+        mBuffer = null;
+    }
+
+}
@@ -0,0 +1,327 @@
+/** \file
+ *
+ * Mar 3, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * <h3>
+ * DeadlinePlanner
+ * </h3>
+ * <p>
+ * Fit a scale request into the time that is left in the Lambda invocation (Context.getRemainingTimeInMillis()). A
+ * slow download followed by a slow resize can run past the function timeout. When Lambda stops the function, nothing
+ * is written and the caller only sees a timeout.
+ * </p>
+ * <p>
+ * Before the original is downloaded and again once the image header has been read, the time for the rest of the
+ * request is estimated from the image size and from the cost model: the time per source byte to download, per decoded
+ * pixel to decode and to resize (for each resize engine) and per output pixel to encode and upload. The costs start at
+ * conservative values and are updated from the timings of the requests that have run in this process (an exponential
+ * moving average). The path is picked from the first of these that fits in the time left:
+ * </p>
+ * <ul>
+ * <li>FULL: the request as it was made.</li>
+ * <li>FAST_RESIZE: the resize engine is replaced by FAST_ENGINE (the bilinear SeparableResampler).</li>
+ * <li>SUBSAMPLED: the fast engine, and the original is decoded with the coarsest source subsampling that is still at
+ * least the scaled size.</li>
+ * </ul>
+ * <p>
+ * If no path fits, the request is not started (or, before the upload, not finished) and the result is "deadline
+ * exceeded". The time left is the remaining time less IMAGE_DEADLINE_RESERVE_MS (1000 ms by default), so the
+ * function returns its result before Lambda stops it. The estimates are multiplied by SAFETY_FACTOR.
+ * </p>
+ * <p>
+ * Mar 3, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class DeadlinePlanner {
+    public final static long DEFAULT_RESERVE_MILLIS = 1000;
+    /** the estimates are multiplied by this factor, since a request that runs past the timeout is lost */
+    public final static double SAFETY_FACTOR = 1.5;
+    /** the resize engine that replaces the requested engine when the requested engine is too slow */
+    public final static String FAST_ENGINE = "bilinear";
+    /** the cost model key for the ImageService default engine */
+    public final static String DEFAULT_ENGINE = "default";
+
+    public enum Path {
+        FULL("full"),
+        FAST_RESIZE("fastResize"),
+        SUBSAMPLED("subsampled");
+
+        private final String mName;
+
+        Path(String name) {
+            this.mName = name;
+        }
+
+        /**
+         * @return the name of the path, as it is reported in the results
+         */
+        public String getName() { return mName; }
+    }
+
+    /**
+     * The stage costs, other than the resize. The initial cost is in nanoseconds per unit.
+     */
+    public enum Cost {
+        /** per source byte */
+        DOWNLOAD(20),
+        /** per decoded pixel */
+        DECODE(30),
+        /** per output pixel */
+        ENCODE_UPLOAD(80);
+
+        private final double mInitialNanos;
+
+        Cost(double initialNanos) {
+            this.mInitialNanos = initialNanos;
+        }
+
+        public double getInitialNanos() { return mInitialNanos; }
+    }
+
+    /**
+     * <p>
+     * The cost of each stage, in nanoseconds per unit, as a moving average of the timings that have been recorded.
+     * The resize cost is kept for each resize engine (by engine name), per decoded pixel.
+     * </p>
+     */
+    public static class CostModel {
+        /** the weight of a new timing in the moving average */
+        private final static double WEIGHT = 0.25;
+        private final static double INITIAL_RESIZE_NANOS = 60;
+        private final static double INITIAL_FAST_RESIZE_NANOS = 10;
+
+        private final double[] mNanos = new double[ Cost.values().length ];
+        private final Map<String, Double> mResizeNanos = new HashMap<String, Double>();
+
+        public CostModel() {
+            for (Cost cost : Cost.values()) {
+                mNanos[ cost.ordinal() ] = cost.getInitialNanos();
+            }
+            mResizeNanos.put(FAST_ENGINE, INITIAL_FAST_RESIZE_NANOS);
+        }
+
+        public synchronized double getNanos(Cost cost) {
+            return mNanos[ cost.ordinal() ];
+        }
+
+        public synchronized double getResizeNanos(String engine) {
+            Double nanos = mResizeNanos.get( engine );
+            return (nanos != null) ? nanos : INITIAL_RESIZE_NANOS;
+        }
+
+        public synchronized void record(Cost cost, long units, long nanos) {
+            if (units > 0 && nanos > 0) {
+                mNanos[ cost.ordinal() ] = average( mNanos[ cost.ordinal() ], units, nanos );
+            }
+        }
+
+        public synchronized void recordResize(String engine, long units, long nanos) {
+            if (units > 0 && nanos > 0) {
+                mResizeNanos.put(engine, average( getResizeNanos( engine ), units, nanos ));
+            }
+        }
+
+        private static double average(double current, long units, long nanos) {
+            return (1.0 - WEIGHT) * current + WEIGHT * ((double)nanos / (double)units);
+        }
+    }
+
+    /**
+     * The path picked for a request, with the subsampling and resize engine to use.
+     */
+    public static class Plan {
+        private final Path mPath;
+        private final int mSubsampling;
+        private final ResizeEngine mEngine;
+        private final long mEstimateMillis;
+        private final long mRemainingMillis;
+
+        Plan(Path path, int subsampling, ResizeEngine engine, long estimateMillis, long remainingMillis) {
+            this.mPath = path;
+            this.mSubsampling = subsampling;
+            this.mEngine = engine;
+            this.mEstimateMillis = estimateMillis;
+            this.mRemainingMillis = remainingMillis;
+        }
+
+        public Path getPath() {
+            return mPath;
+        }
+
+        /**
+         * @return true if the request is done another way than it was made
+         */
+        public boolean isDegraded() {
+            return mPath != Path.FULL;
+        }
+
+        /**
+         * @return true if even the fastest path does not fit in the time that is left
+         */
+        public boolean isDeadlineExceeded() {
+            return mEstimateMillis > mRemainingMillis;
+        }
+
+        /**
+         * @return the source subsampling factor to decode the image with
+         */
+        public int getSubsampling() {
+            return mSubsampling;
+        }
+
+        /**
+         * @return the resize engine (null for the ImageService default engine)
+         */
+        public ResizeEngine getEngine() {
+            return mEngine;
+        }
+
+        public long getEstimateMillis() {
+            return mEstimateMillis;
+        }
+
+        public long getRemainingMillis() {
+            return mRemainingMillis;
+        }
+
+        @Override
+        public String toString() {
+            return (isDeadlineExceeded() ? "deadline exceeded" : mPath.getName()) + " (an estimated " + mEstimateMillis +
+                   " ms, with " + mRemainingMillis + " ms left)";
+        }
+    }
+
+    private final static long mReserveMillis = S3TransferSettings.getLong("IMAGE_DEADLINE_RESERVE_MS", DEFAULT_RESERVE_MILLIS);
+    private final static CostModel mCostModel = new CostModel();
+
+    private final LongSupplier mRemainingMillis;
+    private final long mReserve;
+    private final CostModel mModel;
+
+    /**
+     * @param remainingMillis the time left in the invocation (e.g., Context.getRemainingTimeInMillis())
+     */
+    public DeadlinePlanner(LongSupplier remainingMillis) {
+        this(remainingMillis, mReserveMillis, mCostModel);
+    }
+
+    DeadlinePlanner(LongSupplier remainingMillis, long reserveMillis, CostModel model) {
+        this.mRemainingMillis = remainingMillis;
+        this.mReserve = reserveMillis;
+        this.mModel = model;
+    }
+
+    /**
+     * @return the process wide cost model
+     */
+    public static CostModel getCostModel() {
+        return mCostModel;
+    }
+
+    public CostModel getModel() {
+        return mModel;
+    }
+
+    /**
+     * @return the cost model key for a resize engine
+     */
+    public static String engineName(ResizeEngine engine) {
+        return (engine != null) ? engine.getName() : DEFAULT_ENGINE;
+    }
+
+    /**
+     * @return the time left for the request, which is the time left in the invocation less the reserve
+     */
+    public long getRemainingMillis() {
+        return mRemainingMillis.getAsLong() - mReserve;
+    }
+
+    private static long millis(double nanos) {
+        return (long)Math.ceil( nanos * SAFETY_FACTOR / 1000000.0 );
+    }
+
+    /**
+     * @return true if the original, of sourceBytes bytes, can be downloaded in the time that is left
+     */
+    public boolean canDownload(long sourceBytes) {
+        return millis( mModel.getNanos( Cost.DOWNLOAD ) * Math.max(0, sourceBytes) ) <= getRemainingMillis();
+    }
+
+    /**
+     * @return true if a scaled image of outputPixels pixels can be encoded and uploaded in the time that is left
+     */
+    public boolean canUpload(long outputPixels) {
+        return millis( mModel.getNanos( Cost.ENCODE_UPLOAD ) * Math.max(0, outputPixels) ) <= getRemainingMillis();
+    }
+
+    /**
+     * @return the estimated time, in milliseconds, to decode (if decode is true), resize, encode and upload
+     */
+    long estimateMillis(int srcWidth, int srcHeight, int subsampling, boolean decode, ResizeEngine engine, int width, int height) {
+        long decodedPixels = (long)((srcWidth + subsampling - 1) / subsampling) * ((srcHeight + subsampling - 1) / subsampling);
+        double nanos = mModel.getResizeNanos( engineName( engine ) ) * decodedPixels +
+                       mModel.getNanos( Cost.ENCODE_UPLOAD ) * width * height;
+        if (decode) {
+            nanos += mModel.getNanos( Cost.DECODE ) * decodedPixels;
+        }
+        return millis( nanos );
+    }
+
+    /**
+     * Pick the path for an image that has not been decoded.
+     *
+     * @param srcWidth the width of the original (or of the region that is decoded)
+     * @param srcHeight the height of the original
+     * @param subsampling the source subsampling that the request would use
+     * @param canSubsample true if a coarser subsampling can be used
+     * @param engine the requested resize engine, or null for the default engine
+     * @param width the width of the scaled image
+     * @param height the height of the scaled image
+     * @return the plan. If isDeadlineExceeded() is true, the request should not be started.
+     */
+    public Plan planDecode(int srcWidth, int srcHeight, int subsampling, boolean canSubsample, ResizeEngine engine,
+                           int width, int height) {
+        return plan(srcWidth, srcHeight, subsampling, canSubsample, true, engine, width, height);
+    }
+
+    /**
+     * Pick the path for an image that has already been decoded (e.g., from the DecodedImageCache).
+     */
+    public Plan planResize(int imageWidth, int imageHeight, ResizeEngine engine, int width, int height) {
+        return plan(imageWidth, imageHeight, 1, false, false, engine, width, height);
+    }
+
+    private Plan plan(int srcWidth, int srcHeight, int subsampling, boolean canSubsample, boolean decode, ResizeEngine engine,
+                      int width, int height) {
+        long remaining = getRemainingMillis();
+        Plan plan = new Plan(Path.FULL, subsampling, engine,
+                             estimateMillis(srcWidth, srcHeight, subsampling, decode, engine, width, height), remaining);
+        if (plan.isDeadlineExceeded()) {
+            ResizeEngine fast = ResizeEngines.forName( FAST_ENGINE );
+            if (! FAST_ENGINE.equals( engineName( engine ) )) {
+                plan = new Plan(Path.FAST_RESIZE, subsampling, fast,
+                                estimateMillis(srcWidth, srcHeight, subsampling, decode, fast, width, height), remaining);
+            }
+            int maxSubsampling = Math.max(1, Math.min(srcWidth / Math.max(1, width), srcHeight / Math.max(1, height)));
+            if (plan.isDeadlineExceeded() && decode && canSubsample && maxSubsampling > subsampling) {
+                plan = new Plan(Path.SUBSAMPLED, maxSubsampling, fast,
+                                estimateMillis(srcWidth, srcHeight, maxSubsampling, decode, fast, width, height), remaining);
+            }
+        }
+        return plan;
+    }
+
+}
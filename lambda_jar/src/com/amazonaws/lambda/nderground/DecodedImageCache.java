@@ -0,0 +1,237 @@
+/** \file
+ *
+ * Feb 20, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <h3>
+ * DecodedImageCache
+ * </h3>
+ * <p>
+ * A process wide cache of decoded original images. An application often asks for several scaled versions of an
+ * image that was just uploaded, in separate Lambda invocations. When the invocations run in the same warm container,
+ * the original is downloaded and decoded once.
+ * </p>
+ * <p>
+ * Images are keyed by S3 bucket and path and are stored with the S3 ETag of the image file. LambdaImageScaler
+ * first checks a cached image against the ETag from the HEAD of the original; the original is not read when the
+ * ETags match. Otherwise the original is read with a conditional GET (If-None-Match) on the cached ETag. A replaced
+ * image is never served from the cache. A cached image may have been decoded with source subsampling; it is only used for a scaled image that would
+ * be decoded with at least the same subsampling.
+ * </p>
+ * <p>
+ * The cache is bounded by the total size of the cached rasters (IMAGE_DECODED_CACHE_BYTES, 0 turns the cache off;
+ * the default is a quarter of the maximum heap) and evicts the least recently used image. When the heap in use is
+ * close to the maximum heap, images are also evicted, so that the cache does not cause an OutOfMemoryError in the
+ * image processing.
+ * </p>
+ * <p>
+ * The cached images are shared, so they must not be changed.
+ * </p>
+ * <p>
+ * Feb 20, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class DecodedImageCache {
+    /** images are evicted when the heap in use would be more than this fraction of the maximum heap */
+    public final static double MAX_HEAP_FRACTION = 0.7;
+
+    private final static DecodedImageCache mCache = new DecodedImageCache(
+            S3TransferSettings.getLong("IMAGE_DECODED_CACHE_BYTES", Runtime.getRuntime().maxMemory() / 4) );
+
+    /**
+     * A decoded image, with the information needed to validate it and to decide whether it can be used.
+     */
+    public static class CachedImage {
+        private final String mETag;
+        private final BufferedImage mImage;
+        private final int mSourceWidth;
+        private final int mSourceHeight;
+        private final int mSubsampling;
+        private final long mBytes;
+
+        /**
+         * @param eTag the S3 ETag of the image file
+         * @param image the decoded image
+         * @param sourceWidth the width of the stored image (the decoded image may be subsampled)
+         * @param sourceHeight the height of the stored image
+         * @param subsampling the source subsampling that the image was decoded with
+         */
+        public CachedImage(String eTag, BufferedImage image, int sourceWidth, int sourceHeight, int subsampling) {
+            this.mETag = eTag;
+            this.mImage = image;
+            this.mSourceWidth = sourceWidth;
+            this.mSourceHeight = sourceHeight;
+            this.mSubsampling = subsampling;
+            this.mBytes = rasterBytes( image );
+        }
+
+        public String getETag() { return mETag; }
+        public BufferedImage getImage() { return mImage; }
+        public int getSourceWidth() { return mSourceWidth; }
+        public int getSourceHeight() { return mSourceHeight; }
+        public int getSubsampling() { return mSubsampling; }
+        public long getBytes() { return mBytes; }
+    }
+
+    private final long mMaxBytes;
+    private final LinkedHashMap<String, CachedImage> mImages = new LinkedHashMap<String, CachedImage>(16, 0.75f, true);
+    private long mBytes = 0;
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mEvictions = 0;
+
+    /**
+     * @param maxBytes the bound on the total size of the cached rasters. 0 turns the cache off.
+     */
+    public DecodedImageCache( long maxBytes ) {
+        this.mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return the process wide cache
+     */
+    public static DecodedImageCache getCache() {
+        return mCache;
+    }
+
+    /**
+     * @return the size of the image raster, in bytes
+     */
+    public static long rasterBytes(BufferedImage image) {
+        DataBuffer data = image.getRaster().getDataBuffer();
+        return (long)data.getSize() * data.getNumBanks() * DataBuffer.getDataTypeSize( data.getDataType() ) / 8;
+    }
+
+    private static String key(String s3Bucket, String s3Path) {
+        return s3Bucket + "|" + s3Path;
+    }
+
+    public long getMaxBytes() { return mMaxBytes; }
+    public boolean isEnabled() { return mMaxBytes > 0; }
+
+    public synchronized int size() { return mImages.size(); }
+    public synchronized long getBytes() { return mBytes; }
+    public synchronized long getHits() { return mHits; }
+    public synchronized long getMisses() { return mMisses; }
+    public synchronized long getEvictions() { return mEvictions; }
+
+    /**
+     * Look up an image. The image must still be validated against S3 (its ETag) before it is used, so this
+     * does not change the hit and miss counts (see recordHit() and recordMiss()).
+     *
+     * @return the cached image, or null
+     */
+    public synchronized CachedImage get(String s3Bucket, String s3Path) {
+        return mImages.get( key(s3Bucket, s3Path) );
+    }
+
+    /**
+     * @return true if the image is in the cache (so it must not be changed or flushed)
+     */
+    public synchronized boolean isCached(BufferedImage image) {
+        boolean cached = false;
+        for (CachedImage entry : mImages.values()) {
+            cached = cached || entry.getImage() == image;
+        }
+        return cached;
+    }
+
+    public synchronized void recordHit() {
+        mHits++;
+    }
+
+    public synchronized void recordMiss() {
+        mMisses++;
+    }
+
+    /**
+     * Remove an image (for example, when S3 reports that it has changed).
+     */
+    public synchronized void remove(String s3Bucket, String s3Path) {
+        CachedImage image = mImages.remove( key(s3Bucket, s3Path) );
+        if (image != null) {
+            mBytes -= image.getBytes();
+        }
+    }
+
+    /**
+     * @return the number of bytes that must be evicted before newBytes more can be allocated, given the heap in use
+     */
+    protected long heapExcess(long newBytes) {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return used + newBytes - (long)(runtime.maxMemory() * MAX_HEAP_FRACTION);
+    }
+
+    /**
+     * Evict least recently used images until the cache has room for cacheBytes and the heap has room for heapBytes.
+     * The evicted rasters are not freed until the next garbage collection, so the heap in use is reduced by the
+     * size of the evicted images rather than measured again.
+     */
+    private void evict(long cacheBytes, long heapBytes) {
+        long heapExcess = heapExcess( heapBytes );
+        Iterator<Map.Entry<String, CachedImage>> iter = mImages.entrySet().iterator();
+        while (iter.hasNext() && (mBytes + cacheBytes > mMaxBytes || heapExcess > 0)) {
+            CachedImage eldest = iter.next().getValue();
+            iter.remove();
+            mBytes -= eldest.getBytes();
+            heapExcess -= eldest.getBytes();
+            mEvictions++;
+        }
+    }
+
+    /**
+     * Add an image to the cache, replacing any image for the same bucket and path. An image that is larger than
+     * the cache bound is not added.
+     *
+     * @return true if the image was added
+     */
+    public synchronized boolean put(String s3Bucket, String s3Path, CachedImage image) {
+        boolean added = false;
+        remove(s3Bucket, s3Path);
+        if (image.getETag() != null && image.getBytes() <= mMaxBytes) {
+            evict( image.getBytes(), 0 );
+            mImages.put( key(s3Bucket, s3Path), image );
+            mBytes += image.getBytes();
+            added = true;
+        }
+        return added;
+    }
+
+    /**
+     * Evict images if the heap is close to its limit (for example, before a large image is decoded).
+     *
+     * @param newBytes the number of bytes that are about to be allocated
+     */
+    public synchronized void trim(long newBytes) {
+        evict( 0, newBytes );
+    }
+
+    public synchronized void clear() {
+        mImages.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * @return a one line summary of the cache statistics, for the log
+     */
+    public synchronized String getSummary() {
+        return "DecodedImageCache: hits = " + mHits + ", misses = " + mMisses + ", evictions = " + mEvictions +
+               ", images = " + mImages.size() + ", bytes = " + mBytes;
+    }
+
+}
@@ -0,0 +1,326 @@
+/** \file
+ *
+ * Feb 28, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+
+/**
+ * <h3>
+ * ImageAdmission
+ * </h3>
+ * <p>
+ * A memory check that is made before an image is decoded. A very large image (a 100 megapixel panorama, or a PNG
+ * "decompression bomb" that declares a huge size in a small file) can cause an OutOfMemoryError in the decoder. An
+ * OutOfMemoryError kills the Lambda container, along with the warm caches in it. 
+ * </p>
+ * <p>
+ * admit() estimates the size of the decoded raster from the image header (the declared width, height and bits per
+ * pixel, see ImageDecoder.readHeader), plus the TYPE_INT_RGB copy made by PixelFormats.normalize() and the scaled
+ * image. The estimate is compared with the heap that is available, and the decode strategy is picked:
+ * </p>
+ * <ul>
+ * <li>FULL: every pixel is decoded.</li>
+ * <li>SUBSAMPLED: the image is decoded with the source subsampling that ImageDecoder.subsampling() picks for the
+ * scaled size.</li>
+ * <li>STRIPS: the preferred decode does not fit, so the image is decoded in strips and scaled as it is decoded, with
+ * the same subsampling (see StripResampler). Only one strip of the original is on the heap at a time, but the
+ * decode is slower.</li>
+ * <li>REDUCED: a strip decode does not fit either, so the image is decoded with a coarser subsampling. The decoded 
+ * image is still at least as large as the scaled image, but the final scaling pass has less oversampling.</li>
+ * <li>REJECT: the image is not decoded. ImageDecoder.readNormalized() throws an ImageRejectedException.</li>
+ * </ul>
+ * <p>
+ * An image with a declared size of more than IMAGE_MAX_SOURCE_PIXELS pixels (200 megapixels by default) is rejected
+ * without a memory estimate. The heap available for an image is IMAGE_ADMISSION_HEAP_PERCENT percent (80 by default)
+ * of the maximum heap, less the heap in use. Since the heap in use includes garbage that has not been collected, 
+ * an image that would not be decoded with the preferred subsampling is checked again with the heap that was in use
+ * after the last garbage collection (see collectedAvailableHeap). A garbage collection is not requested. The
+ * DecodedImageCache is trimmed by the size of the decode that is picked, not emptied.
+ * </p>
+ * <p>
+ * Feb 28, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class ImageAdmission {
+    public final static long DEFAULT_MAX_SOURCE_PIXELS = 200L * 1000 * 1000;
+    public final static long DEFAULT_HEAP_PERCENT = 80;
+
+    public enum Strategy {
+        FULL,
+        SUBSAMPLED,
+        STRIPS,
+        REDUCED,
+        REJECT
+    }
+
+    private final static long mMaxSourcePixels = S3TransferSettings.getLong("IMAGE_MAX_SOURCE_PIXELS", DEFAULT_MAX_SOURCE_PIXELS);
+    private final static long mHeapPercent = 
+            Math.max(1, Math.min(100, S3TransferSettings.getLong("IMAGE_ADMISSION_HEAP_PERCENT", DEFAULT_HEAP_PERCENT)));
+
+    private final Strategy mStrategy;
+    private final int mSubsampling;
+    private final long mDecodedBytes;
+    private final long mAvailableBytes;
+    private final String mReason;
+    private int mStripRows = 0;
+
+    ImageAdmission(Strategy strategy, int subsampling, long decodedBytes, long availableBytes, String reason) {
+        this.mStrategy = strategy;
+        this.mSubsampling = subsampling;
+        this.mDecodedBytes = decodedBytes;
+        this.mAvailableBytes = availableBytes;
+        this.mReason = reason;
+    }
+
+
+    /**
+     * @return the heap, in bytes, that can be used for a decoded image
+     */
+    public static long availableHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return (runtime.maxMemory() / 100) * mHeapPercent - used;
+    }
+
+
+    /**
+     * @return the heap, in bytes, that can be used for a decoded image, less the heap that was in use after the last
+     *         garbage collection (MemoryPoolMXBean.getCollectionUsage()), or availableHeap() if the heap pools do not
+     *         report a collection usage
+     */
+    public static long collectedAvailableHeap() {
+        long collected = 0;
+        boolean reported = false;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                MemoryUsage usage = pool.getCollectionUsage();
+                if (usage != null) {
+                    collected += usage.getUsed();
+                    reported = true;
+                }
+            }
+        }
+        long available = availableHeap();
+        if (reported) {
+            available = (Runtime.getRuntime().maxMemory() / 100) * mHeapPercent - collected;
+        }
+        return available;
+    }
+
+
+    /**
+     * Estimate the heap needed to decode an image, normalize it and scale it.
+     *
+     * @param header the image header, from ImageDecoder.readHeader()
+     * @param subsampling the source subsampling factor
+     * @param dstWidth the width of the scaled image
+     * @param dstHeight the height of the scaled image
+     * @return the estimated number of bytes
+     */
+    public static long decodedBytes(ImageHeader header, int subsampling, int dstWidth, int dstHeight) {
+        long pixels = (long)((header.getWidth() + subsampling - 1) / subsampling) * ((header.getHeight() + subsampling - 1) / subsampling);
+        long bytes = pixels * bytesPerPixel( header );
+        int rawType = header.getRawImageType();
+        if (rawType != BufferedImage.TYPE_INT_RGB && rawType != BufferedImage.TYPE_INT_ARGB) {
+            // PixelFormats.normalize() copies the image to an int raster
+            bytes += pixels * 4;
+        }
+        bytes += 4L * Math.max(0, dstWidth) * Math.max(0, dstHeight);
+        return bytes;
+    }
+
+
+    /**
+     * @return the bytes per pixel in the raster the reader decodes. If the reader does not report the pixel depth,
+     *         a pixel is assumed to be an int.
+     */
+    private static int bytesPerPixel(ImageHeader header) {
+        int bitsPerPixel = (header.getBitsPerPixel() > 0) ? header.getBitsPerPixel() : 32;
+        return (bitsPerPixel + 7) / 8;
+    }
+
+
+    /**
+     * The heap for a strip decode (see StripResampler) is the scaled image, the vertical filter window and, for each
+     * row of a strip, the decoded row, the filtered row and its place in the ring of filtered rows.
+     *
+     * @param stripBytes the maximum size of a decoded strip
+     * @return the number of rows in a strip for a strip decode that fits in availableBytes, or 0 if it does not fit
+     */
+    static int stripRows(ImageHeader header, int subsampling, int dstWidth, int dstHeight, long availableBytes, long stripBytes) {
+        int rows = 0;
+        if (dstWidth > 0 && dstHeight > 0) {
+            int sampledWidth = (header.getWidth() + subsampling - 1) / subsampling;
+            int sampledHeight = (header.getHeight() + subsampling - 1) / subsampling;
+            long rowBytes = (long)sampledWidth * bytesPerPixel( header );
+            long fixedBytes = 4L * dstWidth * dstHeight + 4L * StripResampler.windowRows(sampledHeight, dstHeight) * dstWidth;
+            long maxRows = Math.min(stripBytes / rowBytes, (availableBytes - fixedBytes) / (rowBytes + 8L * dstWidth));
+            maxRows = Math.min(maxRows, sampledHeight);
+            if (maxRows >= Math.min(StripResampler.MIN_STRIP_ROWS, sampledHeight)) {
+                rows = (int)maxRows;
+            }
+        }
+        return rows;
+    }
+
+
+    /**
+     * @return the heap estimate for a strip decode with stripRows rows in a strip
+     */
+    static long stripBytes(ImageHeader header, int subsampling, int dstWidth, int dstHeight, int stripRows) {
+        int sampledWidth = (header.getWidth() + subsampling - 1) / subsampling;
+        int sampledHeight = (header.getHeight() + subsampling - 1) / subsampling;
+        long rowBytes = (long)sampledWidth * bytesPerPixel( header ) + 8L * dstWidth;
+        return 4L * dstWidth * dstHeight + 4L * StripResampler.windowRows(sampledHeight, dstHeight) * dstWidth + stripRows * rowBytes;
+    }
+
+
+    /**
+     * Pick the decode strategy for an image.
+     *
+     * @param header the image header, from ImageDecoder.readHeader()
+     * @param dstWidth the width of the scaled image (for several scaled images, the largest)
+     * @param dstHeight the height of the scaled image
+     * @param availableBytes the heap that can be used for the image
+     * @param maxSourcePixels the largest declared image size that will be decoded
+     * @param stripBytes the maximum size of a decoded strip, or 0 if images are not decoded in strips
+     * @return the admission result
+     */
+    static ImageAdmission plan(ImageHeader header, int dstWidth, int dstHeight, long availableBytes, long maxSourcePixels,
+                               long stripBytes) {
+        ImageAdmission admission = null;
+        int width = header.getWidth();
+        int height = header.getHeight();
+        long sourcePixels = (long)width * height;
+        if (width <= 0 || height <= 0 || sourcePixels > maxSourcePixels) {
+            admission = new ImageAdmission(Strategy.REJECT, 0, 0, availableBytes, 
+                                           "the image size " + width + " x " + height + " is more than the limit of " + 
+                                           maxSourcePixels + " pixels");
+        } else {
+            int subsampling = ImageDecoder.subsampling(width, height, dstWidth, dstHeight);
+            long bytes = decodedBytes(header, subsampling, dstWidth, dstHeight);
+            if (bytes <= availableBytes) {
+                admission = new ImageAdmission((subsampling > 1) ? Strategy.SUBSAMPLED : Strategy.FULL, subsampling, bytes, 
+                                               availableBytes, null);
+            } else if (stripBytes > 0 && stripRows(header, subsampling, dstWidth, dstHeight, availableBytes, stripBytes) > 0) {
+                int stripRows = stripRows(header, subsampling, dstWidth, dstHeight, availableBytes, stripBytes);
+                admission = new ImageAdmission(Strategy.STRIPS, subsampling, 
+                                               stripBytes(header, subsampling, dstWidth, dstHeight, stripRows), availableBytes, 
+                                               "decoding in strips of " + stripRows + " rows");
+                admission.mStripRows = stripRows;
+            } else {
+                // the coarsest subsampling where the decoded image is still at least the scaled size
+                int maxSubsampling = subsampling;
+                if (dstWidth > 0 && dstHeight > 0) {
+                    maxSubsampling = Math.max(subsampling, Math.min(width / dstWidth, height / dstHeight));
+                }
+                int reduced = subsampling;
+                long reducedBytes = bytes;
+                while (reducedBytes > availableBytes && reduced < maxSubsampling) {
+                    reduced++;
+                    reducedBytes = decodedBytes(header, reduced, dstWidth, dstHeight);
+                }
+                if (reducedBytes <= availableBytes) {
+                    admission = new ImageAdmission(Strategy.REDUCED, reduced, reducedBytes, availableBytes, 
+                                                   "subsampling " + reduced + " instead of " + subsampling);
+                } else {
+                    admission = new ImageAdmission(Strategy.REJECT, reduced, reducedBytes, availableBytes,
+                                                   "decoding " + width + " x " + height + " needs " + reducedBytes + 
+                                                   " bytes, " + availableBytes + " bytes are available");
+                }
+            }
+        }
+        return admission;
+    }
+
+
+    /**
+     * Check whether an image can be decoded on this heap, and pick the decode strategy.
+     *
+     * @param header the image header, from ImageDecoder.readHeader()
+     * @param dstWidth the width of the scaled image (for several scaled images, the largest)
+     * @param dstHeight the height of the scaled image
+     * @return the admission result
+     */
+    public static ImageAdmission admit(ImageHeader header, int dstWidth, int dstHeight) {
+        long preferredBytes = decodedBytes(header, ImageDecoder.subsampling(header.getWidth(), header.getHeight(), dstWidth, dstHeight),
+                                           dstWidth, dstHeight);
+        DecodedImageCache.getCache().trim( preferredBytes );
+        long stripBytes = StripResampler.getStripBytes();
+        ImageAdmission admission = plan(header, dstWidth, dstHeight, availableHeap(), mMaxSourcePixels, stripBytes);
+        if (admission.getStrategy() != Strategy.FULL && admission.getStrategy() != Strategy.SUBSAMPLED && 
+            admission.getDecodedBytes() > 0) {
+            // the heap in use includes garbage: check again with the heap that was in use after the last collection
+            long collectedBytes = collectedAvailableHeap();
+            if (collectedBytes > admission.getAvailableBytes()) {
+                admission = plan(header, dstWidth, dstHeight, collectedBytes, mMaxSourcePixels, stripBytes);
+            }
+            DecodedImageCache.getCache().trim( admission.getDecodedBytes() );
+        }
+        if (admission.getStrategy() == Strategy.STRIPS) {
+            ImageMetrics.current().increment( ImageMetrics.Counter.STRIPS );
+        } else if (admission.getStrategy() == Strategy.REDUCED) {
+            ImageMetrics.current().increment( ImageMetrics.Counter.REDUCED );
+        }
+        return admission;
+    }
+
+
+    public Strategy getStrategy() {
+        return mStrategy;
+    }
+
+    public boolean isRejected() {
+        return mStrategy == Strategy.REJECT;
+    }
+
+    /**
+     * @return the source subsampling factor to decode the image with
+     */
+    public int getSubsampling() {
+        return mSubsampling;
+    }
+
+    /**
+     * @return the estimated heap needed for the decode, or 0 if the image was rejected by its declared size
+     */
+    public long getDecodedBytes() {
+        return mDecodedBytes;
+    }
+
+    /**
+     * @return the number of (subsampled) rows in a strip, for the STRIPS strategy
+     */
+    public int getStripRows() {
+        return mStripRows;
+    }
+
+    public long getAvailableBytes() {
+        return mAvailableBytes;
+    }
+
+    /**
+     * @return why the image was reduced or rejected, or null
+     */
+    public String getReason() {
+        return mReason;
+    }
+
+    @Override
+    public String toString() {
+        return mStrategy + ((mReason != null) ? " (" + mReason + ")" : "");
+    }
+
+}
@@ -0,0 +1,242 @@
+/** \file
+ *
+ * Feb 5, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.SampleModel;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * <h3>
+ * ImageDecoder
+ * </h3>
+ * <p>
+ * Image decode support for the ImageService. ImageIO.read() decodes the full image. When the scaled image is much
+ * smaller than the original, most of those pixels are discarded by the scaling operation. A 5472 x 3648 image
+ * decodes to an 80 Mb raster, even if the result is a 200 pixel thumbnail.
+ * </p>
+ * <p>
+ * The functions in this class use an ImageReader to read the image size from the image header. An image that will be
+ * scaled down by a large factor is decoded with source subsampling, so the decoded raster is only OVERSAMPLE times
+ * larger than the scaled image. The final scaling pass is still done by the high quality scaling code.
+ * </p>
+ * <p>
+ * Feb 5, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class ImageDecoder {
+    /** the decoded image will be at least OVERSAMPLE times the size of the scaled image */
+    public final static int OVERSAMPLE = 2;
+
+
+    /**
+     * Calculate the source subsampling factor for an image that will be scaled from srcWidth x srcHeight
+     * to dstWidth x dstHeight.
+     *
+     * @return the subsampling factor. A value of 1 means that every pixel is decoded.
+     */
+    public static int subsampling(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+        int factor = 1;
+        if (dstWidth > 0 && dstHeight > 0) {
+            int xFactor = srcWidth / (dstWidth * OVERSAMPLE);
+            int yFactor = srcHeight / (dstHeight * OVERSAMPLE);
+            factor = Math.max(1, Math.min(xFactor, yFactor));
+        }
+        return factor;
+    }
+
+
+    /**
+     * Find an ImageReader for the image input stream.
+     *
+     * @param imageStream the image input stream
+     * @return an ImageReader with its input set to imageStream, or null if there is no reader for the image format.
+     *         The caller must dispose() the reader.
+     */
+    public static ImageReader getReader(ImageInputStream imageStream) {
+        ImageReader reader = null;
+        if (imageStream != null) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders( imageStream );
+            if (readers.hasNext()) {
+                reader = readers.next();
+                // image metadata is not needed to scale the image
+                reader.setInput( imageStream, false, true );
+            }
+        }
+        return reader;
+    }
+
+
+    /**
+     * Read the image header (the size, format and pixel depth of the first image) without decoding the image.
+     * 
+     * @param reader an ImageReader, from getReader()
+     * @return the image header information
+     * @throws IOException if the header could not be read (for example, if the stream ends before the header).
+     */
+    public static ImageHeader readHeader(ImageReader reader) throws IOException {
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        String formatName = reader.getFormatName().toLowerCase();
+        String[] formatNames = new String[]{ formatName };
+        if (reader.getOriginatingProvider() != null) {
+            formatNames = reader.getOriginatingProvider().getFormatNames();
+        }
+        ImageHeader header = new ImageHeader(width, height, formatName, formatNames);
+        ImageTypeSpecifier rawType = rawImageType( reader );
+        if (rawType != null) {
+            SampleModel sampleModel = rawType.getSampleModel(1, 1);
+            header.setBitsPerPixel( sampleModel.getNumDataElements() * DataBuffer.getDataTypeSize( sampleModel.getDataType() ) );
+            header.setRawImageType( rawType.getBufferedImageType() );
+        }
+        return header;
+    }
+
+
+    /**
+     * @return the type of image the reader decodes (from the image header), or null if the reader does not say
+     */
+    private static ImageTypeSpecifier rawImageType(ImageReader reader) throws IOException {
+        ImageTypeSpecifier rawType = null;
+        try {
+            rawType = reader.getRawImageType(0);
+            if (rawType == null) {
+                Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+                if (types.hasNext()) {
+                    rawType = types.next();
+                }
+            }
+        } catch (IllegalStateException | UnsupportedOperationException e) {
+            // some readers only know the image type after the image is decoded
+        }
+        return rawType;
+    }
+
+
+    /**
+     * Decode the first image from the reader.
+     *
+     * @param reader an ImageReader, from getReader()
+     * @param subsampling the source subsampling factor (1 decodes every pixel)
+     * @return the decoded image
+     * @throws IOException if there is an error reading the image
+     */
+    public static BufferedImage read(ImageReader reader, int subsampling) throws IOException {
+        return read(reader, null, subsampling);
+    }
+
+
+    /**
+     * Decode a region of the first image from the reader. The reader skips the pixels outside of the region.
+     *
+     * @param reader an ImageReader, from getReader()
+     * @param region the region of the image to decode, or null for the whole image
+     * @param subsampling the source subsampling factor (1 decodes every pixel)
+     * @return the decoded region
+     * @throws IOException if there is an error reading the image
+     */
+    public static BufferedImage read(ImageReader reader, Rectangle region, int subsampling) throws IOException {
+        ImageReadParam param = reader.getDefaultReadParam();
+        if (region != null) {
+            param.setSourceRegion( region );
+        }
+        if (subsampling > 1) {
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        }
+        BufferedImage image = reader.read(0, param);
+        return image;
+    }
+
+
+    /**
+     * Decode the first image from the reader and convert it to TYPE_INT_RGB, or to TYPE_INT_ARGB if it has
+     * transparent pixels (see PixelFormats.normalize).
+     *
+     * @param reader an ImageReader, from getReader()
+     * @param subsampling the source subsampling factor (1 decodes every pixel)
+     * @return the decoded image
+     * @throws IOException if there is an error reading the image
+     */
+    public static BufferedImage readNormalized(ImageReader reader, int subsampling) throws IOException {
+        return readNormalized(reader, null, subsampling);
+    }
+
+
+    /**
+     * Decode a region of the first image from the reader and convert it to TYPE_INT_RGB or TYPE_INT_ARGB.
+     *
+     * @param reader an ImageReader, from getReader()
+     * @param region the region of the image to decode, or null for the whole image
+     * @param subsampling the source subsampling factor (1 decodes every pixel)
+     * @return the decoded region
+     * @throws IOException if there is an error reading the image
+     */
+    public static BufferedImage readNormalized(ImageReader reader, Rectangle region, int subsampling) throws IOException {
+        ImageMetrics metrics = ImageMetrics.current();
+        long start = metrics.begin();
+        BufferedImage image = read(reader, region, subsampling);
+        BufferedImage normalized = PixelFormats.normalize( image );
+        if (normalized != image) {
+            image.flush();
+        }
+        metrics.end(ImageMetrics.Stage.DECODE, start);
+        metrics.add(ImageMetrics.Counter.DECODED_PIXELS, (long)normalized.getWidth() * normalized.getHeight());
+        return normalized;
+    }
+
+
+    /**
+     * Decode the first image from the reader with the subsampling chosen by the memory admission check.
+     *
+     * @param reader an ImageReader, from getReader()
+     * @param admission the result of ImageAdmission.admit() for the image
+     * @return the decoded image
+     * @throws ImageRejectedException if the admission check rejected the image. The image is not decoded.
+     * @throws IOException if there is an error reading the image, or if the image must be decoded in strips (the
+     *         caller decodes a STRIPS image with StripResampler.resize())
+     */
+    public static BufferedImage readNormalized(ImageReader reader, ImageAdmission admission) throws IOException {
+        return readNormalized(reader, null, admission);
+    }
+
+
+    /**
+     * Decode a region of the first image from the reader with the subsampling chosen by the memory admission check
+     * for the region.
+     *
+     * @param reader an ImageReader, from getReader()
+     * @param region the region of the image to decode, or null for the whole image
+     * @param admission the result of ImageAdmission.admit() for the region
+     * @return the decoded region
+     * @throws ImageRejectedException if the admission check rejected the region
+     * @throws IOException if there is an error reading the image, or if the region must be decoded in strips
+     */
+    public static BufferedImage readNormalized(ImageReader reader, Rectangle region, ImageAdmission admission) throws IOException {
+        if (admission.isRejected()) {
+            ImageMetrics.current().increment( ImageMetrics.Counter.REJECTED );
+            throw new ImageRejectedException( admission );
+        }
+        if (admission.getStrategy() == ImageAdmission.Strategy.STRIPS) {
+            throw new IOException("ImageDecoder: the image can only be decoded in strips (" + admission.getReason() + ")");
+        }
+        return readNormalized(reader, region, admission.getSubsampling());
+    }
+
+}
@@ -0,0 +1,125 @@
+/** \file
+ *
+ * Feb 7, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+/**
+ * <h3>
+ * ImageHeader
+ * </h3>
+ * <p>
+ * The information about an image that can be read from the image header, without decoding the image, along with
+ * the S3 object information for the image file.
+ * </p>
+ * <p>
+ * Feb 7, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class ImageHeader {
+    private int mWidth;
+    private int mHeight;
+    private String mFormatName;     // the image format name (e.g., jpeg, png, gif)
+    private String[] mFormatNames;  // all of the names for the image format (e.g., jpeg, jpg, JPEG)
+    private int mBitsPerPixel = -1; // the bits per pixel in the raster the reader decodes, or -1 if it is not known
+    private int mRawImageType = -1; // the BufferedImage type the reader decodes (e.g., TYPE_3BYTE_BGR), or -1
+    private long mContentLength = -1; // the size of the image file, in bytes, or -1 if it is not known
+    private String mETag;           // the S3 ETag for the image file
+
+    public ImageHeader() {}
+
+    public ImageHeader(int width, int height, String formatName, String[] formatNames) {
+        setWidth( width );
+        setHeight( height );
+        setFormatName( formatName );
+        setFormatNames( formatNames );
+    }
+
+    /**
+     * @param imageType an image type name (e.g., jpeg), as used by ImageIO.write()
+     * @return true if the image is in the imageType format.
+     */
+    public boolean isFormat(String imageType) {
+        boolean isFormat = false;
+        if (imageType != null && mFormatNames != null) {
+            for (String name : mFormatNames) {
+                if (name.equalsIgnoreCase( imageType )) {
+                    isFormat = true;
+                    break;
+                }
+            }
+        }
+        return isFormat;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public void setWidth(int width) {
+        this.mWidth = width;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public void setHeight(int height) {
+        this.mHeight = height;
+    }
+
+    public String getFormatName() {
+        return mFormatName;
+    }
+
+    public void setFormatName(String formatName) {
+        this.mFormatName = formatName;
+    }
+
+    public String[] getFormatNames() {
+        return mFormatNames;
+    }
+
+    public void setFormatNames(String[] formatNames) {
+        this.mFormatNames = formatNames;
+    }
+
+    public int getBitsPerPixel() {
+        return mBitsPerPixel;
+    }
+
+    public void setBitsPerPixel(int bitsPerPixel) {
+        this.mBitsPerPixel = bitsPerPixel;
+    }
+
+    public int getRawImageType() {
+        return mRawImageType;
+    }
+
+    public void setRawImageType(int rawImageType) {
+        this.mRawImageType = rawImageType;
+    }
+
+    public long getContentLength() {
+        return mContentLength;
+    }
+
+    public void setContentLength(long contentLength) {
+        this.mContentLength = contentLength;
+    }
+
+    public String getETag() {
+        return mETag;
+    }
+
+    public void setETag(String eTag) {
+        this.mETag = eTag;
+    }
+
+}
@@ -0,0 +1,347 @@
+/** \file
+ *
+ * Feb 27, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+/**
+ * <h3>
+ * ImageMetrics
+ * </h3>
+ * <p>
+ * The timing and size metrics for one invocation: the time spent in each stage (S3 metadata, probe, download,
+ * decode, resize, encode, upload and copy), the source and output bytes and pixels, the cache hits and the resize
+ * engine. At the end of the invocation the metrics are written as one log record in the CloudWatch Embedded Metric
+ * Format (EMF), through AbstractLoggerInterface.logMetrics(). CloudWatch Logs extracts the metrics from the record,
+ * with the operation (the scale mode) as the dimension.
+ * </p>
+ * <p>
+ * LambdaImageScaler binds the metrics for a request to the thread that runs each stage (bind()), so that S3Service,
+ * ImageService and ImageDecoder record into the current metrics (current()) without a metrics argument.
+ * </p>
+ * <p>
+ * Metrics are turned on with IMAGE_METRICS=true (the CloudWatch namespace is IMAGE_METRICS_NAMESPACE, ImageScaling by
+ * default). When metrics are off, start() and current() return a shared inactive object, begin() does not read the
+ * clock and the record functions return at once, so the cost is a few branches per stage.
+ * </p>
+ * <p>
+ * Feb 27, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class ImageMetrics {
+    public final static String DEFAULT_NAMESPACE = "ImageScaling";
+
+    /**
+     * The timed stages. The metric is the total time for the stage, in microseconds.
+     */
+    public enum Stage {
+        METADATA("MetadataTime"),
+        PROBE("ProbeTime"),
+        DOWNLOAD("DownloadTime"),
+        DECODE("DecodeTime"),
+        RESIZE("ResizeTime"),
+        ENCODE("EncodeTime"),
+        UPLOAD("UploadTime"),
+        COPY("CopyTime");
+
+        private final String mMetricName;
+
+        Stage(String metricName) {
+            this.mMetricName = metricName;
+        }
+
+        public String getMetricName() { return mMetricName; }
+    }
+
+    /**
+     * The counted values.
+     */
+    public enum Counter {
+        SOURCE_BYTES("SourceBytes", "Bytes"),
+        OUTPUT_BYTES("OutputBytes", "Bytes"),
+        SOURCE_PIXELS("SourcePixels", "Count"),
+        DECODED_PIXELS("DecodedPixels", "Count"),
+        OUTPUT_PIXELS("OutputPixels", "Count"),
+        IMAGES("Images", "Count"),
+        UP_TO_DATE("UpToDate", "Count"),
+        PASS_THROUGH("PassThrough", "Count"),
+        DECODED_CACHE_HITS("DecodedCacheHits", "Count"),
+        DISK_CACHE_HITS("DiskCacheHits", "Count"),
+        STRIPS("StripDecodes", "Count"),
+        REDUCED("Reduced", "Count"),
+        REJECTED("Rejected", "Count"),
+        DEGRADED("Degraded", "Count"),
+        DEADLINE_EXCEEDED("DeadlineExceeded", "Count"),
+        FAILURES("Failures", "Count");
+
+        private final String mMetricName;
+        private final String mUnit;
+
+        Counter(String metricName, String unit) {
+            this.mMetricName = metricName;
+            this.mUnit = unit;
+        }
+
+        public String getMetricName() { return mMetricName; }
+        public String getUnit() { return mUnit; }
+    }
+
+    private static volatile boolean mEnabled = S3TransferSettings.getBoolean("IMAGE_METRICS", false);
+    private final static String mNamespace = namespaceSetting();
+    private final static ImageMetrics mInactive = new ImageMetrics(null, false);
+    private final static ThreadLocal<ImageMetrics> mCurrent = new ThreadLocal<ImageMetrics>();
+
+    private final boolean mActive;
+    private final String mOperation;
+    private final long mStartNanos;
+    private final long[] mStageNanos = new long[ Stage.values().length ];
+    private final long[] mCounters = new long[ Counter.values().length ];
+    private String mEngine = null;
+    private String mS3Path = null;
+
+    private ImageMetrics(String operation, boolean active) {
+        this.mOperation = operation;
+        this.mActive = active;
+        this.mStartNanos = active ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Build active metrics, whether or not metrics are turned on (for tests).
+     */
+    ImageMetrics(String operation) {
+        this(operation, true);
+    }
+
+    private static String namespaceSetting() {
+        String namespace = S3TransferSettings.getSetting("IMAGE_METRICS_NAMESPACE");
+        return (namespace != null && namespace.trim().length() > 0) ? namespace.trim() : DEFAULT_NAMESPACE;
+    }
+
+    /**
+     * @return true if metrics are turned on
+     */
+    public static boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * Start the metrics for an invocation.
+     *
+     * @param operation the operation (e.g., the scale mode), which is the metric dimension
+     * @return new metrics or, if metrics are off, the shared inactive metrics
+     */
+    public static ImageMetrics start(String operation) {
+        return mEnabled ? new ImageMetrics(operation, true) : mInactive;
+    }
+
+    /**
+     * @return the metrics bound to this thread, or the inactive metrics
+     */
+    public static ImageMetrics current() {
+        ImageMetrics metrics = mInactive;
+        if (mEnabled) {
+            ImageMetrics bound = mCurrent.get();
+            if (bound != null) {
+                metrics = bound;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Bind metrics to this thread. A stage binds the metrics of its request and restores the previous metrics when
+     * it is done.
+     *
+     * @param metrics the metrics for the stage, or null
+     * @return the metrics that were bound before, or null
+     */
+    public static ImageMetrics bind(ImageMetrics metrics) {
+        ImageMetrics previous = null;
+        if (mEnabled) {
+            previous = mCurrent.get();
+            if (metrics != null && metrics.isActive()) {
+                mCurrent.set( metrics );
+            } else {
+                mCurrent.remove();
+            }
+        }
+        return previous;
+    }
+
+    public boolean isActive() {
+        return mActive;
+    }
+
+    /**
+     * @return the start time for a stage (see end()), or 0 if the metrics are not active
+     */
+    public long begin() {
+        return mActive ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Add the time since startNanos to a stage.
+     */
+    public void end(Stage stage, long startNanos) {
+        if (mActive) {
+            long elapsed = System.nanoTime() - startNanos;
+            synchronized (this) {
+                mStageNanos[ stage.ordinal() ] += elapsed;
+            }
+        }
+    }
+
+    public void add(Counter counter, long value) {
+        if (mActive) {
+            synchronized (this) {
+                mCounters[ counter.ordinal() ] += value;
+            }
+        }
+    }
+
+    public void increment(Counter counter) {
+        add(counter, 1);
+    }
+
+    /**
+     * @param engine the name of the resize engine that scaled the image
+     */
+    public void setEngine(String engine) {
+        if (mActive) {
+            synchronized (this) {
+                mEngine = engine;
+            }
+        }
+    }
+
+    /**
+     * @param s3Path the S3 path of the original, written as a property of the record (not a dimension)
+     */
+    public void setS3Path(String s3Path) {
+        if (mActive) {
+            synchronized (this) {
+                mS3Path = s3Path;
+            }
+        }
+    }
+
+    public synchronized long getStageNanos(Stage stage) {
+        return mStageNanos[ stage.ordinal() ];
+    }
+
+    public synchronized long getCount(Counter counter) {
+        return mCounters[ counter.ordinal() ];
+    }
+
+    public synchronized String getEngine() {
+        return mEngine;
+    }
+
+    /**
+     * Add the stage times and counts of other metrics (e.g., a job in a batch) to these metrics.
+     */
+    public void merge(ImageMetrics other) {
+        if (mActive && other != null && other.isActive() && other != this) {
+            long[] stageNanos;
+            long[] counters;
+            String engine;
+            synchronized (other) {
+                stageNanos = other.mStageNanos.clone();
+                counters = other.mCounters.clone();
+                engine = other.mEngine;
+            }
+            synchronized (this) {
+                for (int i = 0; i < stageNanos.length; i++) {
+                    mStageNanos[i] += stageNanos[i];
+                }
+                for (int i = 0; i < counters.length; i++) {
+                    mCounters[i] += counters[i];
+                }
+                if (mEngine == null) {
+                    mEngine = engine;
+                }
+            }
+        }
+    }
+
+    /**
+     * Build the EMF record.
+     *
+     * @param timestampMillis the record time stamp
+     * @return a JSON object, on one line
+     */
+    public synchronized String toEMF(long timestampMillis) {
+        StringBuilder json = new StringBuilder( 1024 );
+        json.append("{\"_aws\":{\"Timestamp\":").append( timestampMillis );
+        json.append(",\"CloudWatchMetrics\":[{\"Namespace\":");
+        quote(json, mNamespace);
+        json.append(",\"Dimensions\":[[\"Operation\"]],\"Metrics\":[{\"Name\":\"Duration\",\"Unit\":\"Microseconds\"}");
+        for (Stage stage : Stage.values()) {
+            json.append(",{\"Name\":\"").append( stage.getMetricName() ).append("\",\"Unit\":\"Microseconds\"}");
+        }
+        for (Counter counter : Counter.values()) {
+            json.append(",{\"Name\":\"").append( counter.getMetricName() ).append("\",\"Unit\":\"").append( counter.getUnit() ).append("\"}");
+        }
+        json.append("]}]},\"Operation\":");
+        quote(json, mOperation);
+        if (mEngine != null) {
+            json.append(",\"Engine\":");
+            quote(json, mEngine);
+        }
+        if (mS3Path != null) {
+            json.append(",\"S3Path\":");
+            quote(json, mS3Path);
+        }
+        json.append(",\"Duration\":").append( micros( System.nanoTime() - mStartNanos ) );
+        for (Stage stage : Stage.values()) {
+            json.append(",\"").append( stage.getMetricName() ).append("\":").append( micros( mStageNanos[ stage.ordinal() ] ) );
+        }
+        for (Counter counter : Counter.values()) {
+            json.append(",\"").append( counter.getMetricName() ).append("\":").append( mCounters[ counter.ordinal() ] );
+        }
+        json.append('}');
+        return json.toString();
+    }
+
+    /**
+     * Write the EMF record, if the metrics are active.
+     */
+    public void emit(AbstractLoggerInterface logger) {
+        if (mActive) {
+            logger.logMetrics( toEMF( System.currentTimeMillis() ) );
+        }
+    }
+
+    /** microseconds, with three decimal places, so the nanosecond times are kept */
+    private static String micros(long nanos) {
+        return String.format("%d.%03d", nanos / 1000, Math.abs(nanos % 1000));
+    }
+
+    private static void quote(StringBuilder json, String str) {
+        json.append('"');
+        if (str != null) {
+            for (int i = 0; i < str.length(); i++) {
+                char ch = str.charAt(i);
+                if (ch == '"' || ch == '\\') {
+                    json.append('\\').append( ch );
+                } else if (ch < 0x20) {
+                    json.append( String.format("\\u%04x", (int)ch) );
+                } else {
+                    json.append( ch );
+                }
+            }
+        }
+        json.append('"');
+    }
+
+}
@@ -0,0 +1,197 @@
+/** \file
+ *
+ * Feb 23, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <h3>
+ * ImagePipelineExecutors
+ * </h3>
+ * <p>
+ * The process wide executors for the stages of the asynchronous image pipeline (see LambdaImageScaler.scaleImageAsync).
+ * </p>
+ * <ul>
+ * <li>The I/O executor runs the S3 stages (metadata, download and upload). These threads spend most of their time
+ * waiting for S3, so the pool is large (IMAGE_IO_THREADS). On a Java runtime with virtual threads, a virtual thread
+ * is used for each task instead (IMAGE_IO_VIRTUAL_THREADS, true by default).</li>
+ * <li>The CPU executor runs the decode, scale and encode stages, on one thread per core (IMAGE_CPU_THREADS), so these
+ * stages do not compete for the cores with each other.</li>
+ * <li>The S3 transfer executor runs the S3 requests made under the S3LatencyPolicy, the ranged GETs of a parallel
+ * download (S3RangedImageInputStream) and the part uploads of a multipart upload (S3MultipartOutputStream). The
+ * pool is bounded (IMAGE_S3_TRANSFER_THREADS). The default is twice the maximum number of images in the pipeline
+ * times the upload and download concurrency: a ranged GET or a part upload waits for its S3 request, which runs
+ * on another transfer thread. When every transfer thread is busy, a task runs on the thread that submits it, so
+ * a transfer task never waits for a thread that is held by a task waiting for it. This is not the I/O executor:
+ * the upload stage runs on the I/O executor and waits for its part uploads.</li>
+ * </ul>
+ * <p>
+ * The number of images in the pipeline at the same time is bounded (IMAGE_PIPELINE_MAX_IN_FLIGHT), since each
+ * image holds an original, a decoded raster and an encoded buffer. The default is the number of cores plus two: one
+ * image can be downloading and one uploading while every core scales an image. A request that finds the pipeline
+ * full is queued (admit()) and is started by the release() of an image that leaves the pipeline, so no pipeline
+ * thread waits for a place. A fixed I/O pool with threads that wait for a place would deadlock: the upload stages
+ * that free the places could not get a thread.
+ * </p>
+ * <p>
+ * Feb 23, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class ImagePipelineExecutors {
+    public final static int DEFAULT_IO_THREADS = 64;
+
+    private final static int mCPUThreads = (int)S3TransferSettings.getLong("IMAGE_CPU_THREADS", Runtime.getRuntime().availableProcessors());
+    private final static ExecutorService mIOExecutor = buildIOExecutor();
+    private final static ExecutorService mCPUExecutor = Executors.newFixedThreadPool( Math.max(1, mCPUThreads), daemonThreads("image-cpu") );
+    private final static int mMaxInFlight = 
+            (int)Math.max(1, S3TransferSettings.getLong("IMAGE_PIPELINE_MAX_IN_FLIGHT", Runtime.getRuntime().availableProcessors() + 2));
+    private final static ExecutorService mS3TransferExecutor = buildS3TransferExecutor();
+    /** the jobs that are waiting for a place in the pipeline. The lock for mAvailable too. */
+    private final static ArrayDeque<Runnable> mWaiting = new ArrayDeque<Runnable>();
+    private static int mAvailable = mMaxInFlight;
+
+    private ImagePipelineExecutors() {}
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon( true );
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * @return a virtual thread per task executor, or null if the Java runtime does not have virtual threads
+     */
+    private static ExecutorService virtualThreadExecutor() {
+        ExecutorService executor = null;
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            executor = (ExecutorService)factory.invoke( null );
+        } catch (ReflectiveOperationException e) {
+            // before Java 21
+        }
+        return executor;
+    }
+
+    private static ExecutorService buildIOExecutor() {
+        ExecutorService executor = null;
+        if (S3TransferSettings.getBoolean("IMAGE_IO_VIRTUAL_THREADS", true)) {
+            executor = virtualThreadExecutor();
+        }
+        if (executor == null) {
+            int numThreads = (int)Math.max(1, S3TransferSettings.getLong("IMAGE_IO_THREADS", DEFAULT_IO_THREADS));
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(numThreads, numThreads, 60, TimeUnit.SECONDS,
+                                                             new LinkedBlockingQueue<Runnable>(), daemonThreads("image-io"));
+            pool.allowCoreThreadTimeOut( true );
+            executor = pool;
+        }
+        return executor;
+    }
+
+    private static ExecutorService buildS3TransferExecutor() {
+        S3TransferSettings settings = S3TransferSettings.getDefaultSettings();
+        long defaultThreads = 2L * mMaxInFlight * (Math.max(1, settings.getUploadConcurrency()) + Math.max(1, settings.getDownloadConcurrency()));
+        int numThreads = (int)Math.max(1, S3TransferSettings.getLong("IMAGE_S3_TRANSFER_THREADS", defaultThreads));
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(numThreads, numThreads, 60, TimeUnit.SECONDS,
+                                                         new SynchronousQueue<Runnable>(), daemonThreads("s3-transfer"),
+                                                         new ThreadPoolExecutor.CallerRunsPolicy());
+        pool.allowCoreThreadTimeOut( true );
+        return pool;
+    }
+
+    /**
+     * @return the executor for the S3 stages
+     */
+    public static ExecutorService getIOExecutor() {
+        return mIOExecutor;
+    }
+
+    /**
+     * @return the bounded executor for S3 requests, ranged GETs and part uploads
+     */
+    public static ExecutorService getS3TransferExecutor() {
+        return mS3TransferExecutor;
+    }
+
+    /**
+     * @return the executor for the decode, scale and encode stages
+     */
+    public static ExecutorService getCPUExecutor() {
+        return mCPUExecutor;
+    }
+
+    /**
+     * Start a job when there is a place in the pipeline. This does not block: if the pipeline is full, the job is
+     * queued and run by the release() that frees a place. The job should only submit work to an executor.
+     * 
+     * @param start the job, which holds a place in the pipeline until release() is called for it
+     */
+    public static void admit(Runnable start) {
+        boolean run = false;
+        synchronized (mWaiting) {
+            if (mAvailable > 0) {
+                mAvailable--;
+                run = true;
+            } else {
+                mWaiting.add( start );
+            }
+        }
+        if (run) {
+            start.run();
+        }
+    }
+
+    /**
+     * Free a place in the pipeline, when an image has been written (or has failed). The place is given to the
+     * oldest waiting job, if there is one.
+     */
+    public static void release() {
+        Runnable next = null;
+        synchronized (mWaiting) {
+            next = mWaiting.poll();
+            if (next == null) {
+                mAvailable++;
+            }
+        }
+        if (next != null) {
+            next.run();
+        }
+    }
+
+    /**
+     * @return the number of jobs that are waiting for a place in the pipeline
+     */
+    public static int getWaiting() {
+        synchronized (mWaiting) {
+            return mWaiting.size();
+        }
+    }
+
+    /**
+     * @return the maximum number of images in the pipeline at the same time
+     */
+    public static int getMaxInFlight() {
+        return mMaxInFlight;
+    }
+
+}
@@ -0,0 +1,42 @@
+/** \file
+ *
+ * Feb 28, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.io.IOException;
+
+/**
+ * <h3>
+ * ImageRejectedException
+ * </h3>
+ * <p>
+ * Thrown when the memory admission check (ImageAdmission) rejects an image, before the image is decoded. This is an
+ * IOException, so the callers that handle an image that cannot be read also handle a rejected image. A caller that
+ * retries failed images can catch this exception and not retry the image: it will be rejected again.
+ * </p>
+ * <p>
+ * Feb 28, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class ImageRejectedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final ImageAdmission mAdmission;
+
+    public ImageRejectedException(ImageAdmission admission) {
+        super("image rejected: " + admission.getReason());
+        this.mAdmission = admission;
+    }
+
+    public ImageAdmission getAdmission() {
+        return mAdmission;
+    }
+
+}
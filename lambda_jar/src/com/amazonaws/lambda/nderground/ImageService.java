@@ -8,13 +8,19 @@
  */
 package com.amazonaws.lambda.nderground;
 
+import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.ImagingOpException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
 import org.imgscalr.Scalr;
 
@@ -35,47 +41,460 @@ import org.imgscalr.Scalr;
  * @author Ian Kaplan, iank@bearcave.com
  */
 public class ImageService {
+    /** images with at least this many pixels are resized in parallel, on a multi-core container */
+    final static long PARALLEL_MIN_PIXELS = 2 * 1024 * 1024;
+    private final static ResizeEngine mScalrEngine = ResizeEngines.scalr();
+    private final static ResizeEngine mParallelEngine = new ParallelResizeEngine( Scalr.Method.AUTOMATIC );
+    private static volatile ScalingPolicy mScalingPolicy = TableScalingPolicy.fromSetting();
+    private final static AbstractLoggerInterface mLogger = new JavaLoggerWrapper("ImageService");
+    
+    /**
+     * A scaled image and the resize engine that scaled it. The engine is not the engine that was asked for when
+     * the engine failed and the image was resized by Scalr.
+     */
+    public static class ResizedImage {
+        private final BufferedImage mImage;
+        private final ResizeEngine mEngine;
+        private final boolean mFallback;
+        
+        ResizedImage(BufferedImage image, ResizeEngine engine, boolean fallback) {
+            this.mImage = image;
+            this.mEngine = engine;
+            this.mFallback = fallback;
+        }
+        
+        public BufferedImage getImage() { return mImage; }
+        
+        /** @return the engine that resized the image, or null if the image was not resized by an engine */
+        public ResizeEngine getEngine() { return mEngine; }
+        
+        /** @return true if the engine that was asked for failed and the image was resized by Scalr */
+        public boolean isFallback() { return mFallback; }
+    }
+
 
+    /**
+     * <p>
+     * Read an image and scale it using the scale mode. The image size is read from the image header first, so that
+     * an image that will be scaled down by a large factor can be decoded with source subsampling (see ImageDecoder).
+     * An image that is too large to decode on the available heap is decoded in strips (see StripResampler), with a
+     * coarser subsampling, or is not decoded (see ImageAdmission).
+     * The decoded image is converted to TYPE_INT_RGB (or TYPE_INT_ARGB, if it has transparent pixels) before it
+     * is scaled (see PixelFormats).
+     * The final scaling pass is done by the default resize engine.
+     * </p>
+     * 
+     * @param inputImageStream an InputStream for the image to be read.
+     * @param mode the scale mode, which calculates the size of the scaled image.
+     * @param height the height argument for the scale mode.
+     * @param width the width argument for the scale mode.
+     * @param logger An implementation of the AbstractLoggerInterface for logging errors.
+     * @return a BufferedImage object or null if the operation failed. If the image does not need to be
+     *         scaled, the decoded original is returned.
+     */
+    public static BufferedImage scaleImage(InputStream inputImageStream,
+                                           ScaleMode mode,
+                                           int height,
+                                           int width,
+                                           AbstractLoggerInterface logger) {
+        return scaleImage(inputImageStream, mode, height, width, null, logger);
+    }
+    
     
     /**
-     * Read an image from an input stream and scale it so that the maximum image dimension is maxDim.
-     * If the scaling operation was successful, return the image as a BufferedImage object. Otherwise
-     * the function returns null.
+     * <p>
+     * Read an image and scale it using the scale mode and a resize engine.
+     * </p>
      * 
      * @param inputImageStream an InputStream for the image to be read.
-     * @param maxDim the maximum dimension (in either width or height) for the resulting image
+     * @param mode the scale mode, which calculates the size of the scaled image.
+     * @param height the height argument for the scale mode.
+     * @param width the width argument for the scale mode.
+     * @param engine the resize engine for the final scaling pass, or null for the default engine.
      * @param logger An implementation of the AbstractLoggerInterface for logging errors.
-     * @return a BufferedImage object or null if the operation failed.
+     * @return a BufferedImage object or null if the operation failed. If the image does not need to be
+     *         scaled, the decoded original is returned.
      */
-    public static BufferedImage scaleImage(InputStream inputImageStream, 
-                                           int maxDim,
+    public static BufferedImage scaleImage(InputStream inputImageStream,
+                                           ScaleMode mode,
+                                           int height,
+                                           int width,
+                                           ResizeEngine engine,
+                                           AbstractLoggerInterface logger) {
+        BufferedImage scaledImage = null;
+        ImageInputStream imageStream = null;
+        try {
+            imageStream = ImageIO.createImageInputStream( inputImageStream );
+            scaledImage = scaleImage(imageStream, mode, height, width, engine, logger);
+        }
+        catch (IOException e) {
+            logger.log("ImageService::scaleImage (" + mode + "): Error reading image stream: " + e.getLocalizedMessage());
+        }
+        finally {
+            if (imageStream != null) {
+                try { imageStream.close(); } catch (IOException e) {}
+            }
+        }
+        return scaledImage;
+    }
+    
+    
+    /**
+     * <p>
+     * Read an image from an ImageInputStream (for example, an in-memory stream from S3Service.s3ToImageInputStream)
+     * and scale it using the scale mode and a resize engine. The caller closes the stream.
+     * </p>
+     * 
+     * @param imageStream the ImageInputStream for the image to be read.
+     * @param mode the scale mode, which calculates the size of the scaled image.
+     * @param height the height argument for the scale mode.
+     * @param width the width argument for the scale mode.
+     * @param engine the resize engine for the final scaling pass, or null for the default engine.
+     * @param logger An implementation of the AbstractLoggerInterface for logging errors.
+     * @return a BufferedImage object or null if the operation failed. If the image does not need to be
+     *         scaled, the decoded original is returned.
+     */
+    public static BufferedImage scaleImage(ImageInputStream imageStream,
+                                           ScaleMode mode,
+                                           int height,
+                                           int width,
+                                           ResizeEngine engine,
                                            AbstractLoggerInterface logger) {
         BufferedImage scaledImage = null;
         BufferedImage original = null;
+        ImageReader reader = null;
         try {
-            original = ImageIO.read( inputImageStream );
-            try {
-                if (original != null) {
-                    scaledImage = Scalr.resize(original, maxDim);
+            reader = ImageDecoder.getReader( imageStream );
+            if (reader != null) {
+                ImageHeader header = ImageDecoder.readHeader( reader );
+                Dimension size = mode.targetSize(header.getWidth(), header.getHeight(), height, width);
+                ImageAdmission admission = ImageAdmission.admit(header, size.width, size.height);
+                if (admission.getStrategy() == ImageAdmission.Strategy.STRIPS) {
+                    scaledImage = StripResampler.resize(reader, admission.getSubsampling(), admission.getStripRows(), 
+                                                        size.width, size.height, 
+                                                        StripResampler.filterFor(engine, header.getWidth(), header.getHeight(), 
+                                                                                 admission.getSubsampling(), size.width, size.height));
                 } else {
-                    logger.log("ImageService::scaleImage (MaxDim): scaled image is null");
+                    original = ImageDecoder.readNormalized(reader, admission);
+                    scaledImage = resize(original, size.width, size.height, engine);
                 }
+            } else {
+                logger.log("ImageService::scaleImage (" + mode + "): scaled image is null");
             }
-            catch (ImagingOpException e) {
-                logger.log("ImageService::scaleImage (MaxDim): Error scaling image: " + e.getLocalizedMessage());
-            }
-        } catch (IOException e) {
-            logger.log("ImageService::scaleImage (MaxDim): Error reading image stream: " + e.getLocalizedMessage());
+        }
+        catch (ImagingOpException e) {
+            logger.log("ImageService::scaleImage (" + mode + "): Error scaling image: " + e.getLocalizedMessage());
+        }
+        catch (IOException e) {
+            logger.log("ImageService::scaleImage (" + mode + "): Error reading image stream: " + e.getLocalizedMessage());
         }
         finally {
-            if (original != null) {
+            if (original != null && original != scaledImage) {
                 // free up the memory consumed by the original image
                 original.flush();
             }
+            if (reader != null) {
+                reader.dispose();
+            }
         }
         return scaledImage;
     } // scaleImage
     
+    
+    /**
+     * <p>
+     * Read an image, crop it and scale the cropped region to exactly width x height pixels (see ScaleImageCrop).
+     * The caller closes the stream.
+     * </p>
+     * 
+     * @param imageStream the ImageInputStream for the image to be read.
+     * @param crop the crop request: the scaled image size and the crop mode
+     * @param engine the resize engine for the final scaling pass, or null for the default engine.
+     * @param logger An implementation of the AbstractLoggerInterface for logging errors.
+     * @return the scaled region, or null if the operation failed.
+     */
+    public static BufferedImage cropImage(ImageInputStream imageStream,
+                                          ScaleImageCrop crop,
+                                          ResizeEngine engine,
+                                          AbstractLoggerInterface logger) {
+        BufferedImage scaledImage = null;
+        ImageReader reader = null;
+        try {
+            reader = ImageDecoder.getReader( imageStream );
+            if (reader != null) {
+                ImageHeader header = ImageDecoder.readHeader( reader );
+                Rectangle region = crop.cropRegion( header.getWidth(), header.getHeight() );
+                if (region != null) {
+                    scaledImage = cropScale(reader, header, region, crop.getWidth(), crop.getHeight(), engine);
+                } else {
+                    logger.log("ImageService::cropImage: the crop region is outside of the image");
+                }
+            } else {
+                logger.log("ImageService::cropImage: scaled image is null");
+            }
+        }
+        catch (ImagingOpException e) {
+            logger.log("ImageService::cropImage: Error scaling image: " + e.getLocalizedMessage());
+        }
+        catch (IOException e) {
+            logger.log("ImageService::cropImage: Error reading image stream: " + e.getLocalizedMessage());
+        }
+        finally {
+            if (reader != null) {
+                reader.dispose();
+            }
+        }
+        return scaledImage;
+    }
+    
+    
+    /**
+     * <p>
+     * Decode a region of an image and scale it to exactly width x height pixels. Only the region is decoded 
+     * (ImageReadParam.setSourceRegion), with the source subsampling for the scale from the region to width x height,
+     * so the pixels outside of the region are never stored. The memory admission check is made for the region.
+     * </p>
+     * 
+     * @param reader an ImageReader, from ImageDecoder.getReader()
+     * @param header the image header, from ImageDecoder.readHeader()
+     * @param region the region of the image, which must be inside the image
+     * @param width the width of the scaled image
+     * @param height the height of the scaled image
+     * @param engine the resize engine for the final scaling pass, or null for the default engine.
+     * @return the scaled region
+     * @throws ImagingOpException if there is an error scaling the image
+     * @throws IOException if there is an error reading the image, or if the region is rejected by the admission check
+     */
+    public static BufferedImage cropScale(ImageReader reader, ImageHeader header, Rectangle region, int width, int height,
+                                          ResizeEngine engine) throws ImagingOpException, IOException {
+        return cropScaleImage(reader, header, region, width, height, engine).getImage();
+    }
+    
+    
+    /**
+     * Decode a region of an image and scale it (see cropScale), and report the resize engine that was used.
+     * 
+     * @return the scaled region and the engine that scaled it (null for a strip decode)
+     */
+    public static ResizedImage cropScaleImage(ImageReader reader, ImageHeader header, Rectangle region, int width, int height,
+                                              ResizeEngine engine) throws ImagingOpException, IOException {
+        ResizedImage scaledImage = null;
+        ImageHeader regionHeader = new ImageHeader(region.width, region.height, header.getFormatName(), header.getFormatNames());
+        regionHeader.setBitsPerPixel( header.getBitsPerPixel() );
+        regionHeader.setRawImageType( header.getRawImageType() );
+        ImageAdmission admission = ImageAdmission.admit(regionHeader, width, height);
+        if (admission.getStrategy() == ImageAdmission.Strategy.STRIPS) {
+            scaledImage = new ResizedImage(StripResampler.resize(reader, region, admission.getSubsampling(), admission.getStripRows(), 
+                                                                 width, height, 
+                                                                 StripResampler.filterFor(engine, region.width, region.height, 
+                                                                                          admission.getSubsampling(), width, height)),
+                                           null, false);
+        } else {
+            BufferedImage original = ImageDecoder.readNormalized(reader, region, admission);
+            try {
+                scaledImage = resizeImage(original, width, height, engine);
+            } finally {
+                if (original != scaledImage.getImage()) {
+                    original.flush();
+                }
+            }
+        }
+        return scaledImage;
+    }
+    
+    
+    /**
+     * @return the policy that picks the resize engine for a request with a quality hint (see PolicyResizeEngine)
+     */
+    public static ScalingPolicy getScalingPolicy() {
+        return mScalingPolicy;
+    }
+    
+    /**
+     * Set the policy that picks the resize engine for a request with a quality hint.
+     * 
+     * @param policy the policy, or null for the IMAGE_SCALING_POLICY table (see TableScalingPolicy)
+     */
+    public static void setScalingPolicy(ScalingPolicy policy) {
+        mScalingPolicy = (policy != null) ? policy : TableScalingPolicy.fromSetting();
+    }
+    
+    
+    /**
+     * <p>
+     * Return the default resize engine for an image, which is used when a request has no resize engine and no
+     * quality hint. Large images are resized by the ParallelResizeEngine when the container has more than one CPU.
+     * Otherwise the image is resized by Scalr.
+     * </p>
+     * 
+     * @param image the image that will be resized
+     * @return the resize engine
+     */
+    public static ResizeEngine defaultEngine(BufferedImage image) {
+        ResizeEngine engine = mScalrEngine;
+        if (ParallelBands.getParallelism() > 1 && (long)image.getWidth() * image.getHeight() >= PARALLEL_MIN_PIXELS) {
+            engine = mParallelEngine;
+        }
+        return engine;
+    }
+    
+    
+    /**
+     * Scale an image to exactly width x height pixels, using the default resize engine. If the image is 
+     * already width x height, the image is returned.
+     * 
+     * @param image the image to scale
+     * @param width the width of the scaled image
+     * @param height the height of the scaled image
+     * @return the scaled image
+     * @throws ImagingOpException if there is an error scaling the image
+     */
+    public static BufferedImage resize(BufferedImage image, int width, int height) throws ImagingOpException {
+        return resize(image, width, height, defaultEngine( image ));
+    }
+    
+    
+    /**
+     * Scale an image to exactly width x height pixels. If the image is already width x height, the
+     * image is returned. If a resize engine other than Scalr fails, the image is resized by Scalr.
+     * 
+     * @param image the image to scale
+     * @param width the width of the scaled image
+     * @param height the height of the scaled image
+     * @param engine the resize engine, a PolicyResizeEngine, or null for the default engine
+     * @return the scaled image
+     * @throws ImagingOpException if there is an error scaling the image
+     */
+    public static BufferedImage resize(BufferedImage image, int width, int height, ResizeEngine engine) throws ImagingOpException {
+        return resizeImage(image, width, height, engine).getImage();
+    }
+    
+    
+    /**
+     * Scale an image to exactly width x height pixels (see resize), and report the resize engine that was used.
+     * 
+     * @return the scaled image and the engine that scaled it (null if the image is already width x height)
+     * @throws ImagingOpException if there is an error scaling the image
+     */
+    public static ResizedImage resizeImage(BufferedImage image, int width, int height, ResizeEngine engine) throws ImagingOpException {
+        BufferedImage scaledImage = image;
+        boolean fallback = false;
+        if (image.getWidth() != width || image.getHeight() != height) {
+            if (engine == null) {
+                engine = defaultEngine( image );
+            } else if (engine instanceof PolicyResizeEngine) {
+                engine = ((PolicyResizeEngine)engine).select(image, width, height);
+            }
+            ImageMetrics metrics = ImageMetrics.current();
+            long start = metrics.begin();
+            try {
+                scaledImage = engine.resize(image, width, height);
+            } catch (ImagingOpException | IllegalArgumentException e) {
+                if (engine == mScalrEngine) {
+                    throw e;
+                }
+                mLogger.log("ImageService::resize: " + engine.getName() + " failed, the image is resized by " + 
+                            mScalrEngine.getName() + ": " + e.getLocalizedMessage());
+                engine = mScalrEngine;
+                fallback = true;
+                scaledImage = mScalrEngine.resize(image, width, height);
+            }
+            metrics.end(ImageMetrics.Stage.RESIZE, start);
+            metrics.setEngine( engine.getName() );
+            metrics.add(ImageMetrics.Counter.OUTPUT_PIXELS, (long)width * height);
+        } else {
+            engine = null;
+        }
+        return new ResizedImage(scaledImage, engine, fallback);
+    }
+    
+    
+    /**
+     * <p>
+     * Scale a decoded image to several sizes. The sizes are built from the largest to the smallest. Each scaled
+     * image is built from the closest larger image that has already been built (or from the original), rather
+     * than from the full original.
+     * </p>
+     * 
+     * @param original the decoded original image
+     * @param sourceWidth the width of the original image, as it is stored (the decoded image may be subsampled)
+     * @param sourceHeight the height of the original image, as it is stored
+     * @param sizes the sizes for the scaled images
+     * @return an array of scaled images, in the same order as sizes. A size that is the same as the stored image
+     *         size returns the original image.
+     * @throws ImagingOpException if there is an error scaling the image
+     */
+    public static BufferedImage[] scaleRenditions(BufferedImage original, 
+                                                  int sourceWidth, 
+                                                  int sourceHeight, 
+                                                  Dimension[] sizes) throws ImagingOpException {
+        return scaleRenditions(original, sourceWidth, sourceHeight, sizes, null);
+    }
+    
+    
+    /**
+     * Scale a decoded image to several sizes, with a resize engine (see scaleRenditions above).
+     * 
+     * @param engine the resize engine, or null for the default engine
+     */
+    public static BufferedImage[] scaleRenditions(BufferedImage original, 
+                                                  int sourceWidth, 
+                                                  int sourceHeight, 
+                                                  Dimension[] sizes,
+                                                  ResizeEngine engine) throws ImagingOpException {
+        BufferedImage[] scaledImages = new BufferedImage[ sizes.length ];
+        Integer[] order = new Integer[ sizes.length ];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        // largest rendition first
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long areaA = (long)sizes[a].width * sizes[a].height;
+                long areaB = (long)sizes[b].width * sizes[b].height;
+                return Long.compare(areaB, areaA);
+            }
+        });
+        for (int i = 0; i < order.length; i++) {
+            Dimension size = sizes[ order[i] ];
+            BufferedImage scaledImage = null;
+            if (size.width == sourceWidth && size.height == sourceHeight) {
+                scaledImage = original;
+            } else {
+                // find the smallest image already built that is at least as large as this rendition
+                BufferedImage source = original;
+                for (int j = 0; j < i; j++) {
+                    BufferedImage image = scaledImages[ order[j] ];
+                    if (image.getWidth() >= size.width && image.getHeight() >= size.height &&
+                        (long)image.getWidth() * image.getHeight() < (long)source.getWidth() * source.getHeight()) {
+                        source = image;
+                    }
+                }
+                scaledImage = resize(source, size.width, size.height, engine);
+            }
+            scaledImages[ order[i] ] = scaledImage;
+        }
+        return scaledImages;
+    }
+    
+    
+    /**
+     * Read an image from an input stream and scale it so that the maximum image dimension is maxDim.
+     * If the scaling operation was successful, return the image as a BufferedImage object. Otherwise
+     * the function returns null.
+     * 
+     * @param inputImageStream an InputStream for the image to be read.
+     * @param maxDim the maximum dimension (in either width or height) for the resulting image
+     * @param logger An implementation of the AbstractLoggerInterface for logging errors.
+     * @return a BufferedImage object or null if the operation failed.
+     */
+    public static BufferedImage scaleImage(InputStream inputImageStream, 
+                                           int maxDim,
+                                           AbstractLoggerInterface logger) {
+        return scaleImage(inputImageStream, ScaleMode.MAX_DIM, maxDim, maxDim, logger);
+    } // scaleImage
+    
 
     /**
      * Read an image from the InputStream and scale it to height x width pixels.
@@ -90,30 +509,7 @@ public class ImageService {
                                            int height, 
                                            int width,
                                            AbstractLoggerInterface logger) {
-        BufferedImage original = null;
-        BufferedImage scaledImage = null;
-        try {
-            original = ImageIO.read( inputImageStream );
-            try {
-                if (original != null) {
-                    scaledImage = Scalr.resize(original, width, height);
-                } else {
-                    logger.log("ImageService::scaleImage: scaled image is null");
-                }
-            }
-            catch (ImagingOpException e) {
-                logger.log("ImageService::scaleImage: Error scaling image: " + e.getLocalizedMessage());
-            }
-        } catch (IOException e) {
-            logger.log("ImageService::scaleImage: Error reading image stream: " + e.getLocalizedMessage());
-        }
-        finally {
-            if (original != null) {
-                // free up the memory consumed by the original image
-                original.flush();
-            }
-        }
-        return scaledImage;
+        return scaleImage(inputImageStream, ScaleMode.HEIGHT_WIDTH, height, width, logger);
     }  // scaleImage
     
 
@@ -131,43 +527,7 @@ public class ImageService {
     public static BufferedImage scaleImageByHeight(InputStream inputImageStream, 
                                                    int maxHeight, 
                                                    AbstractLoggerInterface logger) {
-        BufferedImage original = null;
-        BufferedImage scaledImage = null;
-        try {
-            original = ImageIO.read( inputImageStream );
-            if (original != null) {
-                int originalWidth = original.getWidth();
-                int originalHeight = original.getHeight();
-                int adjWidth = originalWidth;
-                int adjHeight = originalHeight;
-                if (maxHeight < originalHeight) {
-                    adjHeight = maxHeight;
-                    double ratio = (double)maxHeight / (double)originalHeight;
-                    adjWidth = (int)Math.round( adjWidth * ratio );
-                    try {
-                        scaledImage = Scalr.resize(original, adjWidth, adjHeight);
-                    }
-                    catch (ImagingOpException e) {
-                        logger.log("ImageService::scaleImageByHeight: error scaling image: " + e.getLocalizedMessage());
-                    }
-                } else {
-                    // the height of the original image is less than or equal to maxHeight so the image 
-                    // should not be scaled.
-                    scaledImage = original;
-                }
-            } else {
-                logger.log("ImageService::scaleImageByHeight: scaled image is null");
-            }
-        }
-        catch (IOException e) {
-            logger.log("ImageService::scaleImageByHeight: error reading image: " + e.getLocalizedMessage());
-        }
-        finally {
-            if (original != null && original != scaledImage) {
-                original.flush();
-            }
-        }
-        return scaledImage;
+        return scaleImage(inputImageStream, ScaleMode.HEIGHT, maxHeight, 0, logger);
     } // scaleImageByHeight
     
     
@@ -205,32 +565,7 @@ public class ImageService {
 
     public static BufferedImage thumbnailScale(InputStream imageInputStream, int maxThumbHeight, int maxThumbWidth,
                                                AbstractLoggerInterface logger) {
-        BufferedImage original = null;
-        BufferedImage thumbnailImage = null;
-        try {
-            original = ImageIO.read( imageInputStream );
-            if (original != null) {
-                int originalWidth = original.getWidth();
-                int originalHeight = original.getHeight();
-                HashMap<String, Integer> thumbInfo = calculateThumbDimensions( maxThumbHeight, maxThumbWidth, originalHeight, originalWidth);
-                int adjHeight = thumbInfo.get("height");
-                int adjWidth = thumbInfo.get("width");
-                if (originalWidth > adjWidth || originalHeight > adjHeight) {
-                    thumbnailImage = Scalr.resize(original, adjWidth, adjHeight);
-                } else {
-                    thumbnailImage = original;
-                }
-            }
-        }
-        catch (IOException e) {
-            logger.log("ImageService::thumbnailScale: error reading image: " + e.getLocalizedMessage());
-        }
-        finally {
-            if (original != null && original != thumbnailImage) {
-                original.flush();
-            }
-        }
-        return thumbnailImage;
+        return scaleImage(imageInputStream, ScaleMode.THUMBNAIL, maxThumbHeight, maxThumbWidth, logger);
     }
 
 }
@@ -23,4 +23,9 @@ public class JavaLoggerWrapper implements AbstractLoggerInterface {
         mLogger.log(Level.SEVERE, msg );
     }
 
+    @Override
+    public void logMetrics(String record) {
+        mLogger.log(Level.INFO, record );
+    }
+
 }
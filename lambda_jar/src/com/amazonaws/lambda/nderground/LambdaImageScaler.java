@@ -8,9 +8,26 @@
  */
 package com.amazonaws.lambda.nderground;
 
+import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.ImagingOpException;
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
 
 /**
  * <h4>
@@ -26,14 +43,37 @@ import java.io.InputStream;
  * @author Ian Kaplan, iank@bearcave.com
  */
 public class LambdaImageScaler {
+    /** a batch does not start a job when less than this much time (or twice the longest job) is left */
+    public final static long DEFAULT_BATCH_TIME_RESERVE_MILLIS = 5000;
+    /* An original that is passed through has no more than maxDim x (maxDim x PASS_THROUGH_MAX_ASPECT) pixels (see
+     * maxPassThroughBytes). A file is assumed to be no larger than PASS_THROUGH_BYTES_PER_PIXEL bytes for each
+     * pixel (16 bit RGBA), plus PASS_THROUGH_METADATA_BYTES of metadata (EXIF, ICC profile).
+     */
+    private final static long PASS_THROUGH_MAX_ASPECT = 16;
+    private final static long PASS_THROUGH_BYTES_PER_PIXEL = 8;
+    private final static long PASS_THROUGH_METADATA_BYTES = 1024 * 1024;
+    
     private final S3Service mS3Service;
     private final AbstractLoggerInterface mLogger;
     
+    /**
+     * The S3Service object is light weight. The AmazonS3 client that it uses comes from the S3ClientRegistry, so
+     * warm Lambda invocations reuse the client built by an earlier invocation.
+     */
     private LambdaImageScaler( ScaleImageInfoBase imageInfo, AbstractLoggerInterface logger ) {
         this.mS3Service = new S3Service(imageInfo.getAwsRegionName(), imageInfo.getS3Bucket(), imageInfo.getId(), imageInfo.getKey());
         this.mLogger = logger;
     }
     
+    /**
+     * Build a scaler that uses the S3Service s3Service (for example, an S3Service with a stand-in S3 client in the
+     * local tests).
+     */
+    LambdaImageScaler( S3Service s3Service, AbstractLoggerInterface logger ) {
+        this.mS3Service = s3Service;
+        this.mLogger = logger;
+    }
+    
     private S3Service getS3Service() {
         return this.mS3Service;
     }
@@ -42,150 +82,1090 @@ public class LambdaImageScaler {
         return this.mLogger;
     }
     
-    private boolean writeImage( ScaleImageInfoBase imageInfo, BufferedImage image) {
+    private boolean writeImage( ScaleImageInfoBase imageInfo, BufferedImage image, Map<String, String> userMetadata) {
+        return writeImage( imageInfo.getS3ScaledPath(), imageInfo.getContentType(), image, userMetadata );
+    }
+    
+    private boolean writeImage( String s3ScaledImagePath, String contentType, BufferedImage image, Map<String, String> userMetadata) {
         boolean writeOK = false;
         if (image != null) {
-            String s3ScaledImagePath = imageInfo.getS3ScaledPath();
-            String contentType = imageInfo.getContentType();
-            writeOK = getS3Service().writeBufferedImage(s3ScaledImagePath, image, contentType, getLogger());
+            writeOK = getS3Service().writeBufferedImage(s3ScaledImagePath, image, contentType, userMetadata, getLogger());
         }
         return writeOK;
     }
     
-    private boolean scaleImageLocal( final ScaleImageByHeightWidth imageInfo) {
-        boolean scaleOK = false;
-        int height = imageInfo.getHeight();
-        int width = imageInfo.getWidth();
+    private String fingerprint( ScaleImageInfoBase imageInfo, String sourceETag, ScaleMode mode, int height, int width ) {
+        return fingerprint(imageInfo, sourceETag, mode, height, width, null);
+    }
+    
+    /**
+     * @param degradation how the scaled image differs from the image that was requested (see ScaleJob.mDegradation),
+     *        or null. A degraded image does not have the fingerprint of the request, so a retry scales it again.
+     */
+    private String fingerprint( ScaleImageInfoBase imageInfo, String sourceETag, ScaleMode mode, int height, int width, 
+                                String degradation ) {
+        return fingerprint(imageInfo, sourceETag, mode, height, width, imageInfo.getContentType(), degradation);
+    }
+    
+    /**
+     * The fingerprint of one rendition of a ScaleImageRenditions request.
+     */
+    private String fingerprint( ScaleImageRenditions imageInfo, RenditionSpec rendition, String contentType, String sourceETag, 
+                                String degradation ) {
+        ScaleMode mode = rendition.toScaleMode();
+        int height = (mode == ScaleMode.MAX_DIM) ? rendition.getMaxDim() : rendition.getHeight();
+        int width = (mode == ScaleMode.MAX_DIM) ? rendition.getMaxDim() : rendition.getWidth();
+        return fingerprint(imageInfo, sourceETag, mode, height, width, contentType, degradation);
+    }
+    
+    private String fingerprint( ScaleImageInfoBase imageInfo, String sourceETag, ScaleMode mode, int height, int width, 
+                                String contentType, String degradation ) {
+        String options = (imageInfo instanceof ScaleImageCrop) ? ((ScaleImageCrop)imageInfo).cropDescription() : null;
+        String qualityHint = imageInfo.getQualityHint();
+        if (qualityHint != null && qualityHint.length() > 0) {
+            String hintOption = "quality:" + TableScalingPolicy.normalizeHint( qualityHint );
+            options = (options != null) ? options + "," + hintOption : hintOption;
+        }
+        if (degradation != null) {
+            options = (options != null) ? options + "," + degradation : degradation;
+        }
+        return RenditionFingerprint.fingerprint(sourceETag, mode, height, width, contentType, imageInfo.getResizeEngine(), options);
+    }
+    
+    /**
+     * @return the region of the original for a CROP request: the region in a ScaleImageCrop request, or the centered
+     *         fill region. null if the region is outside of the original.
+     */
+    private static Rectangle cropRegion( ScaleImageInfoBase imageInfo, int srcWidth, int srcHeight, int height, int width ) {
+        Rectangle region = null;
+        if (imageInfo instanceof ScaleImageCrop) {
+            region = ((ScaleImageCrop)imageInfo).cropRegion(srcWidth, srcHeight);
+        } else {
+            region = ScaleImageCrop.fillRegion(srcWidth, srcHeight, width, height, null);
+        }
+        return region;
+    }
+    
+    /**
+     * @return the resize engine selected by the request, a PolicyResizeEngine if the request has a quality hint
+     *         and no engine, or null for the ImageService default engine.
+     */
+    private ResizeEngine getResizeEngine( ScaleImageInfoBase imageInfo ) {
+        ResizeEngine engine = null;
+        String engineName = imageInfo.getResizeEngine();
+        if (engineName != null && engineName.length() > 0) {
+            engine = ResizeEngines.forName( engineName );
+            if (engine == null) {
+                getLogger().log("LambdaImageScaler: unknown resize engine " + engineName + ", using the default engine");
+            }
+        }
+        String qualityHint = imageInfo.getQualityHint();
+        if (engine == null && qualityHint != null && qualityHint.length() > 0) {
+            engine = new PolicyResizeEngine( qualityHint );
+        }
+        return engine;
+    }
+    
+    /**
+     * <p>
+     * Check whether the scaled image would be identical to the original: the same size and the same image format.
+     * In this case the original can be copied to the scaled image path on S3, without decoding and
+     * encoding the image.
+     * </p>
+     */
+    private boolean isPassThrough( final ScaleImageInfoBase imageInfo, ImageHeader header, ScaleMode mode, int height, int width ) {
+        boolean passThrough = false;
+        if (header != null) {
+            Dimension size = mode.targetSize(header.getWidth(), header.getHeight(), height, width);
+            String imageType = S3Service.getImageType( imageInfo.getContentType() );
+            passThrough = size.width == header.getWidth() && size.height == header.getHeight() && header.isFormat( imageType );
+        }
+        return passThrough;
+    }
+    
+    
+    /**
+     * <p>
+     * The size of the largest original that could be passed through (see isPassThrough) in the height or thumbnail
+     * scale mode. An original that is larger is scaled, so its header is not read first.
+     * </p>
+     * <p>
+     * A passed through original is no higher than the height (HEIGHT), or its shorter side is no longer than the
+     * larger of the height and width (THUMBNAIL). An original with a longer side that is more than
+     * PASS_THROUGH_MAX_ASPECT times its shorter side is not expected; if there is one, it is scaled to its own size.
+     * </p>
+     */
+    static long maxPassThroughBytes( ScaleMode mode, int height, int width ) {
+        long maxDim = (mode == ScaleMode.THUMBNAIL) ? Math.max(height, width) : height;
+        return (maxDim * maxDim * PASS_THROUGH_MAX_ASPECT * PASS_THROUGH_BYTES_PER_PIXEL) + PASS_THROUGH_METADATA_BYTES;
+    }
+    
+    
+    /**
+     * The state of one scaling request as it moves through the stages: fetch (the S3 metadata and the original),
+     * transform (decode, scale and encode) and upload. The stages run in sequence on the caller thread
+     * (scaleImageLocal) or on the pipeline executors (scaleAsync).
+     */
+    private static class ScaleJob {
+        final ScaleImageInfoBase mImageInfo;
+        final ScaleMode mMode;
+        final int mHeight;
+        final int mWidth;
+        /** true when the request is complete (up to date, copied or failed) and no more stages are needed */
+        boolean mFinished = false;
+        boolean mScaleOK = false;
+        boolean mPermit = false;
+        DecodedImageCache.CachedImage mCached = null;
+        ImageInputStream mImageStream = null;
+        /** the ETag of the original: the ETag of the cached original, or of the original that was read */
+        String mETag = null;
+        /** the ETag of the original that was scaled */
+        String mSourceETag = null;
+        BufferedImage mScaledImage = null;
+        PooledImageOutputStream mEncoded = null;
+        final ImageMetrics mMetrics;
+        /** the planner for a request with a deadline, or null */
+        DeadlinePlanner mPlanner = null;
+        DeadlinePlanner.Path mPath = DeadlinePlanner.Path.FULL;
+        boolean mDeadlineExceeded = false;
+        /** 
+         * how the scaled image differs from the image that was requested: the DeadlinePlanner path, the 
+         * ImageAdmission strategy that was used in place of the full decode and resize, or the engine that was used
+         * when the requested engine failed. null if the image is the image that was requested.
+         */
+        String mDegradation = null;
+        /** the time spent encoding in the transform stage, for the DeadlinePlanner cost model */
+        long mEncodeNanos = 0;
+
+        ScaleJob( ScaleImageInfoBase imageInfo, ScaleMode mode, int height, int width ) {
+            this.mImageInfo = imageInfo;
+            this.mMode = mode;
+            this.mHeight = height;
+            this.mWidth = width;
+            this.mMetrics = ImageMetrics.start( mode.name() );
+            mMetrics.setS3Path( imageInfo.getS3Path() );
+        }
+
+        ScaleImageResult result() {
+            String status = ScaleImageResult.STATUS_FAILED;
+            if (mScaleOK) {
+                status = ScaleImageResult.STATUS_OK;
+            } else if (mDeadlineExceeded) {
+                status = ScaleImageResult.STATUS_DEADLINE_EXCEEDED;
+            }
+            return new ScaleImageResult(status, mScaleOK ? mPath.getName() : null);
+        }
+    }
+    
+    
+    /**
+     * Run a stage with the job's metrics bound to the thread, so that the S3Service and ImageService calls made by
+     * the stage record into the metrics for the job.
+     */
+    private void stage( ScaleJob job, Consumer<ScaleJob> stage ) {
+        ImageMetrics previous = ImageMetrics.bind( job.mMetrics );
+        try {
+            stage.accept( job );
+        }
+        finally {
+            ImageMetrics.bind( previous );
+        }
+    }
+    
+    
+    /**
+     * Record the result of a job. The metrics of a job in a batch are added to the batch metrics (parent). Otherwise
+     * the job is the invocation, and its metrics are written.
+     */
+    private void complete( ScaleJob job, ImageMetrics parent ) {
+        if (! job.mScaleOK) {
+            job.mMetrics.increment( ImageMetrics.Counter.FAILURES );
+        }
+        if (job.mDeadlineExceeded) {
+            job.mMetrics.increment( ImageMetrics.Counter.DEADLINE_EXCEEDED );
+        }
+        if (parent != null) {
+            parent.merge( job.mMetrics );
+        } else {
+            job.mMetrics.emit( getLogger() );
+        }
+    }
+    
+    
+    /**
+     * Stop a job that cannot be finished before its deadline.
+     */
+    private void deadlineExceeded( ScaleJob job, String reason ) {
+        job.mDeadlineExceeded = true;
+        job.mFinished = true;
+        getLogger().log("LambdaImageScaler::scaleImage (" + job.mMode + "): " + job.mImageInfo.getS3Path() + ": deadline exceeded, " + reason);
+    }
+    
+    
+    /**
+     * Record how the scaled image of a job differs from the image that was requested, for its fingerprint.
+     */
+    private static void degrade( ScaleJob job, String degradation ) {
+        job.mDegradation = (job.mDegradation != null) ? job.mDegradation + "," + degradation : degradation;
+    }
+    
+    
+    /**
+     * Apply the DeadlinePlanner plan for a job: record a degraded path (in the metrics and the fingerprint), or stop
+     * the job if the plan does not fit in the time that is left.
+     * 
+     * @return true if the job should go on, with the plan's subsampling and resize engine
+     */
+    private boolean applyPlan( ScaleJob job, DeadlinePlanner.Plan plan ) {
+        boolean goOn = ! plan.isDeadlineExceeded();
+        if (! goOn) {
+            deadlineExceeded( job, plan.toString() );
+        } else if (plan.isDegraded()) {
+            job.mPath = plan.getPath();
+            degrade( job, "path:" + plan.getPath().getName() );
+            job.mMetrics.increment( ImageMetrics.Counter.DEGRADED );
+        }
+        return goOn;
+    }
+    
+    
+    /**
+     * <p>
+     * Read the original image from S3, scale it and write the scaled image to S3.
+     * </p>
+     * <p>
+     * The height and thumbnail scale modes do not scale images that are already small enough. For these modes
+     * only the image header is read first (see S3Service.probeImage), unless the original is too large to be
+     * small enough (see maxPassThroughBytes). If the image would not be changed, the original is copied to the
+     * scaled image path by S3.
+     * </p>
+     * <p>
+     * The scaled image is written with a RenditionFingerprint in its S3 user metadata. Before the original is read,
+     * the metadata of the original and of the scaled image are read (HEAD requests). If the scaled image already
+     * exists with the fingerprint for this request (e.g., the request is a retry), nothing is done.
+     * </p>
+     * <p>
+     * If metrics are turned on, the stage times and sizes are written as an ImageMetrics record.
+     * </p>
+     * <p>
+     * If remainingMillis is not null, the request is fitted into the time that is left (see DeadlinePlanner).
+     * </p>
+     * 
+     * @param remainingMillis the time left in the invocation (e.g., Context.getRemainingTimeInMillis()), or null
+     */
+    private ScaleImageResult scaleImageLocal( final ScaleImageInfoBase imageInfo, ScaleMode mode, int height, int width, 
+                                              LongSupplier remainingMillis ) {
+        ScaleJob job = new ScaleJob(imageInfo, mode, height, width);
+        if (remainingMillis != null) {
+            job.mPlanner = new DeadlinePlanner( remainingMillis );
+        }
+        try {
+            stage( job, this::fetch );
+            stage( job, this::transform );
+            stage( job, this::upload );
+        }
+        finally {
+            release( job );
+        }
+        complete( job, null );
+        return job.result();
+    }
+    
+    
+    /**
+     * <p>
+     * Scale an image on the pipeline executors (see ImagePipelineExecutors). The fetch and upload stages run on the
+     * I/O executor and the transform stage runs on the CPU executor, so when many images are submitted, the
+     * download and upload of some images overlap the scaling of others.
+     * </p>
+     * 
+     * @return a future for the result of the request: true if the scaled image was written (or was up to date)
+     */
+    CompletableFuture<Boolean> scaleAsync( final ScaleImageInfoBase imageInfo, ScaleMode mode, int height, int width ) {
+        return scaleAsync(imageInfo, mode, height, width, null);
+    }
+    
+    
+    /**
+     * Scale an image on the pipeline executors, as a part of a larger invocation (a batch).
+     * 
+     * @param parent the metrics for the invocation, which the metrics of this request are added to, or null if the 
+     *        request is the invocation
+     */
+    CompletableFuture<Boolean> scaleAsync( final ScaleImageInfoBase imageInfo, ScaleMode mode, int height, int width, 
+                                           final ImageMetrics parent ) {
+        return scaleAsync(imageInfo, mode, height, width, parent, null).thenApply( ScaleImageResult::isOK );
+    }
+    
+    
+    /**
+     * Scale an image on the pipeline executors, fitted into the time that is left (see DeadlinePlanner).
+     * 
+     * @param planner the deadline planner for the request, or null if the request has no deadline
+     * @return a future for the result of the request
+     */
+    CompletableFuture<ScaleImageResult> scaleAsync( final ScaleImageInfoBase imageInfo, ScaleMode mode, int height, int width, 
+                                                    final ImageMetrics parent, DeadlinePlanner planner ) {
+        CompletableFuture<ScaleImageResult> result = null;
+        if (height > 0 && (width > 0 || mode == ScaleMode.HEIGHT)) {
+            final ScaleJob job = new ScaleJob(imageInfo, mode, height, width);
+            job.mPlanner = planner;
+            ExecutorService ioExecutor = ImagePipelineExecutors.getIOExecutor();
+            // the job starts when it has a place in the pipeline; no pipeline thread waits for the place
+            final CompletableFuture<Void> admitted = new CompletableFuture<Void>();
+            result = admitted.thenRunAsync(() -> stage( job, this::fetch ), ioExecutor)
+                     .thenRunAsync(() -> stage( job, this::transform ), ImagePipelineExecutors.getCPUExecutor())
+                     .thenRunAsync(() -> stage( job, this::upload ), ioExecutor)
+                     .handle((Void v, Throwable t) -> {
+                         if (t != null) {
+                             getLogger().log("LambdaImageScaler::scaleAsync (" + mode + "): " + t.getLocalizedMessage());
+                             job.mScaleOK = false;
+                         }
+                         release( job );
+                         complete( job, parent );
+                         return job.result();
+                     });
+            ImagePipelineExecutors.admit(() -> {
+                job.mPermit = true;
+                admitted.complete( null );
+            });
+        } else {
+            getLogger().log("LambdaImageScaler::scaleAsync (" + mode + "): bad argument");
+            result = CompletableFuture.completedFuture( new ScaleImageResult() );
+        }
+        return result;
+    }
+    
+    
+    /**
+     * Release the resources held by a job. This is called once, when the job is complete or has failed.
+     */
+    private void release( ScaleJob job ) {
+        if (job.mImageStream != null) {
+            try { job.mImageStream.close(); } catch(IOException e) {}
+            job.mImageStream = null;
+        }
+        if (job.mEncoded != null) {
+            job.mEncoded.release();
+            job.mEncoded = null;
+        }
+        if (job.mScaledImage != null && !DecodedImageCache.getCache().isCached( job.mScaledImage )) {
+            job.mScaledImage.flush();
+        }
+        job.mScaledImage = null;
+        if (job.mPermit) {
+            job.mPermit = false;
+            ImagePipelineExecutors.release();
+        }
+    }
+    
+    
+    /**
+     * The fetch stage (I/O): check whether the scaled image is up to date, copy an original that does not need to
+     * be scaled, or open the original. A cached original with the ETag from the HEAD of the original is used
+     * without another S3 request. If there was no HEAD, the cached original is validated with a conditional GET,
+     * so S3 only sends the response headers when the original has not changed.
+     */
+    private void fetch( ScaleJob job ) {
+        final ScaleImageInfoBase imageInfo = job.mImageInfo;
+        ScaleMode mode = job.mMode;
         String s3ImagePath = imageInfo.getS3Path();
-        if (height > 0 && width > 0) {
-            InputStream imageInputStream = null;
-            try {
-                imageInputStream = getS3Service().s3ToInputStream(s3ImagePath, getLogger());
-                if (imageInputStream != null) {
-                    BufferedImage scaledImage = null;
-                    try {
-                        scaledImage = ImageService.scaleImage(imageInputStream, height, width, getLogger());
-                        writeImage(imageInfo, scaledImage );
-                        scaleOK = true;
-                    }
-                    finally {
-                        if (scaledImage != null) {
-                            scaledImage.flush();
+        String s3ScaledPath = imageInfo.getS3ScaledPath();
+        if (job.mPlanner != null && job.mPlanner.getRemainingMillis() <= 0) {
+            deadlineExceeded( job, "the request was not started" );
+        } else if (s3ImagePath != null && s3ImagePath.length() > 0 &&
+            s3ScaledPath != null && s3ScaledPath.length() > 0) {
+            ObjectMetadata sourceMetadata = getS3Service().getObjectMetadata(s3ImagePath, getLogger());
+            String fingerprint = null;
+            boolean upToDate = false;
+            if (sourceMetadata != null && sourceMetadata.getETag() != null) {
+                fingerprint = fingerprint(imageInfo, sourceMetadata.getETag(), mode, job.mHeight, job.mWidth);
+                ObjectMetadata scaledMetadata = getS3Service().getObjectMetadata(s3ScaledPath, getLogger());
+                upToDate = scaledMetadata != null && 
+                           fingerprint.equals( scaledMetadata.getUserMetaDataOf( RenditionFingerprint.METADATA_KEY ) );
+            }
+            boolean passThrough = false;
+            if (! upToDate && (mode == ScaleMode.HEIGHT || mode == ScaleMode.THUMBNAIL) &&
+                (sourceMetadata == null || sourceMetadata.getContentLength() <= maxPassThroughBytes(mode, job.mHeight, job.mWidth))) {
+                ImageHeader header = getS3Service().probeImage(s3ImagePath, sourceMetadata, getLogger());
+                passThrough = isPassThrough(imageInfo, header, mode, job.mHeight, job.mWidth);
+            }
+            if (upToDate) {
+                job.mMetrics.increment( ImageMetrics.Counter.UP_TO_DATE );
+                job.mScaleOK = true;
+                job.mFinished = true;
+            } else if (passThrough) {
+                Map<String, String> userMetadata = (fingerprint != null) ? RenditionFingerprint.userMetadata( fingerprint ) : null;
+                job.mMetrics.increment( ImageMetrics.Counter.PASS_THROUGH );
+                job.mScaleOK = getS3Service().copyObject(s3ImagePath, s3ScaledPath, sourceMetadata, userMetadata, getLogger());
+                job.mFinished = true;
+            } else {
+                DecodedImageCache cache = DecodedImageCache.getCache();
+                DecodedImageCache.CachedImage cached = null;
+                // a crop only decodes a region of the original, so it does not use the cache
+                if (cache.isEnabled() && mode != ScaleMode.CROP) {
+                    cached = cache.get(imageInfo.getS3Bucket(), s3ImagePath);
+                    if (cached != null) {
+                        Dimension size = mode.targetSize(cached.getSourceWidth(), cached.getSourceHeight(), job.mHeight, job.mWidth);
+                        int subsampling = ImageDecoder.subsampling(cached.getSourceWidth(), cached.getSourceHeight(), size.width, size.height);
+                        if (cached.getSubsampling() > subsampling) {
+                            // the cached image was decoded at a lower resolution than this scaled image needs
+                            cached = null;
                         }
                     }
                 }
-            }
-            finally {
-                if (imageInputStream != null) {
-                    try { imageInputStream.close(); } catch(IOException e) {}
+                job.mCached = cached;
+                long sourceBytes = (sourceMetadata != null) ? sourceMetadata.getContentLength() : 0;
+                if (cached != null && sourceMetadata != null && cached.getETag().equals( sourceMetadata.getETag() )) {
+                    // the HEAD shows that the cached original is current, so the original is not read
+                    job.mETag = cached.getETag();
+                } else if (job.mPlanner != null && ! job.mPlanner.canDownload( sourceBytes )) {
+                    deadlineExceeded( job, "the " + sourceBytes + " byte original was not downloaded" );
+                } else {
+                    String notETag = (cached != null) ? cached.getETag() : null;
+                    long start = System.nanoTime();
+                    S3Service.ImageRead read = getS3Service().readImage(s3ImagePath, notETag, getLogger());
+                    job.mImageStream = read.getStream();
+                    job.mETag = read.getETag();
+                    if (job.mPlanner != null && job.mImageStream != null) {
+                        job.mPlanner.getModel().record(DeadlinePlanner.Cost.DOWNLOAD, sourceBytes, System.nanoTime() - start);
+                    }
                 }
             }
         } else {
-            getLogger().log("LambdaImageScaler::scaleImage (height, width): bad argument");
+            getLogger().log("LambdaImageScaler::scaleImage (" + mode + "): bad S3 path argument");
+            job.mFinished = true;
         }
-        return scaleOK;
     }
     
-    private boolean scaleImageLocal( final ScaleImageByMaxDim imageInfo ) {
-        boolean scaleOK = false;
-        int maxDim = imageInfo.getMaxDim();
-        String s3ImagePath = imageInfo.getS3Path();
-        if (maxDim > 0) {
-            InputStream imageInputStream = null;
+    
+    /**
+     * <p>
+     * The transform stage (CPU): decode and scale the original and encode the scaled image. The process wide
+     * DecodedImageCache is used for the original. A newly decoded original is added to the cache. The cache
+     * statistics are logged.
+     * </p>
+     * <p>
+     * An image that is large enough for a multipart upload is encoded as it is uploaded, in the upload stage.
+     * </p>
+     */
+    private void transform( ScaleJob job ) {
+        if (! job.mFinished) {
+            final ScaleImageInfoBase imageInfo = job.mImageInfo;
+            ScaleMode mode = job.mMode;
+            String s3ImagePath = imageInfo.getS3Path();
+            DecodedImageCache cache = DecodedImageCache.getCache();
+            DecodedImageCache.CachedImage cached = job.mCached;
+            String eTag = job.mETag;
+            ImageReader reader = null;
+            BufferedImage original = null;
+            boolean cachedOriginal = false;
+            ResizeEngine engine = getResizeEngine( imageInfo );
+            DeadlinePlanner planner = job.mPlanner;
             try {
-                imageInputStream = getS3Service().s3ToInputStream(s3ImagePath, getLogger());
-                if (imageInputStream != null) {
-                    BufferedImage scaledImage = null;
-                    try {
-                        scaledImage = ImageService.scaleImage(imageInputStream, maxDim, getLogger());
-                        writeImage(imageInfo, scaledImage );
-                        scaleOK = true;
+                int sourceWidth = 0;
+                int sourceHeight = 0;
+                if (job.mImageStream == null && cached != null && cached.getETag().equals( eTag )) {
+                    cache.recordHit();
+                    job.mMetrics.increment( ImageMetrics.Counter.DECODED_CACHE_HITS );
+                    original = cached.getImage();
+                    cachedOriginal = true;
+                    sourceWidth = cached.getSourceWidth();
+                    sourceHeight = cached.getSourceHeight();
+                    if (planner != null) {
+                        Dimension size = mode.targetSize(sourceWidth, sourceHeight, job.mHeight, job.mWidth);
+                        DeadlinePlanner.Plan plan = planner.planResize(original.getWidth(), original.getHeight(), engine, 
+                                                                       size.width, size.height);
+                        if (applyPlan( job, plan )) {
+                            engine = plan.getEngine();
+                        } else {
+                            original = null;
+                        }
                     }
-                    finally {
-                        if (scaledImage != null) {
-                            scaledImage.flush();
+                } else if (job.mImageStream != null) {
+                    reader = ImageDecoder.getReader( job.mImageStream );
+                    if (reader != null) {
+                        ImageHeader header = ImageDecoder.readHeader( reader );
+                        sourceWidth = header.getWidth();
+                        sourceHeight = header.getHeight();
+                        Dimension size = mode.targetSize(sourceWidth, sourceHeight, job.mHeight, job.mWidth);
+                        if (mode == ScaleMode.CROP) {
+                            Rectangle region = cropRegion(imageInfo, sourceWidth, sourceHeight, job.mHeight, job.mWidth);
+                            boolean goOn = region != null;
+                            if (region == null) {
+                                getLogger().log("LambdaImageScaler::scaleImage (" + mode + "): the crop region is outside of " + s3ImagePath);
+                            } else if (planner != null) {
+                                // only the resize engine is degraded; ImageService.cropScale picks the subsampling
+                                DeadlinePlanner.Plan plan = planner.planDecode(region.width, region.height, 
+                                                                               ImageDecoder.subsampling(region.width, region.height, size.width, size.height),
+                                                                               false, engine, size.width, size.height);
+                                goOn = applyPlan( job, plan );
+                                engine = plan.getEngine();
+                            }
+                            if (goOn) {
+                                job.mMetrics.add(ImageMetrics.Counter.SOURCE_PIXELS, (long)sourceWidth * sourceHeight);
+                                ImageService.ResizedImage resized = ImageService.cropScaleImage(reader, header, region, size.width, 
+                                                                                                size.height, engine);
+                                if (resized.isFallback()) {
+                                    degrade( job, "engine:" + resized.getEngine().getName() );
+                                }
+                                job.mScaledImage = resized.getImage();
+                                job.mSourceETag = eTag;
+                            }
+                        } else {
+                            if (cache.isEnabled()) {
+                                cache.recordMiss();
+                            }
+                            // make room on the heap for the decoded image, or pick a decode that fits
+                            // a STRIPS or REDUCED admission is counted in the metrics by admit()
+                            ImageAdmission admission = ImageAdmission.admit(header, size.width, size.height);
+                            int subsampling = admission.getSubsampling();
+                            boolean goOn = true;
+                            if (planner != null && ! admission.isRejected()) {
+                                DeadlinePlanner.Plan plan = planner.planDecode(sourceWidth, sourceHeight, subsampling, true, engine, 
+                                                                               size.width, size.height);
+                                goOn = applyPlan( job, plan );
+                                engine = plan.getEngine();
+                                subsampling = plan.getSubsampling();
+                            }
+                            if (goOn && admission.getStrategy() == ImageAdmission.Strategy.STRIPS) {
+                                // the original is scaled as it is decoded, so there is no decoded original to cache
+                                job.mMetrics.add(ImageMetrics.Counter.SOURCE_PIXELS, (long)sourceWidth * sourceHeight);
+                                if (! StripResampler.isEngineFilter(engine, sourceWidth, sourceHeight, subsampling, size.width, size.height)) {
+                                    degrade( job, "admission:strips" );
+                                }
+                                job.mScaledImage = StripResampler.resize(reader, subsampling, admission.getStripRows(), 
+                                                                         size.width, size.height, 
+                                                                         StripResampler.filterFor(engine, sourceWidth, sourceHeight, subsampling, 
+                                                                                                  size.width, size.height));
+                                job.mSourceETag = eTag;
+                            } else if (goOn) {
+                                if (admission.getStrategy() == ImageAdmission.Strategy.REDUCED) {
+                                    degrade( job, "admission:reduced" );
+                                }
+                                long start = System.nanoTime();
+                                if (subsampling > admission.getSubsampling()) {
+                                    original = ImageDecoder.readNormalized(reader, subsampling);
+                                } else {
+                                    original = ImageDecoder.readNormalized(reader, admission);
+                                }
+                                if (planner != null) {
+                                    planner.getModel().record(DeadlinePlanner.Cost.DECODE, (long)original.getWidth() * original.getHeight(), 
+                                                              System.nanoTime() - start);
+                                }
+                                if (cache.isEnabled() && eTag != null) {
+                                    DecodedImageCache.CachedImage image = new DecodedImageCache.CachedImage(eTag, original, sourceWidth, 
+                                                                                                            sourceHeight, subsampling);
+                                    cachedOriginal = cache.put(imageInfo.getS3Bucket(), s3ImagePath, image);
+                                }
+                            }
                         }
+                    } else {
+                        getLogger().log("LambdaImageScaler::scaleImage (" + mode + "): no image reader for " + s3ImagePath);
+                    }
+                }
+                if (original != null) {
+                    job.mMetrics.add(ImageMetrics.Counter.SOURCE_PIXELS, (long)sourceWidth * sourceHeight);
+                    Dimension size = mode.targetSize(sourceWidth, sourceHeight, job.mHeight, job.mWidth);
+                    long start = System.nanoTime();
+                    ImageService.ResizedImage resized = ImageService.resizeImage(original, size.width, size.height, engine);
+                    if (resized.isFallback()) {
+                        degrade( job, "engine:" + resized.getEngine().getName() );
+                    }
+                    job.mScaledImage = resized.getImage();
+                    if (planner != null && job.mScaledImage != original) {
+                        planner.getModel().recordResize(DeadlinePlanner.engineName( engine ), (long)original.getWidth() * original.getHeight(), 
+                                                        System.nanoTime() - start);
                     }
+                    job.mSourceETag = eTag;
                 }
             }
+            catch (ImagingOpException e) {
+                getLogger().log("LambdaImageScaler::scaleImage (" + mode + "): Error scaling image: " + e.getLocalizedMessage());
+            }
+            catch (IOException e) {
+                getLogger().log("LambdaImageScaler::scaleImage (" + mode + "): Error reading image: " + e.getLocalizedMessage());
+            }
             finally {
-                if (imageInputStream != null) {
-                    try { imageInputStream.close(); } catch(IOException e) {}
+                if (original != null && original != job.mScaledImage && !cachedOriginal) {
+                    original.flush();
+                }
+                if (reader != null) {
+                    reader.dispose();
                 }
+                if (job.mImageStream != null) {
+                    try { job.mImageStream.close(); } catch(IOException e) {}
+                    job.mImageStream = null;
+                }
+            }
+            if (job.mScaledImage == null) {
+                job.mFinished = true;
+            } else if (planner != null && ! planner.canUpload( (long)job.mScaledImage.getWidth() * job.mScaledImage.getHeight() )) {
+                deadlineExceeded( job, "the scaled image was not written" );
+            } else if (! getS3Service().isMultipartSize(job.mScaledImage, imageInfo.getContentType())) {
+                long start = System.nanoTime();
+                job.mEncoded = getS3Service().encodeImage(job.mScaledImage, imageInfo.getContentType(), getLogger());
+                job.mEncodeNanos = System.nanoTime() - start;
+                job.mFinished = job.mEncoded == null;
             }
+        }
+    }
+    
+    
+    /**
+     * The upload stage (I/O): write the scaled image, with the fingerprint of the original that was scaled (which
+     * may have changed since the fetch stage read its metadata).
+     */
+    private void upload( ScaleJob job ) {
+        if (! job.mFinished) {
+            final ScaleImageInfoBase imageInfo = job.mImageInfo;
+            long start = System.nanoTime();
+            long outputPixels = (long)job.mScaledImage.getWidth() * job.mScaledImage.getHeight();
+            Map<String, String> userMetadata = null;
+            if (job.mSourceETag != null) {
+                userMetadata = RenditionFingerprint.userMetadata( fingerprint(imageInfo, job.mSourceETag, job.mMode, job.mHeight, job.mWidth, 
+                                                                                    job.mDegradation) );
+            }
+            if (job.mEncoded != null) {
+                PooledImageOutputStream encoded = job.mEncoded;
+                job.mEncoded = null;
+                job.mScaleOK = getS3Service().writeEncodedImage(imageInfo.getS3ScaledPath(), encoded, userMetadata, getLogger());
+            } else {
+                job.mScaleOK = writeImage(imageInfo, job.mScaledImage, userMetadata);
+            }
+            if (job.mScaleOK) {
+                job.mMetrics.increment( ImageMetrics.Counter.IMAGES );
+                if (job.mPlanner != null) {
+                    job.mPlanner.getModel().record(DeadlinePlanner.Cost.ENCODE_UPLOAD, outputPixels, 
+                                                   job.mEncodeNanos + System.nanoTime() - start);
+                }
+            }
+            job.mFinished = true;
+        }
+    }
+    
+    private ScaleImageResult scaleImageLocal( final ScaleImageByHeightWidth imageInfo, LongSupplier remainingMillis ) {
+        ScaleImageResult result = new ScaleImageResult();
+        int height = imageInfo.getHeight();
+        int width = imageInfo.getWidth();
+        if (height > 0 && width > 0) {
+            result = scaleImageLocal(imageInfo, ScaleMode.HEIGHT_WIDTH, height, width, remainingMillis);
+        } else {
+            getLogger().log("LambdaImageScaler::scaleImage (height, width): bad argument");
+        }
+        return result;
+    }
+    
+    private ScaleImageResult scaleImageLocal( final ScaleImageByMaxDim imageInfo, LongSupplier remainingMillis ) {
+        ScaleImageResult result = new ScaleImageResult();
+        int maxDim = imageInfo.getMaxDim();
+        if (maxDim > 0) {
+            result = scaleImageLocal(imageInfo, ScaleMode.MAX_DIM, maxDim, maxDim, remainingMillis);
         } else {
             getLogger().log("LambdaImageScaler::scaleImage (maxDim): bad argument");
         }
-        return scaleOK;
+        return result;
     }
     
-    private boolean scaleImageByHeightLocal( final ScaleImageByHeight imageInfo ) {
-        boolean scaleOK = false;
+    private ScaleImageResult scaleImageByHeightLocal( final ScaleImageByHeight imageInfo, LongSupplier remainingMillis ) {
+        ScaleImageResult result = new ScaleImageResult();
         int maxHeight = imageInfo.getHeight();
-        String s3ImagePath = imageInfo.getS3Path();
         if (maxHeight > 0) {
-            InputStream imageInputStream = null;
-            try {
-                imageInputStream = getS3Service().s3ToInputStream(s3ImagePath, getLogger());
-                if (imageInputStream != null) {
-                    BufferedImage scaledImage = null;
-                    try {
-                        scaledImage = ImageService.scaleImageByHeight(imageInputStream, maxHeight, getLogger());
-                        writeImage(imageInfo, scaledImage );
-                        scaleOK = true;
+            result = scaleImageLocal(imageInfo, ScaleMode.HEIGHT, maxHeight, 0, remainingMillis);
+        } else {
+            getLogger().log("LambdaImageScalar::scaleImageByHeight (height): bad argument");
+        }
+        return result;
+    }
+    
+    
+    private ScaleImageResult cropScaleLocal( final ScaleImageCrop imageInfo, LongSupplier remainingMillis ) {
+        ScaleImageResult result = new ScaleImageResult();
+        if (imageInfo.hasValidArguments()) {
+            result = scaleImageLocal(imageInfo, ScaleMode.CROP, imageInfo.getHeight(), imageInfo.getWidth(), remainingMillis);
+        } else {
+            getLogger().log("LambdaImageScaler::cropScale: bad argument");
+        }
+        return result;
+    }
+    
+    
+    private ScaleImageResult thumbnailScaleLocal( ScaleImageByHeightWidth imageInfo, LongSupplier remainingMillis ) {
+        ScaleImageResult result = new ScaleImageResult();
+        int maxThumbHeight = imageInfo.getHeight();
+        int maxThumbWidth = imageInfo.getWidth();
+        if (maxThumbHeight > 0 && maxThumbWidth > 0) {
+            result = scaleImageLocal(imageInfo, ScaleMode.THUMBNAIL, maxThumbHeight, maxThumbWidth, remainingMillis);
+        }
+        return result;
+    }
+    
+    /**
+     * <p>
+     * Build all of the renditions of an image from one download and decode of the original. The image is
+     * decoded with the subsampling allowed by the largest rendition, if it fits on the heap (see ImageAdmission).
+     * The renditions are scaled from the largest to the smallest, each one from the closest larger rendition (see
+     * ImageService.scaleRenditions).
+     * A rendition that is the same size and format as the original is copied on S3.
+     * </p>
+     * <p>
+     * Each rendition is written with its RenditionFingerprint, as scaleImageLocal writes a scaled image. If every
+     * rendition already exists with the fingerprint for this request (e.g., the request is a retry), nothing is done.
+     * A degraded path changes the fingerprints of the renditions, so a retry with more time builds them again.
+     * </p>
+     * <p>
+     * If planner is not null, the request is fitted into the time that is left (see DeadlinePlanner). The
+     * plan is made for the largest rendition, since the smaller renditions are scaled from it. The plan applies to
+     * all of the renditions, so the renditions are written together or not at all.
+     * </p>
+     * 
+     * @param planner the deadline planner for the request, or null if the request has no deadline
+     */
+    ScaleImageResult scaleRenditionsLocal( final ScaleImageRenditions imageInfo, DeadlinePlanner planner ) {
+        boolean scaleOK = false;
+        String deadlineExceeded = null;
+        DeadlinePlanner.Path path = DeadlinePlanner.Path.FULL;
+        ImageMetrics metrics = ImageMetrics.start("RENDITIONS");
+        metrics.setS3Path( imageInfo.getS3Path() );
+        ImageMetrics previous = ImageMetrics.bind( metrics );
+        List<RenditionSpec> renditions = imageInfo.getRenditions();
+        String s3ImagePath = imageInfo.getS3Path();
+        if (renditions != null && renditions.size() > 0 && s3ImagePath != null && s3ImagePath.length() > 0) {
+            boolean argsOK = true;
+            for (RenditionSpec rendition : renditions) {
+                if (! rendition.hasValidArguments()) {
+                    getLogger().log("LambdaImageScaler::scaleRenditions: bad rendition argument for " + rendition.getS3ScaledPath());
+                    argsOK = false;
+                }
+            }
+            ObjectMetadata sourceMetadata = null;
+            boolean upToDate = false;
+            if (argsOK && (planner == null || planner.getRemainingMillis() > 0)) {
+                sourceMetadata = getS3Service().getObjectMetadata(s3ImagePath, getLogger());
+                upToDate = sourceMetadata != null && sourceMetadata.getETag() != null;
+                for (int i = 0; upToDate && i < renditions.size(); i++) {
+                    RenditionSpec rendition = renditions.get(i);
+                    String contentType = (rendition.getContentType() != null) ? rendition.getContentType() : imageInfo.getContentType();
+                    String fingerprint = fingerprint(imageInfo, rendition, contentType, sourceMetadata.getETag(), null);
+                    ObjectMetadata scaledMetadata = getS3Service().getObjectMetadata(rendition.getS3ScaledPath(), getLogger());
+                    upToDate = scaledMetadata != null && 
+                               fingerprint.equals( scaledMetadata.getUserMetaDataOf( RenditionFingerprint.METADATA_KEY ) );
+                }
+            }
+            long sourceBytes = (sourceMetadata != null) ? sourceMetadata.getContentLength() : 0;
+            if (upToDate) {
+                metrics.increment( ImageMetrics.Counter.UP_TO_DATE );
+                scaleOK = true;
+            } else if (argsOK && planner != null) {
+                if (planner.getRemainingMillis() <= 0) {
+                    deadlineExceeded = "the request was not started";
+                } else if (! planner.canDownload( sourceBytes )) {
+                    deadlineExceeded = "the " + sourceBytes + " byte original was not downloaded";
+                }
+            }
+            if (argsOK && ! upToDate && deadlineExceeded == null) {
+                ImageInputStream imageStream = null;
+                String sourceETag = null;
+                String degradation = null;
+                ImageReader reader = null;
+                BufferedImage[] scaledImages = null;
+                try {
+                    long start = System.nanoTime();
+                    S3Service.ImageRead read = getS3Service().readImage(s3ImagePath, null, getLogger());
+                    imageStream = read.getStream();
+                    sourceETag = read.getETag();
+                    if (planner != null && imageStream != null) {
+                        planner.getModel().record(DeadlinePlanner.Cost.DOWNLOAD, sourceBytes, System.nanoTime() - start);
                     }
-                    finally {
-                        if (scaledImage != null) {
-                            scaledImage.flush();
+                    if (imageStream != null) {
+                        reader = ImageDecoder.getReader( imageStream );
+                        if (reader != null) {
+                            ImageHeader header = ImageDecoder.readHeader( reader );
+                            metrics.add(ImageMetrics.Counter.SOURCE_PIXELS, (long)header.getWidth() * header.getHeight());
+                            int numRenditions = renditions.size();
+                            String[] contentTypes = new String[ numRenditions ];
+                            boolean[] passThrough = new boolean[ numRenditions ];
+                            List<Dimension> sizes = new ArrayList<Dimension>();
+                            long outputPixels = 0;
+                            for (int i = 0; i < numRenditions; i++) {
+                                RenditionSpec rendition = renditions.get(i);
+                                contentTypes[i] = rendition.getContentType() != null ? rendition.getContentType() : imageInfo.getContentType();
+                                Dimension size = rendition.targetSize( header.getWidth(), header.getHeight() );
+                                passThrough[i] = size.width == header.getWidth() && size.height == header.getHeight() && 
+                                                 header.isFormat( S3Service.getImageType( contentTypes[i] ) );
+                                if (! passThrough[i]) {
+                                    sizes.add( size );
+                                    outputPixels += (long)size.width * size.height;
+                                }
+                            }
+                            if (sizes.size() > 0) {
+                                Dimension bounds = renditionBounds( sizes );
+                                ImageAdmission admission = ImageAdmission.admit(header, bounds.width, bounds.height);
+                                ResizeEngine engine = getResizeEngine( imageInfo );
+                                int subsampling = admission.getSubsampling();
+                                if (planner != null && ! admission.isRejected()) {
+                                    DeadlinePlanner.Plan plan = planner.planDecode(header.getWidth(), header.getHeight(), subsampling, true, 
+                                                                                   engine, bounds.width, bounds.height);
+                                    if (plan.isDeadlineExceeded()) {
+                                        deadlineExceeded = plan.toString();
+                                    } else {
+                                        path = plan.getPath();
+                                        engine = plan.getEngine();
+                                        subsampling = plan.getSubsampling();
+                                        if (plan.isDegraded()) {
+                                            degradation = "path:" + plan.getPath().getName();
+                                            metrics.increment( ImageMetrics.Counter.DEGRADED );
+                                        }
+                                    }
+                                }
+                                if (admission.getStrategy() == ImageAdmission.Strategy.STRIPS &&
+                                    ! StripResampler.isEngineFilter(engine, header.getWidth(), header.getHeight(), subsampling, 
+                                                                    bounds.width, bounds.height)) {
+                                    degradation = (degradation != null) ? degradation + ",admission:strips" : "admission:strips";
+                                } else if (admission.getStrategy() == ImageAdmission.Strategy.REDUCED) {
+                                    degradation = (degradation != null) ? degradation + ",admission:reduced" : "admission:reduced";
+                                }
+                                if (deadlineExceeded == null) {
+                                    scaledImages = scaleRenditionImages(reader, header, admission, subsampling,
+                                                                        sizes.toArray( new Dimension[ sizes.size() ]), engine);
+                                }
+                            }
+                            if (deadlineExceeded == null && planner != null && ! planner.canUpload( outputPixels )) {
+                                deadlineExceeded = "the renditions were not written";
+                            }
+                            if (deadlineExceeded == null) {
+                                scaleOK = true;
+                                start = System.nanoTime();
+                                int ix = 0;
+                                for (int i = 0; i < numRenditions; i++) {
+                                    RenditionSpec rendition = renditions.get(i);
+                                    String s3ScaledPath = rendition.getS3ScaledPath();
+                                    boolean renditionOK = false;
+                                    if (passThrough[i]) {
+                                        // the copy is only made if the original still has the ETag from the HEAD
+                                        Map<String, String> userMetadata = null;
+                                        if (sourceMetadata != null && sourceMetadata.getETag() != null) {
+                                            userMetadata = RenditionFingerprint.userMetadata( 
+                                                    fingerprint(imageInfo, rendition, contentTypes[i], sourceMetadata.getETag(), null) );
+                                        }
+                                        metrics.increment( ImageMetrics.Counter.PASS_THROUGH );
+                                        renditionOK = getS3Service().copyObject(s3ImagePath, s3ScaledPath, sourceMetadata, userMetadata, getLogger());
+                                    } else {
+                                        Map<String, String> userMetadata = null;
+                                        if (sourceETag != null) {
+                                            userMetadata = RenditionFingerprint.userMetadata( 
+                                                    fingerprint(imageInfo, rendition, contentTypes[i], sourceETag, degradation) );
+                                        }
+                                        renditionOK = writeImage(s3ScaledPath, contentTypes[i], scaledImages[ix], userMetadata);
+                                        ix++;
+                                    }
+                                    if (renditionOK) {
+                                        metrics.increment( ImageMetrics.Counter.IMAGES );
+                                    }
+                                    scaleOK = scaleOK && renditionOK;
+                                }
+                                if (planner != null && scaleOK) {
+                                    planner.getModel().record(DeadlinePlanner.Cost.ENCODE_UPLOAD, outputPixels, System.nanoTime() - start);
+                                }
+                            }
+                        } else {
+                            getLogger().log("LambdaImageScaler::scaleRenditions: no image reader for " + s3ImagePath);
                         }
                     }
                 }
-            }
-            finally {
-                if (imageInputStream != null) {
-                    try { imageInputStream.close(); } catch(IOException e) {}
+                catch (ImagingOpException e) {
+                    getLogger().log("LambdaImageScaler::scaleRenditions: Error scaling image: " + e.getLocalizedMessage());
+                }
+                catch (IOException e) {
+                    getLogger().log("LambdaImageScaler::scaleRenditions: Error reading image: " + e.getLocalizedMessage());
+                }
+                finally {
+                    if (scaledImages != null) {
+                        for (BufferedImage image : scaledImages) {
+                            if (image != null) {
+                                image.flush();
+                            }
+                        }
+                    }
+                    if (reader != null) {
+                        reader.dispose();
+                    }
+                    if (imageStream != null) {
+                        try { imageStream.close(); } catch(IOException e) {}
+                    }
                 }
             }
         } else {
-            getLogger().log("LambdaImageScalar::scaleImageByHeight (height): bad argument");
+            getLogger().log("LambdaImageScaler::scaleRenditions: bad argument");
         }
-        return scaleOK;
+        String status = ScaleImageResult.STATUS_OK;
+        if (deadlineExceeded != null) {
+            getLogger().log("LambdaImageScaler::scaleRenditions: " + s3ImagePath + ": deadline exceeded, " + deadlineExceeded);
+            metrics.increment( ImageMetrics.Counter.DEADLINE_EXCEEDED );
+            status = ScaleImageResult.STATUS_DEADLINE_EXCEEDED;
+        } else if (! scaleOK) {
+            status = ScaleImageResult.STATUS_FAILED;
+        }
+        if (! scaleOK) {
+            metrics.increment( ImageMetrics.Counter.FAILURES );
+        }
+        ImageMetrics.bind( previous );
+        metrics.emit( getLogger() );
+        return new ScaleImageResult(status, scaleOK ? path.getName() : null);
     }
     
+    /**
+     * @return the smallest size that is at least as wide and as high as every rendition. Decoded with the
+     *         subsampling for this size, the original is not subsampled below the size of any rendition (the
+     *         subsampling is the smallest of the rendition subsamplings).
+     */
+    static Dimension renditionBounds( List<Dimension> sizes ) {
+        Dimension bounds = new Dimension(0, 0);
+        for (Dimension size : sizes) {
+            bounds.width = Math.max(bounds.width, size.width);
+            bounds.height = Math.max(bounds.height, size.height);
+        }
+        return bounds;
+    }
     
-    private boolean thumbnailScaleLocal( ScaleImageByHeightWidth imageInfo ) {
-        boolean scaleOK = false;
-        int maxThumbHeight = imageInfo.getHeight();
-        int maxThumbWidth = imageInfo.getWidth();
-        String originalPath = imageInfo.getS3Path();
-        String scaledPath = imageInfo.getS3ScaledPath();
-        if (maxThumbHeight > 0 && maxThumbWidth > 0 && 
-            originalPath != null && originalPath.length() > 0 &&
-            scaledPath != null&& scaledPath.length() > 0) {
-            InputStream imageInputStream = null;
-            try {
-                imageInputStream = getS3Service().s3ToInputStream(originalPath, getLogger());
-                if (imageInputStream != null) {
-                    BufferedImage scaledImage = null;
-                    try {
-                        scaledImage = ImageService.thumbnailScale(imageInputStream, maxThumbHeight, maxThumbWidth, getLogger());
-                        writeImage(imageInfo, scaledImage );
-                        scaleOK = true;
+    /**
+     * <p>
+     * Decode an original and build its renditions. For a STRIPS admission, the original is resized in strips to
+     * the rendition bounds (see renditionBounds) and the renditions are scaled from that image, so no rendition is
+     * scaled up from a smaller one. Otherwise the renditions are scaled from the decoded original.
+     * </p>
+     * 
+     * @param reader the ImageReader for the original
+     * @param header the original's header
+     * @param admission the admission for the rendition bounds
+     * @param sizes the sizes of the renditions
+     * @param engine the resize engine, or null for the default engine
+     * @return the renditions, in the same order as sizes
+     * @throws IOException if there is an error reading the image
+     */
+    static BufferedImage[] scaleRenditionImages( ImageReader reader, ImageHeader header, ImageAdmission admission, 
+                                                 Dimension[] sizes, ResizeEngine engine ) throws IOException {
+        return scaleRenditionImages(reader, header, admission, admission.getSubsampling(), sizes, engine);
+    }
+    
+    /**
+     * @param subsampling the source subsampling, which may be coarser than the admission subsampling (see
+     *        DeadlinePlanner)
+     */
+    static BufferedImage[] scaleRenditionImages( ImageReader reader, ImageHeader header, ImageAdmission admission, 
+                                                 int subsampling, Dimension[] sizes, ResizeEngine engine ) throws IOException {
+        BufferedImage original = null;
+        int sourceWidth = header.getWidth();
+        int sourceHeight = header.getHeight();
+        if (admission.getStrategy() == ImageAdmission.Strategy.STRIPS) {
+            Dimension bounds = renditionBounds( Arrays.asList( sizes ) );
+            original = StripResampler.resize(reader, subsampling, admission.getStripRows(),
+                                             bounds.width, bounds.height, 
+                                             StripResampler.filterFor(engine, header.getWidth(), header.getHeight(), 
+                                                                      subsampling, bounds.width, bounds.height));
+            sourceWidth = bounds.width;
+            sourceHeight = bounds.height;
+        } else if (subsampling > admission.getSubsampling()) {
+            original = ImageDecoder.readNormalized(reader, subsampling);
+        } else {
+            original = ImageDecoder.readNormalized(reader, admission);
+        }
+        BufferedImage[] scaledImages = ImageService.scaleRenditions(original, sourceWidth, sourceHeight, sizes, engine);
+        if (! Arrays.asList( scaledImages ).contains( original )) {
+            original.flush();
+        }
+        return scaledImages;
+    }
+    
+    /**
+     * Build the request for one job of a batch. The job's content type, if any, overrides the batch content type.
+     */
+    private static ScaleImageByHeightWidth batchJobInfo( ScaleImageBatch batch, BatchJob job ) {
+        String contentType = (job.getContentType() != null) ? job.getContentType() : batch.getContentType();
+        ScaleImageByHeightWidth imageInfo = new ScaleImageByHeightWidth(batch.getAwsRegionName(), batch.getS3Bucket(), 
+                                                                        batch.getId(), batch.getKey(), job.getS3Path(), 
+                                                                        job.getS3ScaledPath(), contentType, 
+                                                                        job.getHeight(), job.getWidth());
+        imageInfo.setResizeEngine( batch.getResizeEngine() );
+        imageInfo.setQualityHint( batch.getQualityHint() );
+        return imageInfo;
+    }
+    
+    /**
+     * <p>
+     * Scale the images in a batch on the image pipeline (see scaleAsync). At most ImagePipelineExecutors.getMaxInFlight()
+     * jobs are in progress at the same time, so the memory used is bounded, and the originals for the next jobs are
+     * downloaded while the current jobs are scaled. A job that fails does not stop the batch.
+     * </p>
+     * <p>
+     * Before each job is started, the remaining time is checked. When the remaining time is less than the reserve
+     * (IMAGE_BATCH_TIME_RESERVE_MS, or twice the time of the longest job so far, if that is larger), the rest of
+     * the jobs are not started. They are returned in the result so that the caller can submit them again. Each job
+     * that is started is fitted into the time that is left (see DeadlinePlanner); its path is in the result.
+     * </p>
+     * 
+     * @param remainingMillis the time left in the invocation (e.g., Context.getRemainingTimeInMillis())
+     */
+    ScaleImageBatchResult scaleBatchLocal( final ScaleImageBatch batch, LongSupplier remainingMillis ) {
+        ScaleImageBatchResult result = new ScaleImageBatchResult();
+        List<BatchJob> jobs = (batch.getJobs() != null) ? batch.getJobs() : new ArrayList<BatchJob>();
+        long minReserve = S3TransferSettings.getLong("IMAGE_BATCH_TIME_RESERVE_MS", DEFAULT_BATCH_TIME_RESERVE_MILLIS);
+        final long[] longestJob = new long[]{ 0 };
+        final Semaphore window = new Semaphore( ImagePipelineExecutors.getMaxInFlight() );
+        final ImageMetrics metrics = ImageMetrics.start("BATCH");
+        List<CompletableFuture<ScaleImageResult>> futures = new ArrayList<CompletableFuture<ScaleImageResult>>();
+        boolean timeLeft = true;
+        for (BatchJob job : jobs) {
+            CompletableFuture<ScaleImageResult> future = null;
+            if (timeLeft && job != null && job.hasValidArguments()) {
+                try {
+                    long reserve = 0;
+                    synchronized (longestJob) {
+                        reserve = Math.max(minReserve, 2 * longestJob[0]);
                     }
-                    finally {
-                        if (scaledImage != null) {
-                            scaledImage.flush();
+                    // wait for a place in the pipeline, but not past the reserve
+                    long waitMillis = remainingMillis.getAsLong() - reserve;
+                    timeLeft = waitMillis > 0 && window.tryAcquire(waitMillis, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    timeLeft = false;
+                }
+                if (timeLeft) {
+                    final long start = System.currentTimeMillis();
+                    ScaleMode mode = job.toScaleMode();
+                    int height = (mode == ScaleMode.MAX_DIM) ? job.getMaxDim() : job.getHeight();
+                    int width = (mode == ScaleMode.MAX_DIM) ? job.getMaxDim() : job.getWidth();
+                    future = scaleAsync(batchJobInfo(batch, job), mode, height, width, metrics, 
+                                        new DeadlinePlanner( remainingMillis )).whenComplete((ScaleImageResult r, Throwable t) -> {
+                        synchronized (longestJob) {
+                            longestJob[0] = Math.max(longestJob[0], System.currentTimeMillis() - start);
                         }
-                    }
+                        window.release();
+                    });
                 }
+            } else if (timeLeft) {
+                getLogger().log("LambdaImageScaler::scaleBatch: bad job argument");
+                future = CompletableFuture.completedFuture( new ScaleImageResult() );
             }
-            finally {
-                if (imageInputStream != null) {
-                    try { imageInputStream.close(); } catch(IOException e) {}
-                }
+            if (future == null) {
+                result.getUnstarted().add( job );
             }
+            futures.add( future );
         }
-        return scaleOK;
+        for (CompletableFuture<ScaleImageResult> future : futures) {
+            String status = ScaleImageBatchResult.STATUS_NOT_STARTED;
+            String path = null;
+            if (future != null) {
+                ScaleImageResult jobResult = future.join();
+                status = jobResult.getStatus();
+                path = jobResult.getPath();
+            }
+            result.getStatus().add( status );
+            result.getPath().add( path );
+        }
+        getLogger().log("LambdaImageScaler::scaleBatch: " + jobs.size() + " jobs, " + result.getUnstarted().size() + " not started");
+        metrics.emit( getLogger() );
+        return result;
     }
     
     /**
@@ -197,27 +1177,156 @@ public class LambdaImageScaler {
      */
     public static boolean thumbnailScale( final ScaleImageByHeightWidth imageInfo, AbstractLoggerInterface logger ) {
         LambdaImageScaler scaleObj = new LambdaImageScaler(imageInfo, logger);
-        boolean scaleOK = scaleObj.thumbnailScaleLocal(imageInfo);
+        boolean scaleOK = scaleObj.thumbnailScaleLocal(imageInfo, null).isOK();
         return scaleOK;
     }
     
     public static boolean scaleImage( final ScaleImageByHeightWidth imageInfo, AbstractLoggerInterface logger ) {
         LambdaImageScaler scaleObj = new LambdaImageScaler( imageInfo, logger);
-        boolean scaleOK = scaleObj.scaleImageLocal(imageInfo);
+        boolean scaleOK = scaleObj.scaleImageLocal(imageInfo, null).isOK();
         return scaleOK;
     }
     
     public static boolean scaleImage( final ScaleImageByMaxDim imageInfo, AbstractLoggerInterface logger  ) {
         LambdaImageScaler scaleObj = new LambdaImageScaler( imageInfo, logger);
-        boolean scaleOK = scaleObj.scaleImageLocal(imageInfo);
+        boolean scaleOK = scaleObj.scaleImageLocal(imageInfo, null).isOK();
         return scaleOK;
     }
     
     public static boolean scaleImage( final ScaleImageByHeight imageInfo, AbstractLoggerInterface logger  ) {
         LambdaImageScaler scaleObj = new LambdaImageScaler( imageInfo, logger);
-        boolean scaleOK = scaleObj.scaleImageByHeightLocal(imageInfo);
+        boolean scaleOK = scaleObj.scaleImageByHeightLocal(imageInfo, null).isOK();
         return scaleOK;
     }
     
+    /**
+     * <p>
+     * The versions of thumbnailScale(), scaleImage() and cropScale() for a Lambda invocation with a time limit. The
+     * request is fitted into the time that is left (see DeadlinePlanner): the resize engine or the decode is degraded
+     * when the time is short, and a request that cannot be finished in time is stopped before the time limit.
+     * </p>
+     * 
+     * @param remainingMillis the time left in the invocation (e.g., Context.getRemainingTimeInMillis())
+     * @return the status (ok, failed or deadlineExceeded) and the path that was taken
+     */
+    public static ScaleImageResult thumbnailScale( final ScaleImageByHeightWidth imageInfo, LongSupplier remainingMillis, 
+                                                   AbstractLoggerInterface logger ) {
+        LambdaImageScaler scaleObj = new LambdaImageScaler(imageInfo, logger);
+        return scaleObj.thumbnailScaleLocal(imageInfo, remainingMillis);
+    }
+    
+    public static ScaleImageResult scaleImage( final ScaleImageByHeightWidth imageInfo, LongSupplier remainingMillis, 
+                                               AbstractLoggerInterface logger ) {
+        LambdaImageScaler scaleObj = new LambdaImageScaler( imageInfo, logger);
+        return scaleObj.scaleImageLocal(imageInfo, remainingMillis);
+    }
+    
+    public static ScaleImageResult scaleImage( final ScaleImageByMaxDim imageInfo, LongSupplier remainingMillis, 
+                                               AbstractLoggerInterface logger ) {
+        LambdaImageScaler scaleObj = new LambdaImageScaler( imageInfo, logger);
+        return scaleObj.scaleImageLocal(imageInfo, remainingMillis);
+    }
+    
+    public static ScaleImageResult scaleImage( final ScaleImageByHeight imageInfo, LongSupplier remainingMillis, 
+                                               AbstractLoggerInterface logger ) {
+        LambdaImageScaler scaleObj = new LambdaImageScaler( imageInfo, logger);
+        return scaleObj.scaleImageByHeightLocal(imageInfo, remainingMillis);
+    }
+    
+    public static ScaleImageResult cropScale( final ScaleImageCrop imageInfo, LongSupplier remainingMillis, 
+                                              AbstractLoggerInterface logger ) {
+        LambdaImageScaler scaleObj = new LambdaImageScaler( imageInfo, logger);
+        return scaleObj.cropScaleLocal(imageInfo, remainingMillis);
+    }
+    
+    /**
+     * <p>
+     * The asynchronous versions of thumbnailScale() and scaleImage(). The stages of the request run on the
+     * ImagePipelineExecutors, so a caller can submit many requests and the S3 transfers of some images overlap
+     * the scaling of others. The number of images in progress at the same time is bounded.
+     * </p>
+     * 
+     * @return a future that completes with true if the scale operation was OK, false otherwise
+     */
+    public static CompletableFuture<Boolean> thumbnailScaleAsync( final ScaleImageByHeightWidth imageInfo, AbstractLoggerInterface logger ) {
+        LambdaImageScaler scaleObj = new LambdaImageScaler( imageInfo, logger);
+        return scaleObj.scaleAsync(imageInfo, ScaleMode.THUMBNAIL, imageInfo.getHeight(), imageInfo.getWidth());
+    }
+    
+    public static CompletableFuture<Boolean> scaleImageAsync( final ScaleImageByHeightWidth imageInfo, AbstractLoggerInterface logger ) {
+        LambdaImageScaler scaleObj = new LambdaImageScaler( imageInfo, logger);
+        return scaleObj.scaleAsync(imageInfo, ScaleMode.HEIGHT_WIDTH, imageInfo.getHeight(), imageInfo.getWidth());
+    }
+    
+    public static CompletableFuture<Boolean> scaleImageAsync( final ScaleImageByMaxDim imageInfo, AbstractLoggerInterface logger ) {
+        LambdaImageScaler scaleObj = new LambdaImageScaler( imageInfo, logger);
+        return scaleObj.scaleAsync(imageInfo, ScaleMode.MAX_DIM, imageInfo.getMaxDim(), imageInfo.getMaxDim());
+    }
+    
+    public static CompletableFuture<Boolean> scaleImageAsync( final ScaleImageByHeight imageInfo, AbstractLoggerInterface logger ) {
+        LambdaImageScaler scaleObj = new LambdaImageScaler( imageInfo, logger);
+        return scaleObj.scaleAsync(imageInfo, ScaleMode.HEIGHT, imageInfo.getHeight(), 0);
+    }
+    
+    /**
+     * Crop an image and scale the cropped region to the height and width in the ScaleImageCrop object. Only the
+     * cropped region of the original is decoded.
+     * 
+     * @return true if the scaled image was written (or was up to date), false otherwise
+     */
+    public static boolean cropScale( final ScaleImageCrop imageInfo, AbstractLoggerInterface logger ) {
+        LambdaImageScaler scaleObj = new LambdaImageScaler( imageInfo, logger);
+        boolean scaleOK = scaleObj.cropScaleLocal(imageInfo, null).isOK();
+        return scaleOK;
+    }
+    
+    public static CompletableFuture<Boolean> cropScaleAsync( final ScaleImageCrop imageInfo, AbstractLoggerInterface logger ) {
+        CompletableFuture<Boolean> result = null;
+        if (imageInfo.hasValidArguments()) {
+            LambdaImageScaler scaleObj = new LambdaImageScaler( imageInfo, logger);
+            result = scaleObj.scaleAsync(imageInfo, ScaleMode.CROP, imageInfo.getHeight(), imageInfo.getWidth());
+        } else {
+            logger.log("LambdaImageScaler::cropScale: bad argument");
+            result = CompletableFuture.completedFuture( false );
+        }
+        return result;
+    }
+    
+    /**
+     * Scale the images in a batch, in one invocation (see scaleBatchLocal).
+     * 
+     * @param batch the jobs, with the S3 bucket and credentials for all of the jobs
+     * @param remainingMillis the time left in the invocation (e.g., Context.getRemainingTimeInMillis())
+     * @return the status of each job and the jobs that were not started
+     */
+    public static ScaleImageBatchResult scaleBatch( final ScaleImageBatch batch, LongSupplier remainingMillis, AbstractLoggerInterface logger ) {
+        LambdaImageScaler scaleObj = new LambdaImageScaler( batch, logger);
+        return scaleObj.scaleBatchLocal(batch, remainingMillis);
+    }
+    
+    /**
+     * Build several scaled versions of an image, downloading and decoding the original once.
+     * 
+     * @param imageInfo the original image and the list of renditions
+     * @return true if every rendition was written, false otherwise
+     */
+    public static boolean scaleRenditions( final ScaleImageRenditions imageInfo, AbstractLoggerInterface logger  ) {
+        LambdaImageScaler scaleObj = new LambdaImageScaler( imageInfo, logger);
+        boolean scaleOK = scaleObj.scaleRenditionsLocal(imageInfo, null).isOK();
+        return scaleOK;
+    }
+    
+    /**
+     * The version of scaleRenditions() for a Lambda invocation with a time limit (see scaleRenditionsLocal).
+     * 
+     * @param remainingMillis the time left in the invocation (e.g., Context.getRemainingTimeInMillis())
+     * @return the status (ok, failed or deadlineExceeded) and the path that was taken
+     */
+    public static ScaleImageResult scaleRenditions( final ScaleImageRenditions imageInfo, LongSupplier remainingMillis, 
+                                                    AbstractLoggerInterface logger ) {
+        LambdaImageScaler scaleObj = new LambdaImageScaler( imageInfo, logger);
+        return scaleObj.scaleRenditionsLocal(imageInfo, new DeadlinePlanner( remainingMillis ));
+    }
+    
 
 }
@@ -0,0 +1,386 @@
+/** \file
+ *
+ * Feb 21, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * <h3>
+ * LocalObjectCache
+ * </h3>
+ * <p>
+ * A cache of image files (the encoded bytes, as they are stored on S3) in the local file system. A Lambda container
+ * keeps its /tmp directory between warm invocations, so an image that is read again is read from /tmp rather than
+ * from S3. A cached file is read through a memory mapped buffer (see ByteBufferImageInputStream), so the file is not
+ * copied onto the heap, and the cache does not hold decoded rasters in memory (compare DecodedImageCache).
+ * </p>
+ * <p>
+ * Files are stored with the S3 ETag of the object. S3Service validates a cached file with a conditional GET
+ * (If-None-Match), so a replaced object is never read from the cache.
+ * </p>
+ * <p>
+ * The total size of the files is bounded and the least recently used files are deleted. A file that is deleted
+ * while a reader has it mapped keeps its space in the file system until the mapping is garbage collected, so for a
+ * short time the files in /tmp can take more than the bound; the bound should leave room for the images that are
+ * being read.
+ * </p>
+ * <p>
+ * A file is written to a temporary file, forced to the disk and then renamed, so a process that fails during a write
+ * never leaves a partial file under a cache name. S3Service adds files with putLater(), which writes the file on the
+ * write executor (the image pipeline I/O executor), after the image has been read, so a request does not wait for the
+ * disk. When the cache starts, it rebuilds its index from the directory (oldest files first) and deletes any
+ * temporary files.
+ * </p>
+ * <p>
+ * The default cache is in IMAGE_DISK_CACHE_DIR (the java.io.tmpdir/image-cache directory by default) with a size
+ * bound of IMAGE_DISK_CACHE_BYTES. The default bound is DEFAULT_MAX_BYTES when the code is running on AWS Lambda and
+ * 0 (no cache) otherwise.
+ * </p>
+ * <p>
+ * Feb 21, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class LocalObjectCache {
+    public final static long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+    private final static String FILE_SUFFIX = ".img";
+    private final static String TEMP_SUFFIX = ".tmp";
+
+    private final static LocalObjectCache mCache = new LocalObjectCache( defaultDirectory(), defaultMaxBytes() );
+
+    /**
+     * A cached file
+     */
+    private static class Entry {
+        final File mFile;
+        final String mETag;
+        final long mSize;
+
+        Entry(File file, String eTag, long size) {
+            this.mFile = file;
+            this.mETag = eTag;
+            this.mSize = size;
+        }
+    }
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    /** the cached files, keyed by the hash of the bucket and path, in least recently used order */
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long mBytes = 0;
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mEvictions = 0;
+    private long mWriteErrors = 0;
+    private volatile Executor mWriteExecutor = null;
+
+    /**
+     * @param directory the cache directory. It is created if it does not exist.
+     * @param maxBytes the bound on the total size of the cached files. 0 turns the cache off.
+     */
+    public LocalObjectCache( File directory, long maxBytes ) {
+        this.mDirectory = directory;
+        this.mMaxBytes = maxBytes;
+        if (maxBytes > 0) {
+            loadIndex();
+        }
+    }
+
+    /**
+     * @return the process wide cache
+     */
+    public static LocalObjectCache getCache() {
+        return mCache;
+    }
+
+    private static File defaultDirectory() {
+        String dir = System.getProperty("IMAGE_DISK_CACHE_DIR");
+        if (dir == null) {
+            dir = System.getenv("IMAGE_DISK_CACHE_DIR");
+        }
+        return (dir != null) ? new File( dir ) : new File( System.getProperty("java.io.tmpdir"), "image-cache" );
+    }
+
+    private static long defaultMaxBytes() {
+        boolean onLambda = System.getenv("AWS_LAMBDA_FUNCTION_NAME") != null;
+        return S3TransferSettings.getLong("IMAGE_DISK_CACHE_BYTES", onLambda ? DEFAULT_MAX_BYTES : 0);
+    }
+
+    private static String sha256Hex(String str) {
+        String hex = null;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] digest = md.digest( str.getBytes(StandardCharsets.UTF_8) );
+            StringBuilder builder = new StringBuilder();
+            for (byte b : digest) {
+                builder.append( String.format("%02x", b) );
+            }
+            hex = builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException( e );
+        }
+        return hex;
+    }
+
+    /**
+     * The cache key is a hash of the bucket and path, so any S3 path can be used in a file name.
+     */
+    private static String key(String s3Bucket, String s3Path) {
+        return sha256Hex( s3Bucket + "|" + s3Path );
+    }
+
+    /**
+     * An ETag is a hex MD5 hash (with a -N suffix for a multipart upload), so it can be part of a file name. Any
+     * other characters are replaced.
+     */
+    private static String fileETag(String eTag) {
+        return eTag.replaceAll("[^0-9A-Za-z-]", "");
+    }
+
+    /**
+     * @return the executor for putLater(): the image pipeline I/O executor, unless another executor was set
+     */
+    public Executor getWriteExecutor() {
+        Executor executor = mWriteExecutor;
+        return (executor != null) ? executor : ImagePipelineExecutors.getIOExecutor();
+    }
+
+    /**
+     * @param writeExecutor the executor for putLater() (for example, Runnable::run in a test), or null for the image
+     *        pipeline I/O executor
+     */
+    public void setWriteExecutor(Executor writeExecutor) {
+        this.mWriteExecutor = writeExecutor;
+    }
+
+    public File getDirectory() { return mDirectory; }
+    public long getMaxBytes() { return mMaxBytes; }
+    public boolean isEnabled() { return mMaxBytes > 0; }
+
+    public synchronized int size() { return mEntries.size(); }
+    public synchronized long getBytes() { return mBytes; }
+    public synchronized long getHits() { return mHits; }
+    public synchronized long getMisses() { return mMisses; }
+    public synchronized long getEvictions() { return mEvictions; }
+    public synchronized long getWriteErrors() { return mWriteErrors; }
+
+    /**
+     * Build the index from the files in the cache directory, oldest first, and delete temporary files left by a
+     * process that failed during a write.
+     */
+    private synchronized void loadIndex() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    return Long.compare(a.lastModified(), b.lastModified());
+                }
+            });
+            for (File file : files) {
+                String name = file.getName();
+                int sep = name.indexOf('_');
+                if (name.endsWith( FILE_SUFFIX ) && sep > 0) {
+                    String eTag = name.substring(sep + 1, name.length() - FILE_SUFFIX.length());
+                    mEntries.put( name.substring(0, sep), new Entry(file, eTag, file.length()) );
+                    mBytes += file.length();
+                } else if (name.endsWith( TEMP_SUFFIX )) {
+                    file.delete();
+                }
+            }
+            evict( 0 );
+        }
+    }
+
+    /**
+     * Delete least recently used files until there is room for newBytes.
+     */
+    private void evict(long newBytes) {
+        Iterator<Map.Entry<String, Entry>> iter = mEntries.entrySet().iterator();
+        while (iter.hasNext() && mBytes + newBytes > mMaxBytes) {
+            Entry eldest = iter.next().getValue();
+            iter.remove();
+            mBytes -= eldest.mSize;
+            mEvictions++;
+            // a file that is mapped by a reader can be deleted; the mapping stays valid, and the file keeps its
+            // disk space until the mapping is garbage collected
+            eldest.mFile.delete();
+        }
+    }
+
+    /**
+     * @return the ETag of the cached copy of an S3 object, or null if the object is not in the cache
+     */
+    public synchronized String getETag(String s3Bucket, String s3Path) {
+        String eTag = null;
+        if (isEnabled()) {
+            Entry entry = mEntries.get( key(s3Bucket, s3Path) );
+            if (entry != null) {
+                eTag = entry.mETag;
+            }
+        }
+        return eTag;
+    }
+
+    /**
+     * Open the cached copy of an S3 object with a memory mapped buffer.
+     *
+     * @param eTag the ETag that S3 reported for the object (see getETag())
+     * @return an ImageInputStream for the cached file, or null if the cached file does not have this ETag or
+     *         cannot be read.
+     */
+    public ImageInputStream open(String s3Bucket, String s3Path, String eTag) {
+        ImageInputStream imageStream = null;
+        Entry entry = null;
+        synchronized (this) {
+            entry = mEntries.get( key(s3Bucket, s3Path) );
+            if (entry != null && entry.mETag.equals( fileETag( eTag ) )) {
+                mHits++;
+            } else {
+                entry = null;
+                mMisses++;
+            }
+        }
+        if (entry != null) {
+            try (RandomAccessFile file = new RandomAccessFile(entry.mFile, "r")) {
+                MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+                imageStream = new ByteBufferImageInputStream( buffer );
+            } catch (IOException e) {
+                // the file was evicted (or removed by something else)
+                remove(s3Bucket, s3Path);
+            }
+        }
+        return imageStream;
+    }
+
+    /**
+     * Remove the cached copy of an S3 object.
+     */
+    public synchronized void remove(String s3Bucket, String s3Path) {
+        Entry entry = mEntries.remove( key(s3Bucket, s3Path) );
+        if (entry != null) {
+            mBytes -= entry.mSize;
+            entry.mFile.delete();
+        }
+    }
+
+    /**
+     * Add an S3 object to the cache. The data is written to a temporary file, which is renamed when the write is
+     * complete.
+     *
+     * @param eTag the S3 ETag of the object
+     * @param data the object data
+     * @param length the number of bytes of data
+     * @return true if the object was added
+     */
+    public boolean put(String s3Bucket, String s3Path, String eTag, byte[] data, int length) {
+        boolean added = false;
+        if (isEnabled() && eTag != null && length <= mMaxBytes) {
+            String key = key(s3Bucket, s3Path);
+            File file = new File(mDirectory, key + "_" + fileETag( eTag ) + FILE_SUFFIX);
+            File tempFile = null;
+            try {
+                mDirectory.mkdirs();
+                tempFile = File.createTempFile(key, TEMP_SUFFIX, mDirectory);
+                try (RandomAccessFile raf = new RandomAccessFile(tempFile, "rw")) {
+                    FileChannel channel = raf.getChannel();
+                    ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+                    while (buffer.hasRemaining()) {
+                        channel.write( buffer );
+                    }
+                    channel.force( true );
+                }
+                synchronized (this) {
+                    remove(s3Bucket, s3Path);
+                    evict( length );
+                    try {
+                        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    } catch (AtomicMoveNotSupportedException e) {
+                        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    mEntries.put(key, new Entry(file, fileETag( eTag ), length));
+                    mBytes += length;
+                    added = true;
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    mWriteErrors++;
+                }
+                if (tempFile != null) {
+                    tempFile.delete();
+                }
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Add an S3 object to the cache on the write executor (see put()), so the caller does not wait for the file to be
+     * written and forced to the disk.
+     *
+     * @param eTag the S3 ETag of the object
+     * @param data the object data. It must not be changed until done is run.
+     * @param length the number of bytes of data
+     * @param done run when data is no longer needed (for example, to return it to a BufferPool)
+     */
+    public void putLater(final String s3Bucket, final String s3Path, final String eTag, final byte[] data, final int length,
+                         final Runnable done) {
+        boolean submitted = false;
+        if (isEnabled() && eTag != null && length <= mMaxBytes) {
+            try {
+                getWriteExecutor().execute(() -> {
+                    try {
+                        put(s3Bucket, s3Path, eTag, data, length);
+                    } finally {
+                        done.run();
+                    }
+                });
+                submitted = true;
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    mWriteErrors++;
+                }
+            }
+        }
+        if (! submitted) {
+            done.run();
+        }
+    }
+
+    /**
+     * @return a one line summary of the cache statistics, for the log
+     */
+    public synchronized String getSummary() {
+        return "LocalObjectCache: hits = " + mHits + ", misses = " + mMisses + ", evictions = " + mEvictions +
+               ", files = " + mEntries.size() + ", bytes = " + mBytes + ", write errors = " + mWriteErrors;
+    }
+
+}
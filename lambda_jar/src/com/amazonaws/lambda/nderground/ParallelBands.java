@@ -0,0 +1,103 @@
+/** \file
+ *
+ * Feb 12, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * <h3>
+ * ParallelBands
+ * </h3>
+ * <p>
+ * Run an image operation on horizontal bands of rows, in parallel, on a fork-join pool. An AWS Lambda function
+ * with more memory is also given more virtual CPUs (two or more at 3 Gb). The image scaling code is single threaded,
+ * so without this the extra CPUs are idle.
+ * </p>
+ * <p>
+ * The number of bands is limited so that each band has at least a minimum number of pixels. Small images and
+ * single core containers run as a single band on the calling thread.
+ * </p>
+ * <p>
+ * Feb 12, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class ParallelBands {
+    /** the minimum number of pixels in a band. Smaller images are not split. */
+    public final static int MIN_BAND_PIXELS = 64 * 1024;
+
+    private final static ForkJoinPool mPool = new ForkJoinPool( Runtime.getRuntime().availableProcessors() );
+
+    /**
+     * An operation on the rows y0 (inclusive) to y1 (exclusive). Different bands may run at the same time,
+     * so a band task must only write to its own rows.
+     */
+    public interface BandTask {
+        public void run(int y0, int y1);
+    }
+
+    private static class BandAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final BandTask mTask;
+        private final int mY0;
+        private final int mY1;
+        private final int mBandRows;
+
+        BandAction(BandTask task, int y0, int y1, int bandRows) {
+            this.mTask = task;
+            this.mY0 = y0;
+            this.mY1 = y1;
+            this.mBandRows = bandRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (mY1 - mY0 <= mBandRows) {
+                mTask.run(mY0, mY1);
+            } else {
+                int numBands = (mY1 - mY0 + mBandRows - 1) / mBandRows;
+                int mid = mY0 + (numBands / 2) * mBandRows;
+                invokeAll( new BandAction(mTask, mY0, mid, mBandRows), new BandAction(mTask, mid, mY1, mBandRows) );
+            }
+        }
+    }
+
+    /**
+     * @return the number of threads available for parallel bands
+     */
+    public static int getParallelism() {
+        return mPool.getParallelism();
+    }
+
+    /**
+     * <p>
+     * Run a band task over rows 0 to numRows. The rows are split into at most maxBands bands. The bands are run
+     * on the fork-join pool, which has one thread per CPU.
+     * </p>
+     *
+     * @param numRows the number of rows
+     * @param rowWidth the number of pixels in a row (used to limit the number of bands for small images)
+     * @param maxBands the maximum number of bands. A value of 1 runs the task on the calling thread. Callers
+     *        normally pass getParallelism(), so a single core container does not split the image.
+     * @param task the operation to run on each band.
+     */
+    public static void forEachBand(int numRows, int rowWidth, int maxBands, BandTask task) {
+        int minBandRows = Math.max(1, MIN_BAND_PIXELS / Math.max(1, rowWidth));
+        int numBands = Math.min(maxBands, numRows / minBandRows);
+        if (numBands <= 1) {
+            task.run(0, numRows);
+        } else {
+            int bandRows = (numRows + numBands - 1) / numBands;
+            mPool.invoke( new BandAction(task, 0, numRows, bandRows) );
+        }
+    }
+
+}
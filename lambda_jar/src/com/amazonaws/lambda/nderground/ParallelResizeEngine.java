@@ -0,0 +1,366 @@
+/** \file
+ *
+ * Feb 12, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.ImagingOpException;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+import org.imgscalr.Scalr;
+
+/**
+ * <h3>
+ * ParallelResizeEngine
+ * </h3>
+ * <p>
+ * A multi-core ResizeEngine. The resize follows the same steps as Scalr.resize() for each Scalr.Method
+ * (nearest neighbor for SPEED, bilinear for BALANCED and incremental bicubic steps for QUALITY and ULTRA_QUALITY),
+ * but each step is computed by an interpolation kernel in this class. The destination image is split into
+ * horizontal bands (see ParallelBands) and each band is computed from the source rows that its interpolation
+ * filter needs.
+ * </p>
+ * <p>
+ * Every destination pixel is computed from the same source pixels and weights, no matter how the image is
+ * split into bands, so the result is the same, pixel for pixel, as a single threaded resize. (Java2D drawImage()
+ * does not have this property, which is why Graphics2D is not used here.)
+ * </p>
+ * <p>
+ * Feb 12, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class ParallelResizeEngine implements ResizeEngine {
+    private enum Interpolation { NEAREST, BILINEAR, BICUBIC }
+
+    /** the "a" value for the cubic convolution kernel (the same value used by Java2D) */
+    private final static double CUBIC_A = -0.5;
+
+    private final Scalr.Method mMethod;
+    private final int mMaxBands;
+
+    /**
+     * @param method the Scalr.Method that selects the resize steps. Method.AUTOMATIC selects the method the same
+     *        way that Scalr does, from the size of the result.
+     */
+    public ParallelResizeEngine( Scalr.Method method ) {
+        this( method, ParallelBands.getParallelism() );
+    }
+
+    /**
+     * @param method the Scalr.Method that selects the resize steps.
+     * @param maxBands the maximum number of bands the image is split into. A value of 1 is a single threaded resize.
+     */
+    public ParallelResizeEngine( Scalr.Method method, int maxBands ) {
+        this.mMethod = method;
+        this.mMaxBands = maxBands;
+    }
+
+    public Scalr.Method getMethod() {
+        return mMethod;
+    }
+
+    @Override
+    public String getName() {
+        return "parallel-" + mMethod.name().toLowerCase();
+    }
+
+
+    /**
+     * Source pixel indices and weights for each destination column (or row).
+     */
+    private static class Taps {
+        final int mNumTaps;
+        final int[] mIndex;
+        final float[] mWeight;
+
+        Taps(int srcSize, int dstSize, Interpolation interpolation) {
+            mNumTaps = interpolation == Interpolation.NEAREST ? 1 : (interpolation == Interpolation.BILINEAR ? 2 : 4);
+            mIndex = new int[ dstSize * mNumTaps ];
+            mWeight = new float[ dstSize * mNumTaps ];
+            double scale = (double)srcSize / (double)dstSize;
+            for (int d = 0; d < dstSize; d++) {
+                int ix = d * mNumTaps;
+                if (interpolation == Interpolation.NEAREST) {
+                    mIndex[ix] = clamp( (int)Math.floor( (d + 0.5) * scale ), srcSize );
+                    mWeight[ix] = 1.0f;
+                } else {
+                    double s = (d + 0.5) * scale - 0.5;
+                    int i0 = (int)Math.floor( s );
+                    double f = s - i0;
+                    if (interpolation == Interpolation.BILINEAR) {
+                        mIndex[ix] = clamp( i0, srcSize );
+                        mIndex[ix + 1] = clamp( i0 + 1, srcSize );
+                        mWeight[ix] = (float)(1.0 - f);
+                        mWeight[ix + 1] = (float)f;
+                    } else {
+                        for (int t = 0; t < 4; t++) {
+                            mIndex[ix + t] = clamp( i0 - 1 + t, srcSize );
+                            mWeight[ix + t] = (float)cubic( f - (t - 1) );
+                        }
+                    }
+                }
+            }
+        }
+
+        private static int clamp(int i, int size) {
+            return Math.max(0, Math.min(size - 1, i));
+        }
+
+        private static double cubic(double x) {
+            double ax = Math.abs(x);
+            double w = 0;
+            if (ax <= 1) {
+                w = ((CUBIC_A + 2) * ax - (CUBIC_A + 3)) * ax * ax + 1;
+            } else if (ax < 2) {
+                w = ((CUBIC_A * ax - 5 * CUBIC_A) * ax + 8 * CUBIC_A) * ax - 4 * CUBIC_A;
+            }
+            return w;
+        }
+
+        /** the smallest source index used by destination elements d0 (inclusive) to d1 (exclusive) */
+        int minIndex(int d0, int d1) {
+            int min = Integer.MAX_VALUE;
+            for (int i = d0 * mNumTaps; i < d1 * mNumTaps; i++) {
+                min = Math.min(min, mIndex[i]);
+            }
+            return min;
+        }
+
+        /** the largest source index used by destination elements d0 (inclusive) to d1 (exclusive) */
+        int maxIndex(int d0, int d1) {
+            int max = 0;
+            for (int i = d0 * mNumTaps; i < d1 * mNumTaps; i++) {
+                max = Math.max(max, mIndex[i]);
+            }
+            return max;
+        }
+    }
+
+
+    /**
+     * If the image is a TYPE_INT_RGB or TYPE_INT_ARGB image that is not a sub-image, return the pixel array.
+     * Otherwise return null.
+     */
+    protected static int[] directPixels(BufferedImage image) {
+        int[] pixels = null;
+        int type = image.getType();
+        if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB) {
+            WritableRaster raster = image.getRaster();
+            if (raster.getDataBuffer() instanceof DataBufferInt &&
+                raster.getDataBuffer().getNumBanks() == 1 &&
+                raster.getSampleModel() instanceof SinglePixelPackedSampleModel &&
+                ((SinglePixelPackedSampleModel)raster.getSampleModel()).getScanlineStride() == image.getWidth() &&
+                raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0) {
+                pixels = ((DataBufferInt)raster.getDataBuffer()).getData();
+            }
+        }
+        return pixels;
+    }
+
+
+    private static int toByte(float v) {
+        int i = (int)(v + 0.5f);
+        return i < 0 ? 0 : (i > 255 ? 255 : i);
+    }
+
+
+    /**
+     * Read a row of the image as ARGB pixels. TYPE_3BYTE_BGR and TYPE_4BYTE_ABGR images (the types usually
+     * returned by the JPEG and PNG readers) are read directly from the raster data. Other image types are
+     * read with getRGB().
+     */
+    protected static void readRow(BufferedImage image, int y, int[] row, int offset) {
+        int width = image.getWidth();
+        int type = image.getType();
+        WritableRaster raster = image.getRaster();
+        boolean direct = (type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_4BYTE_ABGR) &&
+                         raster.getDataBuffer() instanceof DataBufferByte &&
+                         raster.getSampleModel() instanceof ComponentSampleModel &&
+                         raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0;
+        if (direct) {
+            byte[] data = ((DataBufferByte)raster.getDataBuffer()).getData();
+            int stride = ((ComponentSampleModel)raster.getSampleModel()).getScanlineStride();
+            int i = y * stride;
+            if (type == BufferedImage.TYPE_3BYTE_BGR) {
+                for (int x = 0; x < width; x++, i += 3) {
+                    row[offset + x] = 0xff000000 | ((data[i + 2] & 0xff) << 16) | ((data[i + 1] & 0xff) << 8) | (data[i] & 0xff);
+                }
+            } else {
+                for (int x = 0; x < width; x++, i += 4) {
+                    row[offset + x] = ((data[i] & 0xff) << 24) | ((data[i + 3] & 0xff) << 16) | ((data[i + 2] & 0xff) << 8) | (data[i + 1] & 0xff);
+                }
+            }
+        } else {
+            image.getRGB(0, y, width, 1, row, offset, width);
+        }
+    }
+
+
+    /**
+     * One resize step, from the source to a new width x height image, using the interpolation.
+     */
+    private BufferedImage scaleStep(final BufferedImage src, final int width, final int height, Interpolation interpolation) {
+        final int srcWidth = src.getWidth();
+        final boolean hasAlpha = src.getColorModel().hasAlpha();
+        final BufferedImage dst = new BufferedImage(width, height, hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        final int[] dstPixels = ((DataBufferInt)dst.getRaster().getDataBuffer()).getData();
+        final int[] srcPixels = directPixels( src );
+        final Taps xTaps = new Taps( srcWidth, width, interpolation );
+        final Taps yTaps = new Taps( src.getHeight(), height, interpolation );
+        ParallelBands.forEachBand(height, width, mMaxBands, (y0, y1) -> {
+            // the source rows needed by this band
+            int sy0 = yTaps.minIndex(y0, y1);
+            int sy1 = yTaps.maxIndex(y0, y1) + 1;
+            // rowOffset[sy - sy0] is the offset of source row sy in the rows array
+            int[] rowOffset = new int[ sy1 - sy0 ];
+            int[] rows = srcPixels;
+            if (rows != null) {
+                for (int sy = sy0; sy < sy1; sy++) {
+                    rowOffset[ sy - sy0 ] = sy * srcWidth;
+                }
+            } else {
+                // convert only the source rows that are used by the filter taps
+                Arrays.fill(rowOffset, -1);
+                int numRows = 0;
+                for (int i = y0 * yTaps.mNumTaps; i < y1 * yTaps.mNumTaps; i++) {
+                    int r = yTaps.mIndex[i] - sy0;
+                    if (rowOffset[r] < 0) {
+                        rowOffset[r] = 0;
+                        numRows++;
+                    }
+                }
+                rows = new int[ numRows * srcWidth ];
+                int offset = 0;
+                for (int r = 0; r < rowOffset.length; r++) {
+                    if (rowOffset[r] == 0) {
+                        readRow(src, sy0 + r, rows, offset);
+                        rowOffset[r] = offset;
+                        offset += srcWidth;
+                    }
+                }
+            }
+            int nx = xTaps.mNumTaps;
+            int ny = yTaps.mNumTaps;
+            for (int y = y0; y < y1; y++) {
+                int dstOffset = y * width;
+                for (int x = 0; x < width; x++) {
+                    float a = 0, r = 0, g = 0, b = 0;
+                    for (int ty = 0; ty < ny; ty++) {
+                        float wy = yTaps.mWeight[y * ny + ty];
+                        int rowStart = rowOffset[ yTaps.mIndex[y * ny + ty] - sy0 ];
+                        for (int tx = 0; tx < nx; tx++) {
+                            float w = wy * xTaps.mWeight[x * nx + tx];
+                            int p = rows[ rowStart + xTaps.mIndex[x * nx + tx] ];
+                            if (hasAlpha) {
+                                // interpolate with premultiplied alpha
+                                float pa = (p >>> 24) * w;
+                                a += pa;
+                                r += ((p >> 16) & 0xff) * pa;
+                                g += ((p >> 8) & 0xff) * pa;
+                                b += (p & 0xff) * pa;
+                            } else {
+                                r += ((p >> 16) & 0xff) * w;
+                                g += ((p >> 8) & 0xff) * w;
+                                b += (p & 0xff) * w;
+                            }
+                        }
+                    }
+                    int pixel;
+                    if (hasAlpha) {
+                        int alpha = toByte( a );
+                        if (alpha > 0) {
+                            pixel = (alpha << 24) | (toByte(r / a) << 16) | (toByte(g / a) << 8) | toByte(b / a);
+                        } else {
+                            pixel = 0;
+                        }
+                    } else {
+                        pixel = 0xff000000 | (toByte(r) << 16) | (toByte(g) << 8) | toByte(b);
+                    }
+                    dstPixels[ dstOffset + x ] = pixel;
+                }
+            }
+        });
+        return dst;
+    }
+
+
+    /**
+     * The Scalr method selection for Method.AUTOMATIC: the method is picked from the scaled image
+     * width (for a landscape image) or height (for a portrait image).
+     */
+    protected static Scalr.Method determineMethod(int width, int height, float ratio) {
+        int length = (ratio <= 1) ? width : height;
+        Scalr.Method method = Scalr.Method.SPEED;
+        if (length <= Scalr.THRESHOLD_QUALITY_BALANCED) {
+            method = Scalr.Method.QUALITY;
+        } else if (length <= Scalr.THRESHOLD_BALANCED_SPEED) {
+            method = Scalr.Method.BALANCED;
+        }
+        return method;
+    }
+
+
+    /**
+     * Reduce the image size in steps (by 1/2 for QUALITY and 1/7 for ULTRA_QUALITY), as Scalr does.
+     */
+    private BufferedImage scaleIncrementally(BufferedImage image, int width, int height, int divisor) {
+        BufferedImage current = image;
+        int currentWidth = image.getWidth();
+        int currentHeight = image.getHeight();
+        do {
+            if (currentWidth > width) {
+                currentWidth -= Math.max(1, currentWidth / divisor);
+                currentWidth = Math.max(currentWidth, width);
+            }
+            if (currentHeight > height) {
+                currentHeight -= Math.max(1, currentHeight / divisor);
+                currentHeight = Math.max(currentHeight, height);
+            }
+            BufferedImage next = scaleStep(current, currentWidth, currentHeight, Interpolation.BICUBIC);
+            if (current != image) {
+                current.flush();
+            }
+            current = next;
+        } while (currentWidth != width || currentHeight != height);
+        return current;
+    }
+
+
+    @Override
+    public BufferedImage resize(BufferedImage image, int width, int height) throws ImagingOpException {
+        if (width <= 0 || height <= 0) {
+            throw new ImagingOpException("ParallelResizeEngine: bad size " + width + " x " + height);
+        }
+        Scalr.Method method = getMethod();
+        if (method == Scalr.Method.AUTOMATIC) {
+            float ratio = (float)image.getHeight() / (float)image.getWidth();
+            method = determineMethod(width, height, ratio);
+        }
+        BufferedImage scaledImage = null;
+        if (method == Scalr.Method.SPEED) {
+            scaledImage = scaleStep(image, width, height, Interpolation.NEAREST);
+        } else if (method == Scalr.Method.BALANCED) {
+            scaledImage = scaleStep(image, width, height, Interpolation.BILINEAR);
+        } else if (width > image.getWidth() || height > image.getHeight()) {
+            // scaling up in some dimension: a single bicubic step
+            scaledImage = scaleStep(image, width, height, Interpolation.BICUBIC);
+        } else {
+            int divisor = (method == Scalr.Method.ULTRA_QUALITY) ? 7 : 2;
+            scaledImage = scaleIncrementally(image, width, height, divisor);
+        }
+        return scaledImage;
+    }
+
+}
@@ -0,0 +1,190 @@
+/** \file
+ *
+ * Feb 14, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * <h3>
+ * PixelFormats
+ * </h3>
+ * <p>
+ * Convert images to the pixel layouts that the resize engines and the image encoders handle fastest.
+ * </p>
+ * <p>
+ * The image readers return TYPE_3BYTE_BGR, TYPE_BYTE_GRAY, indexed (GIF and some PNG) or TYPE_CUSTOM images. Java2D
+ * (which Scalr uses) has fast loops for TYPE_INT_RGB and TYPE_INT_ARGB, and uses slow generic loops for many of the
+ * other types. normalize() converts a decoded image, once, to TYPE_INT_RGB, or to TYPE_INT_ARGB if the image
+ * actually has transparent pixels. An image with an alpha channel where every pixel is opaque is converted to
+ * TYPE_INT_RGB, so the scaled images are also TYPE_INT_RGB.
+ * </p>
+ * <p>
+ * encodeReady() returns an image that the ImageIO writer for an image type can encode without another conversion.
+ * The JPEG writer cannot write an image with alpha, so transparent pixels are composited on a white background.
+ * </p>
+ * <p>
+ * Feb 14, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class PixelFormats {
+    private final static DirectColorModel mRGBColorModel = new DirectColorModel(24, 0x00ff0000, 0x0000ff00, 0x000000ff);
+
+    /**
+     * @return true if the image is TYPE_INT_RGB or TYPE_INT_ARGB and its pixel array can be read directly.
+     */
+    public static boolean isNormalized(BufferedImage image) {
+        return ParallelResizeEngine.directPixels( image ) != null;
+    }
+
+
+    /**
+     * Check whether an image has any pixels that are not opaque. This is not the same as checking the color model:
+     * PNG images often have an alpha channel where every pixel is opaque.
+     *
+     * @param image the image to check
+     * @return true if the image has at least one pixel with an alpha value less than 255
+     */
+    public static boolean hasAlpha(BufferedImage image) {
+        boolean alpha = false;
+        if (image.getColorModel().hasAlpha()) {
+            int width = image.getWidth();
+            int[] pixels = ParallelResizeEngine.directPixels( image );
+            if (pixels != null) {
+                for (int i = 0; i < pixels.length && !alpha; i++) {
+                    alpha = (pixels[i] >>> 24) != 0xff;
+                }
+            } else {
+                WritableRaster alphaRaster = image.getAlphaRaster();
+                int[] row = new int[ width ];
+                int maxAlpha = (1 << image.getColorModel().getComponentSize( image.getColorModel().getNumComponents() - 1 )) - 1;
+                for (int y = 0; y < image.getHeight() && !alpha; y++) {
+                    if (alphaRaster != null) {
+                        alphaRaster.getSamples(0, y, width, 1, 0, row);
+                        for (int x = 0; x < width && !alpha; x++) {
+                            alpha = row[x] != maxAlpha;
+                        }
+                    } else {
+                        // e.g., an indexed image with a transparent color
+                        image.getRGB(0, y, width, 1, row, 0, width);
+                        for (int x = 0; x < width && !alpha; x++) {
+                            alpha = (row[x] >>> 24) != 0xff;
+                        }
+                    }
+                }
+            }
+        }
+        return alpha;
+    }
+
+
+    /**
+     * Return a TYPE_INT_RGB view of a TYPE_INT_ARGB image. The view shares the pixel array of the image, so no pixels
+     * are copied. The alpha byte of each pixel is ignored.
+     */
+    private static BufferedImage opaqueView(BufferedImage image) {
+        DataBufferInt dataBuffer = (DataBufferInt)image.getRaster().getDataBuffer();
+        int width = image.getWidth();
+        WritableRaster raster = Raster.createPackedRaster(dataBuffer, width, image.getHeight(), width, mRGBColorModel.getMasks(), null);
+        return new BufferedImage(mRGBColorModel, raster, false, null);
+    }
+
+
+    /**
+     * Copy an image into a new TYPE_INT_RGB or TYPE_INT_ARGB image. TYPE_3BYTE_BGR and TYPE_4BYTE_ABGR images are
+     * copied directly from the raster arrays. Other image types are drawn with Java2D.
+     */
+    private static BufferedImage convert(final BufferedImage image, boolean alpha) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        BufferedImage intImage = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        int type = image.getType();
+        if (type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_4BYTE_ABGR) {
+            final int[] pixels = ((DataBufferInt)intImage.getRaster().getDataBuffer()).getData();
+            ParallelBands.forEachBand(height, width, ParallelBands.getParallelism(), (y0, y1) -> {
+                for (int y = y0; y < y1; y++) {
+                    ParallelResizeEngine.readRow(image, y, pixels, y * width);
+                }
+            });
+        } else {
+            Graphics2D g = intImage.createGraphics();
+            try {
+                g.drawImage(image, 0, 0, null);
+            } finally {
+                g.dispose();
+            }
+        }
+        return intImage;
+    }
+
+
+    /**
+     * Convert an image to TYPE_INT_RGB or, if the image has transparent pixels, to TYPE_INT_ARGB.
+     *
+     * @param image the image to convert (usually a decoded image)
+     * @return the image if it is already TYPE_INT_RGB, or TYPE_INT_ARGB with transparent pixels. Otherwise
+     *         a new image (or, for an opaque TYPE_INT_ARGB image, a TYPE_INT_RGB view of the same pixels).
+     */
+    public static BufferedImage normalize(BufferedImage image) {
+        BufferedImage normalized = image;
+        boolean alpha = hasAlpha( image );
+        if (isNormalized( image )) {
+            if (image.getType() == BufferedImage.TYPE_INT_ARGB && !alpha) {
+                normalized = opaqueView( image );
+            }
+        } else {
+            normalized = convert( image, alpha );
+        }
+        return normalized;
+    }
+
+
+    /**
+     * @return true if the image type (the ImageIO format name) cannot store alpha.
+     */
+    public static boolean isOpaqueFormat(String imageType) {
+        String type = (imageType != null) ? imageType.toLowerCase() : "";
+        return type.equals("jpeg") || type.equals("jpg") || type.equals("bmp") || type.equals("wbmp");
+    }
+
+
+    /**
+     * Return an image that can be encoded as imageType without another conversion in the ImageIO writer.
+     *
+     * @param image the image to encode
+     * @param imageType the ImageIO format name (e.g., jpeg, png)
+     * @return a TYPE_INT_RGB image for a format without alpha (transparent pixels are composited on white),
+     *         otherwise the normalized image.
+     */
+    public static BufferedImage encodeReady(BufferedImage image, String imageType) {
+        BufferedImage encodeImage = normalize( image );
+        if (isOpaqueFormat( imageType ) && encodeImage.getType() == BufferedImage.TYPE_INT_ARGB) {
+            BufferedImage rgbImage = new BufferedImage(encodeImage.getWidth(), encodeImage.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = rgbImage.createGraphics();
+            try {
+                g.drawImage(encodeImage, 0, 0, Color.WHITE, null);
+            } finally {
+                g.dispose();
+            }
+            if (encodeImage != image) {
+                encodeImage.flush();
+            }
+            encodeImage = rgbImage;
+        }
+        return encodeImage;
+    }
+
+}
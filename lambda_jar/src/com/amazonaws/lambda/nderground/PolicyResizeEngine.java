@@ -0,0 +1,62 @@
+/** \file
+ *
+ * Mar 4, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ImagingOpException;
+
+/**
+ * <h3>
+ * PolicyResizeEngine
+ * </h3>
+ * <p>
+ * A ResizeEngine for a request with a quality hint and no resize engine. Each resize is done by the engine that the
+ * ImageService ScalingPolicy picks for the hint and for the sizes of that resize, so the renditions of an image,
+ * which are scaled from each other at different ratios, can use different engines. ImageService.resize() asks the
+ * policy for the engine (select()) before the resize, so that the metrics and the fallback to Scalr see the
+ * engine that was picked.
+ * </p>
+ * <p>
+ * Mar 4, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class PolicyResizeEngine implements ResizeEngine {
+    private final String mQualityHint;
+
+    /**
+     * @param qualityHint the quality hint: speed, balanced or quality
+     */
+    public PolicyResizeEngine( String qualityHint ) {
+        this.mQualityHint = TableScalingPolicy.normalizeHint( qualityHint );
+    }
+
+    public String getQualityHint() {
+        return mQualityHint;
+    }
+
+    /**
+     * @return the engine that the ImageService ScalingPolicy picks to resize image to width x height
+     */
+    public ResizeEngine select(BufferedImage image, int width, int height) {
+        return ImageService.getScalingPolicy().select(image.getWidth(), image.getHeight(), width, height, mQualityHint);
+    }
+
+    @Override
+    public String getName() {
+        return "policy-" + mQualityHint;
+    }
+
+    @Override
+    public BufferedImage resize(BufferedImage image, int width, int height) throws ImagingOpException {
+        return select(image, width, height).resize(image, width, height);
+    }
+
+}
@@ -0,0 +1,264 @@
+/** \file
+ *
+ * Feb 16, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.imageio.stream.ImageOutputStreamImpl;
+
+/**
+ * <h3>
+ * PooledImageOutputStream
+ * </h3>
+ * <p>
+ * An ImageOutputStream that writes an encoded image into a buffer from the BufferPool and calculates the MD5 hash
+ * of the data as it is written.
+ * </p>
+ * <p>
+ * ImageIO.write() to an OutputStream writes through a FileCacheImageOutputStream (a temporary file) and the
+ * ByteArrayOutputStream that S3Service used before this class grew by doubling for every image. An image writer
+ * writes to this stream directly. The initial buffer size is estimated from the image size and format, so the buffer
+ * rarely has to grow, and the buffer is returned to the pool by release().
+ * </p>
+ * <p>
+ * Some image writers seek back to fill in a length field (the PNG writer does this for each chunk), so the MD5 hash
+ * is updated for the data that is at least DIGEST_LAG bytes behind the end of the stream, or that is before the
+ * flushed position. If a writer changes data that has already been hashed, the hash is recalculated by getMD5().
+ * </p>
+ * <p>
+ * Feb 16, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class PooledImageOutputStream extends ImageOutputStreamImpl {
+    /** data within this many bytes of the end of the stream is not hashed until the stream is finished */
+    private final static int DIGEST_LAG = 64 * 1024;
+
+    private final BufferPool mPool;
+    private byte[] mBuffer;
+    private int mLength = 0;
+    private final MessageDigest mDigest;
+    private int mDigestedLength = 0;
+    private boolean mDigestValid = true;
+    private byte[] mMD5 = null;
+
+    /**
+     * @param pool the pool for the output buffer
+     * @param initialSize the initial buffer size (see estimateSize())
+     */
+    public PooledImageOutputStream( BufferPool pool, int initialSize ) {
+        this.mPool = pool;
+        this.mBuffer = pool.acquire( initialSize );
+        try {
+            this.mDigest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support MD5
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * Estimate the size of an encoded image, so the output buffer usually does not have to grow. The estimate
+     * is on the high side for a photograph (a 20 megapixel photograph is about 1 Mb as a JPEG and about 6 Mb as a
+     * PNG). If the estimate is too small the buffer grows by 1.5x.
+     *
+     * @param width the image width
+     * @param height the image height
+     * @param imageType the ImageIO format name (e.g., jpeg, png)
+     * @return the estimated encoded size in bytes
+     */
+    public static int estimateSize(int width, int height, String imageType) {
+        long pixels = (long)width * height;
+        String type = (imageType != null) ? imageType.toLowerCase() : "jpeg";
+        long estimate;
+        if (type.equals("jpeg") || type.equals("jpg")) {
+            estimate = pixels / 8;              // 1 bit per pixel
+        } else if (type.equals("png")) {
+            estimate = pixels / 2;
+        } else if (type.equals("gif")) {
+            estimate = pixels / 4;
+        } else if (type.equals("bmp")) {
+            estimate = (long)height * ((3L * width + 3) & ~3L) + 54;
+        } else {
+            estimate = pixels;
+        }
+        return (int)Math.min(Integer.MAX_VALUE / 2, estimate + 4096);
+    }
+
+    /**
+     * Make sure that the buffer holds at least size bytes. A larger buffer is taken from the pool and the old buffer
+     * is returned to the pool.
+     */
+    private void ensureCapacity(long size) throws IOException {
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IOException("PooledImageOutputStream: output is too large");
+        }
+        if (size > mBuffer.length) {
+            long newSize = Math.max(size, (long)mBuffer.length + (mBuffer.length >> 1));
+            byte[] newBuffer = mPool.acquire( (int)Math.min(newSize, Integer.MAX_VALUE - 8) );
+            System.arraycopy(mBuffer, 0, newBuffer, 0, mLength);
+            mPool.release( mBuffer );
+            mBuffer = newBuffer;
+        }
+    }
+
+    /**
+     * Update the MD5 hash with the data that the writer will not change.
+     */
+    private void updateDigest() {
+        if (mDigestValid) {
+            int end = (int)Math.max(flushedPos, mLength - DIGEST_LAG);
+            end = Math.min(end, mLength);
+            if (end > mDigestedLength) {
+                mDigest.update(mBuffer, mDigestedLength, end - mDigestedLength);
+                mDigestedLength = end;
+            }
+        }
+    }
+
+    private void checkWrite(int numBytes) throws IOException {
+        checkClosed();
+        if (mBuffer == null) {
+            throw new IOException("PooledImageOutputStream: the buffer has been released");
+        }
+        if (streamPos < mDigestedLength) {
+            // a writer is changing data that is already hashed
+            mDigestValid = false;
+        }
+        ensureCapacity( streamPos + numBytes );
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        flushBits();
+        checkWrite( 1 );
+        mBuffer[ (int)streamPos++ ] = (byte)b;
+        mLength = (int)Math.max(mLength, streamPos);
+        updateDigest();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        flushBits();
+        checkWrite( len );
+        System.arraycopy(b, off, mBuffer, (int)streamPos, len);
+        streamPos += len;
+        mLength = (int)Math.max(mLength, streamPos);
+        updateDigest();
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        int b = -1;
+        if (streamPos < mLength) {
+            bitOffset = 0;
+            b = mBuffer[ (int)streamPos++ ] & 0xff;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        int numBytes = -1;
+        if (len == 0) {
+            numBytes = 0;
+        } else if (streamPos < mLength) {
+            bitOffset = 0;
+            numBytes = (int)Math.min(len, mLength - streamPos);
+            System.arraycopy(mBuffer, (int)streamPos, b, off, numBytes);
+            streamPos += numBytes;
+        }
+        return numBytes;
+    }
+
+    @Override
+    public long length() {
+        return mLength;
+    }
+
+    @Override
+    public boolean isCached() {
+        return true;
+    }
+
+    @Override
+    public boolean isCachedMemory() {
+        return true;
+    }
+
+    @Override
+    public void flushBefore(long pos) throws IOException {
+        super.flushBefore(pos);
+        updateDigest();
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    public int size() {
+        return mLength;
+    }
+
+    /**
+     * @return the output buffer. Only the first size() bytes are valid.
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * @return an InputStream that reads the output buffer. The buffer is not copied.
+     */
+    public InputStream toInputStream() {
+        return new ByteArrayInputStream(mBuffer, 0, mLength);
+    }
+
+    /**
+     * Finish the MD5 hash. This should be called after the image writer is done.
+     *
+     * @return the MD5 hash of the data that was written
+     */
+    public byte[] getMD5() {
+        if (mMD5 == null) {
+            if (! mDigestValid) {
+                mDigest.reset();
+                mDigestedLength = 0;
+            }
+            mDigest.update(mBuffer, mDigestedLength, mLength - mDigestedLength);
+            mDigestedLength = mLength;
+            mMD5 = mDigest.digest();
+        }
+        return mMD5;
+    }
+
+    /**
+     * @return true if the MD5 hash was calculated while the data was written, without a second pass over the data.
+     */
+    public boolean isSinglePassDigest() {
+        return mDigestValid;
+    }
+
+    /**
+     * Return the buffer to the pool. The data cannot be used after the buffer is released.
+     */
+    public void release() {
+        if (mBuffer != null) {
+            mPool.release( mBuffer );
+            mBuffer = null;
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+/** \file
+ *
+ * Feb 22, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+
+import com.amazonaws.util.BinaryUtils;
+
+/**
+ * <h3>
+ * RenditionFingerprint
+ * </h3>
+ * <p>
+ * A fingerprint of a scaled image: a hash of everything that determines the scaled image. This is the ETag of the
+ * original, the scale mode and dimensions, the output image type, the resize engine and the version of the image
+ * processing code. The fingerprint is stored in the S3 user metadata of the scaled image. When a request is
+ * repeated (a retry or a reprocessing job) and the scaled image on S3 has the same fingerprint, the image does not
+ * need to be downloaded, scaled or written again.
+ * </p>
+ * <p>
+ * ENGINE_VERSION must be changed when a change to the image processing code changes the scaled images, so that
+ * existing scaled images are rebuilt.
+ * </p>
+ * <p>
+ * Feb 22, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class RenditionFingerprint {
+    /** the version of the image processing code */
+    public final static String ENGINE_VERSION = "2018.02.22";
+    /** the S3 user metadata key (sent as x-amz-meta-image-fingerprint) */
+    public final static String METADATA_KEY = "image-fingerprint";
+
+    private RenditionFingerprint() {}
+
+    /**
+     * @param sourceETag the S3 ETag of the original image
+     * @param mode the scale mode
+     * @param height the height argument for the scale mode
+     * @param width the width argument for the scale mode (0 if the mode does not use it)
+     * @param contentType the MIME content type of the scaled image
+     * @param resizeEngine the resize engine name from the request, or null for the default engine
+     * @return the fingerprint, as a hex string
+     */
+    public static String fingerprint(String sourceETag, ScaleMode mode, int height, int width, String contentType, String resizeEngine) {
+        return fingerprint(sourceETag, mode, height, width, contentType, resizeEngine, null);
+    }
+
+    /**
+     * @param options the other arguments that determine the scaled image (e.g., the crop region), or null
+     * @return the fingerprint, as a hex string
+     */
+    public static String fingerprint(String sourceETag, ScaleMode mode, int height, int width, String contentType, String resizeEngine,
+                                     String options) {
+        String engine = (resizeEngine != null && resizeEngine.length() > 0) ? resizeEngine.toLowerCase() : "default";
+        String description = ENGINE_VERSION + "|" + sourceETag + "|" + mode.name() + "|" + height + "|" + width + "|" +
+                             ((contentType != null) ? contentType.trim().toLowerCase() : "") + "|" + engine;
+        if (options != null) {
+            description = description + "|" + options;
+        }
+        String hex = null;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            hex = BinaryUtils.toHex( md.digest( description.getBytes(StandardCharsets.UTF_8) ) );
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException( e );
+        }
+        return hex;
+    }
+
+    /**
+     * @return the S3 user metadata for a scaled image with this fingerprint
+     */
+    public static Map<String, String> userMetadata(String fingerprint) {
+        return Collections.singletonMap(METADATA_KEY, fingerprint);
+    }
+
+}
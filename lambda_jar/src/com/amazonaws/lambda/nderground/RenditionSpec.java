@@ -0,0 +1,149 @@
+/** \file
+ *
+ * Feb 9, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.awt.Dimension;
+
+/**
+ * <h3>
+ * RenditionSpec
+ * </h3>
+ * <p>
+ * A description of one scaled version (a rendition) of an image: the scale mode, the dimensions for the scale mode
+ * and the S3 path for the scaled image.
+ * </p>
+ * <p>
+ * The scale mode is one of the ScaleMode names: maxDim, height, heightWidth or thumbnail. The maxDim mode uses the
+ * maxDim value. The height mode uses the height value. The heightWidth and thumbnail modes use both the height and
+ * width values.
+ * </p>
+ * <p>
+ * Feb 9, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class RenditionSpec {
+    private String mMode;          // the scale mode name
+    private int mHeight;
+    private int mWidth;
+    private int mMaxDim;
+    private String mS3ScaledPath;  // path to the scaled image
+    private String mContentType;   // image type for the scaled image. If null, the request content type is used.
+
+    public RenditionSpec() {}
+
+    public RenditionSpec(String mode, int height, int width, int maxDim, String scaledImagePath, String contentType) {
+        setMode( mode );
+        setHeight( height );
+        setWidth( width );
+        setMaxDim( maxDim );
+        setS3ScaledPath( scaledImagePath );
+        setContentType( contentType );
+    }
+
+    /**
+     * @return the scale mode for this rendition, or null if the mode name is not valid.
+     */
+    public ScaleMode toScaleMode() {
+        return ScaleMode.fromName( getMode() );
+    }
+
+    /**
+     * Check the rendition arguments.
+     *
+     * @return true if the scale mode, the dimensions for the scale mode and the scaled image path are valid.
+     */
+    public boolean hasValidArguments() {
+        boolean valid = false;
+        ScaleMode mode = toScaleMode();
+        if (mode != null && mS3ScaledPath != null && mS3ScaledPath.length() > 0) {
+            switch (mode) {
+            case MAX_DIM:
+                valid = mMaxDim > 0;
+                break;
+            case HEIGHT:
+                valid = mHeight > 0;
+                break;
+            case HEIGHT_WIDTH:
+            case THUMBNAIL:
+                valid = mHeight > 0 && mWidth > 0;
+                break;
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Calculate the size of this rendition for a source image.
+     *
+     * @param srcWidth the source image width
+     * @param srcHeight the source image height
+     * @return the size of the scaled image
+     */
+    public Dimension targetSize(int srcWidth, int srcHeight) {
+        Dimension size = null;
+        ScaleMode mode = toScaleMode();
+        if (mode == ScaleMode.MAX_DIM) {
+            size = mode.targetSize(srcWidth, srcHeight, mMaxDim, mMaxDim);
+        } else {
+            size = mode.targetSize(srcWidth, srcHeight, mHeight, mWidth);
+        }
+        return size;
+    }
+
+    public String getMode() {
+        return mMode;
+    }
+
+    public void setMode(String mode) {
+        this.mMode = mode;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public void setHeight(int height) {
+        this.mHeight = height;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public void setWidth(int width) {
+        this.mWidth = width;
+    }
+
+    public int getMaxDim() {
+        return mMaxDim;
+    }
+
+    public void setMaxDim(int maxDim) {
+        this.mMaxDim = maxDim;
+    }
+
+    public String getS3ScaledPath() {
+        return mS3ScaledPath;
+    }
+
+    public void setS3ScaledPath(String s3ScaledPath) {
+        this.mS3ScaledPath = s3ScaledPath;
+    }
+
+    public String getContentType() {
+        return mContentType;
+    }
+
+    public void setContentType(String contentType) {
+        this.mContentType = contentType;
+    }
+
+}
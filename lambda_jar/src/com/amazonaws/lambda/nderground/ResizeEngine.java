@@ -0,0 +1,46 @@
+/** \file
+ *
+ * Feb 12, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ImagingOpException;
+
+/**
+ * <h3>
+ * ResizeEngine
+ * </h3>
+ * <p>
+ * An interface for the code that does the final image resize in the ImageService. This allows the Scalr
+ * (imgscalr) resize code to be replaced by other resize implementations.
+ * </p>
+ * <p>
+ * Feb 12, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public interface ResizeEngine {
+
+    /**
+     * @return the name of the resize engine (for logging)
+     */
+    public String getName();
+
+    /**
+     * Resize an image to exactly width x height pixels. The source image is not changed.
+     *
+     * @param image the image to resize
+     * @param width the width of the resized image
+     * @param height the height of the resized image
+     * @return a new, resized, image
+     * @throws ImagingOpException if the image could not be resized
+     */
+    public BufferedImage resize(BufferedImage image, int width, int height) throws ImagingOpException;
+
+}
@@ -0,0 +1,85 @@
+/** \file
+ *
+ * Feb 13, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import org.imgscalr.Scalr;
+
+/**
+ * <h3>
+ * ResizeEngines
+ * </h3>
+ * <p>
+ * Look up a resize engine by name. The name is the resizeEngine value in a scale request (see ScaleImageInfoBase):
+ * </p>
+ * <ul>
+ * <li>scalr: Scalr.resize() with Method.AUTOMATIC</li>
+ * <li>scalr-speed, scalr-balanced, scalr-quality, scalr-ultra_quality: Scalr.resize() with a fixed method</li>
+ * <li>parallel: the ParallelResizeEngine with Method.AUTOMATIC</li>
+ * <li>box, bilinear, bicubic, lanczos3: the SeparableResampler with the filter</li>
+ * </ul>
+ * <p>
+ * A null or empty name selects the ImageService default engine.
+ * </p>
+ * <p>
+ * Feb 13, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class ResizeEngines {
+    private final static ResizeEngine mScalrEngine = new ScalrResizeEngine( Scalr.Method.AUTOMATIC );
+
+    /**
+     * @return the Scalr engine, with Method.AUTOMATIC. This is the fallback when another engine fails.
+     */
+    public static ResizeEngine scalr() {
+        return mScalrEngine;
+    }
+
+    /**
+     * @param name the engine name. Case is ignored.
+     * @return the resize engine or null if the name is null, empty or is not an engine name.
+     */
+    public static ResizeEngine forName(String name) {
+        ResizeEngine engine = null;
+        if (name != null && name.trim().length() > 0) {
+            String engineName = name.trim().toLowerCase().replace('-', '_');
+            if (engineName.equals("scalr")) {
+                engine = mScalrEngine;
+            } else if (engineName.equals("parallel")) {
+                engine = new ParallelResizeEngine( Scalr.Method.AUTOMATIC );
+            } else if (engineName.startsWith("scalr_")) {
+                Scalr.Method method = methodForName( engineName.substring( "scalr_".length() ) );
+                if (method != null) {
+                    engine = new ScalrResizeEngine( method );
+                }
+            } else {
+                for (SeparableResampler.Filter filter : SeparableResampler.Filter.values()) {
+                    if (filter.name().equalsIgnoreCase( engineName )) {
+                        engine = new SeparableResampler( filter );
+                        break;
+                    }
+                }
+            }
+        }
+        return engine;
+    }
+
+    private static Scalr.Method methodForName(String name) {
+        Scalr.Method method = null;
+        for (Scalr.Method m : Scalr.Method.values()) {
+            if (m.name().equalsIgnoreCase( name )) {
+                method = m;
+                break;
+            }
+        }
+        return method;
+    }
+
+}
@@ -0,0 +1,239 @@
+/** \file
+ *
+ * Feb 2, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.Protocol;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+
+/**
+ * <h3>
+ * S3ClientRegistry
+ * </h3>
+ * <p>
+ * A process wide registry of AmazonS3 clients. Building an AmazonS3 client creates a new credential provider,
+ * a new HTTP connection pool and new DNS and TLS state. An AWS Lambda container is reused across "warm"
+ * invocations, so a client that is built once and kept in a static registry can be reused by every following
+ * invocation that uses the same region, bucket and credentials.
+ * </p>
+ * <p>
+ * The registry is bounded. When more than the maximum number of clients are registered, the least recently used
+ * client is removed. The removed client is not shut down, since it may still be in use: an S3Service keeps the
+ * client it was given, and an asynchronous job, a hedged GET or a multipart upload may still be running on it.
+ * The client's connection pool is released when the client is garbage collected (the AWS SDK client shuts
+ * itself down when it is finalized), and its idle connections are closed after CONNECTION_MAX_IDLE_MS.
+ * </p>
+ * <p>
+ * Feb 2, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class S3ClientRegistry {
+    public final static int DEFAULT_MAX_CLIENTS = 8;
+
+    /* Client configuration values. A Lambda function handles one invocation at a time, so the connection pool
+     * only needs to be large enough for the parallel transfers made by a single invocation.
+     */
+    private final static int MAX_CONNECTIONS = 32;
+    private final static int CONNECTION_TIMEOUT_MS = 2 * 1000;
+    private final static int SOCKET_TIMEOUT_MS = 30 * 1000;
+    private final static long CONNECTION_TTL_MS = 5 * 60 * 1000;
+    private final static long CONNECTION_MAX_IDLE_MS = 60 * 1000;
+    private final static int VALIDATE_AFTER_INACTIVITY_MS = 5 * 1000;
+
+    private final static S3ClientRegistry mRegistry = new S3ClientRegistry( DEFAULT_MAX_CLIENTS );
+
+    private final int mMaxClients;
+    private final LinkedHashMap<String, AmazonS3> mClients;
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mEvictions = 0;
+
+
+    protected S3ClientRegistry( int maxClients ) {
+        this.mMaxClients = maxClients;
+        // an access ordered map, so the eldest entry is the least recently used client
+        this.mClients = new LinkedHashMap<String, AmazonS3>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, AmazonS3> eldest) {
+                boolean remove = size() > getMaxClients();
+                if (remove) {
+                    mEvictions++;
+                }
+                return remove;
+            }
+        };
+    }
+
+    /**
+     * @return the process wide client registry
+     */
+    public static S3ClientRegistry getRegistry() {
+        return mRegistry;
+    }
+
+    public int getMaxClients() { return this.mMaxClients; }
+
+    public synchronized int size() { return mClients.size(); }
+    public synchronized long getHits() { return mHits; }
+    public synchronized long getMisses() { return mMisses; }
+    public synchronized long getEvictions() { return mEvictions; }
+
+
+    /**
+     * <p>
+     * Build the client configuration used for all registry clients. TCP keep-alive and a connection time-to-live
+     * allow pooled connections to be reused across warm invocations. The connect and socket timeouts keep a dead
+     * connection from holding the Lambda function until the function timeout.
+     * </p>
+     *
+     * @return a new ClientConfiguration object
+     */
+    public static ClientConfiguration buildClientConfiguration() {
+        ClientConfiguration config = new ClientConfiguration();
+        config.setProtocol(Protocol.HTTP);
+        config.setUseTcpKeepAlive( true );
+        config.setMaxConnections( MAX_CONNECTIONS );
+        config.setConnectionTimeout( CONNECTION_TIMEOUT_MS );
+        config.setSocketTimeout( SOCKET_TIMEOUT_MS );
+        config.setConnectionTTL( CONNECTION_TTL_MS );
+        config.setConnectionMaxIdleMillis( CONNECTION_MAX_IDLE_MS );
+        config.setValidateAfterInactivityMillis( VALIDATE_AFTER_INACTIVITY_MS );
+        return config;
+    }
+
+
+    /**
+     * Build a new AmazonS3 client. The new Amazon client builder interface requires a region name.
+     *
+     * @param regionName the AWS region (e.g., us-west-1)
+     * @param AWS_ID AWS ID for S3 access
+     * @param AWS_KEY AWS secret key for S3 access
+     * @return a new AmazonS3 client
+     */
+    protected AmazonS3 buildClient(String regionName, String AWS_ID, String AWS_KEY) {
+        return buildClient(regionName, AWS_ID, AWS_KEY, null);
+    }
+
+
+    /**
+     * Build a new AmazonS3 client for an endpoint. A client for an S3 compatible endpoint (for example, a local S3
+     * stand-in for load tests) uses path style requests (http://endpoint/bucket/key), since the endpoint name
+     * usually cannot be prefixed with the bucket name.
+     *
+     * @param regionName the AWS region (e.g., us-west-1)
+     * @param AWS_ID AWS ID for S3 access
+     * @param AWS_KEY AWS secret key for S3 access
+     * @param endpoint the S3 endpoint URL, or null for the AWS endpoint for the region
+     * @return a new AmazonS3 client
+     */
+    protected AmazonS3 buildClient(String regionName, String AWS_ID, String AWS_KEY, String endpoint) {
+        BasicAWSCredentials credentials = new BasicAWSCredentials( AWS_ID, AWS_KEY );
+        AWSStaticCredentialsProvider credentialProvider = new AWSStaticCredentialsProvider( credentials );
+        AmazonS3ClientBuilder clientBuilder = AmazonS3ClientBuilder.standard();
+        clientBuilder.setCredentials(credentialProvider);
+        clientBuilder.setClientConfiguration( buildClientConfiguration() );
+        if (endpoint != null) {
+            clientBuilder.setEndpointConfiguration( new AwsClientBuilder.EndpointConfiguration( endpoint, regionName ) );
+            clientBuilder.setPathStyleAccessEnabled( true );
+        } else {
+            clientBuilder.setRegion( regionName );
+        }
+        AmazonS3 s3client = clientBuilder.build();
+        return s3client;
+    }
+
+
+    /**
+     * The credential identity is the AWS ID and a hash of the secret key, so that the secret key itself is not
+     * held in the registry key.
+     */
+    private static String credentialIdentity(String AWS_ID, String AWS_KEY) {
+        String keyHash = "";
+        if (AWS_KEY != null) {
+            try {
+                MessageDigest md = MessageDigest.getInstance("SHA-256");
+                byte[] digest = md.digest( AWS_KEY.getBytes(StandardCharsets.UTF_8) );
+                StringBuilder builder = new StringBuilder();
+                for (byte b : digest) {
+                    builder.append( String.format("%02x", b) );
+                }
+                keyHash = builder.toString();
+            } catch (NoSuchAlgorithmException e) {
+                keyHash = Integer.toHexString( AWS_KEY.hashCode() );
+            }
+        }
+        return AWS_ID + ":" + keyHash;
+    }
+
+
+    /**
+     * <p>
+     * Return the AmazonS3 client for a region, bucket and set of credentials. If there is no client registered,
+     * a new client is built and registered.
+     * </p>
+     *
+     * @param regionName the AWS region name
+     * @param s3Bucket the S3 bucket that the client will access
+     * @param AWS_ID AWS ID for S3 access
+     * @param AWS_KEY AWS secret key for S3 access
+     * @return a shared AmazonS3 client
+     */
+    public AmazonS3 getClient(String regionName, String s3Bucket, String AWS_ID, String AWS_KEY) {
+        return getClient(regionName, s3Bucket, AWS_ID, AWS_KEY, null);
+    }
+
+
+    /**
+     * Return the AmazonS3 client for a region, bucket, set of credentials and S3 endpoint.
+     *
+     * @param endpoint the S3 endpoint URL, or null for the AWS endpoint for the region
+     * @return a shared AmazonS3 client
+     */
+    public synchronized AmazonS3 getClient(String regionName, String s3Bucket, String AWS_ID, String AWS_KEY, String endpoint) {
+        String key = regionName + "|" + s3Bucket + "|" + credentialIdentity( AWS_ID, AWS_KEY );
+        if (endpoint != null) {
+            key = key + "|" + endpoint;
+        }
+        AmazonS3 client = mClients.get( key );
+        if (client != null) {
+            mHits++;
+        } else {
+            mMisses++;
+            client = buildClient(regionName, AWS_ID, AWS_KEY, endpoint);
+            mClients.put(key, client);
+        }
+        return client;
+    }
+
+
+    /**
+     * Shut down and remove all of the registered clients. This is only safe when none of the clients are in use.
+     */
+    public synchronized void clear() {
+        for (AmazonS3 client : mClients.values()) {
+            client.shutdown();
+        }
+        mClients.clear();
+    }
+
+}
@@ -0,0 +1,451 @@
+/** \file
+ *
+ * Feb 19, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * <h3>
+ * S3LatencyPolicy
+ * </h3>
+ * <p>
+ * Deadlines, retries and hedged GETs for the S3 requests made by S3Service. A few S3 requests are much slower than
+ * the rest, and without a policy a slow request holds the Lambda function until the socket timeout or the function
+ * timeout.
+ * </p>
+ * <ul>
+ * <li>Each operation has a deadline. The request runs on the S3 transfer executor (see ImagePipelineExecutors) and
+ * the caller stops waiting at the deadline (the request thread is interrupted). A DeadlineExceededException is thrown.</li>
+ * <li>An attempt that fails with a retryable error (a client or network error, a 5xx status or throttling) is retried
+ * after a random delay up to an exponential backoff limit ("full jitter"), as long as the deadline allows.</li>
+ * <li>A GET that has not returned after the hedgePercentile of the recent GET latencies is hedged: a second GET is
+ * sent, and the response that arrives first is used. The other response is closed.</li>
+ * </ul>
+ * <p>
+ * The policy keeps counters (requests, retries, timeouts, hedges sent and hedges that won), so the effect of the policy
+ * can be logged. A process wide policy is shared by S3Service objects, so the GET latency history is kept across warm
+ * Lambda invocations. The default settings can be changed with Lambda environment variables (or Java system properties):
+ * IMAGE_S3_GET_DEADLINE_MS, IMAGE_S3_PUT_DEADLINE_MS, IMAGE_S3_MAX_RETRIES and IMAGE_S3_HEDGE_PERCENTILE (0 turns
+ * hedging off).
+ * </p>
+ * <p>
+ * Feb 19, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class S3LatencyPolicy {
+    public final static long DEFAULT_GET_DEADLINE_MS = 10 * 1000;
+    public final static long DEFAULT_PUT_DEADLINE_MS = 20 * 1000;
+    public final static int DEFAULT_MAX_RETRIES = 2;
+    public final static long DEFAULT_RETRY_BASE_MS = 50;
+    public final static long DEFAULT_RETRY_MAX_MS = 1000;
+    public final static int DEFAULT_HEDGE_PERCENTILE = 95;
+    /** a GET is not hedged sooner than this, even if the recent GETs were faster */
+    public final static long DEFAULT_MIN_HEDGE_DELAY_MS = 20;
+    /** GETs are not hedged until there are this many latency samples */
+    public final static int MIN_LATENCY_SAMPLES = 20;
+    private final static int LATENCY_HISTORY = 256;
+
+    private final static S3LatencyPolicy mDefaultPolicy = fromEnvironment();
+
+    /**
+     * Thrown when an operation does not finish before its deadline.
+     */
+    public static class DeadlineExceededException extends SdkClientException {
+        private static final long serialVersionUID = 1L;
+
+        public DeadlineExceededException(String msg) {
+            super( msg );
+        }
+    }
+
+    /**
+     * Called for a result that was not used (the response from the GET that lost a hedge race, or a response that
+     * arrived after the deadline), so that its connection can be released.
+     */
+    public interface Discard<T> {
+        void discard(T result);
+    }
+
+    private long mGetDeadlineMillis = DEFAULT_GET_DEADLINE_MS;
+    private long mPutDeadlineMillis = DEFAULT_PUT_DEADLINE_MS;
+    private int mMaxRetries = DEFAULT_MAX_RETRIES;
+    private long mRetryBaseMillis = DEFAULT_RETRY_BASE_MS;
+    private long mRetryMaxMillis = DEFAULT_RETRY_MAX_MS;
+    private int mHedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+    private long mMinHedgeDelayMillis = DEFAULT_MIN_HEDGE_DELAY_MS;
+
+    // the recent GET latencies (in nanoseconds), a ring buffer guarded by this
+    private final long[] mGetLatencies = new long[ LATENCY_HISTORY ];
+    private int mNumLatencies = 0;
+    private int mNextLatency = 0;
+
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mRetries = new AtomicLong();
+    private final AtomicLong mTimeouts = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private final AtomicLong mHedgesSent = new AtomicLong();
+    private final AtomicLong mHedgesWon = new AtomicLong();
+
+    public S3LatencyPolicy() {}
+
+    /**
+     * @return the process wide policy, with settings read from the environment when the class is loaded
+     */
+    public static S3LatencyPolicy getDefaultPolicy() {
+        return mDefaultPolicy;
+    }
+
+    /**
+     * @return a policy with the default settings, changed by any environment variables (or system properties) that are set
+     */
+    public static S3LatencyPolicy fromEnvironment() {
+        S3LatencyPolicy policy = new S3LatencyPolicy();
+        policy.setGetDeadlineMillis( S3TransferSettings.getLong("IMAGE_S3_GET_DEADLINE_MS", policy.getGetDeadlineMillis()) );
+        policy.setPutDeadlineMillis( S3TransferSettings.getLong("IMAGE_S3_PUT_DEADLINE_MS", policy.getPutDeadlineMillis()) );
+        policy.setMaxRetries( (int)S3TransferSettings.getLong("IMAGE_S3_MAX_RETRIES", policy.getMaxRetries()) );
+        policy.setHedgePercentile( (int)S3TransferSettings.getLong("IMAGE_S3_HEDGE_PERCENTILE", policy.getHedgePercentile()) );
+        return policy;
+    }
+
+    /**
+     * The outcome of one request attempt
+     */
+    private static class Outcome<T> {
+        final T mResult;
+        final Exception mError;
+        final boolean mHedge;
+        final long mLatency;
+
+        Outcome(T result, Exception error, boolean hedge, long latency) {
+            this.mResult = result;
+            this.mError = error;
+            this.mHedge = hedge;
+            this.mLatency = latency;
+        }
+    }
+
+    /**
+     * The requests sent for one attempt (a request and, perhaps, its hedge). When the caller has decided on an
+     * outcome, results that arrive later are discarded.
+     */
+    private static class Race<T> {
+        private final LinkedBlockingQueue<Outcome<T>> mOutcomes = new LinkedBlockingQueue<Outcome<T>>();
+        private final List<Future<?>> mRequests = new ArrayList<Future<?>>();
+        private final Discard<T> mDiscard;
+        private boolean mDecided = false;
+
+        Race(Discard<T> discard) {
+            this.mDiscard = discard;
+        }
+
+        void start(final Callable<T> call, final boolean hedge) {
+            mRequests.add( ImagePipelineExecutors.getS3TransferExecutor().submit(() -> {
+                long start = System.nanoTime();
+                T result = null;
+                Exception error = null;
+                try {
+                    result = call.call();
+                } catch (Exception e) {
+                    error = e;
+                }
+                boolean late = false;
+                synchronized (this) {
+                    late = mDecided;
+                    if (! late) {
+                        mOutcomes.add( new Outcome<T>(result, error, hedge, System.nanoTime() - start) );
+                    }
+                }
+                if (late && result != null && mDiscard != null) {
+                    mDiscard.discard( result );
+                }
+            }) );
+        }
+
+        /**
+         * Stop the race. Pending requests are interrupted and the results that were not used are discarded.
+         */
+        void finish(Outcome<T> winner) {
+            List<Outcome<T>> unused = new ArrayList<Outcome<T>>();
+            synchronized (this) {
+                mDecided = true;
+                mOutcomes.drainTo( unused );
+            }
+            for (Outcome<T> outcome : unused) {
+                if (outcome != winner && outcome.mResult != null && mDiscard != null) {
+                    mDiscard.discard( outcome.mResult );
+                }
+            }
+            for (Future<?> request : mRequests) {
+                request.cancel( true );
+            }
+        }
+    }
+
+    private synchronized void recordGetLatency(long nanos) {
+        mGetLatencies[ mNextLatency ] = nanos;
+        mNextLatency = (mNextLatency + 1) % LATENCY_HISTORY;
+        mNumLatencies = Math.min(mNumLatencies + 1, LATENCY_HISTORY);
+    }
+
+    /**
+     * @return the hedge delay in nanoseconds, or -1 if GETs should not be hedged
+     */
+    private synchronized long hedgeDelayNanos() {
+        long delay = -1;
+        if (mHedgePercentile > 0 && mHedgePercentile < 100 && mNumLatencies >= MIN_LATENCY_SAMPLES) {
+            long[] latencies = Arrays.copyOf(mGetLatencies, mNumLatencies);
+            Arrays.sort( latencies );
+            int ix = Math.min(mNumLatencies - 1, (int)Math.ceil(mNumLatencies * mHedgePercentile / 100.0) - 1);
+            delay = Math.max(latencies[ Math.max(0, ix) ], TimeUnit.MILLISECONDS.toNanos( mMinHedgeDelayMillis ));
+        }
+        return delay;
+    }
+
+    /**
+     * @return true if an attempt that failed with this error should be retried
+     */
+    protected boolean isRetryable(Exception e) {
+        boolean retry = false;
+        if (e instanceof AmazonServiceException) {
+            AmazonServiceException serviceEx = (AmazonServiceException)e;
+            int status = serviceEx.getStatusCode();
+            retry = status >= 500 || status == 429 || "SlowDown".equals( serviceEx.getErrorCode() ) ||
+                    "RequestTimeout".equals( serviceEx.getErrorCode() );
+        } else if (e instanceof SdkClientException) {
+            retry = !(e instanceof DeadlineExceededException) && !Thread.currentThread().isInterrupted();
+        }
+        return retry;
+    }
+
+    private static SdkClientException asClientException(Exception e) {
+        return (e instanceof SdkClientException) ? (SdkClientException)e : new SdkClientException(e.getLocalizedMessage(), e);
+    }
+
+    /**
+     * Run one attempt: the request and, if hedging is on and the request is slow, a hedge request.
+     */
+    private <T> T attempt(String operation, Callable<T> call, boolean hedge, long deadline, Discard<T> discard) {
+        Race<T> race = new Race<T>( discard );
+        Outcome<T> winner = null;
+        Exception error = null;
+        try {
+            mRequests.incrementAndGet();
+            race.start(call, false);
+            int pending = 1;
+            long hedgeDelay = hedge ? hedgeDelayNanos() : -1;
+            long hedgeAt = (hedgeDelay >= 0) ? System.nanoTime() + hedgeDelay : Long.MAX_VALUE;
+            boolean hedgeSent = false;
+            while (winner == null && pending > 0) {
+                long now = System.nanoTime();
+                if (now - deadline >= 0) {
+                    mTimeouts.incrementAndGet();
+                    throw new DeadlineExceededException("S3 " + operation + " deadline exceeded");
+                }
+                boolean waitForHedge = !hedgeSent && hedgeAt - deadline < 0;
+                long waitUntil = waitForHedge ? hedgeAt : deadline;
+                Outcome<T> outcome = race.mOutcomes.poll(Math.max(0, waitUntil - now), TimeUnit.NANOSECONDS);
+                if (outcome == null) {
+                    if (waitForHedge && System.nanoTime() - hedgeAt >= 0) {
+                        mRequests.incrementAndGet();
+                        mHedgesSent.incrementAndGet();
+                        race.start(call, true);
+                        hedgeSent = true;
+                        pending++;
+                    }
+                } else {
+                    pending--;
+                    if (outcome.mError == null) {
+                        winner = outcome;
+                    } else {
+                        error = outcome.mError;
+                        // a request that fails quickly is retried, not hedged
+                        hedgeAt = Long.MAX_VALUE;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = e;
+        } finally {
+            race.finish( winner );
+        }
+        if (winner == null) {
+            throw asClientException( error );
+        }
+        if (hedge) {
+            recordGetLatency( winner.mLatency );
+            if (winner.mHedge) {
+                mHedgesWon.incrementAndGet();
+            }
+        }
+        return winner.mResult;
+    }
+
+    /**
+     * <p>
+     * Run an S3 operation with a deadline and retries. If hedge is true, a slow request is hedged with a second
+     * request, so the operation must be idempotent (e.g., a GET).
+     * </p>
+     *
+     * @param operation the operation name, for errors
+     * @param call the S3 request
+     * @param deadlineMillis the time allowed for the operation, including retries
+     * @param hedge true to hedge slow requests
+     * @param discard releases a result that is not used, or null
+     * @return the result of the request
+     * @throws SdkClientException the last error if every attempt failed, or DeadlineExceededException
+     */
+    public <T> T execute(String operation, Callable<T> call, long deadlineMillis, boolean hedge, Discard<T> discard) throws SdkClientException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( deadlineMillis );
+        T result = null;
+        boolean done = false;
+        int retries = 0;
+        while (! done) {
+            try {
+                result = attempt(operation, call, hedge, deadline, discard);
+                done = true;
+            } catch (SdkClientException e) {
+                long backoff = TimeUnit.MILLISECONDS.toNanos( Math.min(mRetryMaxMillis, mRetryBaseMillis << Math.min(retries, 20)) );
+                long sleep = ThreadLocalRandom.current().nextLong( backoff + 1 );
+                if (retries >= mMaxRetries || !isRetryable( e ) || System.nanoTime() + sleep - deadline >= 0) {
+                    mFailures.incrementAndGet();
+                    throw e;
+                }
+                retries++;
+                mRetries.incrementAndGet();
+                try {
+                    TimeUnit.NANOSECONDS.sleep( sleep );
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    mFailures.incrementAndGet();
+                    throw e;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A hedged GET, with the GET deadline and retries. The deadline covers the time to the response headers; the
+     * object content is read by the caller.
+     */
+    public S3Object getObject(final AmazonS3 s3Client, final GetObjectRequest request) throws SdkClientException {
+        return execute("GET " + request.getKey(), () -> s3Client.getObject( request ), getGetDeadlineMillis(), true,
+                       new Discard<S3Object>() {
+                           @Override
+                           public void discard(S3Object s3Object) {
+                               s3Object.getObjectContent().abort();
+                               try { s3Object.close(); } catch (IOException e) {}
+                           }
+                       });
+    }
+
+    /**
+     * A PUT (or other write), with the PUT deadline and retries. The request is not hedged.
+     */
+    public <T> T put(String operation, Callable<T> call) throws SdkClientException {
+        return execute(operation, call, getPutDeadlineMillis(), false, null);
+    }
+
+    public long getGetDeadlineMillis() {
+        return mGetDeadlineMillis;
+    }
+
+    public void setGetDeadlineMillis(long getDeadlineMillis) {
+        this.mGetDeadlineMillis = getDeadlineMillis;
+    }
+
+    public long getPutDeadlineMillis() {
+        return mPutDeadlineMillis;
+    }
+
+    public void setPutDeadlineMillis(long putDeadlineMillis) {
+        this.mPutDeadlineMillis = putDeadlineMillis;
+    }
+
+    public int getMaxRetries() {
+        return mMaxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.mMaxRetries = Math.max(0, maxRetries);
+    }
+
+    public long getRetryBaseMillis() {
+        return mRetryBaseMillis;
+    }
+
+    public void setRetryBaseMillis(long retryBaseMillis) {
+        this.mRetryBaseMillis = retryBaseMillis;
+    }
+
+    public long getRetryMaxMillis() {
+        return mRetryMaxMillis;
+    }
+
+    public void setRetryMaxMillis(long retryMaxMillis) {
+        this.mRetryMaxMillis = retryMaxMillis;
+    }
+
+    public int getHedgePercentile() {
+        return mHedgePercentile;
+    }
+
+    /**
+     * @param hedgePercentile a GET is hedged when it is slower than this percentile (1 - 99) of the recent GETs.
+     *        0 turns hedging off.
+     */
+    public void setHedgePercentile(int hedgePercentile) {
+        this.mHedgePercentile = hedgePercentile;
+    }
+
+    public long getMinHedgeDelayMillis() {
+        return mMinHedgeDelayMillis;
+    }
+
+    public void setMinHedgeDelayMillis(long minHedgeDelayMillis) {
+        this.mMinHedgeDelayMillis = minHedgeDelayMillis;
+    }
+
+    /** @return the number of requests sent, including retries and hedges */
+    public long getRequests() { return mRequests.get(); }
+    public long getRetries() { return mRetries.get(); }
+    public long getTimeouts() { return mTimeouts.get(); }
+    /** @return the number of operations that failed after all of their retries */
+    public long getFailures() { return mFailures.get(); }
+    public long getHedgesSent() { return mHedgesSent.get(); }
+    /** @return the number of hedged GETs where the hedge returned first */
+    public long getHedgesWon() { return mHedgesWon.get(); }
+
+    /**
+     * @return a one line summary of the counters, for the log
+     */
+    public String getSummary() {
+        return "S3LatencyPolicy: requests = " + getRequests() + ", retries = " + getRetries() + ", timeouts = " + getTimeouts() +
+               ", failures = " + getFailures() + ", hedges sent = " + getHedgesSent() + ", hedges won = " + getHedgesWon();
+    }
+
+}
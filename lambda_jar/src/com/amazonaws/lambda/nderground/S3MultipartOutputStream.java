@@ -0,0 +1,387 @@
+/** \file
+ *
+ * Feb 17, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import javax.imageio.stream.ImageOutputStreamImpl;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.util.Base64;
+import com.amazonaws.util.BinaryUtils;
+
+/**
+ * <h3>
+ * S3MultipartOutputStream
+ * </h3>
+ * <p>
+ * An ImageOutputStream that uploads an encoded image to S3 as it is written, using an S3 multipart upload. The image
+ * writer fills a part buffer. When the buffer is full, the part is uploaded on the S3 transfer executor (see
+ * ImagePipelineExecutors) and the writer continues with a new buffer. At most "concurrency" parts are uploaded at the same time; if all of the uploads are
+ * busy, the writer waits. The memory used is bounded by the part size times (concurrency + 1), no matter how large
+ * the image is.
+ * </p>
+ * <p>
+ * Each part is sent with its MD5 hash (Content-MD5) and the ETag that S3 returns for the part is checked against the
+ * hash. If a part fails, or the image writer fails, the multipart upload is aborted, so S3 does not keep the parts.
+ * If the whole image fits in one part, it is written with a single putObject. Every S3 request (initiate, the part
+ * uploads, complete, putObject and abort) is made through the S3LatencyPolicy, with its PUT deadline and retries.
+ * </p>
+ * <p>
+ * Some image writers seek back to fill in a length field, so a part is not uploaded until the writer has written
+ * SEEK_WINDOW bytes past the end of the part. A writer cannot seek back into a part that has been uploaded.
+ * </p>
+ * <p>
+ * Feb 17, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class S3MultipartOutputStream extends ImageOutputStreamImpl {
+    /** the image writer can seek back this many bytes from the end of the stream */
+    private final static int SEEK_WINDOW = 64 * 1024;
+
+    private final AmazonS3 mS3Client;
+    private final S3LatencyPolicy mLatencyPolicy;
+    private final String mS3Bucket;
+    private final String mS3Key;
+    private final int mPartSize;
+    private final BufferPool mPool;
+    private final Semaphore mUploadPermits;
+    private final List<Future<PartETag>> mParts = new ArrayList<Future<PartETag>>();
+
+    private Map<String, String> mUserMetadata = null;
+    private String mUploadId = null;
+    private byte[] mBuffer;
+    /** the stream position of mBuffer[0] */
+    private long mBufferStart = 0;
+    private int mBufferLength = 0;
+    private volatile boolean mFailed = false;
+    private boolean mFinished = false;
+
+    /**
+     * @param s3Client the S3 client
+     * @param latencyPolicy the deadlines and retries for the S3 requests
+     * @param s3Bucket the S3 bucket
+     * @param s3Key the path for the object
+     * @param partSize the part size. S3 requires at least 5 Mb for every part except the last.
+     * @param concurrency the maximum number of parts that are uploaded at the same time
+     * @param pool the pool for the part buffers
+     */
+    public S3MultipartOutputStream( AmazonS3 s3Client, S3LatencyPolicy latencyPolicy, String s3Bucket, String s3Key, int partSize, 
+                                    int concurrency, BufferPool pool ) {
+        this.mS3Client = s3Client;
+        this.mLatencyPolicy = latencyPolicy;
+        this.mS3Bucket = s3Bucket;
+        this.mS3Key = s3Key;
+        this.mPartSize = partSize;
+        this.mPool = pool;
+        this.mUploadPermits = new Semaphore( Math.max(1, concurrency) );
+        this.mBuffer = pool.acquire( partSize + SEEK_WINDOW );
+    }
+
+    /**
+     * @param userMetadata the S3 user metadata for the object, or null. This must be set before the first write.
+     */
+    public void setUserMetadata(Map<String, String> userMetadata) {
+        this.mUserMetadata = userMetadata;
+    }
+
+    private ObjectMetadata objectMetadata() {
+        ObjectMetadata metadata = new ObjectMetadata();
+        if (mUserMetadata != null) {
+            metadata.setUserMetadata( mUserMetadata );
+        }
+        return metadata;
+    }
+
+    private static byte[] md5(byte[] buffer, int length) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            md.update(buffer, 0, length);
+            return md.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * Upload a part on the upload executor. The part buffer is returned to the pool when the upload is done.
+     */
+    private void submitPart(final byte[] part, final int length) throws IOException {
+        if (mUploadId == null) {
+            final InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest(mS3Bucket, mS3Key, objectMetadata());
+            mUploadId = mLatencyPolicy.put("INITIATE " + mS3Key, () -> mS3Client.initiateMultipartUpload( request )).getUploadId();
+        }
+        try {
+            mUploadPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            mPool.release( part );
+            throw new IOException("S3MultipartOutputStream: interrupted");
+        }
+        final int partNumber = mParts.size() + 1;
+        final String uploadId = mUploadId;
+        Future<PartETag> future = ImagePipelineExecutors.getS3TransferExecutor().submit(() -> {
+            try {
+                final byte[] md5 = md5(part, length);
+                // a retry sends the part again, so each attempt has its own request and input stream
+                PartETag partETag = mLatencyPolicy.put("PART " + partNumber + " " + mS3Key, () -> {
+                    UploadPartRequest request = new UploadPartRequest()
+                            .withBucketName( mS3Bucket )
+                            .withKey( mS3Key )
+                            .withUploadId( uploadId )
+                            .withPartNumber( partNumber )
+                            .withPartSize( length )
+                            .withMD5Digest( Base64.encodeAsString( md5 ) )
+                            .withInputStream( new ByteArrayInputStream(part, 0, length) );
+                    return mS3Client.uploadPart( request );
+                }).getPartETag();
+                if (! BinaryUtils.toHex( md5 ).equalsIgnoreCase( partETag.getETag() )) {
+                    throw new IOException("MD5 mismatch for part " + partNumber + " of " + mS3Key);
+                }
+                return partETag;
+            } catch (IOException | RuntimeException e) {
+                mFailed = true;
+                throw e;
+            } finally {
+                mPool.release( part );
+                mUploadPermits.release();
+            }
+        });
+        mParts.add( future );
+    }
+
+    /**
+     * Upload the first mPartSize bytes of the buffer. The bytes after the part are copied to a new buffer.
+     */
+    private void sealPart() throws IOException {
+        byte[] part = mBuffer;
+        int tail = mBufferLength - mPartSize;
+        byte[] buffer = mPool.acquire( mPartSize + SEEK_WINDOW );
+        System.arraycopy(part, mPartSize, buffer, 0, tail);
+        mBuffer = buffer;
+        mBufferStart += mPartSize;
+        mBufferLength = tail;
+        submitPart(part, mPartSize);
+    }
+
+    private void checkWrite() throws IOException {
+        checkClosed();
+        if (mFinished || mBuffer == null) {
+            throw new IOException("S3MultipartOutputStream: the stream is finished");
+        }
+        if (mFailed) {
+            throw new IOException("S3MultipartOutputStream: a part upload failed for " + mS3Key);
+        }
+        if (streamPos < mBufferStart) {
+            throw new IOException("S3MultipartOutputStream: cannot seek back into an uploaded part");
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        flushBits();
+        checkWrite();
+        if (streamPos - mBufferStart >= mBuffer.length) {
+            sealPart();
+        }
+        int pos = (int)(streamPos - mBufferStart);
+        mBuffer[ pos ] = (byte)b;
+        streamPos++;
+        mBufferLength = Math.max(mBufferLength, pos + 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        flushBits();
+        checkWrite();
+        while (len > 0) {
+            if (streamPos - mBufferStart >= mBuffer.length) {
+                sealPart();
+            }
+            int pos = (int)(streamPos - mBufferStart);
+            int n = Math.min(len, mBuffer.length - pos);
+            System.arraycopy(b, off, mBuffer, pos, n);
+            streamPos += n;
+            off += n;
+            len -= n;
+            mBufferLength = Math.max(mBufferLength, pos + n);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        if (streamPos < mBufferStart) {
+            throw new IOException("S3MultipartOutputStream: cannot read an uploaded part");
+        }
+        int b = -1;
+        int pos = (int)(streamPos - mBufferStart);
+        if (pos < mBufferLength) {
+            bitOffset = 0;
+            b = mBuffer[ pos ] & 0xff;
+            streamPos++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        if (streamPos < mBufferStart) {
+            throw new IOException("S3MultipartOutputStream: cannot read an uploaded part");
+        }
+        int numBytes = -1;
+        int pos = (int)(streamPos - mBufferStart);
+        if (len == 0) {
+            numBytes = 0;
+        } else if (pos < mBufferLength) {
+            bitOffset = 0;
+            numBytes = Math.min(len, mBufferLength - pos);
+            System.arraycopy(mBuffer, pos, b, off, numBytes);
+            streamPos += numBytes;
+        }
+        return numBytes;
+    }
+
+    @Override
+    public long length() {
+        return mBufferStart + mBufferLength;
+    }
+
+    /**
+     * @return true if the image was uploaded as a multipart upload (false if it fit in one part)
+     */
+    public boolean isMultipart() {
+        return mUploadId != null;
+    }
+
+    /**
+     * @return the number of parts uploaded
+     */
+    public int getNumParts() {
+        return mParts.size();
+    }
+
+    private void abort() {
+        if (mUploadId != null) {
+            for (Future<PartETag> part : mParts) {
+                try {
+                    part.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    // the failure is reported by finish()
+                }
+            }
+            try {
+                final AbortMultipartUploadRequest request = new AbortMultipartUploadRequest(mS3Bucket, mS3Key, mUploadId);
+                mLatencyPolicy.put("ABORT " + mS3Key, () -> { mS3Client.abortMultipartUpload( request ); return Boolean.TRUE; });
+            } catch (SdkClientException e) {
+                // S3 removes the parts of an incomplete upload when the bucket lifecycle rule expires them
+            }
+        }
+    }
+
+    /**
+     * Upload the last part and complete the multipart upload, or abort it if a part failed. If the image fits in one
+     * part, the image is written with putObject.
+     *
+     * @throws IOException if the upload failed. The multipart upload has been aborted.
+     */
+    public void finish() throws IOException {
+        if (! mFinished) {
+            mFinished = true;
+            try {
+                if (mFailed) {
+                    throw new IOException("S3MultipartOutputStream: a part upload failed for " + mS3Key);
+                }
+                if (mUploadId == null) {
+                    byte[] md5 = md5(mBuffer, mBufferLength);
+                    final ObjectMetadata metadata = objectMetadata();
+                    metadata.setContentLength( mBufferLength );
+                    metadata.setContentMD5( Base64.encodeAsString( md5 ) );
+                    final byte[] buffer = mBuffer;
+                    final int length = mBufferLength;
+                    mLatencyPolicy.put("PUT " + mS3Key, () -> mS3Client.putObject( new PutObjectRequest(mS3Bucket, mS3Key, 
+                                                                                                       new ByteArrayInputStream(buffer, 0, length), 
+                                                                                                       metadata) ));
+                } else {
+                    // the last part may be smaller than the part size. The upload task releases the buffer.
+                    byte[] lastPart = mBuffer;
+                    mBuffer = null;
+                    submitPart(lastPart, mBufferLength);
+                    List<PartETag> partETags = new ArrayList<PartETag>();
+                    for (Future<PartETag> part : mParts) {
+                        partETags.add( part.get() );
+                    }
+                    Collections.sort(partETags, new Comparator<PartETag>() {
+                        @Override
+                        public int compare(PartETag a, PartETag b) {
+                            return Integer.compare(a.getPartNumber(), b.getPartNumber());
+                        }
+                    });
+                    final CompleteMultipartUploadRequest request = new CompleteMultipartUploadRequest(mS3Bucket, mS3Key, mUploadId, partETags);
+                    mLatencyPolicy.put("COMPLETE " + mS3Key, () -> mS3Client.completeMultipartUpload( request ));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abort();
+                throw new IOException("S3MultipartOutputStream: interrupted");
+            } catch (ExecutionException e) {
+                abort();
+                throw new IOException("S3MultipartOutputStream: " + e.getCause().getLocalizedMessage(), e.getCause());
+            } catch (IOException | SdkClientException e) {
+                abort();
+                throw (e instanceof IOException) ? (IOException)e : new IOException(e.getLocalizedMessage(), e);
+            } finally {
+                if (mBuffer != null) {
+                    mPool.release( mBuffer );
+                    mBuffer = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Abort the upload without writing the image (for example, if the image writer failed).
+     */
+    public void cancel() {
+        if (! mFinished) {
+            mFinished = true;
+            mFailed = true;
+            abort();
+            if (mBuffer != null) {
+                mPool.release( mBuffer );
+                mBuffer = null;
+            }
+        }
+    }
+
+}
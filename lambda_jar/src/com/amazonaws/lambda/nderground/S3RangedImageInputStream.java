@@ -0,0 +1,475 @@
+/** \file
+ *
+ * Feb 18, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * <h3>
+ * S3RangedImageInputStream
+ * </h3>
+ * <p>
+ * An ImageInputStream for a large image that is downloaded from S3 over several connections at the same time. The
+ * object is divided into ranges of rangeSize bytes, which are read into one buffer from the BufferPool, sized from the
+ * S3 Content-Length.
+ * </p>
+ * <p>
+ * The download starts with the GET that S3Service has already opened for the whole object. That stream reads the
+ * ranges from the front of the object, in order, while up to (concurrency - 1) ranged GETs read the ranges from the
+ * back of the object. When the two meet, the front stream is aborted. The ranged GETs are conditional on the ETag of
+ * the first GET, so an object that is replaced during the download is not mixed with the new version. The ranged
+ * GETs are made through the S3LatencyPolicy, with its GET deadline, retries and hedging.
+ * </p>
+ * <p>
+ * A read blocks until the bytes that it needs have arrived, so the image decoder can start on the front of the image
+ * while the later ranges are still downloading. awaitDownload() waits for the whole object. A read, or
+ * awaitDownload(), fails if the download makes no progress for the GET deadline of the latency policy.
+ * </p>
+ * <p>
+ * Feb 18, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class S3RangedImageInputStream extends ImageInputStreamImpl {
+    /** the front stream makes its progress visible to the reader after every READ_CHUNK bytes */
+    private final static int READ_CHUNK = 64 * 1024;
+
+    private final AmazonS3 mS3Client;
+    private final S3LatencyPolicy mLatencyPolicy;
+    private final String mS3Bucket;
+    private final String mS3Key;
+    private final String mETag;
+    private final int mLength;
+    private final int mRangeSize;
+    private final int mNumRanges;
+    private final BufferPool mPool;
+    private final byte[] mBuffer;
+    private final Object mLock = new Object();
+    private LocalObjectCache mLocalCache = null;
+
+    // the fields below are guarded by mLock
+    private final boolean[] mArrived;
+    /** the number of bytes, from the start of the object, that the front stream has read */
+    private int mFrontBytes = 0;
+    private int mNextFront = 0;
+    private int mNextBack;
+    /** incremented when bytes arrive, for the progress deadline */
+    private long mProgress = 0;
+    private int mActiveTasks = 0;
+    private int mRangeGets = 0;
+    private boolean mCancelled = false;
+    private boolean mReleased = false;
+    private IOException mError = null;
+
+    /**
+     * Start the download. The stream takes ownership of s3Object.
+     *
+     * @param s3Client the S3 client for the ranged GETs
+     * @param latencyPolicy the deadlines and retries for the ranged GETs
+     * @param s3Bucket the S3 bucket
+     * @param s3Key the path of the object
+     * @param s3Object the object, from a GET of the whole object. Its Content-Length is the size of the buffer.
+     * @param rangeSize the number of bytes fetched by each ranged GET
+     * @param concurrency the maximum number of connections used for the download, including s3Object
+     * @param pool the pool for the buffer
+     */
+    public S3RangedImageInputStream( AmazonS3 s3Client, S3LatencyPolicy latencyPolicy, String s3Bucket, String s3Key, 
+                                     S3Object s3Object, int rangeSize, int concurrency, BufferPool pool ) {
+        this.mS3Client = s3Client;
+        this.mLatencyPolicy = latencyPolicy;
+        this.mS3Bucket = s3Bucket;
+        this.mS3Key = s3Key;
+        this.mETag = s3Object.getObjectMetadata().getETag();
+        this.mLength = (int)s3Object.getObjectMetadata().getContentLength();
+        this.mRangeSize = rangeSize;
+        this.mNumRanges = (int)(((long)mLength + rangeSize - 1) / rangeSize);
+        this.mPool = pool;
+        this.mBuffer = pool.acquire( mLength );
+        this.mArrived = new boolean[ mNumRanges ];
+        this.mNextBack = mNumRanges - 1;
+        int numBackTasks = Math.max(0, Math.min(concurrency - 1, mNumRanges - 1));
+        mActiveTasks = 1 + numBackTasks;
+        ImagePipelineExecutors.getS3TransferExecutor().execute(() -> readFront( s3Object ));
+        for (int i = 0; i < numBackTasks; i++) {
+            ImagePipelineExecutors.getS3TransferExecutor().execute(() -> readBack());
+        }
+    }
+
+    private int rangeStart(int range) {
+        return range * mRangeSize;
+    }
+
+    private int rangeEnd(int range) {
+        return (int)Math.min((long)(range + 1) * mRangeSize, mLength);
+    }
+
+    private boolean isStopped() {
+        return mCancelled || mError != null;
+    }
+
+    /**
+     * @return the next range from the front of the object, or -1 if the front stream has met the ranged GETs
+     */
+    private int claimFront() {
+        int range = -1;
+        synchronized (mLock) {
+            if (! isStopped() && mNextFront <= mNextBack) {
+                range = mNextFront++;
+            }
+        }
+        return range;
+    }
+
+    /**
+     * @return the next range from the back of the object, or -1 if all of the ranges have been claimed
+     */
+    private int claimBack() {
+        int range = -1;
+        synchronized (mLock) {
+            if (! isStopped() && mNextBack >= mNextFront) {
+                range = mNextBack--;
+                mRangeGets++;
+            }
+        }
+        return range;
+    }
+
+    private void rangeArrived(int range) {
+        synchronized (mLock) {
+            mArrived[ range ] = true;
+            mProgress++;
+            mLock.notifyAll();
+        }
+    }
+
+    private void fail(Exception e) {
+        synchronized (mLock) {
+            if (mError == null && !mCancelled) {
+                String msg = "S3RangedImageInputStream: error downloading " + mS3Key + ": " + e.getLocalizedMessage();
+                mError = new IOException( msg, e );
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Called when a download task finishes. If the stream was closed while the task was running, the last task
+     * returns the buffer to the pool.
+     */
+    private void taskDone() {
+        boolean release = false;
+        synchronized (mLock) {
+            mActiveTasks--;
+            release = mCancelled && mActiveTasks == 0 && !mReleased;
+            if (release) {
+                mReleased = true;
+            }
+            mLock.notifyAll();
+        }
+        if (release) {
+            mPool.release( mBuffer );
+        }
+    }
+
+    /**
+     * Read the ranges at the front of the object from the GET that was opened for the whole object.
+     */
+    private void readFront(S3Object s3Object) {
+        boolean readAll = false;
+        try {
+            InputStream istream = s3Object.getObjectContent();
+            int range;
+            while ((range = claimFront()) >= 0) {
+                int pos = rangeStart( range );
+                int end = rangeEnd( range );
+                while (pos < end) {
+                    int n = istream.read(mBuffer, pos, Math.min(READ_CHUNK, end - pos));
+                    if (n < 0) {
+                        throw new IOException("unexpected end of stream at byte " + pos);
+                    }
+                    pos += n;
+                    synchronized (mLock) {
+                        if (isStopped()) {
+                            break;
+                        }
+                        mFrontBytes = pos;
+                        mProgress++;
+                        mLock.notifyAll();
+                    }
+                }
+                if (pos == end) {
+                    rangeArrived( range );
+                }
+            }
+            readAll = mFrontBytes == mLength;
+        } catch (IOException | RuntimeException e) {
+            fail( e );
+        } finally {
+            if (! readAll) {
+                // the rest of the object was read by the ranged GETs. Dropping the connection is faster than reading it.
+                s3Object.getObjectContent().abort();
+            }
+            try { s3Object.close(); } catch (IOException e) {}
+            taskDone();
+        }
+    }
+
+    /**
+     * Read ranges from the back of the object with ranged GETs.
+     */
+    private void readBack() {
+        try {
+            int range;
+            while ((range = claimBack()) >= 0) {
+                fetchRange( range );
+            }
+        } catch (IOException | RuntimeException e) {
+            fail( e );
+        } finally {
+            taskDone();
+        }
+    }
+
+    private void fetchRange(int range) throws IOException {
+        int pos = rangeStart( range );
+        int end = rangeEnd( range );
+        GetObjectRequest request = new GetObjectRequest( mS3Bucket, mS3Key ).withRange(pos, end - 1);
+        if (mETag != null) {
+            request.withMatchingETagConstraint( mETag );
+        }
+        S3Object s3Object = mLatencyPolicy.getObject( mS3Client, request );
+        if (s3Object == null) {
+            // the ETag constraint was not met
+            throw new IOException("the object changed during the download");
+        }
+        boolean readAll = false;
+        try {
+            InputStream istream = s3Object.getObjectContent();
+            while (pos < end && !isCancelled()) {
+                int n = istream.read(mBuffer, pos, end - pos);
+                if (n < 0) {
+                    throw new IOException("unexpected end of stream at byte " + pos);
+                }
+                pos += n;
+            }
+            readAll = pos == end;
+            if (readAll) {
+                rangeArrived( range );
+            }
+        } finally {
+            if (! readAll) {
+                s3Object.getObjectContent().abort();
+            }
+            s3Object.close();
+        }
+    }
+
+    private boolean isCancelled() {
+        synchronized (mLock) {
+            return mCancelled;
+        }
+    }
+
+    private long progressDeadline() {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( mLatencyPolicy.getGetDeadlineMillis() );
+    }
+
+    /**
+     * Wait for the download to make progress. mLock must be held. If no bytes arrive by the deadline, the download
+     * is stopped with an error.
+     *
+     * @param deadline the progress deadline (System.nanoTime())
+     * @return the deadline for the next wait: a new deadline if bytes arrived
+     */
+    private long awaitProgress(long deadline) throws IOException {
+        long progress = mProgress;
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            mError = new IOException("S3RangedImageInputStream: the download of " + mS3Key + " made no progress for " + 
+                                     mLatencyPolicy.getGetDeadlineMillis() + " ms");
+            mLock.notifyAll();
+            throw mError;
+        }
+        try {
+            TimeUnit.NANOSECONDS.timedWait(mLock, remaining);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("S3RangedImageInputStream: interrupted");
+        }
+        return (mProgress != progress) ? progressDeadline() : deadline;
+    }
+
+    /**
+     * Wait until the byte at pos has arrived.
+     *
+     * @return the end of the run of bytes, starting at pos, that can be read
+     */
+    private int waitFor(int pos) throws IOException {
+        int end = pos;
+        synchronized (mLock) {
+            long deadline = progressDeadline();
+            while (end == pos) {
+                if (mError != null) {
+                    throw mError;
+                }
+                int range = pos / mRangeSize;
+                if (mArrived[ range ]) {
+                    end = rangeEnd( range );
+                } else if (pos < mFrontBytes) {
+                    end = mFrontBytes;
+                } else if (mActiveTasks == 0) {
+                    throw new IOException("S3RangedImageInputStream: the download of " + mS3Key + " stopped at byte " + pos);
+                } else {
+                    deadline = awaitProgress( deadline );
+                }
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Wait until the whole object has been downloaded.
+     *
+     * @throws IOException if the download failed, or made no progress for the GET deadline
+     */
+    public void awaitDownload() throws IOException {
+        if (mLength > 0) {
+            synchronized (mLock) {
+                long deadline = progressDeadline();
+                for (int range = 0; range < mNumRanges; range++) {
+                    while (! mArrived[ range ]) {
+                        if (mError != null) {
+                            throw mError;
+                        }
+                        if (mActiveTasks == 0) {
+                            throw new IOException("S3RangedImageInputStream: the download of " + mS3Key + " is incomplete");
+                        }
+                        deadline = awaitProgress( deadline );
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the whole object has been downloaded
+     */
+    public boolean isComplete() {
+        boolean complete = true;
+        synchronized (mLock) {
+            for (int range = 0; range < mNumRanges && complete; range++) {
+                complete = mArrived[ range ];
+            }
+            complete = complete && mError == null;
+        }
+        return complete;
+    }
+
+    /**
+     * @param localCache if not null, the object is added to this cache when the stream is closed, if the whole
+     *        object was downloaded
+     */
+    public void setLocalCache(LocalObjectCache localCache) {
+        this.mLocalCache = localCache;
+    }
+
+    /**
+     * @return the number of ranged GETs made, not counting the GET for the whole object
+     */
+    public int getRangeGets() {
+        synchronized (mLock) {
+            return mRangeGets;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        int b = -1;
+        if (streamPos < mLength) {
+            waitFor( (int)streamPos );
+            bitOffset = 0;
+            b = mBuffer[ (int)streamPos++ ] & 0xff;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException("S3RangedImageInputStream: bad offset or length");
+        }
+        int numBytes = -1;
+        if (len == 0) {
+            numBytes = 0;
+        } else if (streamPos < mLength) {
+            int end = waitFor( (int)streamPos );
+            bitOffset = 0;
+            numBytes = (int)Math.min(len, end - streamPos);
+            System.arraycopy(mBuffer, (int)streamPos, b, off, numBytes);
+            streamPos += numBytes;
+        }
+        return numBytes;
+    }
+
+    @Override
+    public long length() {
+        return mLength;
+    }
+
+    @Override
+    public boolean isCached() {
+        return true;
+    }
+
+    @Override
+    public boolean isCachedMemory() {
+        return true;
+    }
+
+    /**
+     * Close the stream and stop the download. A complete download is added to the local cache, on the cache's write
+     * executor. The buffer is returned to the pool when the download tasks and the cache write have stopped.
+     */
+    @Override
+    public void close() throws IOException {
+        super.close();
+        boolean cache = mLocalCache != null && isComplete();
+        boolean release = false;
+        synchronized (mLock) {
+            mCancelled = true;
+            if (cache) {
+                // the cache write holds the buffer, like a download task
+                mActiveTasks++;
+            }
+            release = mActiveTasks == 0 && !mReleased;
+            if (release) {
+                mReleased = true;
+            }
+            mLock.notifyAll();
+        }
+        if (cache) {
+            mLocalCache.putLater(mS3Bucket, mS3Key, mETag, mBuffer, mLength, this::taskDone);
+        }
+        if (release) {
+            mPool.release( mBuffer );
+        }
+    }
+
+}
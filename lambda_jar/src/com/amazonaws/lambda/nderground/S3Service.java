@@ -13,20 +13,21 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.Map;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.FileCacheImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 
 import com.amazonaws.AmazonClientException;
-import com.amazonaws.ClientConfiguration;
-import com.amazonaws.Protocol;
 import com.amazonaws.SdkClientException;
-import com.amazonaws.auth.AWSStaticCredentialsProvider;
-import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.PutObjectResult;
@@ -48,11 +49,40 @@ import com.amazonaws.util.Base64;
  * @author Ian Kaplan, iank@bearcave.com
  */
 public class S3Service {
+    /* The image header is read from the start of the file with a ranged GET. Most image headers fit in the
+     * first PROBE_BYTES. If the header is larger (e.g., a JPEG with a large EXIF block) the range is doubled
+     * until MAX_PROBE_BYTES; each GET only reads the bytes after the bytes that were already read.
+     */
+    private final static int PROBE_BYTES = 16 * 1024;
+    private final static int MAX_PROBE_BYTES = 1024 * 1024;
+    
+    /**
+     * The result of readImage(): the stream for the image and the ETag of the image that was read.
+     */
+    public static class ImageRead {
+        private final ImageInputStream mStream;
+        private final String mETag;
+        
+        ImageRead(ImageInputStream stream, String eTag) {
+            this.mStream = stream;
+            this.mETag = eTag;
+        }
+        
+        /** @return the stream for the image, or null if the image has not changed or could not be read */
+        public ImageInputStream getStream() { return mStream; }
+        
+        /** @return the ETag of the image (the notETag if the image has not changed), or null if there was an error */
+        public String getETag() { return mETag; }
+    }
+    
     private final String mAWS_ID;
     private final String mAWS_KEY;
     private final String mS3Bucket;
     private final String mAWSRegionName;
     private AmazonS3 s3Client = null;
+    private S3TransferSettings mTransferSettings = S3TransferSettings.getDefaultSettings();
+    private S3LatencyPolicy mLatencyPolicy = S3LatencyPolicy.getDefaultPolicy();
+    private LocalObjectCache mLocalCache = LocalObjectCache.getCache();
     
     public S3Service(String awsRegionName, String s3Bucket, String AWS_ID, String AWS_KEY) {
         this.mAWSRegionName = awsRegionName;
@@ -65,24 +95,47 @@ public class S3Service {
     private String getAWS_ID() { return this.mAWS_ID; }
     private String getAWS_KEY() { return this.mAWS_KEY; }
     private String getRegionName() { return this.mAWSRegionName; }
+    
+    public S3TransferSettings getTransferSettings() {
+        return mTransferSettings;
+    }
+
+    public void setTransferSettings(S3TransferSettings transferSettings) {
+        this.mTransferSettings = transferSettings;
+    }
+
+    /**
+     * @return the deadline, retry and hedging policy for S3 requests (see S3LatencyPolicy)
+     */
+    public S3LatencyPolicy getLatencyPolicy() {
+        return mLatencyPolicy;
+    }
+
+    public void setLatencyPolicy(S3LatencyPolicy latencyPolicy) {
+        this.mLatencyPolicy = latencyPolicy;
+    }
+
+    /**
+     * @return the cache of image files in the local file system (see LocalObjectCache)
+     */
+    public LocalObjectCache getLocalCache() {
+        return mLocalCache;
+    }
+
+    public void setLocalCache(LocalObjectCache localCache) {
+        this.mLocalCache = localCache;
+    }
 
     /**
      * 
-     * Build an AmazonS3 client. This method uses the new Amazon interface, which, interestingly, requires a region
-     * name.
+     * Return an AmazonS3 client. Clients are built by the process wide S3ClientRegistry so that a client (and its
+     * connection pool) is reused across warm Lambda invocations.
      * 
      * @return An Amazon S3 client
      */
     protected AmazonS3 getS3Client(String AWS_ID, String AWS_KEY) {
-        BasicAWSCredentials credentials = new BasicAWSCredentials( AWS_ID, AWS_KEY );
-        AWSStaticCredentialsProvider credentialProvider = new AWSStaticCredentialsProvider( credentials );
-        ClientConfiguration config = new ClientConfiguration();
-        config.setProtocol(Protocol.HTTP);
-        AmazonS3ClientBuilder clientBuilder = AmazonS3ClientBuilder.standard();
-        clientBuilder.setCredentials(credentialProvider);
-        clientBuilder.setClientConfiguration(config);
-        clientBuilder.setRegion(getRegionName());
-        AmazonS3 s3client = clientBuilder.build();
+        AmazonS3 s3client = S3ClientRegistry.getRegistry().getClient(getRegionName(), getS3Bucket(), AWS_ID, AWS_KEY,
+                                                                      getTransferSettings().getEndpoint());
         return s3client;
     }
     
@@ -95,6 +148,34 @@ public class S3Service {
     }
     
     
+    /**
+     * Read the metadata of an S3 object (a HEAD request), with the GET deadline and retries.
+     * 
+     * @param s3Path the path of the object
+     * @param logger a logger for errors
+     * @return the object metadata, or null if the object does not exist or there was an error. A missing object is
+     *         not logged as an error.
+     */
+    public ObjectMetadata getObjectMetadata(String s3Path, AbstractLoggerInterface logger) {
+        ObjectMetadata metadata = null;
+        ImageMetrics metrics = ImageMetrics.current();
+        long start = metrics.begin();
+        try {
+            final GetObjectMetadataRequest request = new GetObjectMetadataRequest( getS3Bucket(), s3Path );
+            metadata = getLatencyPolicy().execute("HEAD " + s3Path, () -> getS3Client().getObjectMetadata( request ),
+                                                  getLatencyPolicy().getGetDeadlineMillis(), true, null);
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() != 404) {
+                logger.log("S3Service::getObjectMetadata: error reading the metadata for " + s3Path + ": " + e.getLocalizedMessage());
+            }
+        } catch (SdkClientException e) {
+            logger.log("S3Service::getObjectMetadata: error reading the metadata for " + s3Path + ": " + e.getLocalizedMessage());
+        }
+        metrics.end(ImageMetrics.Stage.METADATA, start);
+        return metadata;
+    }
+    
+    
     /**
      * Delete an S3 object.
      * 
@@ -127,7 +208,7 @@ public class S3Service {
                                        AbstractLoggerInterface logger) {
         InputStream istream = null;
         try {
-            S3Object s3Obj = getS3Client().getObject( getS3Bucket(), s3Path );
+            S3Object s3Obj = getLatencyPolicy().getObject( getS3Client(), new GetObjectRequest( getS3Bucket(), s3Path ) );
             istream = s3Obj.getObjectContent();
         } catch (SdkClientException e) {
             String msg = "Error reading S3 path " + s3Path + ": " + e.getLocalizedMessage();
@@ -138,45 +219,438 @@ public class S3Service {
     
     
     /**
-     * Write an InputStream to an S3 bucket.
+     * Read exactly numBytes from an InputStream into the buffer.
+     */
+    private static void readFully(InputStream istream, byte[] buffer, int numBytes) throws IOException {
+        int offset = 0;
+        while (offset < numBytes) {
+            int n = istream.read(buffer, offset, numBytes - offset);
+            if (n < 0) {
+                throw new IOException("unexpected end of stream after " + offset + " of " + numBytes + " bytes");
+            }
+            offset += n;
+        }
+    }
+    
+    
+    /**
+     * <h3>
+     * s3ToImageInputStream
+     * </h3>
+     * <p>
+     * Return an ImageInputStream for an image stored on S3. If the image size (the S3 Content-Length) is no larger
+     * than the maxInMemoryBytes transfer setting, the image is read into a buffer from the BufferPool and the
+     * ImageInputStream reads from the buffer. The buffer is returned to the pool when the stream is closed.
+     * </p>
+     * <p>
+     * A larger image is streamed from S3, through the ImageIO stream cache (a temporary file, if ImageIO.getUseCache()
+     * is true). Closing the ImageInputStream closes the S3 stream.
+     * </p>
+     * <p>
+     * An in-memory image that is larger than the rangedGetThreshold transfer setting is downloaded over several
+     * connections with ranged GETs (see S3RangedImageInputStream). Smaller images are read with a single GET.
+     * </p>
+     * <p>
+     * In-memory images are also written to the LocalObjectCache, off the request thread, after the stream is closed.
+     * When the cache has a copy of the image, the GET
+     * is conditional on the ETag of the copy and, if the image has not changed, the copy is read through a memory
+     * mapped file.
+     * </p>
+     * 
+     * @param s3Path the S3 path to the image
+     * @param logger a logger for errors
+     * @return an ImageInputStream, or null if the image could not be read. The caller must close the stream.
+     */
+    public ImageInputStream s3ToImageInputStream(String s3Path, AbstractLoggerInterface logger) {
+        return readImage(s3Path, null, logger).getStream();
+    }
+    
+    
+    /**
+     * <p>
+     * Return an ImageInputStream for an image stored on S3, unless the image still has the ETag notETag (a
+     * conditional GET, with If-None-Match). This is used to validate a cached copy of the image: if the image has
+     * not changed, S3 does not send it.
+     * </p>
+     * 
+     * @param s3Path the S3 path to the image
+     * @param notETag the ETag of a cached copy of the image, or null for an unconditional GET
+     * @param logger a logger for errors
+     * @return the ImageInputStream (null if the image has not changed or could not be read) and the ETag of the 
+     *         image. The caller must close the stream.
+     */
+    public ImageRead readImage(String s3Path, String notETag, AbstractLoggerInterface logger) {
+        ImageInputStream imageStream = null;
+        String eTag = null;
+        S3Object s3Obj = null;
+        ImageMetrics metrics = ImageMetrics.current();
+        long start = metrics.begin();
+        try {
+            LocalObjectCache localCache = getLocalCache();
+            // a caller that validates its own copy (notETag) does not want the image, so the local copy is not used
+            String localETag = (notETag == null && localCache != null) ? localCache.getETag( getS3Bucket(), s3Path ) : null;
+            GetObjectRequest request = new GetObjectRequest( getS3Bucket(), s3Path );
+            if (notETag != null) {
+                request.withNonmatchingETagConstraint( notETag );
+            } else if (localETag != null) {
+                request.withNonmatchingETagConstraint( localETag );
+            }
+            s3Obj = getLatencyPolicy().getObject( getS3Client(), request );
+            if (s3Obj == null && localETag != null) {
+                // the local copy is current
+                imageStream = localCache.open( getS3Bucket(), s3Path, localETag );
+                if (imageStream == null) {
+                    s3Obj = getLatencyPolicy().getObject( getS3Client(), new GetObjectRequest( getS3Bucket(), s3Path ) );
+                } else {
+                    metrics.increment(ImageMetrics.Counter.DISK_CACHE_HITS);
+                    metrics.add(ImageMetrics.Counter.SOURCE_BYTES, imageStream.length());
+                    eTag = localETag;
+                }
+            }
+            if (s3Obj == null && imageStream == null) {
+                // Not Modified: the SDK returns null when the constraint is not met
+                eTag = notETag;
+            } else if (s3Obj != null) {
+                eTag = s3Obj.getObjectMetadata().getETag();
+                long contentLength = s3Obj.getObjectMetadata().getContentLength();
+                metrics.add(ImageMetrics.Counter.SOURCE_BYTES, contentLength);
+                S3TransferSettings settings = getTransferSettings();
+                boolean inMemory = contentLength > 0 && contentLength <= settings.getMaxInMemoryBytes() && contentLength < Integer.MAX_VALUE;
+                if (inMemory && settings.getRangedGetThreshold() > 0 && contentLength > settings.getRangedGetThreshold() && 
+                    settings.getDownloadConcurrency() > 1) {
+                    // the ranged stream owns the S3 object
+                    S3Object rangedObj = s3Obj;
+                    s3Obj = null;
+                    imageStream = rangedImageInputStream( s3Path, rangedObj, settings );
+                } else if (inMemory) {
+                    final BufferPool pool = BufferPool.getPool();
+                    final byte[] buffer = pool.acquire( (int)contentLength );
+                    try {
+                        readFully( s3Obj.getObjectContent(), buffer, (int)contentLength );
+                        imageStream = cachingImageInputStream( localCache, s3Path, s3Obj.getObjectMetadata().getETag(), 
+                                                               buffer, (int)contentLength, pool );
+                    } finally {
+                        if (imageStream == null) {
+                            pool.release( buffer );
+                        }
+                        s3Obj.close();
+                    }
+                } else {
+                    final S3Object streamObj = s3Obj;
+                    if (ImageIO.getUseCache()) {
+                        imageStream = new FileCacheImageInputStream( streamObj.getObjectContent(), ImageIO.getCacheDirectory() ) {
+                            @Override
+                            public void close() throws IOException {
+                                super.close();
+                                streamObj.close();
+                            }
+                        };
+                    } else {
+                        imageStream = new MemoryCacheImageInputStream( streamObj.getObjectContent() ) {
+                            @Override
+                            public void close() throws IOException {
+                                super.close();
+                                streamObj.close();
+                            }
+                        };
+                    }
+                }
+            }
+        } catch (SdkClientException | IOException e) {
+            String msg = "S3Service::s3ToImageInputStream: error reading S3 path " + s3Path + ": " + e.getLocalizedMessage();
+            logger.log( msg );
+            eTag = null;
+            if (s3Obj != null && imageStream == null) {
+                try { s3Obj.close(); } catch (IOException closeEx) {}
+            }
+        }
+        metrics.end(ImageMetrics.Stage.DOWNLOAD, start);
+        return new ImageRead(imageStream, eTag);
+    }
+    
+    
+    /**
+     * @return an ImageInputStream for an image that has been read into a buffer from the pool. If there is a local
+     *         cache, the image is added to the cache when the stream is closed (when the image has been decoded), on
+     *         the cache's write executor, and the buffer is returned to the pool after the write.
+     */
+    private ImageInputStream cachingImageInputStream(final LocalObjectCache localCache, final String s3Path, final String eTag,
+                                                     final byte[] buffer, final int length, final BufferPool pool) {
+        ImageInputStream imageStream = null;
+        if (localCache != null && localCache.isEnabled()) {
+            final String s3Bucket = getS3Bucket();
+            imageStream = new ByteArrayImageInputStream( buffer, length ) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    localCache.putLater(s3Bucket, s3Path, eTag, buffer, length, () -> pool.release( buffer ));
+                }
+            };
+        } else {
+            imageStream = new ByteArrayImageInputStream( buffer, length, pool );
+        }
+        return imageStream;
+    }
+    
+    
+    /**
+     * Download an image with parallel ranged GETs. If the decodeWhileDownloading transfer setting is false, the
+     * download is finished before the stream is returned.
+     * 
+     * @param s3Obj the GET for the whole object. The ImageInputStream takes ownership of the object.
+     */
+    private ImageInputStream rangedImageInputStream(String s3Path, S3Object s3Obj, S3TransferSettings settings) throws IOException {
+        S3RangedImageInputStream rangedStream = new S3RangedImageInputStream( getS3Client(), getLatencyPolicy(), getS3Bucket(), s3Path, s3Obj,
+                                                                              settings.getRangeSize(), 
+                                                                              settings.getDownloadConcurrency(),
+                                                                              BufferPool.getPool() );
+        rangedStream.setLocalCache( getLocalCache() );
+        if (! settings.isDecodeWhileDownloading()) {
+            try {
+                rangedStream.awaitDownload();
+            } catch (IOException e) {
+                rangedStream.close();
+                throw e;
+            }
+        }
+        return rangedStream;
+    }
+    
+    
+    /**
+     * Read the bytes from start up to (not including) end of an S3 object and append them to outStream. If eTag is
+     * not null, the bytes are only read if the object still has that ETag.
+     * 
+     * @return false if the object no longer has the ETag
+     */
+    private boolean readObjectRange(String s3Path, long start, long end, String eTag, ByteArrayOutputStream outStream,
+                                    ObjectMetadata[] metadataOut) throws IOException {
+        GetObjectRequest request = new GetObjectRequest( getS3Bucket(), s3Path ).withRange(start, end - 1);
+        if (eTag != null) {
+            request.withMatchingETagConstraint( eTag );
+        }
+        S3Object s3Obj = getLatencyPolicy().getObject( getS3Client(), request );
+        boolean found = s3Obj != null;
+        if (found) {
+            try {
+                metadataOut[0] = s3Obj.getObjectMetadata();
+                InputStream istream = s3Obj.getObjectContent();
+                byte[] buf = new byte[ 8192 ];
+                int n;
+                while ((n = istream.read(buf)) > 0) {
+                    outStream.write(buf, 0, n);
+                }
+            }
+            finally {
+                s3Obj.close();
+            }
+        }
+        return found;
+    }
+    
+    
+    /**
+     * <h3>
+     * probeImage
+     * </h3>
+     * <p>
+     * Read the image header for an image stored on S3, without downloading or decoding the image. Only the start
+     * of the file is read, using ranged GETs. If the header is not in the bytes that have been read, the next GET
+     * reads the bytes that follow them, so no byte is read twice.
+     * </p>
+     * 
+     * @param s3Path the S3 path to the image
+     * @param sourceMetadata the metadata of the image from a HEAD request (see getObjectMetadata), or null. The
+     *        file size and ETag are taken from the metadata, and the header is only read from that version of
+     *        the image.
+     * @param logger a logger for errors
+     * @return the image header, along with the image file size and ETag, or null if the header could not be read.
+     */
+    public ImageHeader probeImage(String s3Path, ObjectMetadata sourceMetadata, AbstractLoggerInterface logger) {
+        ImageHeader header = null;
+        long fileSize = (sourceMetadata != null) ? sourceMetadata.getContentLength() : -1;
+        String eTag = (sourceMetadata != null) ? sourceMetadata.getETag() : null;
+        ByteArrayOutputStream prefix = new ByteArrayOutputStream( PROBE_BYTES );
+        int numBytes = PROBE_BYTES;
+        boolean done = false;
+        ImageMetrics metrics = ImageMetrics.current();
+        long start = metrics.begin();
+        try {
+            while (! done) {
+                ObjectMetadata[] metadata = new ObjectMetadata[1];
+                if (! readObjectRange( s3Path, prefix.size(), numBytes, eTag, prefix, metadata )) {
+                    logger.log("S3Service::probeImage: " + s3Path + " has changed");
+                    done = true;
+                } else {
+                    if (fileSize < 0) {
+                        fileSize = metadata[0].getInstanceLength();
+                    }
+                    if (eTag == null) {
+                        eTag = metadata[0].getETag();
+                    }
+                    ImageInputStream imageStream = new MemoryCacheImageInputStream( new ByteArrayInputStream( prefix.toByteArray() ) );
+                    ImageReader reader = null;
+                    try {
+                        reader = ImageDecoder.getReader( imageStream );
+                        if (reader != null) {
+                            header = ImageDecoder.readHeader( reader );
+                            header.setContentLength( fileSize );
+                            header.setETag( eTag );
+                        }
+                        done = true;
+                    } catch (IOException e) {
+                        // the header is not in the prefix. Read the bytes that follow it
+                        if (prefix.size() >= fileSize || numBytes >= MAX_PROBE_BYTES) {
+                            done = true;
+                        }
+                        numBytes = numBytes * 2;
+                    }
+                    finally {
+                        if (reader != null) {
+                            reader.dispose();
+                        }
+                        imageStream.close();
+                    }
+                }
+            }
+        } catch (SdkClientException | IOException e) {
+            logger.log("S3Service::probeImage: error reading the image header for " + s3Path + ": " + e.getLocalizedMessage());
+        }
+        metrics.end(ImageMetrics.Stage.PROBE, start);
+        return header;
+    }
+    
+    
+    /**
+     * Read the image header for an image stored on S3 (see probeImage above). The file size and ETag are read
+     * with the header.
+     */
+    public ImageHeader probeImage(String s3Path, AbstractLoggerInterface logger) {
+        return probeImage(s3Path, null, logger);
+    }
+    
+    
+    /**
+     * Copy an S3 object to a new path in the same bucket. The copy is done by S3, so the object is not
+     * downloaded.
+     * 
+     * @param s3Path the path of the object to copy
+     * @param s3CopyPath the path for the copy
+     * @param logger a logger for errors
+     * @return true if the copy succeeded, false otherwise
+     */
+    public boolean copyObject(String s3Path, String s3CopyPath, AbstractLoggerInterface logger) {
+        return copyObject(s3Path, s3CopyPath, null, null, logger);
+    }
+    
+    
+    /**
+     * Copy an S3 object and add user metadata to the copy. The copy is only made if the object still has the
+     * ETag in sourceMetadata.
+     * 
+     * @param s3Path the path of the object to copy
+     * @param s3CopyPath the path for the copy
+     * @param sourceMetadata the metadata of the object (see getObjectMetadata()), or null for a plain copy
+     * @param userMetadata user metadata that is added to the metadata of the object, or null
+     * @param logger a logger for errors
+     * @return true if the copy succeeded, false otherwise
+     */
+    public boolean copyObject(String s3Path, String s3CopyPath, ObjectMetadata sourceMetadata, Map<String, String> userMetadata, 
+                              AbstractLoggerInterface logger) {
+        boolean copyOK = false;
+        ImageMetrics metrics = ImageMetrics.current();
+        long start = metrics.begin();
+        try {
+            final CopyObjectRequest copyRequest = new CopyObjectRequest( getS3Bucket(), s3Path, getS3Bucket(), s3CopyPath );
+            if (sourceMetadata != null && userMetadata != null) {
+                // the new metadata replaces all of the metadata of the object, so the HTTP headers are copied
+                ObjectMetadata copyMetadata = new ObjectMetadata();
+                if (sourceMetadata.getContentType() != null) {
+                    copyMetadata.setContentType( sourceMetadata.getContentType() );
+                }
+                if (sourceMetadata.getCacheControl() != null) {
+                    copyMetadata.setCacheControl( sourceMetadata.getCacheControl() );
+                }
+                if (sourceMetadata.getContentDisposition() != null) {
+                    copyMetadata.setContentDisposition( sourceMetadata.getContentDisposition() );
+                }
+                if (sourceMetadata.getContentEncoding() != null) {
+                    copyMetadata.setContentEncoding( sourceMetadata.getContentEncoding() );
+                }
+                copyMetadata.getUserMetadata().putAll( sourceMetadata.getUserMetadata() );
+                copyMetadata.getUserMetadata().putAll( userMetadata );
+                copyRequest.setNewObjectMetadata( copyMetadata );
+                copyRequest.withMatchingETagConstraint( sourceMetadata.getETag() );
+            }
+            // the SDK returns null when the ETag constraint is not met
+            copyOK = getLatencyPolicy().put("COPY " + s3CopyPath, () -> getS3Client().copyObject( copyRequest )) != null;
+            if (! copyOK) {
+                logger.log("S3Service::copyObject: " + s3Path + " changed before it was copied to " + s3CopyPath);
+            }
+        } catch (SdkClientException e) {
+            logger.log("S3Service::copyObject: error copying " + s3Path + " to " + s3CopyPath + ": " + e.getLocalizedMessage());
+        }
+        metrics.end(ImageMetrics.Stage.COPY, start);
+        return copyOK;
+    }
+    
+    
+    /**
+     * Write a buffer to an S3 bucket. The MD5 hash of the data is sent as the Content-MD5 header, so S3 checks the
+     * data that it receives, and the hash is compared with the hash that S3 returns. The buffer is not copied.
      * 
      * @param s3Key the "path" and file name for the object (e.g., /foo/bar/mySelfie.jpg)
-     * @param istream an InputStream for the object to be written to S3
-     * @param numBytes the size of the object, in bytes
-     * @param contentType the HTML content type.
-     * @return true if the hash of the S3 object is the same as the hash calculated from the input stream. False if there
+     * @param buffer the data to be written
+     * @param numBytes the number of bytes in the buffer to write
+     * @param md5 the MD5 hash of the data
+     * @param userMetadata the S3 user metadata for the object, or null
+     * @return true if the hash of the S3 object is the same as the hash of the data. False if there
      *         was a write failure or if the hash does not match.
-     * @throws AmazonClientException 
      */
-    private boolean writeStream(String s3Key, 
-                                InputStream istream, 
-                                long numBytes, 
-                                AbstractLoggerInterface logger) throws AmazonClientException {
+    private boolean writeBuffer(String s3Key, 
+                                byte[] buffer,
+                                int numBytes,
+                                byte[] md5,
+                                Map<String, String> userMetadata,
+                                AbstractLoggerInterface logger) {
         boolean hashOK = false;
-        // Calculate the MD5 hash as the data is written
+        ImageMetrics metrics = ImageMetrics.current();
+        long start = metrics.begin();
         try {
-        MessageDigest md = MessageDigest.getInstance("MD5");
-        DigestInputStream distream = new DigestInputStream(istream, md);
-        ObjectMetadata metadata = new ObjectMetadata();
-        metadata.setContentLength( numBytes );
-        PutObjectRequest putRequest = new PutObjectRequest( getS3Bucket(), s3Key, distream, metadata );
-        PutObjectResult rslt = getS3Client().putObject( putRequest );
-        String md5Hash = rslt.getContentMd5();
-        byte[] s3Digest = md.digest();
-        String s3MD5 = Base64.encodeAsString( s3Digest );
-        hashOK = md5Hash.equals(s3MD5);
-        if (! hashOK) {
-            logger.log("ImageDisplayController::writeStream: error writing to S3 storage for " + s3Key);
+            String md5Base64 = Base64.encodeAsString( md5 );
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength( numBytes );
+            metadata.setContentMD5( md5Base64 );
+            if (userMetadata != null) {
+                metadata.setUserMetadata( userMetadata );
+            }
+            // a retry needs a new request, with a new stream for the buffer
+            PutObjectResult rslt = getLatencyPolicy().put("PUT " + s3Key, () -> {
+                InputStream istream = new ByteArrayInputStream( buffer, 0, numBytes );
+                return getS3Client().putObject( new PutObjectRequest( getS3Bucket(), s3Key, istream, metadata ) );
+            });
+            String md5Hash = rslt.getContentMd5();
+            hashOK = md5Base64.equals(md5Hash);
+            if (! hashOK) {
+                logger.log("S3Service::writeBuffer: error writing to S3 storage for " + s3Key);
+            }
         }
+        catch (SdkClientException e) {
+            logger.log("S3Service::writeBuffer: error writing to S3 storage for " + s3Key + ": " + e.getLocalizedMessage());
         }
-        catch (NoSuchAlgorithmException e) {
-            
+        metrics.end(ImageMetrics.Stage.UPLOAD, start);
+        if (hashOK) {
+            metrics.add(ImageMetrics.Counter.OUTPUT_BYTES, numBytes);
         }
         return hashOK;
     }
     
     
-    private String getImageType(String contentType) {
+    /**
+     * @param contentType the MIME content type (e.g., image/jpeg)
+     * @return the image type name used by ImageIO.write() (e.g., jpeg). The default is jpeg.
+     */
+    public static String getImageType(String contentType) {
         final String prefix = "image/";
         String imageType = "jpeg";
         if (contentType != null) {
@@ -199,26 +673,19 @@ public class S3Service {
      A note on the code
      </h3>
      <p>
-     The hack to ByteArrayOutputStream was suggested in a StackOverflow post: http://stackoverflow.com/a/12253050/2341077
-     The ByteArrayOutputStream toByteArray() method makes a copy of of the data.  By overriding the method, the 
-     copy is eliminated. 
+     The image is encoded into a PooledImageOutputStream: a buffer from the BufferPool, with an initial size that is
+     estimated from the image size and format. The MD5 hash is calculated as the image writer writes the data, and
+     the buffer is uploaded to S3 without a copy. The buffer is returned to the pool after the upload, so a warm Lambda
+     function does not allocate a new output buffer for each image. If the estimated encoded size is at least the
+     multipart threshold, the image is streamed to S3 instead (see writeBufferedImageMultipart).
      </p>
      <p>
-     The constructor for ByteArrayInputStream(byte[] buf, int offset, int length) does not copy:
-     </p>
-     <blockquote>
-     Creates ByteArrayInputStream that uses buf as its buffer array. The initial value of pos is offset and the 
-     initial value of count is the minimum of offset+length and buf.length. The buffer array is not copied. 
-     The buffer's mark is set to the specified offset.
-     </blockquote>
-     <p>
-     The result is that the only data movement takes place in the ImageIO.write operation that writes to the
-     ByteArrayOutputStream.
+     Before it is encoded, the image is converted to a type that the ImageIO writer handles directly (see 
+     PixelFormats.encodeReady). For example, an image with alpha is flattened for a JPEG.
      </p>
      * 
      * @param s3Key the path where the image should be stored
      * @param image the image, in a BufferedImage object
-     * @param numBytes number of bytes for the file
      * @param contentType - the MIME content type
      * @return true if the hash from S3 matches the hash of the file.
      */
@@ -226,26 +693,189 @@ public class S3Service {
                                       BufferedImage image, 
                                       String contentType,
                                       AbstractLoggerInterface logger) {
+        return writeBufferedImage(s3Key, image, contentType, null, logger);
+    }
+    
+    
+    /**
+     * Write a BufferedImage object to Amazon S3 storage, with S3 user metadata (e.g., a RenditionFingerprint).
+     * 
+     * @param s3Key the path where the image should be stored
+     * @param image the image, in a BufferedImage object
+     * @param contentType - the MIME content type
+     * @param userMetadata the S3 user metadata for the image, or null
+     * @return true if the hash from S3 matches the hash of the file.
+     */
+    public boolean writeBufferedImage(String s3Key, 
+                                      BufferedImage image, 
+                                      String contentType,
+                                      Map<String, String> userMetadata,
+                                      AbstractLoggerInterface logger) {
+        boolean imageOK = false;
+        if (image != null) {
+            if (isMultipartSize(image, contentType)) {
+                imageOK = writeBufferedImageMultipart(s3Key, image, contentType, userMetadata, logger);
+            } else {
+                PooledImageOutputStream encoded = encodeImage(image, contentType, logger);
+                if (encoded != null) {
+                    imageOK = writeEncodedImage(s3Key, encoded, userMetadata, logger);
+                }
+            }
+        } else {
+            logger.log( "Image is null" );
+        }
+        return imageOK;
+    }
+    
+    
+    /**
+     * @return true if the estimated encoded size of the image is at least the multipart threshold, so the image
+     *         should be written with writeBufferedImageMultipart()
+     */
+    public boolean isMultipartSize(BufferedImage image, String contentType) {
+        String imageType = getImageType( contentType );
+        int estimatedSize = PooledImageOutputStream.estimateSize(image.getWidth(), image.getHeight(), imageType);
+        return estimatedSize >= getTransferSettings().getMultipartThreshold();
+    }
+    
+    
+    /**
+     * Encode an image into a buffer from the BufferPool, for writeEncodedImage(). writeBufferedImage() encodes and
+     * uploads in one call; the two steps are separate so that the encode can run on a CPU thread and the upload on an
+     * I/O thread (see LambdaImageScaler.scaleImageAsync).
+     * 
+     * @param image the image
+     * @param contentType the MIME content type
+     * @param logger a logger for errors
+     * @return the encoded image, or null if there was an error. The caller must write or release the stream.
+     */
+    public PooledImageOutputStream encodeImage(BufferedImage image, String contentType, AbstractLoggerInterface logger) {
+        PooledImageOutputStream encoded = null;
+        ImageMetrics metrics = ImageMetrics.current();
+        long start = metrics.begin();
+        String imageType = getImageType( contentType );
+        int estimatedSize = PooledImageOutputStream.estimateSize(image.getWidth(), image.getHeight(), imageType);
+        BufferedImage encodeImage = PixelFormats.encodeReady(image, imageType);
+        PooledImageOutputStream outStream = new PooledImageOutputStream( BufferPool.getPool(), estimatedSize );
+        try {
+            if (ImageIO.write(encodeImage, imageType, outStream)) {
+                encoded = outStream;
+            } else {
+                logger.log( "S3Service::writeBufferedImage: no image writer for " + imageType );
+            }
+        }
+        catch(IllegalArgumentException e) {
+            logger.log( "Bad argument to ImageIO.write: " + e.getLocalizedMessage() );
+        }
+        catch(IOException e) {
+            logger.log( "Error encoding the image: " + e.getLocalizedMessage() );
+        }
+        finally {
+            if (encoded == null) {
+                outStream.release();
+            }
+            if (encodeImage != image) {
+                encodeImage.flush();
+            }
+        }
+        metrics.end(ImageMetrics.Stage.ENCODE, start);
+        return encoded;
+    }
+    
+    
+    /**
+     * Write an image encoded by encodeImage() to S3. The buffer is returned to the pool.
+     * 
+     * @param s3Key the path where the image should be stored
+     * @param encoded the encoded image
+     * @param userMetadata the S3 user metadata for the image, or null
+     * @param logger a logger for errors
+     * @return true if the hash from S3 matches the hash of the encoded image.
+     */
+    public boolean writeEncodedImage(String s3Key, PooledImageOutputStream encoded, Map<String, String> userMetadata, 
+                                     AbstractLoggerInterface logger) {
+        boolean imageOK = false;
+        try {
+            imageOK = writeBuffer(s3Key, encoded.getBuffer(), encoded.size(), encoded.getMD5(), userMetadata, logger);
+        }
+        finally {
+            encoded.release();
+        }
+        return imageOK;
+    }
+    
+    
+    /**
+     * <p>
+     * Write a BufferedImage object to Amazon S3 storage with a streaming multipart upload (see S3MultipartOutputStream).
+     * The encoded image is uploaded in parts as the image writer produces it, so the encoded image is never held in
+     * memory. The part size and the number of parts uploaded at the same time are set by the transfer settings.
+     * writeBufferedImage() uses this function for images with a large estimated encoded size.
+     * </p>
+     * 
+     * @param s3Key the path where the image should be stored
+     * @param image the image, in a BufferedImage object
+     * @param contentType - the MIME content type
+     * @return true if the image was written and every part matched its MD5 hash.
+     */
+    public boolean writeBufferedImageMultipart(String s3Key, 
+                                               BufferedImage image, 
+                                               String contentType,
+                                               AbstractLoggerInterface logger) {
+        return writeBufferedImageMultipart(s3Key, image, contentType, null, logger);
+    }
+    
+    
+    /**
+     * Write a BufferedImage object to Amazon S3 storage with a streaming multipart upload, with S3 user metadata.
+     * 
+     * @param s3Key the path where the image should be stored
+     * @param image the image, in a BufferedImage object
+     * @param contentType - the MIME content type
+     * @param userMetadata the S3 user metadata for the image, or null
+     * @return true if the image was written and every part matched its MD5 hash.
+     */
+    public boolean writeBufferedImageMultipart(String s3Key, 
+                                               BufferedImage image, 
+                                               String contentType,
+                                               Map<String, String> userMetadata,
+                                               AbstractLoggerInterface logger) {
         boolean imageOK = false;
         if (image != null) {
-            ByteArrayOutputStream outStream = new ByteArrayOutputStream() {
-                        @Override
-                        public synchronized byte[] toByteArray() {
-                            return this.buf;
-                        }
-                    }; // overridden class
             String imageType = getImageType( contentType );
+            BufferedImage encodeImage = PixelFormats.encodeReady(image, imageType);
+            S3TransferSettings settings = getTransferSettings();
+            S3MultipartOutputStream outStream = null;
+            // the image is encoded as it is uploaded, so the time is all upload time
+            ImageMetrics metrics = ImageMetrics.current();
+            long start = metrics.begin();
             try {
-                ImageIO.write(image, imageType, outStream);
-                int imageSize = outStream.size();
-                InputStream inStream = new ByteArrayInputStream(outStream.toByteArray(), 0, imageSize);
-                imageOK = writeStream(s3Key, inStream, imageSize, logger);
+                outStream = new S3MultipartOutputStream( getS3Client(), getLatencyPolicy(), getS3Bucket(), s3Key, settings.getPartSize(), 
+                                                         settings.getUploadConcurrency(), BufferPool.getPool() );
+                outStream.setUserMetadata( userMetadata );
+                if (ImageIO.write(encodeImage, imageType, outStream)) {
+                    long length = outStream.length();
+                    outStream.finish();
+                    imageOK = true;
+                    metrics.add(ImageMetrics.Counter.OUTPUT_BYTES, length);
+                } else {
+                    logger.log( "S3Service::writeBufferedImageMultipart: no image writer for " + imageType );
+                }
             }
             catch(IllegalArgumentException e) {
                 logger.log( "Bad argument to ImageIO.write: " + e.getLocalizedMessage() );
             }
-            catch(IOException e) {
-                logger.log( "Error writing to S3. Path = " + s3Key );
+            catch(IOException | SdkClientException e) {
+                logger.log( "S3Service::writeBufferedImageMultipart: error writing to S3. Path = " + s3Key + ": " + e.getLocalizedMessage() );
+            }
+            finally {
+                if (outStream != null && !imageOK) {
+                    outStream.cancel();
+                }
+                if (encodeImage != image) {
+                    encodeImage.flush();
+                }
+                metrics.end(ImageMetrics.Stage.UPLOAD, start);
             }
         } else {
             logger.log( "Image is null" );
@@ -0,0 +1,213 @@
+/** \file
+ *
+ * Feb 15, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+/**
+ * <h3>
+ * S3TransferSettings
+ * </h3>
+ * <p>
+ * Settings for how S3Service reads and writes image files. The default settings can be changed with Lambda
+ * environment variables (or Java system properties, for local tests):
+ * </p>
+ * <ul>
+ * <li>IMAGE_MAX_IN_MEMORY_BYTES: images up to this size are read into a memory buffer. Larger images are streamed.</li>
+ * <li>IMAGE_MULTIPART_THRESHOLD: scaled images with an estimated encoded size of at least this many bytes are
+ * uploaded with a streaming multipart upload.</li>
+ * <li>IMAGE_UPLOAD_PART_SIZE: the multipart upload part size (at least 5 Mb, the S3 minimum).</li>
+ * <li>IMAGE_UPLOAD_CONCURRENCY: the maximum number of parts that are uploaded at the same time.</li>
+ * <li>IMAGE_RANGED_GET_THRESHOLD: images larger than this are downloaded with parallel ranged GETs (0 turns off
+ * ranged downloads). Smaller images are read with a single GET.</li>
+ * <li>IMAGE_DOWNLOAD_RANGE_SIZE: the size of each ranged GET.</li>
+ * <li>IMAGE_DOWNLOAD_CONCURRENCY: the maximum number of connections used to download an image.</li>
+ * <li>IMAGE_DECODE_WHILE_DOWNLOADING: if true, the image decoder starts on the first bytes of a ranged download,
+ * while the later ranges are still arriving.</li>
+ * <li>IMAGE_S3_ENDPOINT: the S3 endpoint URL, for an S3 compatible service (e.g., http://localhost:9000 for a local S3
+ * stand-in). The default is the AWS endpoint for the region.</li>
+ * </ul>
+ * <p>
+ * Feb 15, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class S3TransferSettings {
+    public final static long DEFAULT_MAX_IN_MEMORY_BYTES = 64L * 1024 * 1024;
+    /** the smallest part allowed by S3 (except for the last part) */
+    public final static int MIN_PART_SIZE = 5 * 1024 * 1024;
+    public final static long DEFAULT_MULTIPART_THRESHOLD = 16L * 1024 * 1024;
+    public final static int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+    public final static int DEFAULT_UPLOAD_CONCURRENCY = 4;
+    public final static long DEFAULT_RANGED_GET_THRESHOLD = 8L * 1024 * 1024;
+    public final static int MIN_RANGE_SIZE = 64 * 1024;
+    public final static int DEFAULT_RANGE_SIZE = 2 * 1024 * 1024;
+    public final static int DEFAULT_DOWNLOAD_CONCURRENCY = 4;
+
+    private final static S3TransferSettings mDefaultSettings = fromEnvironment();
+
+    private long mMaxInMemoryBytes = DEFAULT_MAX_IN_MEMORY_BYTES;
+    private long mMultipartThreshold = DEFAULT_MULTIPART_THRESHOLD;
+    private int mPartSize = DEFAULT_PART_SIZE;
+    private int mUploadConcurrency = DEFAULT_UPLOAD_CONCURRENCY;
+    private long mRangedGetThreshold = DEFAULT_RANGED_GET_THRESHOLD;
+    private int mRangeSize = DEFAULT_RANGE_SIZE;
+    private int mDownloadConcurrency = DEFAULT_DOWNLOAD_CONCURRENCY;
+    private boolean mDecodeWhileDownloading = true;
+    private String mEndpoint = null;
+
+    public S3TransferSettings() {}
+
+    /**
+     * @return the default settings, read from the environment when the class is loaded
+     */
+    public static S3TransferSettings getDefaultSettings() {
+        return mDefaultSettings;
+    }
+
+    /**
+     * @return settings with the defaults, changed by any environment variables (or system properties) that are set
+     */
+    public static S3TransferSettings fromEnvironment() {
+        S3TransferSettings settings = new S3TransferSettings();
+        settings.setMaxInMemoryBytes( getLong("IMAGE_MAX_IN_MEMORY_BYTES", settings.getMaxInMemoryBytes()) );
+        settings.setMultipartThreshold( getLong("IMAGE_MULTIPART_THRESHOLD", settings.getMultipartThreshold()) );
+        settings.setPartSize( (int)getLong("IMAGE_UPLOAD_PART_SIZE", settings.getPartSize()) );
+        settings.setUploadConcurrency( (int)getLong("IMAGE_UPLOAD_CONCURRENCY", settings.getUploadConcurrency()) );
+        settings.setRangedGetThreshold( getLong("IMAGE_RANGED_GET_THRESHOLD", settings.getRangedGetThreshold()) );
+        settings.setRangeSize( (int)getLong("IMAGE_DOWNLOAD_RANGE_SIZE", settings.getRangeSize()) );
+        settings.setDownloadConcurrency( (int)getLong("IMAGE_DOWNLOAD_CONCURRENCY", settings.getDownloadConcurrency()) );
+        settings.setDecodeWhileDownloading( getBoolean("IMAGE_DECODE_WHILE_DOWNLOADING", settings.isDecodeWhileDownloading()) );
+        settings.setEndpoint( getSetting("IMAGE_S3_ENDPOINT") );
+        return settings;
+    }
+
+    /**
+     * @return the value of a system property or, if the property is not set, an environment variable (or null)
+     */
+    protected static String getSetting(String name) {
+        String str = System.getProperty( name );
+        if (str == null) {
+            str = System.getenv( name );
+        }
+        return str;
+    }
+
+    /**
+     * Read a numeric setting from a system property or an environment variable.
+     */
+    protected static long getLong(String name, long defaultValue) {
+        long value = defaultValue;
+        String str = getSetting( name );
+        if (str != null) {
+            try {
+                value = Long.parseLong( str.trim() );
+            } catch (NumberFormatException e) {
+                // keep the default
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Read a true/false setting from a system property or an environment variable.
+     */
+    protected static boolean getBoolean(String name, boolean defaultValue) {
+        boolean value = defaultValue;
+        String str = getSetting( name );
+        if (str != null && str.trim().length() > 0) {
+            value = Boolean.parseBoolean( str.trim() );
+        }
+        return value;
+    }
+
+    public long getMaxInMemoryBytes() {
+        return mMaxInMemoryBytes;
+    }
+
+    public void setMaxInMemoryBytes(long maxInMemoryBytes) {
+        this.mMaxInMemoryBytes = maxInMemoryBytes;
+    }
+
+    public long getMultipartThreshold() {
+        return mMultipartThreshold;
+    }
+
+    public void setMultipartThreshold(long multipartThreshold) {
+        this.mMultipartThreshold = multipartThreshold;
+    }
+
+    public int getPartSize() {
+        return mPartSize;
+    }
+
+    /**
+     * @param partSize the multipart upload part size. Values smaller than MIN_PART_SIZE are set to MIN_PART_SIZE.
+     */
+    public void setPartSize(int partSize) {
+        this.mPartSize = Math.max(partSize, MIN_PART_SIZE);
+    }
+
+    public int getUploadConcurrency() {
+        return mUploadConcurrency;
+    }
+
+    public void setUploadConcurrency(int uploadConcurrency) {
+        this.mUploadConcurrency = Math.max(1, uploadConcurrency);
+    }
+
+    public long getRangedGetThreshold() {
+        return mRangedGetThreshold;
+    }
+
+    /**
+     * @param rangedGetThreshold images larger than this are downloaded with ranged GETs. 0 turns off ranged downloads.
+     */
+    public void setRangedGetThreshold(long rangedGetThreshold) {
+        this.mRangedGetThreshold = rangedGetThreshold;
+    }
+
+    public int getRangeSize() {
+        return mRangeSize;
+    }
+
+    /**
+     * @param rangeSize the size of a ranged GET. Values smaller than MIN_RANGE_SIZE are set to MIN_RANGE_SIZE.
+     */
+    public void setRangeSize(int rangeSize) {
+        this.mRangeSize = Math.max(rangeSize, MIN_RANGE_SIZE);
+    }
+
+    public int getDownloadConcurrency() {
+        return mDownloadConcurrency;
+    }
+
+    public void setDownloadConcurrency(int downloadConcurrency) {
+        this.mDownloadConcurrency = Math.max(1, downloadConcurrency);
+    }
+
+    public boolean isDecodeWhileDownloading() {
+        return mDecodeWhileDownloading;
+    }
+
+    public void setDecodeWhileDownloading(boolean decodeWhileDownloading) {
+        this.mDecodeWhileDownloading = decodeWhileDownloading;
+    }
+
+    public String getEndpoint() {
+        return mEndpoint;
+    }
+
+    /**
+     * @param endpoint the S3 endpoint URL, or null (or an empty string) for the AWS endpoint for the region
+     */
+    public void setEndpoint(String endpoint) {
+        this.mEndpoint = (endpoint != null && endpoint.trim().length() > 0) ? endpoint.trim() : null;
+    }
+
+}
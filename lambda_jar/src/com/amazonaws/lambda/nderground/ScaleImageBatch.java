@@ -0,0 +1,58 @@
+/** \file
+ *
+ * Feb 24, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <h3>
+ * ScaleImageBatch
+ * </h3>
+ * <p>
+ * A request to scale many images (for example, a gallery import) in one Lambda invocation. Each BatchJob has its
+ * own original, scale mode, dimensions and scaled image path. The region, bucket, credentials, content type,
+ * resize engine and quality hint in the base class apply to every job. The image paths in the base class are not used.
+ * </p>
+ * <p>
+ * Feb 24, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class ScaleImageBatch extends ScaleImageInfoBase {
+    private List<BatchJob> mJobs = new ArrayList<BatchJob>();
+
+    public ScaleImageBatch() {}
+
+    public ScaleImageBatch( String awsRegionName,
+                            String bucketName,
+                            String s3_ID,
+                            String s3_Key,
+                            String contentType,
+                            List<BatchJob> jobs ) {
+        super(awsRegionName,
+              bucketName,
+              s3_ID,
+              s3_Key,
+              null,
+              null,
+              contentType);
+        setJobs( jobs );
+    }
+
+    public List<BatchJob> getJobs() {
+        return mJobs;
+    }
+
+    public void setJobs(List<BatchJob> jobs) {
+        this.mJobs = jobs;
+    }
+
+}
@@ -0,0 +1,81 @@
+/** \file
+ *
+ * Feb 24, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <h3>
+ * ScaleImageBatchResult
+ * </h3>
+ * <p>
+ * The result of a ScaleImageBatch. There is one status for each job, in the order of the jobs: STATUS_OK,
+ * STATUS_FAILED, STATUS_DEADLINE_EXCEEDED or STATUS_NOT_STARTED. A job is not started when the Lambda invocation is
+ * close to its time limit. The jobs that were not started are also returned as a list, so that the caller can submit
+ * them in a new batch.
+ * </p>
+ * <p>
+ * There is also one path for each job: how the image was scaled ("full", or "fastResize" or "subsampled" when the
+ * job was degraded to fit in the time that was left, see DeadlinePlanner), or null if no image was written.
+ * </p>
+ * <p>
+ * Feb 24, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class ScaleImageBatchResult {
+    public final static String STATUS_OK = "ok";
+    public final static String STATUS_FAILED = "failed";
+    public final static String STATUS_NOT_STARTED = "notStarted";
+    public final static String STATUS_DEADLINE_EXCEEDED = "deadlineExceeded";
+
+    private List<String> mStatus = new ArrayList<String>();
+    private List<BatchJob> mUnstarted = new ArrayList<BatchJob>();
+    private List<String> mPath = new ArrayList<String>();
+
+    public ScaleImageBatchResult() {}
+
+    /**
+     * @return true if every job was scaled
+     */
+    public boolean isAllOK() {
+        boolean allOK = true;
+        for (String status : mStatus) {
+            allOK = allOK && STATUS_OK.equals( status );
+        }
+        return allOK;
+    }
+
+    public List<String> getStatus() {
+        return mStatus;
+    }
+
+    public void setStatus(List<String> status) {
+        this.mStatus = status;
+    }
+
+    public List<String> getPath() {
+        return mPath;
+    }
+
+    public void setPath(List<String> path) {
+        this.mPath = path;
+    }
+
+    public List<BatchJob> getUnstarted() {
+        return mUnstarted;
+    }
+
+    public void setUnstarted(List<BatchJob> unstarted) {
+        this.mUnstarted = unstarted;
+    }
+
+}
@@ -0,0 +1,241 @@
+/** \file
+ *
+ * Mar 2, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.awt.Rectangle;
+
+/**
+ * <h3>
+ * ScaleImageCrop
+ * </h3>
+ * <p>
+ * The information needed to crop an image and scale the cropped region to exactly width x height pixels (for
+ * example, a square avatar or a card image from a wide original). There are two crop modes:
+ * </p>
+ * <ul>
+ * <li>fill (the default): the largest region of the original with the aspect ratio of the scaled image. The anchor
+ * (center, top, bottom, left or right) places the region in the original.</li>
+ * <li>region: the regionX, regionY, regionWidth x regionHeight rectangle of the original, in the pixels of the
+ * original. A region that extends past the edge of the original is clipped.</li>
+ * </ul>
+ * <p>
+ * Only the pixels in the region are decoded (see ImageService.cropScale), so the decode time and memory are roughly
+ * in proportion to the cropped area.
+ * </p>
+ * <p>
+ * Mar 2, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class ScaleImageCrop extends ScaleImageInfoBase {
+    public final static String CROP_FILL = "fill";
+    public final static String CROP_REGION = "region";
+    public final static String ANCHOR_CENTER = "center";
+    public final static String ANCHOR_TOP = "top";
+    public final static String ANCHOR_BOTTOM = "bottom";
+    public final static String ANCHOR_LEFT = "left";
+    public final static String ANCHOR_RIGHT = "right";
+
+    private int mHeight;       // the height of the scaled image
+    private int mWidth;        // the width of the scaled image
+    private String mCrop = CROP_FILL;
+    private String mAnchor = ANCHOR_CENTER;
+    private int mRegionX;
+    private int mRegionY;
+    private int mRegionWidth;
+    private int mRegionHeight;
+
+    public ScaleImageCrop() {}
+
+    /**
+     * A fill crop, anchored in the center of the original.
+     */
+    public ScaleImageCrop( String awsRegionName,
+                           String bucketName,
+                           String s3_ID,
+                           String s3_Key,
+                           String imagePath,
+                           String scaledImagePath,
+                           String contentType,
+                           int height,
+                           int width ) {
+        super(awsRegionName,
+              bucketName,
+              s3_ID,
+              s3_Key,
+              imagePath,
+              scaledImagePath,
+              contentType);
+        setHeight( height );
+        setWidth( width );
+    }
+
+    /**
+     * @return true if the crop is a region crop (otherwise it is a fill crop)
+     */
+    public boolean isRegionCrop() {
+        return CROP_REGION.equalsIgnoreCase( mCrop );
+    }
+
+    /**
+     * Check the crop arguments.
+     *
+     * @return true if the scaled image size, the crop mode and the region (for a region crop) are valid.
+     */
+    public boolean hasValidArguments() {
+        boolean valid = mHeight > 0 && mWidth > 0;
+        if (isRegionCrop()) {
+            valid = valid && mRegionX >= 0 && mRegionY >= 0 && mRegionWidth > 0 && mRegionHeight > 0;
+        } else {
+            valid = valid && (mCrop == null || CROP_FILL.equalsIgnoreCase( mCrop )) && anchorOK( mAnchor );
+        }
+        return valid;
+    }
+
+    private static boolean anchorOK(String anchor) {
+        return anchor == null || ANCHOR_CENTER.equalsIgnoreCase( anchor ) || ANCHOR_TOP.equalsIgnoreCase( anchor ) ||
+               ANCHOR_BOTTOM.equalsIgnoreCase( anchor ) || ANCHOR_LEFT.equalsIgnoreCase( anchor ) ||
+               ANCHOR_RIGHT.equalsIgnoreCase( anchor );
+    }
+
+
+    /**
+     * Calculate the region of the original that is cropped.
+     *
+     * @param srcWidth the width of the original
+     * @param srcHeight the height of the original
+     * @return the region, inside the original, or null if the region does not overlap the original
+     */
+    public Rectangle cropRegion(int srcWidth, int srcHeight) {
+        Rectangle region = null;
+        if (isRegionCrop()) {
+            region = new Rectangle(mRegionX, mRegionY, mRegionWidth, mRegionHeight).intersection( new Rectangle(0, 0, srcWidth, srcHeight) );
+            if (region.isEmpty()) {
+                region = null;
+            }
+        } else {
+            region = fillRegion(srcWidth, srcHeight, mWidth, mHeight, mAnchor);
+        }
+        return region;
+    }
+
+
+    /**
+     * Calculate the largest region of an image with the aspect ratio of width x height.
+     *
+     * @param srcWidth the width of the original
+     * @param srcHeight the height of the original
+     * @param width the width of the scaled image
+     * @param height the height of the scaled image
+     * @param anchor where the region is placed: center (or null), top, bottom, left or right
+     * @return the region
+     */
+    public static Rectangle fillRegion(int srcWidth, int srcHeight, int width, int height, String anchor) {
+        int regionWidth = srcWidth;
+        int regionHeight = srcHeight;
+        if ((long)srcWidth * height > (long)srcHeight * width) {
+            // the original is wider than the scaled image
+            regionWidth = (int)Math.max(1, Math.min(srcWidth, Math.round( (double)srcHeight * width / height )));
+        } else {
+            regionHeight = (int)Math.max(1, Math.min(srcHeight, Math.round( (double)srcWidth * height / width )));
+        }
+        int x = (srcWidth - regionWidth) / 2;
+        int y = (srcHeight - regionHeight) / 2;
+        if (ANCHOR_TOP.equalsIgnoreCase( anchor )) {
+            y = 0;
+        } else if (ANCHOR_BOTTOM.equalsIgnoreCase( anchor )) {
+            y = srcHeight - regionHeight;
+        } else if (ANCHOR_LEFT.equalsIgnoreCase( anchor )) {
+            x = 0;
+        } else if (ANCHOR_RIGHT.equalsIgnoreCase( anchor )) {
+            x = srcWidth - regionWidth;
+        }
+        return new Rectangle(x, y, regionWidth, regionHeight);
+    }
+
+
+    /**
+     * @return the crop arguments, for the fingerprint of the scaled image
+     */
+    public String cropDescription() {
+        String description = null;
+        if (isRegionCrop()) {
+            description = CROP_REGION + ":" + mRegionX + "," + mRegionY + "," + mRegionWidth + "," + mRegionHeight;
+        } else {
+            description = CROP_FILL + ":" + ((mAnchor != null) ? mAnchor.toLowerCase() : ANCHOR_CENTER);
+        }
+        return description;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public void setHeight(int height) {
+        this.mHeight = height;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public void setWidth(int width) {
+        this.mWidth = width;
+    }
+
+    public String getCrop() {
+        return mCrop;
+    }
+
+    public void setCrop(String crop) {
+        this.mCrop = crop;
+    }
+
+    public String getAnchor() {
+        return mAnchor;
+    }
+
+    public void setAnchor(String anchor) {
+        this.mAnchor = anchor;
+    }
+
+    public int getRegionX() {
+        return mRegionX;
+    }
+
+    public void setRegionX(int regionX) {
+        this.mRegionX = regionX;
+    }
+
+    public int getRegionY() {
+        return mRegionY;
+    }
+
+    public void setRegionY(int regionY) {
+        this.mRegionY = regionY;
+    }
+
+    public int getRegionWidth() {
+        return mRegionWidth;
+    }
+
+    public void setRegionWidth(int regionWidth) {
+        this.mRegionWidth = regionWidth;
+    }
+
+    public int getRegionHeight() {
+        return mRegionHeight;
+    }
+
+    public void setRegionHeight(int regionHeight) {
+        this.mRegionHeight = regionHeight;
+    }
+
+}
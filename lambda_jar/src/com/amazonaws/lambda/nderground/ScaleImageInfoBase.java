@@ -16,6 +16,8 @@ public abstract class ScaleImageInfoBase {
 	private String mS3Path;  // path to the original unscaled image
 	private String mS3ScaledPath; // path to the scale image
     private String contentType; // Image type
+    private String mResizeEngine; // optional resize engine name (see ResizeEngines). null for the default engine.
+    private String mQualityHint; // optional quality hint for the ScalingPolicy: speed, balanced or quality
     
     public ScaleImageInfoBase() {}
     
@@ -83,6 +85,22 @@ public abstract class ScaleImageInfoBase {
         this.contentType = contentType;
     }
 
+    public String getResizeEngine() {
+        return mResizeEngine;
+    }
+
+    public void setResizeEngine(String resizeEngine) {
+        this.mResizeEngine = resizeEngine;
+    }
+
+    public String getQualityHint() {
+        return mQualityHint;
+    }
+
+    public void setQualityHint(String qualityHint) {
+        this.mQualityHint = qualityHint;
+    }
+
     public String getAwsRegionName() {
         return mAWSRegionName;
     }
@@ -0,0 +1,59 @@
+/** \file
+ *
+ * Feb 9, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <h3>
+ * ScaleImageRenditions
+ * </h3>
+ * <p>
+ * A container for the information needed to build several scaled versions (renditions) of an image from a single
+ * download and decode of the original. Each rendition has its own scale mode, dimensions and scaled image path
+ * (see RenditionSpec). The scaled image path in the base class is not used.
+ * </p>
+ * <p>
+ * Feb 9, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class ScaleImageRenditions extends ScaleImageInfoBase {
+    private List<RenditionSpec> mRenditions = new ArrayList<RenditionSpec>();
+
+    public ScaleImageRenditions() {}
+
+    public ScaleImageRenditions( String awsRegionName,
+                                 String bucketName,
+                                 String s3_ID,
+                                 String s3_Key,
+                                 String imagePath,
+                                 String contentType,
+                                 List<RenditionSpec> renditions ) {
+        super(awsRegionName,
+              bucketName,
+              s3_ID,
+              s3_Key,
+              imagePath,
+              null,
+              contentType);
+        setRenditions( renditions );
+    }
+
+    public List<RenditionSpec> getRenditions() {
+        return mRenditions;
+    }
+
+    public void setRenditions(List<RenditionSpec> renditions) {
+        this.mRenditions = renditions;
+    }
+
+}
@@ -0,0 +1,73 @@
+/** \file
+ *
+ * Mar 3, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+/**
+ * <h3>
+ * ScaleImageResult
+ * </h3>
+ * <p>
+ * The result of a scale request that is made with a deadline (see DeadlinePlanner). The status is STATUS_OK,
+ * STATUS_FAILED or STATUS_DEADLINE_EXCEEDED. The path is how the image was scaled ("full", "fastResize" or
+ * "subsampled"), or null if no image was written.
+ * </p>
+ * <p>
+ * Mar 3, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class ScaleImageResult {
+    public final static String STATUS_OK = ScaleImageBatchResult.STATUS_OK;
+    public final static String STATUS_FAILED = ScaleImageBatchResult.STATUS_FAILED;
+    public final static String STATUS_DEADLINE_EXCEEDED = ScaleImageBatchResult.STATUS_DEADLINE_EXCEEDED;
+
+    private String mStatus = STATUS_FAILED;
+    private String mPath = null;
+
+    public ScaleImageResult() {}
+
+    public ScaleImageResult(String status, String path) {
+        this.mStatus = status;
+        this.mPath = path;
+    }
+
+    /**
+     * @return true if the scaled image was written (or was up to date)
+     */
+    public boolean isOK() {
+        return STATUS_OK.equals( mStatus );
+    }
+
+    public boolean isDeadlineExceeded() {
+        return STATUS_DEADLINE_EXCEEDED.equals( mStatus );
+    }
+
+    public String getStatus() {
+        return mStatus;
+    }
+
+    public void setStatus(String status) {
+        this.mStatus = status;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    public void setPath(String path) {
+        this.mPath = path;
+    }
+
+    @Override
+    public String toString() {
+        return mStatus + ((mPath != null) ? " (" + mPath + ")" : "");
+    }
+
+}
@@ -0,0 +1,143 @@
+/** \file
+ *
+ * Feb 5, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.awt.Dimension;
+import java.util.HashMap;
+
+/**
+ * <h3>
+ * ScaleMode
+ * </h3>
+ * <p>
+ * The image scaling modes supported by the ImageService. Each mode calculates the size of the scaled image
+ * from the size of the source image, so the result size is known (from the image header) before the image is decoded.
+ * </p>
+ * <p>
+ * The result sizes are the same sizes that imgscalr calculates for Scalr.resize() with Mode.AUTOMATIC. A result
+ * size that is equal to the source size means that the image is not scaled.
+ * </p>
+ * <p>
+ * Feb 5, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public enum ScaleMode {
+    /** scale so that the maximum dimension is maxDim (passed as both height and width) */
+    MAX_DIM {
+        @Override
+        public Dimension targetSize(int srcWidth, int srcHeight, int height, int width) {
+            return fitToBox(srcWidth, srcHeight, width, height);
+        }
+    },
+    /** scale to a maximum height, adjusting the width by the same ratio */
+    HEIGHT {
+        @Override
+        public Dimension targetSize(int srcWidth, int srcHeight, int height, int width) {
+            Dimension size = new Dimension( srcWidth, srcHeight );
+            if (height < srcHeight) {
+                double ratio = (double)height / (double)srcHeight;
+                int adjWidth = (int)Math.round( srcWidth * ratio );
+                size = fitToBox(srcWidth, srcHeight, adjWidth, height);
+            }
+            return size;
+        }
+    },
+    /** scale to fit height x width, preserving the aspect ratio */
+    HEIGHT_WIDTH {
+        @Override
+        public Dimension targetSize(int srcWidth, int srcHeight, int height, int width) {
+            return fitToBox(srcWidth, srcHeight, width, height);
+        }
+    },
+    /** scale to a thumbnail with a maximum height and width. Images that are already small are not scaled. */
+    THUMBNAIL {
+        @Override
+        public Dimension targetSize(int srcWidth, int srcHeight, int height, int width) {
+            Dimension size = new Dimension( srcWidth, srcHeight );
+            HashMap<String, Integer> thumbInfo = ImageService.calculateThumbDimensions( height, width, srcHeight, srcWidth);
+            int adjHeight = thumbInfo.get("height");
+            int adjWidth = thumbInfo.get("width");
+            if (srcWidth > adjWidth || srcHeight > adjHeight) {
+                size = fitToBox(srcWidth, srcHeight, adjWidth, adjHeight);
+            }
+            return size;
+        }
+    },
+    /** 
+     * scale a region of the image to exactly height x width. The region is the largest region with the aspect ratio
+     * of height x width, or the region in a ScaleImageCrop request.
+     */
+    CROP {
+        @Override
+        public Dimension targetSize(int srcWidth, int srcHeight, int height, int width) {
+            return new Dimension( width, height );
+        }
+    };
+
+    /**
+     * Calculate the size of the scaled image.
+     *
+     * @param srcWidth the width of the source image
+     * @param srcHeight the height of the source image
+     * @param height the height argument for the scale mode
+     * @param width the width argument for the scale mode
+     * @return the width and height of the scaled image
+     */
+    public abstract Dimension targetSize(int srcWidth, int srcHeight, int height, int width);
+
+
+    /**
+     * Find the scale mode for a name. The name match ignores case, dashes and underscores, so
+     * "MAX_DIM", "max-dim" and "maxDim" are all ScaleMode.MAX_DIM.
+     * 
+     * @param name the name of the scale mode
+     * @return the scale mode or null if there is no mode with that name
+     */
+    public static ScaleMode fromName(String name) {
+        ScaleMode scaleMode = null;
+        if (name != null) {
+            String key = name.replace("-", "").replace("_", "").toLowerCase();
+            for (ScaleMode mode : values()) {
+                if (mode.name().replace("_", "").toLowerCase().equals( key )) {
+                    scaleMode = mode;
+                    break;
+                }
+            }
+        }
+        return scaleMode;
+    }
+
+
+    /**
+     * <p>
+     * Fit the source image to a width x height box, preserving the aspect ratio. This is the calculation
+     * that Scalr.resize() does for Mode.AUTOMATIC: a landscape (or square) image is fit to the width and a
+     * portrait image is fit to the height.
+     * </p>
+     *
+     * @return the scaled width and height. If the image would not be scaled, the source width and height.
+     */
+    public static Dimension fitToBox(int srcWidth, int srcHeight, int width, int height) {
+        Dimension size = new Dimension( srcWidth, srcHeight );
+        float ratio = (float)srcHeight / (float)srcWidth;
+        if (ratio <= 1) {
+            if (width != srcWidth) {
+                size = new Dimension( width, Math.max(1, Math.round( (float)width * ratio )) );
+            }
+        } else {
+            if (height != srcHeight) {
+                size = new Dimension( Math.max(1, Math.round( (float)height / ratio )), height );
+            }
+        }
+        return size;
+    }
+
+}
@@ -0,0 +1,45 @@
+/** \file
+ *
+ * Mar 4, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+/**
+ * <h3>
+ * ScalingPolicy
+ * </h3>
+ * <p>
+ * An interface for the code that picks the resize engine when a request has a quality hint and does not name an
+ * engine (see ScaleImageInfoBase and PolicyResizeEngine). The engine is picked for each resize, from the size of
+ * the image that is resized, the size of the scaled image and the hint. A request with no hint and no engine is
+ * resized by the ImageService default engine (Scalr with Method.AUTOMATIC), as it was before there were hints.
+ * The ImageService policy is set with ImageService.setScalingPolicy(); the default policy is a TableScalingPolicy.
+ * </p>
+ * <p>
+ * Mar 4, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public interface ScalingPolicy {
+    public final static String HINT_SPEED = "speed";
+    public final static String HINT_BALANCED = "balanced";
+    public final static String HINT_QUALITY = "quality";
+
+    /**
+     * Pick the resize engine for one resize.
+     *
+     * @param srcWidth the width of the image that is resized (after any source subsampling)
+     * @param srcHeight the height of the image that is resized
+     * @param width the width of the resized image
+     * @param height the height of the resized image
+     * @param qualityHint speed, balanced or quality. null (or an unknown hint) is balanced.
+     * @return the resize engine
+     */
+    public ResizeEngine select(int srcWidth, int srcHeight, int width, int height, String qualityHint);
+
+}
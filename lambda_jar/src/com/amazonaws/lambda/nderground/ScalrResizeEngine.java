@@ -0,0 +1,56 @@
+/** \file
+ *
+ * Feb 12, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ImagingOpException;
+
+import org.imgscalr.Scalr;
+
+/**
+ * <h3>
+ * ScalrResizeEngine
+ * </h3>
+ * <p>
+ * A ResizeEngine that uses the imgscalr library, Scalr.resize(), with a Scalr.Method.
+ * </p>
+ * <p>
+ * Feb 12, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class ScalrResizeEngine implements ResizeEngine {
+    private final Scalr.Method mMethod;
+
+    public ScalrResizeEngine( Scalr.Method method ) {
+        this.mMethod = method;
+    }
+
+    public Scalr.Method getMethod() {
+        return mMethod;
+    }
+
+    @Override
+    public String getName() {
+        return "scalr-" + mMethod.name().toLowerCase();
+    }
+
+    @Override
+    public BufferedImage resize(BufferedImage image, int width, int height) throws ImagingOpException {
+        BufferedImage scaledImage = null;
+        try {
+            scaledImage = Scalr.resize(image, getMethod(), Scalr.Mode.FIT_EXACT, width, height);
+        } catch (IllegalArgumentException e) {
+            throw new ImagingOpException( e.getLocalizedMessage() );
+        }
+        return scaledImage;
+    }
+
+}
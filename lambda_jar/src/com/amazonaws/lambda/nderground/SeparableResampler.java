@@ -0,0 +1,418 @@
+/** \file
+ *
+ * Feb 13, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.ImagingOpException;
+import java.awt.image.WritableRaster;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <h3>
+ * SeparableResampler
+ * </h3>
+ * <p>
+ * A ResizeEngine that resamples an image in two passes with a separable filter: a horizontal pass from the
+ * source image into an intermediate buffer that has the destination width and the source height, and a vertical
+ * pass from the intermediate buffer into the destination image. When the image is scaled down, the filter is
+ * widened by the scale factor, so every source pixel contributes to the result in a single pass. There is no
+ * chain of intermediate images, as there is with the Scalr QUALITY methods.
+ * </p>
+ * <p>
+ * The pixels are read from, and written to, the raster arrays (DataBufferInt or DataBufferByte) directly. The filter
+ * weights are fixed point integers that are calculated once for each (filter, source size, destination size) and
+ * cached. The intermediate buffer is kept after a resize and reused by the next resize, so a warm Lambda function
+ * does not allocate a new buffer for each image.
+ * </p>
+ * <p>
+ * The filters are BOX (an area average), BILINEAR, BICUBIC (the Catmull-Rom cubic) and LANCZOS3. Images with alpha
+ * are filtered with premultiplied alpha.
+ * </p>
+ * <p>
+ * Feb 13, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class SeparableResampler implements ResizeEngine {
+
+    public enum Filter {
+        BOX(0.5) {
+            @Override
+            double weight(double x) {
+                return (x >= -0.5 && x < 0.5) ? 1.0 : 0.0;
+            }
+        },
+        BILINEAR(1.0) {
+            @Override
+            double weight(double x) {
+                double ax = Math.abs(x);
+                return ax < 1.0 ? 1.0 - ax : 0.0;
+            }
+        },
+        BICUBIC(2.0) {
+            @Override
+            double weight(double x) {
+                final double a = -0.5;
+                double ax = Math.abs(x);
+                double w = 0;
+                if (ax < 1.0) {
+                    w = ((a + 2) * ax - (a + 3)) * ax * ax + 1;
+                } else if (ax < 2.0) {
+                    w = ((a * ax - 5 * a) * ax + 8 * a) * ax - 4 * a;
+                }
+                return w;
+            }
+        },
+        LANCZOS3(3.0) {
+            @Override
+            double weight(double x) {
+                double w = 0;
+                if (x == 0) {
+                    w = 1.0;
+                } else if (x > -3.0 && x < 3.0) {
+                    double px = Math.PI * x;
+                    w = (3.0 * Math.sin(px) * Math.sin(px / 3.0)) / (px * px);
+                }
+                return w;
+            }
+        };
+
+        /** the filter radius, in pixels, at a scale of 1 */
+        private final double mSupport;
+
+        Filter(double support) {
+            this.mSupport = support;
+        }
+
+        public double getSupport() {
+            return mSupport;
+        }
+
+        abstract double weight(double x);
+    }
+
+    /** the number of fraction bits in the fixed point filter weights */
+    private final static int WEIGHT_BITS = 20;
+    final static int WEIGHT_ROUND = 1 << (WEIGHT_BITS - 1);
+    /** the maximum number of cached weight tables */
+    private final static int MAX_CACHED_WEIGHTS = 32;
+    /** intermediate buffers larger than this (in pixels) are not kept for reuse */
+    private final static int MAX_RETAINED_PIXELS = 16 * 1024 * 1024;
+
+    private final static Map<String, Weights> mWeightCache = new LinkedHashMap<String, Weights>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Weights> eldest) {
+            return size() > MAX_CACHED_WEIGHTS;
+        }
+    };
+    private final static AtomicReference<int[]> mSpareBuffer = new AtomicReference<int[]>();
+
+    private final Filter mFilter;
+    private final int mMaxBands;
+
+    public SeparableResampler( Filter filter ) {
+        this( filter, ParallelBands.getParallelism() );
+    }
+
+    /**
+     * @param filter the resampling filter
+     * @param maxBands the maximum number of bands for each pass (see ParallelBands). A value of 1 is a single
+     *        threaded resize.
+     */
+    public SeparableResampler( Filter filter, int maxBands ) {
+        this.mFilter = filter;
+        this.mMaxBands = maxBands;
+    }
+
+    public Filter getFilter() {
+        return mFilter;
+    }
+
+    @Override
+    public String getName() {
+        return mFilter.name().toLowerCase();
+    }
+
+
+    /**
+     * The filter taps for each destination column (or row): the first source index, the number of taps and
+     * the fixed point weights. The weights for each destination element add up to 1 &lt;&lt; WEIGHT_BITS.
+     */
+    protected static class Weights {
+        final int[] mStart;
+        final int[] mCount;
+        final int mMaxCount;
+        final int[] mWeight;   // dstSize * mMaxCount
+
+        Weights(Filter filter, int srcSize, int dstSize) {
+            double scale = (double)srcSize / (double)dstSize;
+            double filterScale = Math.max(scale, 1.0);
+            double support = filter.getSupport() * filterScale;
+            mMaxCount = (int)Math.ceil(support) * 2 + 1;
+            mStart = new int[ dstSize ];
+            mCount = new int[ dstSize ];
+            mWeight = new int[ dstSize * mMaxCount ];
+            double[] w = new double[ mMaxCount ];
+            for (int d = 0; d < dstSize; d++) {
+                double center = (d + 0.5) * scale;
+                int start = Math.max(0, (int)Math.floor(center - support));
+                int end = Math.min(srcSize, (int)Math.ceil(center + support));
+                int count = Math.min(end - start, mMaxCount);
+                double total = 0;
+                for (int i = 0; i < count; i++) {
+                    w[i] = filter.weight( (start + i + 0.5 - center) / filterScale );
+                    total += w[i];
+                }
+                if (total == 0) {
+                    // can only happen for the box filter at the image edge: use the nearest pixel
+                    start = Math.min(srcSize - 1, (int)center);
+                    count = 1;
+                    w[0] = total = 1.0;
+                }
+                // convert to fixed point, with the rounding error added to the largest weight so the sum is exact
+                int fixedTotal = 0;
+                int largest = 0;
+                for (int i = 0; i < count; i++) {
+                    int fixed = (int)Math.round( (w[i] / total) * (1 << WEIGHT_BITS) );
+                    mWeight[d * mMaxCount + i] = fixed;
+                    fixedTotal += fixed;
+                    if (fixed > mWeight[d * mMaxCount + largest]) {
+                        largest = i;
+                    }
+                }
+                mWeight[d * mMaxCount + largest] += (1 << WEIGHT_BITS) - fixedTotal;
+                mStart[d] = start;
+                mCount[d] = count;
+            }
+        }
+    }
+
+
+    /**
+     * @return the cached weights for a (filter, source size, destination size) geometry
+     */
+    protected static Weights getWeights(Filter filter, int srcSize, int dstSize) {
+        String key = filter.name() + ":" + srcSize + ":" + dstSize;
+        Weights weights = null;
+        synchronized (mWeightCache) {
+            weights = mWeightCache.get( key );
+        }
+        if (weights == null) {
+            weights = new Weights(filter, srcSize, dstSize);
+            synchronized (mWeightCache) {
+                mWeightCache.put(key, weights);
+            }
+        }
+        return weights;
+    }
+
+
+    /**
+     * Take the intermediate buffer, or allocate a new one if the buffer is in use or is too small.
+     */
+    private static int[] acquireBuffer(int size) {
+        int[] buffer = mSpareBuffer.getAndSet( null );
+        if (buffer == null || buffer.length < size) {
+            buffer = new int[ size ];
+        }
+        return buffer;
+    }
+
+    /**
+     * Keep the intermediate buffer for the next resize (unless it is very large or a larger buffer is kept).
+     */
+    private static void releaseBuffer(int[] buffer) {
+        if (buffer.length <= MAX_RETAINED_PIXELS) {
+            int[] spare = mSpareBuffer.get();
+            if (spare == null || spare.length < buffer.length) {
+                mSpareBuffer.compareAndSet(spare, buffer);
+            }
+        }
+    }
+
+
+    private static int clampByte(int v) {
+        return v < 0 ? 0 : (v > 255 ? 255 : v);
+    }
+
+    /**
+     * If the image data can be read directly, return the DataBufferInt or DataBufferByte array. Otherwise
+     * return null.
+     */
+    static Object directData(BufferedImage image) {
+        Object data = ParallelResizeEngine.directPixels( image );
+        int type = image.getType();
+        if (data == null && (type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_4BYTE_ABGR)) {
+            WritableRaster raster = image.getRaster();
+            if (raster.getDataBuffer() instanceof DataBufferByte &&
+                raster.getSampleModel() instanceof ComponentSampleModel &&
+                ((ComponentSampleModel)raster.getSampleModel()).getScanlineStride() == image.getWidth() * (type == BufferedImage.TYPE_3BYTE_BGR ? 3 : 4) &&
+                raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0) {
+                data = ((DataBufferByte)raster.getDataBuffer()).getData();
+            }
+        }
+        return data;
+    }
+
+
+    /**
+     * The horizontal pass for the source rows y0 to y1: each source row is filtered into a row of the
+     * intermediate buffer, which has the destination width.
+     */
+    static void horizontalPass(BufferedImage src, Object data, boolean hasAlpha, Weights weights,
+                                       int[] buffer, int dstWidth, int y0, int y1) {
+        final int srcWidth = src.getWidth();
+        final int maxCount = weights.mMaxCount;
+        // the row is copied when it is not read directly from the int array, or when it is premultiplied
+        final boolean copyRow = !(data instanceof int[]) || hasAlpha;
+        final int[] rowPixels = copyRow ? new int[ srcWidth ] : null;
+        for (int y = y0; y < y1; y++) {
+            int[] pixels = rowPixels;
+            int rowStart = 0;
+            if (data instanceof int[]) {
+                if (copyRow) {
+                    System.arraycopy((int[])data, y * srcWidth, rowPixels, 0, srcWidth);
+                } else {
+                    pixels = (int[])data;
+                    rowStart = y * srcWidth;
+                }
+            } else if (data instanceof byte[]) {
+                ParallelResizeEngine.readRow(src, y, rowPixels, 0);
+            } else {
+                src.getRGB(0, y, srcWidth, 1, rowPixels, 0, srcWidth);
+            }
+            if (hasAlpha) {
+                premultiply( rowPixels, srcWidth );
+            }
+            int outOffset = y * dstWidth;
+            for (int x = 0; x < dstWidth; x++) {
+                int start = rowStart + weights.mStart[x];
+                int count = weights.mCount[x];
+                int w0 = x * maxCount;
+                int a = WEIGHT_ROUND, r = WEIGHT_ROUND, g = WEIGHT_ROUND, b = WEIGHT_ROUND;
+                for (int i = 0; i < count; i++) {
+                    int p = pixels[ start + i ];
+                    int w = weights.mWeight[ w0 + i ];
+                    a += (p >>> 24) * w;
+                    r += ((p >> 16) & 0xff) * w;
+                    g += ((p >> 8) & 0xff) * w;
+                    b += (p & 0xff) * w;
+                }
+                buffer[ outOffset + x ] = (clampByte(a >> WEIGHT_BITS) << 24) | (clampByte(r >> WEIGHT_BITS) << 16) |
+                                          (clampByte(g >> WEIGHT_BITS) << 8) | clampByte(b >> WEIGHT_BITS);
+            }
+        }
+    }
+
+
+    private static void premultiply(int[] pixels, int length) {
+        for (int i = 0; i < length; i++) {
+            int p = pixels[i];
+            int a = p >>> 24;
+            if (a == 0) {
+                pixels[i] = 0;
+            } else if (a < 255) {
+                int r = (((p >> 16) & 0xff) * a + 127) / 255;
+                int g = (((p >> 8) & 0xff) * a + 127) / 255;
+                int b = ((p & 0xff) * a + 127) / 255;
+                pixels[i] = (a << 24) | (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+
+
+    /**
+     * The vertical pass for the destination rows y0 to y1, from the intermediate buffer.
+     */
+    private static void verticalPass(int[] buffer, boolean hasAlpha, Weights weights, int[] dstPixels,
+                                     int width, int y0, int y1) {
+        final int maxCount = weights.mMaxCount;
+        for (int y = y0; y < y1; y++) {
+            int start = weights.mStart[y] * width;
+            int count = weights.mCount[y];
+            int w0 = y * maxCount;
+            int outOffset = y * width;
+            for (int x = 0; x < width; x++) {
+                int a = WEIGHT_ROUND, r = WEIGHT_ROUND, g = WEIGHT_ROUND, b = WEIGHT_ROUND;
+                int ix = start + x;
+                for (int i = 0; i < count; i++, ix += width) {
+                    int p = buffer[ ix ];
+                    int w = weights.mWeight[ w0 + i ];
+                    a += (p >>> 24) * w;
+                    r += ((p >> 16) & 0xff) * w;
+                    g += ((p >> 8) & 0xff) * w;
+                    b += (p & 0xff) * w;
+                }
+                dstPixels[ outOffset + x ] = pixel(a, r, g, b, hasAlpha);
+            }
+        }
+    }
+
+
+    /**
+     * Convert the fixed point filter sums for a pixel of the vertical pass to an ARGB (or opaque RGB) pixel.
+     */
+    static int pixel(int a, int r, int g, int b, boolean hasAlpha) {
+        int red = clampByte(r >> WEIGHT_BITS);
+        int green = clampByte(g >> WEIGHT_BITS);
+        int blue = clampByte(b >> WEIGHT_BITS);
+        int pixel;
+        if (hasAlpha) {
+            int alpha = clampByte(a >> WEIGHT_BITS);
+            if (alpha == 0) {
+                pixel = 0;
+            } else {
+                // undo the premultiplication
+                red = Math.min(255, (red * 255 + (alpha >> 1)) / alpha);
+                green = Math.min(255, (green * 255 + (alpha >> 1)) / alpha);
+                blue = Math.min(255, (blue * 255 + (alpha >> 1)) / alpha);
+                pixel = (alpha << 24) | (red << 16) | (green << 8) | blue;
+            }
+        } else {
+            pixel = 0xff000000 | (red << 16) | (green << 8) | blue;
+        }
+        return pixel;
+    }
+
+
+    @Override
+    public BufferedImage resize(final BufferedImage image, final int width, final int height) throws ImagingOpException {
+        if (width <= 0 || height <= 0) {
+            throw new ImagingOpException("SeparableResampler: bad size " + width + " x " + height);
+        }
+        final int srcHeight = image.getHeight();
+        final boolean hasAlpha = image.getColorModel().hasAlpha();
+        final Weights xWeights = getWeights(mFilter, image.getWidth(), width);
+        final Weights yWeights = getWeights(mFilter, srcHeight, height);
+        final Object data = directData( image );
+        final BufferedImage dst = new BufferedImage(width, height, hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        final int[] dstPixels = ((DataBufferInt)dst.getRaster().getDataBuffer()).getData();
+        final int[] buffer = acquireBuffer( srcHeight * width );
+        try {
+            ParallelBands.forEachBand(srcHeight, width, mMaxBands, (y0, y1) -> {
+                horizontalPass(image, data, hasAlpha, xWeights, buffer, width, y0, y1);
+            });
+            ParallelBands.forEachBand(height, width, mMaxBands, (y0, y1) -> {
+                verticalPass(buffer, hasAlpha, yWeights, dstPixels, width, y0, y1);
+            });
+        } finally {
+            releaseBuffer( buffer );
+        }
+        return dst;
+    }
+
+}
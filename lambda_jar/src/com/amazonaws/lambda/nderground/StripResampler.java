@@ -0,0 +1,257 @@
+/** \file
+ *
+ * Mar 1, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+
+/**
+ * <h3>
+ * StripResampler
+ * </h3>
+ * <p>
+ * A streaming resize for originals that are too large to decode as one BufferedImage. The original is decoded in
+ * horizontal strips (ImageReadParam.setSourceRegion, with the source subsampling picked by ImageAdmission) and each
+ * strip is filtered as it is decoded, with the two pass filter of the SeparableResampler:
+ * </p>
+ * <ul>
+ * <li>The horizontal pass filters each row of the strip to the destination width.</li>
+ * <li>The filtered rows are kept in a ring of rows that is as tall as one strip plus the vertical filter window.</li>
+ * <li>Every destination row whose filter window is in the ring is built by the vertical pass.</li>
+ * </ul>
+ * <p>
+ * The heap used is the destination image, one decoded strip and the ring, which is proportional to the destination
+ * width. It does not depend on the height of the original.
+ * </p>
+ * <p>
+ * The image readers decode an image from the start, so each strip decodes (and discards) the rows above it. The
+ * time to decode an image in N strips is roughly N / 2 times the time to decode it at once. The strips are as tall
+ * as IMAGE_STRIP_BYTES (32 Mb by default) allows, so that there are only a few of them. Progressive JPEG images
+ * are buffered in full by the JPEG reader, so they do not use less heap when they are read in strips.
+ * </p>
+ * <p>
+ * Mar 1, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class StripResampler {
+    /** a strip is at least this many (subsampled) rows */
+    public final static int MIN_STRIP_ROWS = 16;
+    public final static long DEFAULT_STRIP_BYTES = 32L * 1024 * 1024;
+    /** the filter used when the resize engine is not a SeparableResampler */
+    public final static SeparableResampler.Filter DEFAULT_FILTER = SeparableResampler.Filter.BICUBIC;
+    /** the largest filter support (LANCZOS3), for the heap estimate before the filter is known */
+    private final static double MAX_SUPPORT = 3.0;
+
+    private final static long mStripBytes = S3TransferSettings.getLong("IMAGE_STRIP_BYTES", DEFAULT_STRIP_BYTES);
+
+    /**
+     * @return the maximum size of a decoded strip, in bytes
+     */
+    public static long getStripBytes() {
+        return mStripBytes;
+    }
+
+
+    /**
+     * @return the maximum number of filtered rows that the vertical filter reads for a destination row, for any of
+     *         the SeparableResampler filters
+     */
+    public static int windowRows(int srcHeight, int dstHeight) {
+        double scale = (double)srcHeight / (double)Math.max(1, dstHeight);
+        return (int)Math.ceil(MAX_SUPPORT * Math.max(scale, 1.0)) * 2 + 1;
+    }
+
+
+    /**
+     * @return the filter for a resize engine: the engine's filter for a SeparableResampler, DEFAULT_FILTER otherwise
+     */
+    public static SeparableResampler.Filter filterFor(ResizeEngine engine) {
+        SeparableResampler.Filter filter = DEFAULT_FILTER;
+        if (engine instanceof SeparableResampler) {
+            filter = ((SeparableResampler)engine).getFilter();
+        }
+        return filter;
+    }
+
+
+    /**
+     * The filter for a strip resize of a stored image of sourceWidth x sourceHeight, decoded with subsampling, to
+     * width x height. For a PolicyResizeEngine, this is the filter of the engine that the ScalingPolicy picks for
+     * the resize (DEFAULT_FILTER if the policy picks an engine that is not a SeparableResampler).
+     *
+     * @return the filter for the resize
+     */
+    public static SeparableResampler.Filter filterFor(ResizeEngine engine, int sourceWidth, int sourceHeight, int subsampling,
+                                                      int width, int height) {
+        return filterFor( select(engine, sourceWidth, sourceHeight, subsampling, width, height) );
+    }
+
+
+    /**
+     * @return true if a strip resize with filterFor(engine, ...) uses the filter of the engine that would resize the
+     *         whole decoded image, false if DEFAULT_FILTER stands in for an engine that is not a SeparableResampler
+     */
+    public static boolean isEngineFilter(ResizeEngine engine, int sourceWidth, int sourceHeight, int subsampling,
+                                         int width, int height) {
+        return select(engine, sourceWidth, sourceHeight, subsampling, width, height) instanceof SeparableResampler;
+    }
+
+
+    /**
+     * @return the engine that resizes the image: the engine that the ScalingPolicy picks for a PolicyResizeEngine
+     */
+    private static ResizeEngine select(ResizeEngine engine, int sourceWidth, int sourceHeight, int subsampling,
+                                       int width, int height) {
+        if (engine instanceof PolicyResizeEngine) {
+            int step = Math.max(1, subsampling);
+            engine = ImageService.getScalingPolicy().select((sourceWidth + step - 1) / step, (sourceHeight + step - 1) / step,
+                                                            width, height, ((PolicyResizeEngine)engine).getQualityHint());
+        }
+        return engine;
+    }
+
+
+    /**
+     * Decode an image in strips and resize it to width x height.
+     *
+     * @param reader an ImageReader, from ImageDecoder.getReader()
+     * @param subsampling the source subsampling factor (1 decodes every pixel)
+     * @param stripRows the number of (subsampled) rows in a strip
+     * @param width the width of the scaled image
+     * @param height the height of the scaled image
+     * @param filter the resampling filter
+     * @return the scaled image (TYPE_INT_RGB, or TYPE_INT_ARGB if the original has an alpha channel)
+     * @throws IOException if there is an error reading the image
+     */
+    public static BufferedImage resize(ImageReader reader, int subsampling, int stripRows, final int width, final int height,
+                                       SeparableResampler.Filter filter) throws IOException {
+        return resize(reader, new Rectangle(0, 0, reader.getWidth(0), reader.getHeight(0)), subsampling, stripRows, 
+                      width, height, filter);
+    }
+
+
+    /**
+     * Decode a region of an image in strips and resize it to width x height.
+     *
+     * @param region the region of the image, which must be inside the image
+     * @see #resize(ImageReader, int, int, int, int, SeparableResampler.Filter)
+     */
+    public static BufferedImage resize(ImageReader reader, Rectangle region, int subsampling, int stripRows, 
+                                       final int width, final int height, SeparableResampler.Filter filter) throws IOException {
+        if (width <= 0 || height <= 0 || subsampling < 1 || stripRows < 1 || region.isEmpty()) {
+            throw new IOException("StripResampler: bad argument");
+        }
+        ImageMetrics metrics = ImageMetrics.current();
+        final int srcWidth = region.width;
+        final int srcHeight = region.height;
+        final int sampledWidth = (srcWidth + subsampling - 1) / subsampling;
+        final int sampledHeight = (srcHeight + subsampling - 1) / subsampling;
+        final int maxBands = ParallelBands.getParallelism();
+        final SeparableResampler.Weights xWeights = SeparableResampler.getWeights(filter, sampledWidth, width);
+        final SeparableResampler.Weights yWeights = SeparableResampler.getWeights(filter, sampledHeight, height);
+        stripRows = Math.min(stripRows, sampledHeight);
+        // the rows of the current strip and the rows before it that the vertical filter can still read
+        final int ringRows = stripRows + yWeights.mMaxCount;
+        final int[] ring = new int[ ringRows * width ];
+        final int[] filtered = new int[ stripRows * width ];
+        BufferedImage dst = null;
+        int[] dstPixels = null;
+        boolean hasAlpha = false;
+        int nextRow = 0;
+        ImageReadParam param = reader.getDefaultReadParam();
+        if (subsampling > 1) {
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        }
+        for (int y = 0; y < sampledHeight; y += stripRows) {
+            int numRows = Math.min(stripRows, sampledHeight - y);
+            int regionY = y * subsampling;
+            param.setSourceRegion( new Rectangle(region.x, region.y + regionY, srcWidth, Math.min(srcHeight - regionY, numRows * subsampling)) );
+            long start = metrics.begin();
+            final BufferedImage strip = reader.read(0, param);
+            metrics.end(ImageMetrics.Stage.DECODE, start);
+            if (strip.getWidth() != sampledWidth || strip.getHeight() != numRows) {
+                throw new IOException("StripResampler: the strip at row " + y + " is " + strip.getWidth() + " x " +
+                                      strip.getHeight() + ", not " + sampledWidth + " x " + numRows);
+            }
+            metrics.add(ImageMetrics.Counter.DECODED_PIXELS, (long)sampledWidth * numRows);
+            if (dst == null) {
+                hasAlpha = strip.getColorModel().hasAlpha();
+                dst = new BufferedImage(width, height, hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+                dstPixels = ((DataBufferInt)dst.getRaster().getDataBuffer()).getData();
+            }
+            start = metrics.begin();
+            final Object data = SeparableResampler.directData( strip );
+            final boolean alpha = hasAlpha;
+            ParallelBands.forEachBand(numRows, width, maxBands, (y0, y1) -> {
+                SeparableResampler.horizontalPass(strip, data, alpha, xWeights, filtered, width, y0, y1);
+            });
+            strip.flush();
+            for (int r = 0; r < numRows; r++) {
+                System.arraycopy(filtered, r * width, ring, ((y + r) % ringRows) * width, width);
+            }
+            // the destination rows whose filter windows end in this strip
+            int firstRow = nextRow;
+            while (nextRow < height && yWeights.mStart[nextRow] + yWeights.mCount[nextRow] <= y + numRows) {
+                nextRow++;
+            }
+            final int[] pixels = dstPixels;
+            final int dstRow0 = firstRow;
+            ParallelBands.forEachBand(nextRow - firstRow, width, maxBands, (y0, y1) -> {
+                verticalPass(ring, ringRows, alpha, yWeights, pixels, width, dstRow0 + y0, dstRow0 + y1);
+            });
+            metrics.end(ImageMetrics.Stage.RESIZE, start);
+        }
+        if (nextRow < height) {
+            throw new IOException("StripResampler: " + (height - nextRow) + " rows were not built");
+        }
+        metrics.setEngine("strips-" + filter.name().toLowerCase());
+        metrics.add(ImageMetrics.Counter.OUTPUT_PIXELS, (long)width * height);
+        return dst;
+    }
+
+
+    /**
+     * The vertical pass for the destination rows y0 to y1, from the ring of horizontally filtered rows. Source
+     * row i is in ring row i % ringRows.
+     */
+    private static void verticalPass(int[] ring, int ringRows, boolean hasAlpha, SeparableResampler.Weights weights,
+                                     int[] dstPixels, int width, int y0, int y1) {
+        final int maxCount = weights.mMaxCount;
+        final int[] rowStart = new int[ maxCount ];
+        for (int y = y0; y < y1; y++) {
+            int count = weights.mCount[y];
+            int w0 = y * maxCount;
+            for (int i = 0; i < count; i++) {
+                rowStart[i] = ((weights.mStart[y] + i) % ringRows) * width;
+            }
+            int outOffset = y * width;
+            for (int x = 0; x < width; x++) {
+                int a = SeparableResampler.WEIGHT_ROUND, r = SeparableResampler.WEIGHT_ROUND;
+                int g = SeparableResampler.WEIGHT_ROUND, b = SeparableResampler.WEIGHT_ROUND;
+                for (int i = 0; i < count; i++) {
+                    int p = ring[ rowStart[i] + x ];
+                    int w = weights.mWeight[ w0 + i ];
+                    a += (p >>> 24) * w;
+                    r += ((p >> 16) & 0xff) * w;
+                    g += ((p >> 8) & 0xff) * w;
+                    b += (p & 0xff) * w;
+                }
+                dstPixels[ outOffset + x ] = SeparableResampler.pixel(a, r, g, b, hasAlpha);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,222 @@
+/** \file
+ *
+ * Mar 4, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <h3>
+ * TableScalingPolicy
+ * </h3>
+ * <p>
+ * A ScalingPolicy that is a table of rules. A rule is four fields, separated by commas, and the rules are separated
+ * by semicolons:
+ * </p>
+ * <pre>
+ *     hint,maxRatio,maxMegapixels,engine
+ * </pre>
+ * <ul>
+ * <li>hint: speed, balanced or quality</li>
+ * <li>maxRatio: the largest downscale ratio for the rule (the larger of source width / width and source height /
+ * height)</li>
+ * <li>maxMegapixels: the largest image, in megapixels, for the rule</li>
+ * <li>engine: a resize engine name (see ResizeEngines)</li>
+ * </ul>
+ * <p>
+ * A * matches any value. The first rule that matches the resize picks the engine, so the last rule for a hint
+ * should match any ratio and size. If no rule matches, Scalr with Method.AUTOMATIC is used. When the container
+ * has more than one CPU, a Scalr engine is replaced by the ParallelResizeEngine with the same Method for images of
+ * at least ImageService.PARALLEL_MIN_PIXELS pixels.
+ * </p>
+ * <p>
+ * The table is the IMAGE_SCALING_POLICY setting, or DEFAULT_TABLE. DEFAULT_TABLE was built with the ScalingCalibration
+ * tool in the benchmarks module, which measures the time and quality (PSNR and SSIM) of each engine on an image
+ * corpus and prints the table for its measurements. The measured quality depends on the ratio and not on the image
+ * size, and the time is in proportion to the image size for every engine, so DEFAULT_TABLE has no megapixel limits:
+ * in the default table, the image size only decides whether a Scalr engine runs in parallel. A table in
+ * IMAGE_SCALING_POLICY can use the megapixel limits (for example, to keep Scalr QUALITY for small images).
+ * </p>
+ * <p>
+ * Mar 4, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class TableScalingPolicy implements ScalingPolicy {
+    /**
+     * From the ScalingCalibration measurements. speed and balanced take the fastest engine within an SSIM margin of
+     * the best: up to 2x, the Scalr BALANCED single pass is the fastest and is within the margin; past 2x, the Scalr
+     * methods alias (SPEED, BALANCED) or are slower than the filters, so bilinear (speed) and bicubic (balanced) are
+     * used. quality takes the engine with the best SSIM, whatever the time: bicubic, except for ratios from 3x to
+     * 4x, where the incremental Scalr QUALITY passes measure best. The SSIM of lanczos3 is below bicubic against the
+     * area average reference (ringing), so it is not in the table.
+     */
+    public final static String DEFAULT_TABLE =
+            "speed,2,*,scalr-balanced;" +
+            "speed,*,*,bilinear;" +
+            "balanced,2,*,scalr-balanced;" +
+            "balanced,*,*,bicubic;" +
+            "quality,3,*,bicubic;" +
+            "quality,4,*,scalr-quality;" +
+            "quality,*,*,bicubic";
+    private final static String ANY = "*";
+
+    /**
+     * One rule of the table.
+     */
+    private static class Rule {
+        final String mHint;
+        final double mMaxRatio;
+        final double mMaxMegapixels;
+        final String mEngineName;
+        final ResizeEngine mEngine;
+        /** the parallel engine for large images, if the engine is a Scalr engine */
+        final ResizeEngine mParallelEngine;
+
+        Rule(String hint, double maxRatio, double maxMegapixels, String engineName, ResizeEngine engine) {
+            this.mHint = hint;
+            this.mMaxRatio = maxRatio;
+            this.mMaxMegapixels = maxMegapixels;
+            this.mEngineName = engineName;
+            this.mEngine = engine;
+            ResizeEngine parallelEngine = null;
+            if (engine instanceof ScalrResizeEngine) {
+                parallelEngine = new ParallelResizeEngine( ((ScalrResizeEngine)engine).getMethod() );
+            }
+            this.mParallelEngine = parallelEngine;
+        }
+
+        boolean matches(String hint, double ratio, double megapixels) {
+            return (mHint == null || mHint.equals( hint )) && ratio <= mMaxRatio && megapixels <= mMaxMegapixels;
+        }
+
+        @Override
+        public String toString() {
+            return field( mHint ) + "," + field( mMaxRatio ) + "," + field( mMaxMegapixels ) + "," + mEngineName;
+        }
+    }
+
+    private final static TableScalingPolicy mDefaultPolicy = parse( DEFAULT_TABLE );
+
+    private final List<Rule> mRules;
+
+    private TableScalingPolicy(List<Rule> rules) {
+        this.mRules = rules;
+    }
+
+    private static String field(String value) {
+        return (value != null) ? value : ANY;
+    }
+
+    private static String field(double value) {
+        String text = ANY;
+        if (! Double.isInfinite( value )) {
+            text = (value == Math.rint( value )) ? Long.toString( (long)value ) : Double.toString( value );
+        }
+        return text;
+    }
+
+    private static double limit(String field) {
+        return field.equals( ANY ) ? Double.POSITIVE_INFINITY : Double.parseDouble( field );
+    }
+
+    /**
+     * Parse a policy table.
+     *
+     * @param table the rules, as hint,maxRatio,maxMegapixels,engine separated by semicolons
+     * @return the policy, or null if the table is empty or a rule is not valid
+     */
+    public static TableScalingPolicy parse(String table) {
+        TableScalingPolicy policy = null;
+        if (table != null && table.trim().length() > 0) {
+            List<Rule> rules = new ArrayList<Rule>();
+            boolean valid = true;
+            for (String ruleText : table.split(";")) {
+                if (ruleText.trim().length() > 0) {
+                    String[] fields = ruleText.split(",");
+                    ResizeEngine engine = (fields.length == 4) ? ResizeEngines.forName( fields[3] ) : null;
+                    if (engine != null) {
+                        try {
+                            String hint = fields[0].trim().toLowerCase();
+                            rules.add( new Rule( hint.equals( ANY ) ? null : hint, limit( fields[1].trim() ),
+                                                 limit( fields[2].trim() ), fields[3].trim().toLowerCase(), engine ) );
+                        } catch (NumberFormatException e) {
+                            valid = false;
+                        }
+                    } else {
+                        valid = false;
+                    }
+                }
+            }
+            if (valid && rules.size() > 0) {
+                policy = new TableScalingPolicy( rules );
+            }
+        }
+        return policy;
+    }
+
+    /**
+     * @return the policy in the IMAGE_SCALING_POLICY setting or, if there is no setting or it is not valid, the
+     *         default policy
+     */
+    public static TableScalingPolicy fromSetting() {
+        TableScalingPolicy policy = parse( S3TransferSettings.getSetting("IMAGE_SCALING_POLICY") );
+        return (policy != null) ? policy : mDefaultPolicy;
+    }
+
+    public static TableScalingPolicy getDefault() {
+        return mDefaultPolicy;
+    }
+
+    /**
+     * @return the quality hint, in lower case, with null and unknown hints mapped to balanced
+     */
+    public static String normalizeHint(String qualityHint) {
+        String hint = HINT_BALANCED;
+        if (qualityHint != null) {
+            String lower = qualityHint.trim().toLowerCase();
+            if (lower.equals( HINT_SPEED ) || lower.equals( HINT_QUALITY )) {
+                hint = lower;
+            }
+        }
+        return hint;
+    }
+
+    @Override
+    public ResizeEngine select(int srcWidth, int srcHeight, int width, int height, String qualityHint) {
+        String hint = normalizeHint( qualityHint );
+        double ratio = Math.max( (double)srcWidth / Math.max(1, width), (double)srcHeight / Math.max(1, height) );
+        long pixels = (long)srcWidth * srcHeight;
+        ResizeEngine engine = ResizeEngines.scalr();
+        for (Rule rule : mRules) {
+            if (rule.matches(hint, ratio, pixels / 1000000.0)) {
+                engine = rule.mEngine;
+                if (rule.mParallelEngine != null && ParallelBands.getParallelism() > 1 && pixels >= ImageService.PARALLEL_MIN_PIXELS) {
+                    engine = rule.mParallelEngine;
+                }
+                break;
+            }
+        }
+        return engine;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder table = new StringBuilder();
+        for (Rule rule : mRules) {
+            if (table.length() > 0) {
+                table.append(';');
+            }
+            table.append( rule.toString() );
+        }
+        return table.toString();
+    }
+
+}
@@ -0,0 +1,32 @@
+package com.amazonaws.lambda.nderground;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+
+/**
+ * <h3>
+ * ScaleImageBatchFunction
+ * </h3>
+ * <p>
+ * An AWS Lambda function that scales a batch of images (for example, a gallery import) in one call, instead of one
+ * call per image. The result has a status for each image. Images that were not started before the invocation
+ * ran short of time are returned so that they can be submitted in another batch.
+ * </p>
+ * 
+ * Feb 24, 2018
+ * 
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class ScaleImageBatchFunction implements RequestHandler<ScaleImageBatch, ScaleImageBatchResult> {
+    public final static String mLambdaFunctionName = "ScaleImageBatch";
+    
+    @Override
+    public ScaleImageBatchResult handleRequest(ScaleImageBatch batch, Context context) {
+        LambdaLogger logger = context.getLogger();
+        AbstractLoggerInterface wrappedLogger = new LambdaLoggerWrapper( logger );
+        ScaleImageBatchResult result = LambdaImageScaler.scaleBatch(batch, () -> context.getRemainingTimeInMillis(), wrappedLogger);
+        return result;
+    }
+
+}
@@ -11,7 +11,8 @@ public class ScaleImageByHeightFunction implements RequestHandler<ScaleImageByHe
     public Boolean handleRequest(ScaleImageByHeight scaleInfo, Context context) {
         LambdaLogger logger = context.getLogger();
         AbstractLoggerInterface wrappedLogger = new LambdaLoggerWrapper( logger );
-        Boolean scaleOK = LambdaImageScaler.scaleImage(scaleInfo, wrappedLogger);
+        ScaleImageResult result = LambdaImageScaler.scaleImage(scaleInfo, () -> context.getRemainingTimeInMillis(), wrappedLogger);
+        Boolean scaleOK = result.isOK();
         return scaleOK;
     }
 
@@ -11,7 +11,8 @@ public class ScaleImageByHeightWidthFunction implements RequestHandler<ScaleImag
     public Boolean handleRequest(ScaleImageByHeightWidth scaleInfo, Context context) {
         LambdaLogger logger = context.getLogger();
         AbstractLoggerInterface wrappedLogger = new LambdaLoggerWrapper( logger );
-        Boolean scaleOK = LambdaImageScaler.scaleImage(scaleInfo, wrappedLogger);
+        ScaleImageResult result = LambdaImageScaler.scaleImage(scaleInfo, () -> context.getRemainingTimeInMillis(), wrappedLogger);
+        Boolean scaleOK = result.isOK();
         return scaleOK;
     }
 
@@ -42,7 +42,8 @@ public class ScaleImageByMaxDimFunction implements RequestHandler<ScaleImageByMa
     public Boolean handleRequest(ScaleImageByMaxDim scaleInfo, Context context) {
         LambdaLogger logger = context.getLogger();
         LambdaLoggerWrapper wrappedLogger = new LambdaLoggerWrapper( logger );
-        Boolean scaleOK = LambdaImageScaler.scaleImage(scaleInfo, wrappedLogger);
+        ScaleImageResult result = LambdaImageScaler.scaleImage(scaleInfo, () -> context.getRemainingTimeInMillis(), wrappedLogger);
+        Boolean scaleOK = result.isOK();
         return scaleOK;
     }
 
@@ -0,0 +1,32 @@
+package com.amazonaws.lambda.nderground;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+
+/**
+ * <h3>
+ * ScaleImageCropFunction
+ * </h3>
+ * <p>
+ * An AWS Lambda function that crops an image and scales the cropped region to an exact size (for example, a square
+ * avatar from a wide original). Only the cropped region of the original is decoded.
+ * </p>
+ * 
+ * Mar 2, 2018
+ * 
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class ScaleImageCropFunction implements RequestHandler<ScaleImageCrop, Boolean> {
+    public final static String mLambdaFunctionName = "ScaleImageCrop";
+    
+    @Override
+    public Boolean handleRequest(ScaleImageCrop scaleInfo, Context context) {
+        LambdaLogger logger = context.getLogger();
+        AbstractLoggerInterface wrappedLogger = new LambdaLoggerWrapper( logger );
+        ScaleImageResult result = LambdaImageScaler.cropScale(scaleInfo, () -> context.getRemainingTimeInMillis(), wrappedLogger);
+        Boolean scaleOK = result.isOK();
+        return scaleOK;
+    }
+
+}
@@ -0,0 +1,32 @@
+package com.amazonaws.lambda.nderground;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+
+/**
+ * <h3>
+ * ScaleImageCropResultFunction
+ * </h3>
+ * <p>
+ * The ScaleImageCropFunction Lambda function, returning a ScaleImageResult instead of a Boolean. The result has the status
+ * (ok, failed or deadlineExceeded) and the path that was taken (see DeadlinePlanner), so a caller can retry
+ * a request that ran out of time. ScaleImageCropFunction is unchanged, for the callers that expect a Boolean.
+ * </p>
+ * 
+ * Mar 10, 2018
+ * 
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class ScaleImageCropResultFunction implements RequestHandler<ScaleImageCrop, ScaleImageResult> {
+    public final static String mLambdaFunctionName = "ScaleImageCropResult";
+    
+    @Override
+    public ScaleImageResult handleRequest(ScaleImageCrop scaleInfo, Context context) {
+        LambdaLogger logger = context.getLogger();
+        AbstractLoggerInterface wrappedLogger = new LambdaLoggerWrapper( logger );
+        ScaleImageResult result = LambdaImageScaler.cropScale(scaleInfo, () -> context.getRemainingTimeInMillis(), wrappedLogger);
+        return result;
+    }
+
+}
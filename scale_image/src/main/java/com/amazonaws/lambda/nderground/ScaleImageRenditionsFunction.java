@@ -0,0 +1,33 @@
+package com.amazonaws.lambda.nderground;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+
+/**
+ * <h3>
+ * ScaleImageRenditionsFunction
+ * </h3>
+ * <p>
+ * An AWS Lambda function that builds several scaled versions of an image (for example, a thumbnail, a
+ * display image and a maximum dimension image) in one call. The original is read from S3 and decoded once.
+ * The request is fitted into the time that is left in the invocation (see DeadlinePlanner).
+ * </p>
+ * 
+ * Feb 9, 2018
+ * 
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class ScaleImageRenditionsFunction implements RequestHandler<ScaleImageRenditions, Boolean> {
+    public final static String mLambdaFunctionName = "ScaleImageRenditions";
+    
+    @Override
+    public Boolean handleRequest(ScaleImageRenditions scaleInfo, Context context) {
+        LambdaLogger logger = context.getLogger();
+        AbstractLoggerInterface wrappedLogger = new LambdaLoggerWrapper( logger );
+        ScaleImageResult result = LambdaImageScaler.scaleRenditions(scaleInfo, () -> context.getRemainingTimeInMillis(), wrappedLogger);
+        Boolean scaleOK = result.isOK();
+        return scaleOK;
+    }
+
+}
@@ -0,0 +1,32 @@
+package com.amazonaws.lambda.nderground;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+
+/**
+ * <h3>
+ * ScaleImageRenditionsResultFunction
+ * </h3>
+ * <p>
+ * The ScaleImageRenditionsFunction Lambda function, returning a ScaleImageResult instead of a Boolean. The result has the status
+ * (ok, failed or deadlineExceeded) and the path that was taken (see DeadlinePlanner), so a caller can retry
+ * a request that ran out of time. ScaleImageRenditionsFunction is unchanged, for the callers that expect a Boolean.
+ * </p>
+ * 
+ * Mar 10, 2018
+ * 
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class ScaleImageRenditionsResultFunction implements RequestHandler<ScaleImageRenditions, ScaleImageResult> {
+    public final static String mLambdaFunctionName = "ScaleImageRenditionsResult";
+    
+    @Override
+    public ScaleImageResult handleRequest(ScaleImageRenditions scaleInfo, Context context) {
+        LambdaLogger logger = context.getLogger();
+        AbstractLoggerInterface wrappedLogger = new LambdaLoggerWrapper( logger );
+        ScaleImageResult result = LambdaImageScaler.scaleRenditions(scaleInfo, () -> context.getRemainingTimeInMillis(), wrappedLogger);
+        return result;
+    }
+
+}
@@ -11,7 +11,8 @@ public class ThumbnailScale implements RequestHandler<ScaleImageByHeightWidth, B
     public Boolean handleRequest(ScaleImageByHeightWidth scaleInfo, Context context) {
         LambdaLogger logger = context.getLogger();
         AbstractLoggerInterface wrappedLogger = new LambdaLoggerWrapper( logger );
-        Boolean scaleOK = LambdaImageScaler.thumbnailScale(scaleInfo, wrappedLogger);
+        ScaleImageResult result = LambdaImageScaler.thumbnailScale(scaleInfo, () -> context.getRemainingTimeInMillis(), wrappedLogger);
+        Boolean scaleOK = result.isOK();
         return scaleOK;
     }
 
@@ -0,0 +1,72 @@
+/** \file
+ *
+ * Feb 15, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+
+import org.junit.Test;
+
+/**
+ * Local tests for the BufferPool and the ByteArrayImageInputStream. These tests do not use AWS.
+ */
+public class ByteArrayImageInputStreamTest {
+
+    @Test
+    public void testSizeClass() {
+        assertEquals(BufferPool.MIN_BUFFER_SIZE, BufferPool.sizeClass( 1 ));
+        for (int n = BufferPool.MIN_BUFFER_SIZE; n < 64 * 1024 * 1024; n = n * 3 / 2 + 7) {
+            int size = BufferPool.sizeClass( n );
+            assertTrue(size >= n);
+            assertTrue(size <= n + n / 4 + 1);
+            assertEquals(size, BufferPool.sizeClass( size ));
+        }
+    }
+
+
+    @Test
+    public void testDecodeFromPooledBuffer() throws IOException {
+        BufferedImage image = ParallelResizeEngineTest.randomImage(300, 200, BufferedImage.TYPE_INT_RGB, 11);
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", outStream);
+        byte[] pngBytes = outStream.toByteArray();
+
+        BufferPool pool = new BufferPool( BufferPool.DEFAULT_MAX_POOLED_BYTES );
+        byte[] buffer = pool.acquire( pngBytes.length );
+        System.arraycopy(pngBytes, 0, buffer, 0, pngBytes.length);
+        ByteArrayImageInputStream imageStream = new ByteArrayImageInputStream( buffer, pngBytes.length, pool );
+        assertEquals(pngBytes.length, imageStream.length());
+        ImageReader reader = ImageDecoder.getReader( imageStream );
+        assertNotNull(reader);
+        ImageHeader header = ImageDecoder.readHeader( reader );
+        assertTrue(header.isFormat("png"));
+        BufferedImage decoded = ImageDecoder.read(reader, 1);
+        reader.dispose();
+        imageStream.close();
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                assertEquals(image.getRGB(x, y), decoded.getRGB(x, y));
+            }
+        }
+        // the buffer was returned to the pool when the stream was closed
+        assertEquals(buffer.length, pool.getPooledBytes());
+        assertSame(buffer, pool.acquire( pngBytes.length ));
+        assertEquals(1, pool.getReuses());
+    }
+
+}
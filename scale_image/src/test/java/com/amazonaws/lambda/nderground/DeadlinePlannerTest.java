@@ -0,0 +1,254 @@
+/** \file
+ *
+ * Mar 3, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+/**
+ * Tests for the deadline planner: the path that is picked for the time that is left, the cost model, and the
+ * results of requests with a deadline.
+ */
+public class DeadlinePlannerTest {
+
+    /**
+     * A cost model with fixed costs: every stage costs 1 ns per unit, except the resize engines other than the fast
+     * engine, which cost slowNanos per pixel, and the fast engine, which costs fastNanos per pixel.
+     */
+    private static DeadlinePlanner.CostModel fixedModel(final double slowNanos, final double fastNanos) {
+        return new DeadlinePlanner.CostModel() {
+            @Override
+            public synchronized double getNanos(DeadlinePlanner.Cost cost) {
+                return 1;
+            }
+
+            @Override
+            public synchronized double getResizeNanos(String engine) {
+                return DeadlinePlanner.FAST_ENGINE.equals( engine ) ? fastNanos : slowNanos;
+            }
+        };
+    }
+
+    private static byte[] jpeg(int width, int height, int seed) throws IOException {
+        BufferedImage image = ParallelResizeEngineTest.randomImage(width, height, BufferedImage.TYPE_INT_RGB, seed);
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", outStream);
+        return outStream.toByteArray();
+    }
+
+    private static ScaleImageByHeightWidth request(String s3Path, String s3ScaledPath, int height, int width) {
+        ScaleImageByHeightWidth imageInfo = new ScaleImageByHeightWidth("us-west-1", "deadline-test", "id", "key", s3Path,
+                                                                        s3ScaledPath, "image/jpeg", height, width);
+        return imageInfo;
+    }
+
+
+    /**
+     * The path is the first of full, fast resize and subsampled that fits in the time that is left.
+     */
+    @Test
+    public void testPlan() {
+        final long[] remaining = new long[]{ 0 };
+        DeadlinePlanner planner = new DeadlinePlanner(() -> remaining[0], 100, fixedModel(1000, 100));
+        ResizeEngine engine = ResizeEngines.forName("scalr-ultra_quality");
+        // 4000 x 3000 to 500 x 375, with a source subsampling of 4
+        long full = planner.estimateMillis(4000, 3000, 4, true, engine, 500, 375);
+        long fast = planner.estimateMillis(4000, 3000, 4, true, ResizeEngines.forName( DeadlinePlanner.FAST_ENGINE ), 500, 375);
+        long subsampled = planner.estimateMillis(4000, 3000, 8, true, ResizeEngines.forName( DeadlinePlanner.FAST_ENGINE ), 500, 375);
+        assertTrue(full > fast && fast > subsampled);
+        remaining[0] = full + 100;
+        DeadlinePlanner.Plan plan = planner.planDecode(4000, 3000, 4, true, engine, 500, 375);
+        assertEquals(DeadlinePlanner.Path.FULL, plan.getPath());
+        assertFalse(plan.isDegraded());
+        assertFalse(plan.isDeadlineExceeded());
+        assertEquals(engine, plan.getEngine());
+        assertEquals(4, plan.getSubsampling());
+        remaining[0] = full + 99;
+        plan = planner.planDecode(4000, 3000, 4, true, engine, 500, 375);
+        assertEquals(DeadlinePlanner.Path.FAST_RESIZE, plan.getPath());
+        assertEquals(DeadlinePlanner.FAST_ENGINE, plan.getEngine().getName());
+        assertEquals(4, plan.getSubsampling());
+        remaining[0] = subsampled + 100;
+        plan = planner.planDecode(4000, 3000, 4, true, engine, 500, 375);
+        assertEquals(DeadlinePlanner.Path.SUBSAMPLED, plan.getPath());
+        assertEquals(8, plan.getSubsampling());
+        assertFalse(plan.isDeadlineExceeded());
+        // a crop cannot be subsampled further, and a decoded image is only resized
+        assertTrue(planner.planDecode(4000, 3000, 4, false, engine, 500, 375).isDeadlineExceeded());
+        assertEquals(DeadlinePlanner.Path.FAST_RESIZE, planner.planResize(1000, 750, engine, 500, 375).getPath());
+        remaining[0] = subsampled + 99;
+        plan = planner.planDecode(4000, 3000, 4, true, engine, 500, 375);
+        assertTrue(plan.isDeadlineExceeded());
+        assertNotNull(plan.toString());
+        assertTrue(planner.canDownload( 1000 ));
+        assertFalse(planner.canDownload( 1000L * 1000 * 1000 ));
+        remaining[0] = 0;
+        assertFalse(planner.canUpload( 1 ));
+    }
+
+
+    @Test
+    public void testCostModel() {
+        DeadlinePlanner.CostModel model = new DeadlinePlanner.CostModel();
+        double decode = model.getNanos( DeadlinePlanner.Cost.DECODE );
+        assertEquals(DeadlinePlanner.Cost.DECODE.getInitialNanos(), decode, 0.0);
+        // a slower decode raises the average, but not all of the way
+        model.record(DeadlinePlanner.Cost.DECODE, 1000, (long)(1000 * decode * 5));
+        assertEquals(decode * 2, model.getNanos( DeadlinePlanner.Cost.DECODE ), 0.001);
+        // an empty timing is ignored
+        model.record(DeadlinePlanner.Cost.DECODE, 0, 1000);
+        assertEquals(decode * 2, model.getNanos( DeadlinePlanner.Cost.DECODE ), 0.001);
+        // the resize cost is kept for each engine
+        double lanczos = model.getResizeNanos("lanczos3");
+        assertTrue(model.getResizeNanos( DeadlinePlanner.FAST_ENGINE ) < lanczos);
+        model.recordResize("lanczos3", 100, 1);
+        assertTrue(model.getResizeNanos("lanczos3") < lanczos);
+        assertEquals(lanczos, model.getResizeNanos( DeadlinePlanner.DEFAULT_ENGINE ), 0.0);
+    }
+
+
+    /**
+     * A request that fits is scaled as it was made, a request that does not fit is degraded, and a request that
+     * cannot be finished in time is stopped with a deadline exceeded result and writes nothing.
+     */
+    @Test
+    public void testDeadline() throws IOException {
+        FakeS3 s3 = new FakeS3();
+        s3.putObjectData("original.jpg", jpeg(800, 600, 1));
+        s3.putObjectData("original2.jpg", jpeg(800, 600, 2));
+        LambdaImageScaler scaler = s3.newScaler( "deadline-test", new JavaLoggerWrapper("DeadlinePlannerTest") );
+        ScaleImageResult result = scaler.scaleAsync(request("original.jpg", "full.jpg", 75, 100), ScaleMode.HEIGHT_WIDTH, 75, 100, null,
+                                                    new DeadlinePlanner(() -> 60000L, 0, fixedModel(1, 1))).join();
+        assertTrue(result.isOK());
+        assertEquals(DeadlinePlanner.Path.FULL.getName(), result.getPath());
+        // a slow engine does not fit: the fast engine is used
+        result = scaler.scaleAsync(request("original.jpg", "fast.jpg", 75, 100), ScaleMode.HEIGHT_WIDTH, 75, 100, null,
+                                   new DeadlinePlanner(() -> 10000L, 0, fixedModel(1000000, 1))).join();
+        assertTrue(result.isOK());
+        assertEquals(DeadlinePlanner.Path.FAST_RESIZE.getName(), result.getPath());
+        // the fast engine does not fit either, unless the original is decoded at the scaled size (a different
+        // original, which is not in the DecodedImageCache)
+        result = scaler.scaleAsync(request("original2.jpg", "subsampled.jpg", 75, 100), ScaleMode.HEIGHT_WIDTH, 75, 100, null,
+                                   new DeadlinePlanner(() -> 20L, 0, fixedModel(1000000, 1000))).join();
+        assertTrue(result.isOK());
+        assertEquals(DeadlinePlanner.Path.SUBSAMPLED.getName(), result.getPath());
+        BufferedImage scaled = ImageIO.read( new ByteArrayInputStream( s3.getObjectData("subsampled.jpg") ) );
+        assertEquals(100, scaled.getWidth());
+        assertEquals(75, scaled.getHeight());
+        // no path fits, or there is no time at all
+        result = scaler.scaleAsync(request("original.jpg", "exceeded.jpg", 75, 100), ScaleMode.HEIGHT_WIDTH, 75, 100, null,
+                                   new DeadlinePlanner(() -> 5L, 0, fixedModel(1000000, 1000))).join();
+        assertTrue(result.isDeadlineExceeded());
+        assertFalse(result.isOK());
+        assertNull(result.getPath());
+        assertNull(s3.getObjectData("exceeded.jpg"));
+        int gets = s3.getGets();
+        result = scaler.scaleAsync(request("original.jpg", "exceeded.jpg", 75, 100), ScaleMode.HEIGHT_WIDTH, 75, 100, null,
+                                   new DeadlinePlanner(() -> 500L, 1000, new DeadlinePlanner.CostModel())).join();
+        assertEquals(ScaleImageResult.STATUS_DEADLINE_EXCEEDED, result.getStatus());
+        assertEquals(gets, s3.getGets());
+    }
+
+
+
+    /**
+     * A degraded image does not have the fingerprint of the request, so a retry with enough time scales it again.
+     */
+    @Test
+    public void testDegradedRetry() throws IOException {
+        FakeS3 s3 = new FakeS3();
+        s3.putObjectData("retry.jpg", jpeg(800, 600, 3));
+        LambdaImageScaler scaler = s3.newScaler( "deadline-test", new JavaLoggerWrapper("DeadlinePlannerTest") );
+        ScaleImageResult result = scaler.scaleAsync(request("retry.jpg", "retryScaled.jpg", 75, 100), ScaleMode.HEIGHT_WIDTH, 75, 100, null,
+                                                    new DeadlinePlanner(() -> 10000L, 0, fixedModel(1000000, 1))).join();
+        assertEquals(DeadlinePlanner.Path.FAST_RESIZE.getName(), result.getPath());
+        String degraded = s3.getUserMetadata("retryScaled.jpg").get( RenditionFingerprint.METADATA_KEY );
+        assertNotNull(degraded);
+        byte[] degradedData = s3.getObjectData("retryScaled.jpg");
+        result = scaler.scaleAsync(request("retry.jpg", "retryScaled.jpg", 75, 100), ScaleMode.HEIGHT_WIDTH, 75, 100, null,
+                                   new DeadlinePlanner(() -> 60000L, 0, fixedModel(1, 1))).join();
+        assertTrue(result.isOK());
+        assertEquals(DeadlinePlanner.Path.FULL.getName(), result.getPath());
+        byte[] fullData = s3.getObjectData("retryScaled.jpg");
+        assertNotSame(degradedData, fullData);
+        String full = s3.getUserMetadata("retryScaled.jpg").get( RenditionFingerprint.METADATA_KEY );
+        assertFalse(degraded.equals( full ));
+        // the full quality image is up to date
+        result = scaler.scaleAsync(request("retry.jpg", "retryScaled.jpg", 75, 100), ScaleMode.HEIGHT_WIDTH, 75, 100, null,
+                                   new DeadlinePlanner(() -> 60000L, 0, fixedModel(1, 1))).join();
+        assertTrue(result.isOK());
+        assertSame(fullData, s3.getObjectData("retryScaled.jpg"));
+    }
+
+
+    private static ScaleImageRenditions renditions(String s3Path, String prefix) {
+        List<RenditionSpec> renditions = new ArrayList<RenditionSpec>();
+        renditions.add( new RenditionSpec("maxDim", 0, 0, 200, prefix + "-large.jpg", null) );
+        renditions.add( new RenditionSpec("heightWidth", 75, 100, 0, prefix + "-small.jpg", null) );
+        return new ScaleImageRenditions("us-west-1", "deadline-test", "id", "key", s3Path, "image/jpeg", renditions);
+    }
+
+    /**
+     * The renditions are planned for the largest rendition. When no path fits, none of the renditions is written.
+     */
+    @Test
+    public void testRenditionsDeadline() throws IOException {
+        FakeS3 s3 = new FakeS3();
+        s3.putObjectData("renditions.jpg", jpeg(800, 600, 4));
+        LambdaImageScaler scaler = s3.newScaler( "deadline-test", new JavaLoggerWrapper("DeadlinePlannerTest") );
+        ScaleImageResult result = scaler.scaleRenditionsLocal(renditions("renditions.jpg", "full"),
+                                                              new DeadlinePlanner(() -> 60000L, 0, fixedModel(1, 1)));
+        assertTrue(result.isOK());
+        assertEquals(DeadlinePlanner.Path.FULL.getName(), result.getPath());
+        assertNotNull(s3.getObjectData("full-large.jpg"));
+        assertNotNull(s3.getObjectData("full-small.jpg"));
+        result = scaler.scaleRenditionsLocal(renditions("renditions.jpg", "fast"),
+                                             new DeadlinePlanner(() -> 10000L, 0, fixedModel(1000000, 1)));
+        assertTrue(result.isOK());
+        assertEquals(DeadlinePlanner.Path.FAST_RESIZE.getName(), result.getPath());
+        BufferedImage large = ImageIO.read( new ByteArrayInputStream( s3.getObjectData("fast-large.jpg") ) );
+        assertEquals(200, large.getWidth());
+        assertEquals(150, large.getHeight());
+        // the degraded renditions do not have the fingerprints of the request, so a retry with enough time builds them again
+        byte[] fastData = s3.getObjectData("fast-small.jpg");
+        result = scaler.scaleRenditionsLocal(renditions("renditions.jpg", "fast"),
+                                             new DeadlinePlanner(() -> 60000L, 0, fixedModel(1, 1)));
+        assertEquals(DeadlinePlanner.Path.FULL.getName(), result.getPath());
+        assertNotSame(fastData, s3.getObjectData("fast-small.jpg"));
+        result = scaler.scaleRenditionsLocal(renditions("renditions.jpg", "exceeded"),
+                                             new DeadlinePlanner(() -> 5L, 0, fixedModel(1000000, 1000)));
+        assertTrue(result.isDeadlineExceeded());
+        assertNull(result.getPath());
+        assertNull(s3.getObjectData("exceeded-large.jpg"));
+        assertNull(s3.getObjectData("exceeded-small.jpg"));
+        // there is no time left: the original is not read
+        int gets = s3.getGets();
+        result = scaler.scaleRenditionsLocal(renditions("renditions.jpg", "exceeded"),
+                                             new DeadlinePlanner(() -> 500L, 1000, new DeadlinePlanner.CostModel()));
+        assertEquals(ScaleImageResult.STATUS_DEADLINE_EXCEEDED, result.getStatus());
+        assertEquals(gets, s3.getGets());
+    }
+
+}
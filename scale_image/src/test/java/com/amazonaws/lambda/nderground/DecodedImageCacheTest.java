@@ -0,0 +1,109 @@
+/** \file
+ *
+ * Feb 20, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import javax.imageio.stream.ImageInputStream;
+
+import org.junit.Test;
+
+/**
+ * Local tests for the decoded image cache and the conditional GET that validates a cached image.
+ */
+public class DecodedImageCacheTest {
+
+    private static DecodedImageCache.CachedImage cachedImage(String eTag, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        return new DecodedImageCache.CachedImage(eTag, image, width, height, 1);
+    }
+
+
+    @Test
+    public void testBoundedByBytes() {
+        // room for two 100 x 100 INT_RGB images
+        DecodedImageCache cache = new DecodedImageCache( 2 * 100 * 100 * 4 );
+        DecodedImageCache.CachedImage a = cachedImage("a", 100, 100);
+        assertEquals(100 * 100 * 4, a.getBytes());
+        assertTrue(cache.put("bucket", "a.jpg", a));
+        assertTrue(cache.put("bucket", "b.jpg", cachedImage("b", 100, 100)));
+        // a is now the most recently used image
+        assertSame(a, cache.get("bucket", "a.jpg"));
+        assertTrue(cache.put("bucket", "c.jpg", cachedImage("c", 100, 100)));
+        assertNull(cache.get("bucket", "b.jpg"));
+        assertNotNull(cache.get("bucket", "a.jpg"));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2 * 100 * 100 * 4, cache.getBytes());
+        assertTrue(cache.isCached( a.getImage() ));
+        // an image larger than the cache is not added
+        assertFalse(cache.put("bucket", "big.jpg", cachedImage("big", 300, 300)));
+        // replacing an image does not count as an eviction
+        assertTrue(cache.put("bucket", "a.jpg", cachedImage("a2", 100, 100)));
+        assertEquals("a2", cache.get("bucket", "a.jpg").getETag());
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+    }
+
+
+    @Test
+    public void testHeapPressure() {
+        final long[] excess = new long[]{ 0 };
+        DecodedImageCache cache = new DecodedImageCache( 1L << 30 ) {
+            @Override
+            protected long heapExcess(long newBytes) {
+                return excess[0] + newBytes;
+            }
+        };
+        cache.put("bucket", "a.jpg", cachedImage("a", 100, 100));
+        cache.put("bucket", "b.jpg", cachedImage("b", 100, 100));
+        cache.trim( 0 );
+        assertEquals(2, cache.size());
+        // the heap is 1 byte over the limit: the least recently used image is evicted
+        excess[0] = 1;
+        cache.trim( 0 );
+        assertEquals(1, cache.size());
+        assertNotNull(cache.get("bucket", "b.jpg"));
+    }
+
+
+    @Test
+    public void testConditionalGet() throws IOException {
+        final FakeS3 s3 = new FakeS3();
+        S3Service s3Service = s3.newS3Service();
+        JavaLoggerWrapper logger = new JavaLoggerWrapper("DecodedImageCacheTest");
+        byte[] data = new byte[]{ 1, 2, 3, 4 };
+        s3.putObjectData("image.jpg", data);
+        S3Service.ImageRead read = s3Service.readImage("image.jpg", null, logger);
+        assertNotNull(read.getStream());
+        read.getStream().close();
+        assertEquals(FakeS3.md5Hex( data ), read.getETag());
+        // not modified
+        String cachedETag = read.getETag();
+        read = s3Service.readImage("image.jpg", cachedETag, logger);
+        assertNull(read.getStream());
+        assertEquals(cachedETag, read.getETag());
+        // the image is replaced
+        s3.putObjectData("image.jpg", new byte[]{ 5, 6, 7 });
+        read = s3Service.readImage("image.jpg", cachedETag, logger);
+        ImageInputStream imageStream = read.getStream();
+        assertNotNull(imageStream);
+        assertEquals(5, imageStream.read());
+        imageStream.close();
+        assertFalse(cachedETag.equals( read.getETag() ));
+    }
+
+}
@@ -0,0 +1,106 @@
+/** \file
+ *
+ * Feb 26, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+
+/**
+ * <h3>
+ * FakeContext
+ * </h3>
+ * <p>
+ * A Lambda Context for calling the Lambda function handlers locally. The remaining time counts down from the
+ * function timeout, starting when the context is built. The log messages are counted and, if echo is true, written
+ * to standard error.
+ * </p>
+ * <p>
+ * Feb 26, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class FakeContext implements Context {
+    private final static AtomicLong mRequestIds = new AtomicLong();
+    private final static AtomicLong mLogMessages = new AtomicLong();
+
+    private final String mFunctionName;
+    private final long mDeadline;
+    private final int mMemoryLimitMB;
+    private final String mRequestId = "local-" + mRequestIds.incrementAndGet();
+    private final LambdaLogger mLogger;
+
+    /**
+     * @param functionName the Lambda function name (e.g., ThumbnailScale.mLambdaFunctionName)
+     * @param timeoutMillis the function timeout
+     * @param memoryLimitMB the function memory size
+     * @param echo if true, log messages are written to standard error
+     */
+    public FakeContext(String functionName, long timeoutMillis, int memoryLimitMB, final boolean echo) {
+        this.mFunctionName = functionName;
+        this.mDeadline = System.currentTimeMillis() + timeoutMillis;
+        this.mMemoryLimitMB = memoryLimitMB;
+        this.mLogger = new LambdaLogger() {
+            @Override
+            public void log(String msg) {
+                mLogMessages.incrementAndGet();
+                if (echo) {
+                    System.err.println( msg );
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the number of messages logged through all of the FakeContext loggers
+     */
+    public static long getLogMessages() {
+        return mLogMessages.get();
+    }
+
+    @Override
+    public String getAwsRequestId() { return mRequestId; }
+
+    @Override
+    public String getLogGroupName() { return "/aws/lambda/" + mFunctionName; }
+
+    @Override
+    public String getLogStreamName() { return "local"; }
+
+    @Override
+    public String getFunctionName() { return mFunctionName; }
+
+    @Override
+    public String getFunctionVersion() { return "$LATEST"; }
+
+    @Override
+    public String getInvokedFunctionArn() { return "arn:aws:lambda:local:000000000000:function:" + mFunctionName; }
+
+    @Override
+    public CognitoIdentity getIdentity() { return null; }
+
+    @Override
+    public ClientContext getClientContext() { return null; }
+
+    @Override
+    public int getRemainingTimeInMillis() {
+        return (int)Math.max(0, mDeadline - System.currentTimeMillis());
+    }
+
+    @Override
+    public int getMemoryLimitInMB() { return mMemoryLimitMB; }
+
+    @Override
+    public LambdaLogger getLogger() { return mLogger; }
+
+}
@@ -0,0 +1,409 @@
+/** \file
+ *
+ * Feb 17, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.amazonaws.util.Base64;
+import com.amazonaws.util.BinaryUtils;
+
+/**
+ * An in-memory stand-in for S3, for local tests. Only the operations used by S3Service are implemented.
+ * Objects are stored by key (the bucket is ignored). The MD5 hash sent with a put or a part is checked, as S3
+ * does. GETs support byte ranges and the If-Match and If-None-Match (ETag) constraints. User metadata is kept for
+ * puts, multipart uploads and copies and is returned by GETs and HEADs. Faults can be injected to
+ * test the error and latency handling: a delay or an error status for the next GETs and PUTs, a slow network
+ * (a delay for each read of a GET body) and a failed part upload.
+ * <p>
+ * newS3Service() and newScaler() build the S3Service and LambdaImageScaler objects that the tests use with a FakeS3.
+ * They have no LocalObjectCache, so a test does not read files that another test has cached.
+ * </p>
+ */
+public class FakeS3 extends AbstractAmazonS3 {
+    private final Map<String, byte[]> mObjects = new HashMap<String, byte[]>();
+    private final Map<String, Map<String, String>> mUserMetadata = new HashMap<String, Map<String, String>>();
+    private final Map<String, TreeMap<Integer, byte[]>> mUploads = new HashMap<String, TreeMap<Integer, byte[]>>();
+    private final Map<String, Map<String, String>> mUploadMetadata = new HashMap<String, Map<String, String>>();
+    private final AtomicInteger mUploadIds = new AtomicInteger();
+    private final AtomicInteger mPartUploads = new AtomicInteger();
+    private final AtomicInteger mAborts = new AtomicInteger();
+    private final AtomicInteger mGets = new AtomicInteger();
+    private final AtomicInteger mHeads = new AtomicInteger();
+    private final AtomicLong mGetBytes = new AtomicLong();
+    private volatile int mFailPart = -1;
+    private volatile int mReadDelay = 0;
+    /** faults for the next requests: a delay in milliseconds (>= 0) or an error status (< 0) */
+    private final ConcurrentLinkedQueue<Integer> mFaults = new ConcurrentLinkedQueue<Integer>();
+
+    /**
+     * @param s3Bucket the bucket name. The DecodedImageCache is keyed by bucket, so each test class uses its own bucket.
+     * @return an S3Service that sends its requests to this FakeS3, with no LocalObjectCache
+     */
+    public S3Service newS3Service(String s3Bucket) {
+        final AmazonS3 s3 = this;
+        S3Service s3Service = new S3Service("us-west-1", s3Bucket, "id", "key") {
+            @Override
+            protected AmazonS3 getS3Client() {
+                return s3;
+            }
+        };
+        s3Service.setLocalCache( null );
+        return s3Service;
+    }
+
+    /**
+     * @return an S3Service for the bucket "bucket" (see newS3Service(String))
+     */
+    public S3Service newS3Service() {
+        return newS3Service("bucket");
+    }
+
+    /**
+     * @return a LambdaImageScaler with an S3Service for this FakeS3 (see newS3Service(String))
+     */
+    public LambdaImageScaler newScaler(String s3Bucket, AbstractLoggerInterface logger) {
+        return new LambdaImageScaler( newS3Service( s3Bucket ), logger );
+    }
+
+    /**
+     * @return a LambdaImageScaler for the bucket "bucket"
+     */
+    public LambdaImageScaler newScaler(AbstractLoggerInterface logger) {
+        return newScaler("bucket", logger);
+    }
+
+    public static String md5Hex(byte[] data) {
+        try {
+            return BinaryUtils.toHex( MessageDigest.getInstance("MD5").digest( data ) );
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    private static byte[] readAll(InputStream istream) {
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        byte[] buf = new byte[ 8192 ];
+        int n;
+        try {
+            while ((n = istream.read(buf)) > 0) {
+                outStream.write(buf, 0, n);
+            }
+        } catch (IOException e) {
+            throw new AmazonS3Exception( e.getLocalizedMessage() );
+        }
+        return outStream.toByteArray();
+    }
+
+    private static void checkMD5(byte[] data, String md5Base64) {
+        if (md5Base64 != null && !md5Hex( data ).equals( BinaryUtils.toHex( Base64.decode( md5Base64 ) ))) {
+            AmazonS3Exception e = new AmazonS3Exception("The Content-MD5 you specified did not match what we received.");
+            e.setErrorCode("BadDigest");
+            e.setStatusCode(400);
+            throw e;
+        }
+    }
+
+    /** make the upload of this part number fail (-1 for no failure) */
+    public void setFailPart(int partNumber) {
+        mFailPart = partNumber;
+    }
+
+    /** delay the next GET, PUT or part upload by this many milliseconds before it responds */
+    public void addDelay(int millis) {
+        mFaults.add( millis );
+    }
+
+    /** make the next GET, PUT or part upload fail with this HTTP status (e.g., 500 or 503) */
+    public void addFailure(int statusCode) {
+        mFaults.add( -statusCode );
+    }
+
+    private void injectFault() {
+        Integer fault = mFaults.poll();
+        if (fault != null) {
+            if (fault >= 0) {
+                try {
+                    Thread.sleep( fault );
+                } catch (InterruptedException e) {
+                    throw new AbortedException();
+                }
+            } else {
+                AmazonS3Exception e = new AmazonS3Exception("injected failure");
+                e.setStatusCode( -fault );
+                e.setErrorCode( -fault == 503 ? "SlowDown" : "InternalError" );
+                throw e;
+            }
+        }
+    }
+
+    /** make each read of a GET body wait this many milliseconds, like a slow network */
+    public void setReadDelay(int millis) {
+        mReadDelay = millis;
+    }
+
+    private InputStream delayed(InputStream istream) {
+        final int delay = mReadDelay;
+        InputStream delayedStream = istream;
+        if (delay > 0) {
+            delayedStream = new FilterInputStream( istream ) {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    try {
+                        Thread.sleep( delay );
+                    } catch (InterruptedException e) {
+                        throw new IOException("interrupted");
+                    }
+                    return super.read(b, off, len);
+                }
+            };
+        }
+        return delayedStream;
+    }
+
+    public synchronized byte[] getObjectData(String key) {
+        return mObjects.get( key );
+    }
+
+    public synchronized void putObjectData(String key, byte[] data) {
+        putObjectData(key, data, null);
+    }
+
+    public synchronized void putObjectData(String key, byte[] data, Map<String, String> userMetadata) {
+        mObjects.put(key, data);
+        mUserMetadata.put(key, (userMetadata != null) ? new HashMap<String, String>( userMetadata ) : new HashMap<String, String>());
+    }
+
+    public synchronized Map<String, String> getUserMetadata(String key) {
+        return mUserMetadata.get( key );
+    }
+
+    private synchronized ObjectMetadata metadata(String key, byte[] data) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setHeader( Headers.ETAG, md5Hex( data ) );
+        metadata.setUserMetadata( new HashMap<String, String>( mUserMetadata.get( key ) ) );
+        return metadata;
+    }
+
+    private static AmazonS3Exception noSuchKey() {
+        AmazonS3Exception e = new AmazonS3Exception("The specified key does not exist.");
+        e.setErrorCode("NoSuchKey");
+        e.setStatusCode(404);
+        return e;
+    }
+
+    public synchronized int getOpenUploads() {
+        return mUploads.size();
+    }
+
+    public int getPartUploads() {
+        return mPartUploads.get();
+    }
+
+    public int getAborts() {
+        return mAborts.get();
+    }
+
+    /** @return the number of GET requests, including ranged GETs */
+    public int getGets() {
+        return mGets.get();
+    }
+
+    /** @return the number of bytes in the GET responses */
+    public long getGetBytes() {
+        return mGetBytes.get();
+    }
+
+    /** @return the number of HEAD (getObjectMetadata) requests */
+    public int getHeads() {
+        return mHeads.get();
+    }
+
+    @Override
+    public S3Object getObject(String bucketName, String key) {
+        return getObject( new GetObjectRequest(bucketName, key) );
+    }
+
+    @Override
+    public S3Object getObject(GetObjectRequest request) {
+        mGets.incrementAndGet();
+        injectFault();
+        byte[] data = getObjectData( request.getKey() );
+        if (data == null) {
+            throw noSuchKey();
+        }
+        String eTag = md5Hex( data );
+        S3Object s3Object = null;
+        if ((request.getMatchingETagConstraints().isEmpty() || request.getMatchingETagConstraints().contains( eTag )) &&
+            !request.getNonmatchingETagConstraints().contains( eTag )) {
+            long start = 0;
+            long end = data.length - 1;
+            long[] range = request.getRange();
+            if (range != null) {
+                start = range[0];
+                end = Math.min(range[1], data.length - 1);
+            }
+            ObjectMetadata metadata = metadata(request.getKey(), data);
+            metadata.setContentLength( end - start + 1 );
+            mGetBytes.addAndGet( end - start + 1 );
+            if (range != null) {
+                metadata.setHeader( Headers.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + data.length );
+            }
+            s3Object = new S3Object();
+            s3Object.setBucketName( request.getBucketName() );
+            s3Object.setKey( request.getKey() );
+            s3Object.setObjectMetadata( metadata );
+            s3Object.setObjectContent( new S3ObjectInputStream( delayed( new ByteArrayInputStream(data, (int)start, (int)(end - start + 1)) ), null ) );
+        }
+        // the SDK returns null when a constraint is not met
+        return s3Object;
+    }
+
+    @Override
+    public PutObjectResult putObject(PutObjectRequest request) {
+        injectFault();
+        byte[] data = readAll( request.getInputStream() );
+        checkMD5(data, request.getMetadata().getContentMD5());
+        putObjectData(request.getKey(), data, request.getMetadata().getUserMetadata());
+        PutObjectResult result = new PutObjectResult();
+        result.setETag( md5Hex( data ) );
+        result.setContentMd5( Base64.encodeAsString( BinaryUtils.fromHex( md5Hex( data ) ) ) );
+        return result;
+    }
+
+    @Override
+    public synchronized InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+        String uploadId = "upload-" + mUploadIds.incrementAndGet();
+        mUploads.put(uploadId, new TreeMap<Integer, byte[]>());
+        ObjectMetadata metadata = request.getObjectMetadata();
+        mUploadMetadata.put(uploadId, (metadata != null) ? metadata.getUserMetadata() : null);
+        InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+        result.setBucketName( request.getBucketName() );
+        result.setKey( request.getKey() );
+        result.setUploadId( uploadId );
+        return result;
+    }
+
+    @Override
+    public UploadPartResult uploadPart(UploadPartRequest request) {
+        byte[] data = readAll( request.getInputStream() );
+        injectFault();
+        if (request.getPartNumber() == mFailPart) {
+            throw new AmazonS3Exception("injected failure for part " + mFailPart);
+        }
+        checkMD5(data, request.getMd5Digest());
+        synchronized (this) {
+            TreeMap<Integer, byte[]> parts = mUploads.get( request.getUploadId() );
+            if (parts == null) {
+                throw new AmazonS3Exception("NoSuchUpload");
+            }
+            parts.put(request.getPartNumber(), data);
+        }
+        mPartUploads.incrementAndGet();
+        UploadPartResult result = new UploadPartResult();
+        result.setPartNumber( request.getPartNumber() );
+        result.setETag( md5Hex( data ) );
+        return result;
+    }
+
+    @Override
+    public synchronized CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        TreeMap<Integer, byte[]> parts = mUploads.remove( request.getUploadId() );
+        if (parts == null) {
+            throw new AmazonS3Exception("NoSuchUpload");
+        }
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        for (PartETag partETag : request.getPartETags()) {
+            byte[] part = parts.get( partETag.getPartNumber() );
+            if (part == null || !md5Hex( part ).equals( partETag.getETag() )) {
+                throw new AmazonS3Exception("InvalidPart");
+            }
+            outStream.write(part, 0, part.length);
+        }
+        putObjectData(request.getKey(), outStream.toByteArray(), mUploadMetadata.remove( request.getUploadId() ));
+        CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+        result.setBucketName( request.getBucketName() );
+        result.setKey( request.getKey() );
+        return result;
+    }
+
+    @Override
+    public synchronized void abortMultipartUpload(AbortMultipartUploadRequest request) {
+        mUploads.remove( request.getUploadId() );
+        mUploadMetadata.remove( request.getUploadId() );
+        mAborts.incrementAndGet();
+    }
+
+    @Override
+    public ObjectMetadata getObjectMetadata(GetObjectMetadataRequest request) {
+        mHeads.incrementAndGet();
+        injectFault();
+        byte[] data = getObjectData( request.getKey() );
+        if (data == null) {
+            throw noSuchKey();
+        }
+        ObjectMetadata metadata = metadata(request.getKey(), data);
+        metadata.setContentLength( data.length );
+        return metadata;
+    }
+
+    @Override
+    public synchronized CopyObjectResult copyObject(CopyObjectRequest request) {
+        injectFault();
+        byte[] data = getObjectData( request.getSourceKey() );
+        if (data == null) {
+            throw noSuchKey();
+        }
+        CopyObjectResult result = null;
+        String eTag = md5Hex( data );
+        if (request.getMatchingETagConstraints().isEmpty() || request.getMatchingETagConstraints().contains( eTag )) {
+            ObjectMetadata newMetadata = request.getNewObjectMetadata();
+            Map<String, String> userMetadata = (newMetadata != null) ? newMetadata.getUserMetadata() : mUserMetadata.get( request.getSourceKey() );
+            putObjectData(request.getDestinationKey(), data, userMetadata);
+            result = new CopyObjectResult();
+            result.setETag( eTag );
+        }
+        // the SDK returns null when a constraint is not met
+        return result;
+    }
+
+}
@@ -0,0 +1,144 @@
+/** \file
+ *
+ * Feb 28, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.junit.Test;
+
+/**
+ * Tests for the memory admission check that is made before an image is decoded.
+ */
+public class ImageAdmissionTest {
+    private final static long MAX_PIXELS = ImageAdmission.DEFAULT_MAX_SOURCE_PIXELS;
+
+    private static ImageHeader header(int width, int height, int bitsPerPixel, int rawImageType) {
+        ImageHeader header = new ImageHeader(width, height, "jpeg", new String[]{ "jpeg" });
+        header.setBitsPerPixel( bitsPerPixel );
+        header.setRawImageType( rawImageType );
+        return header;
+    }
+
+    private static ImageHeader readHeader(BufferedImage image, String format) throws IOException {
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        ImageIO.write(image, format, outStream);
+        ImageHeader header = null;
+        byte[] data = outStream.toByteArray();
+        try (ImageInputStream imageStream = new ByteArrayImageInputStream( data, data.length )) {
+            ImageReader reader = ImageDecoder.getReader( imageStream );
+            header = ImageDecoder.readHeader( reader );
+            reader.dispose();
+        }
+        return header;
+    }
+
+
+    @Test
+    public void testReadHeader() throws IOException {
+        ImageHeader rgb = readHeader(ParallelResizeEngineTest.randomImage(64, 48, BufferedImage.TYPE_INT_RGB, 1), "jpeg");
+        assertEquals(24, rgb.getBitsPerPixel());
+        ImageHeader gray = readHeader(new BufferedImage(64, 48, BufferedImage.TYPE_BYTE_GRAY), "png");
+        assertEquals(8, gray.getBitsPerPixel());
+        assertEquals(BufferedImage.TYPE_BYTE_GRAY, gray.getRawImageType());
+        ImageHeader argb = readHeader(new BufferedImage(64, 48, BufferedImage.TYPE_INT_ARGB), "png");
+        assertEquals(32, argb.getBitsPerPixel());
+    }
+
+
+    @Test
+    public void testDecodedBytes() {
+        // a 3 byte raster, the int raster made by normalize() and the scaled image
+        ImageHeader header = header(1000, 800, 24, BufferedImage.TYPE_3BYTE_BGR);
+        assertEquals(1000L * 800 * 7 + 4L * 100 * 80, ImageAdmission.decodedBytes(header, 1, 100, 80));
+        assertEquals(500L * 400 * 7 + 4L * 100 * 80, ImageAdmission.decodedBytes(header, 2, 100, 80));
+        // an int raster is not copied; an unknown depth is an int per pixel
+        assertEquals(1000L * 800 * 4, ImageAdmission.decodedBytes(header(1000, 800, 32, BufferedImage.TYPE_INT_RGB), 1, 0, 0));
+        assertEquals(1000L * 800 * 8, ImageAdmission.decodedBytes(header(1000, 800, -1, -1), 1, 0, 0));
+    }
+
+
+    @Test
+    public void testPlan() {
+        ImageHeader header = header(4000, 3000, 24, BufferedImage.TYPE_3BYTE_BGR);
+        long full = ImageAdmission.decodedBytes(header, 1, 2000, 1500);
+        ImageAdmission admission = ImageAdmission.plan(header, 2000, 1500, full, MAX_PIXELS, 0);
+        assertEquals(ImageAdmission.Strategy.FULL, admission.getStrategy());
+        assertEquals(1, admission.getSubsampling());
+        // a thumbnail is subsampled
+        admission = ImageAdmission.plan(header, 200, 150, full, MAX_PIXELS, 0);
+        assertEquals(ImageAdmission.Strategy.SUBSAMPLED, admission.getStrategy());
+        assertEquals(ImageDecoder.subsampling(4000, 3000, 200, 150), admission.getSubsampling());
+        // not enough heap for the preferred subsampling: a coarser subsampling that is still the scaled size
+        admission = ImageAdmission.plan(header, 1000, 750, ImageAdmission.decodedBytes(header, 3, 1000, 750), MAX_PIXELS, 0);
+        assertEquals(ImageAdmission.Strategy.REDUCED, admission.getStrategy());
+        assertEquals(3, admission.getSubsampling());
+        assertTrue(admission.getDecodedBytes() <= admission.getAvailableBytes());
+        admission = ImageAdmission.plan(header, 1000, 750, ImageAdmission.decodedBytes(header, 4, 1000, 750) - 1, MAX_PIXELS, 0);
+        assertTrue(admission.isRejected());
+        assertNotNull(admission.getReason());
+        // when strips are allowed, a strip decode is picked before a reduced decode, unless the strips would be
+        // too short (here, 4 rows of 2000 3 byte pixels)
+        long available = ImageAdmission.decodedBytes(header, 3, 1000, 750);
+        admission = ImageAdmission.plan(header, 1000, 750, available, MAX_PIXELS, StripResampler.DEFAULT_STRIP_BYTES);
+        assertEquals(ImageAdmission.Strategy.STRIPS, admission.getStrategy());
+        assertEquals(ImageDecoder.subsampling(4000, 3000, 1000, 750), admission.getSubsampling());
+        assertTrue(admission.getStripRows() >= StripResampler.MIN_STRIP_ROWS);
+        assertTrue(admission.getDecodedBytes() <= available);
+        assertEquals(ImageAdmission.Strategy.REDUCED, 
+                     ImageAdmission.plan(header, 1000, 750, available, MAX_PIXELS, 2000L * 3 * 4).getStrategy());
+        // full size cannot be reduced
+        assertTrue(ImageAdmission.plan(header, 4000, 3000, full / 2, MAX_PIXELS, 0).isRejected());
+        // a declared size over the limit is rejected, whatever the heap
+        admission = ImageAdmission.plan(header(60000, 60000, 8, BufferedImage.TYPE_BYTE_GRAY), 100, 100, Long.MAX_VALUE, MAX_PIXELS, 0);
+        assertTrue(admission.isRejected());
+        assertEquals(0, admission.getDecodedBytes());
+        assertTrue(ImageAdmission.plan(header(0, 10, 8, -1), 10, 10, Long.MAX_VALUE, MAX_PIXELS, 0).isRejected());
+    }
+
+
+    /**
+     * A rejected image is not decoded, and the exception is an IOException with the admission result.
+     */
+    @Test
+    public void testRejected() throws IOException {
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        ImageIO.write(ParallelResizeEngineTest.randomImage(200, 100, BufferedImage.TYPE_INT_RGB, 2), "png", outStream);
+        byte[] data = outStream.toByteArray();
+        try (ImageInputStream imageStream = new ByteArrayImageInputStream( data, data.length )) {
+            ImageReader reader = ImageDecoder.getReader( imageStream );
+            ImageHeader header = ImageDecoder.readHeader( reader );
+            ImageAdmission admission = ImageAdmission.plan(header, 200, 100, 1024, MAX_PIXELS, 0);
+            try {
+                ImageDecoder.readNormalized(reader, admission);
+                fail("the image should be rejected");
+            } catch (ImageRejectedException e) {
+                assertSame(admission, e.getAdmission());
+            }
+            admission = ImageAdmission.admit(header, 50, 25);
+            assertFalse(admission.isRejected());
+            assertEquals(ImageAdmission.Strategy.SUBSAMPLED, admission.getStrategy());
+            assertEquals(200 / admission.getSubsampling(), ImageDecoder.readNormalized(reader, admission).getWidth());
+            reader.dispose();
+        }
+    }
+
+}
@@ -0,0 +1,329 @@
+/** \file
+ *
+ * Feb 26, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+/**
+ * <h3>
+ * ImageLoadHarness
+ * </h3>
+ * <p>
+ * A load test for the Lambda function handlers. The harness starts a LocalS3Server, points S3Service at it
+ * (IMAGE_S3_ENDPOINT), stores a set of generated JPEG originals and calls the handlers (ScaleImageByMaxDimFunction,
+ * ScaleImageByHeightFunction, ScaleImageByHeightWidthFunction, ThumbnailScale and ScaleImageRenditionsFunction) with
+ * a FakeContext, from a number of threads, in a weighted mix. Each request writes a new scaled image, so no request
+ * is skipped by the RenditionFingerprint check. The report has the p50, p95 and p99 latency, the images per second
+ * and the peak heap used.
+ * </p>
+ * <p>
+ * The arguments are name=value pairs:
+ * </p>
+ * <ul>
+ * <li>concurrency: the number of calling threads (8)</li>
+ * <li>requests: the number of measured requests (200), after warmup requests (20)</li>
+ * <li>mix: the request weights (maxDim:4,thumbnail:3,height:1,heightWidth:1,renditions:1)</li>
+ * <li>megapixels: the size of the originals (4), and images: the number of different originals (16)</li>
+ * <li>network: none, same-region or cross-region (same-region). latencyMs, jitterMs and bandwidthMBps change
+ * the profile.</li>
+ * <li>timeoutMs: the function timeout for the FakeContext (60000), and verbose=true echoes the handler logs</li>
+ * </ul>
+ * <p>
+ * Feb 26, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class ImageLoadHarness {
+    private final static String REGION = "us-west-1";
+    private final static String BUCKET = "load-test";
+    private final static String CONTENT_TYPE = "Content-Type: image/jpeg";
+    private final static String[] REQUEST_TYPES = { "maxDim", "thumbnail", "height", "heightWidth", "renditions" };
+
+    private final Map<String, String> mArgs;
+    private final AtomicLong mPeakHeap = new AtomicLong();
+    private final AtomicLong mImagesWritten = new AtomicLong();
+    private volatile boolean mSampling = false;
+
+    public ImageLoadHarness(Map<String, String> args) {
+        this.mArgs = args;
+    }
+
+    private String arg(String name, String defaultValue) {
+        String value = mArgs.get( name );
+        return (value != null) ? value : defaultValue;
+    }
+
+    private long longArg(String name, long defaultValue) {
+        return Long.parseLong( arg(name, Long.toString( defaultValue )) );
+    }
+
+    /**
+     * A generated photograph-like original: a color gradient with noise.
+     */
+    private static byte[] original(int megapixels, long seed) throws IOException {
+        int width = (int)Math.round( Math.sqrt( megapixels * 1000000.0 * 4.0 / 3.0 ) );
+        int height = (width * 3) / 4;
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random rand = new Random( seed );
+        int[] row = new int[ width ];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int red = Math.min(255, (x * 255) / width + rand.nextInt(16));
+                int green = Math.min(255, (y * 255) / height + rand.nextInt(16));
+                row[x] = (red << 16) | (green << 8) | (255 - red);
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", outStream);
+        return outStream.toByteArray();
+    }
+
+    private static void initialize(ScaleImageInfoBase imageInfo, String s3Path, String s3ScaledPath) {
+        imageInfo.setAwsRegionName( REGION );
+        imageInfo.setS3Bucket( BUCKET );
+        imageInfo.setId("local");
+        imageInfo.setKey("local");
+        imageInfo.setS3Path( s3Path );
+        imageInfo.setS3ScaledPath( s3ScaledPath );
+        imageInfo.setContentType( CONTENT_TYPE );
+    }
+
+    /**
+     * Call the handler for a request type.
+     *
+     * @return true if the handler succeeded
+     */
+    private boolean invoke(String requestType, String s3Path, String s3ScaledPath, long timeoutMillis, boolean verbose) {
+        Boolean scaleOK = Boolean.FALSE;
+        if (requestType.equals("maxDim")) {
+            ScaleImageByMaxDim imageInfo = new ScaleImageByMaxDim();
+            initialize(imageInfo, s3Path, s3ScaledPath);
+            imageInfo.setMaxDim( 1024 );
+            scaleOK = new ScaleImageByMaxDimFunction().handleRequest(imageInfo,
+                    new FakeContext(ScaleImageByMaxDimFunction.mLambdaFunctionName, timeoutMillis, 1536, verbose));
+        } else if (requestType.equals("thumbnail")) {
+            ScaleImageByHeightWidth imageInfo = new ScaleImageByHeightWidth();
+            initialize(imageInfo, s3Path, s3ScaledPath);
+            imageInfo.setHeight( 150 );
+            imageInfo.setWidth( 150 );
+            scaleOK = new ThumbnailScale().handleRequest(imageInfo,
+                    new FakeContext(ThumbnailScale.mLambdaFunctionName, timeoutMillis, 1536, verbose));
+        } else if (requestType.equals("height")) {
+            ScaleImageByHeight imageInfo = new ScaleImageByHeight();
+            initialize(imageInfo, s3Path, s3ScaledPath);
+            imageInfo.setHeight( 600 );
+            scaleOK = new ScaleImageByHeightFunction().handleRequest(imageInfo,
+                    new FakeContext(ScaleImageByHeightFunction.mLambdaFunctionName, timeoutMillis, 1536, verbose));
+        } else if (requestType.equals("heightWidth")) {
+            ScaleImageByHeightWidth imageInfo = new ScaleImageByHeightWidth();
+            initialize(imageInfo, s3Path, s3ScaledPath);
+            imageInfo.setHeight( 480 );
+            imageInfo.setWidth( 640 );
+            scaleOK = new ScaleImageByHeightWidthFunction().handleRequest(imageInfo,
+                    new FakeContext(ScaleImageByHeightWidthFunction.mLambdaFunctionName, timeoutMillis, 1536, verbose));
+        } else if (requestType.equals("renditions")) {
+            ScaleImageRenditions imageInfo = new ScaleImageRenditions();
+            initialize(imageInfo, s3Path, s3ScaledPath);
+            List<RenditionSpec> renditions = new ArrayList<RenditionSpec>();
+            renditions.add( new RenditionSpec("maxDim", 0, 0, 1024, s3ScaledPath + "-large", null) );
+            renditions.add( new RenditionSpec("heightWidth", 480, 640, 0, s3ScaledPath + "-medium", null) );
+            renditions.add( new RenditionSpec("thumbnail", 150, 150, 0, s3ScaledPath + "-thumb", null) );
+            imageInfo.setRenditions( renditions );
+            scaleOK = new ScaleImageRenditionsFunction().handleRequest(imageInfo,
+                    new FakeContext(ScaleImageRenditionsFunction.mLambdaFunctionName, timeoutMillis, 1536, verbose));
+        }
+        return scaleOK != null && scaleOK.booleanValue();
+    }
+
+    /**
+     * @param mix the weights, e.g. maxDim:4,thumbnail:1
+     * @return a list of request types with each type repeated by its weight
+     */
+    private static List<String> parseMix(String mix) {
+        List<String> weighted = new ArrayList<String>();
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split(":");
+            int weight = (parts.length > 1) ? Integer.parseInt( parts[1].trim() ) : 1;
+            if (! Arrays.asList( REQUEST_TYPES ).contains( parts[0].trim() )) {
+                throw new IllegalArgumentException("Unknown request type " + parts[0] + ", the types are " + Arrays.toString( REQUEST_TYPES ));
+            }
+            for (int i = 0; i < weight; i++) {
+                weighted.add( parts[0].trim() );
+            }
+        }
+        return weighted;
+    }
+
+    /**
+     * Sample the heap used until the measured requests are done. The heap used just before a collection is the
+     * peak, so the sampling interval is short.
+     */
+    private Thread startHeapSampler() {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        mSampling = true;
+        Thread sampler = new Thread(() -> {
+            while (mSampling) {
+                long used = memory.getHeapMemoryUsage().getUsed();
+                if (used > mPeakHeap.get()) {
+                    mPeakHeap.set( used );
+                }
+                try {
+                    Thread.sleep( 2 );
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }, "heap-sampler");
+        sampler.setDaemon( true );
+        sampler.start();
+        return sampler;
+    }
+
+    /**
+     * Run requests on the calling threads.
+     *
+     * @return the latency of each successful request, in nanoseconds (the failed requests are not included)
+     */
+    private long[] runRequests(final int numRequests, final int concurrency, final List<String> mix, final int numImages,
+                               final String prefix, final long timeoutMillis, final boolean verbose, final AtomicInteger failures)
+                               throws InterruptedException {
+        final long[] latency = new long[ numRequests ];
+        final AtomicInteger next = new AtomicInteger();
+        ExecutorService callers = Executors.newFixedThreadPool( concurrency );
+        for (int t = 0; t < concurrency; t++) {
+            callers.execute(() -> {
+                int ix;
+                while ((ix = next.getAndIncrement()) < numRequests) {
+                    String requestType = mix.get( ix % mix.size() );
+                    String s3Path = "originals/image" + (ix % numImages) + ".jpg";
+                    String s3ScaledPath = "scaled/" + prefix + "/" + ix + "-" + requestType + ".jpg";
+                    long start = System.nanoTime();
+                    boolean scaleOK = invoke(requestType, s3Path, s3ScaledPath, timeoutMillis, verbose);
+                    latency[ix] = scaleOK ? System.nanoTime() - start : -1;
+                    if (scaleOK) {
+                        // a renditions request writes three scaled images
+                        mImagesWritten.addAndGet( requestType.equals("renditions") ? 3 : 1 );
+                    } else {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+        }
+        callers.shutdown();
+        callers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        return Arrays.stream( latency ).filter( l -> l >= 0 ).sorted().toArray();
+    }
+
+    private static double percentileMillis(long[] sorted, double percentile) {
+        double millis = 0;
+        if (sorted.length > 0) {
+            int ix = (int)Math.ceil( (percentile / 100.0) * sorted.length ) - 1;
+            millis = sorted[ Math.max(0, Math.min(ix, sorted.length - 1)) ] / 1000000.0;
+        }
+        return millis;
+    }
+
+    /**
+     * Run the load test and print the report.
+     */
+    public void run() throws IOException, InterruptedException {
+        LocalS3Server.NetworkProfile profile = LocalS3Server.NetworkProfile.forName( arg("network", "same-region") );
+        if (profile == null) {
+            throw new IllegalArgumentException("network must be none, same-region or cross-region");
+        }
+        profile = new LocalS3Server.NetworkProfile(longArg("latencyMs", profile.getFirstByteMillis()),
+                                                   longArg("jitterMs", profile.getJitterMillis()),
+                                                   longArg("bandwidthMBps", profile.getBytesPerSecond() / (1024 * 1024)) * 1024 * 1024);
+        LocalS3Server server = new LocalS3Server( profile );
+        // the endpoint must be set before the S3TransferSettings class reads the default settings
+        System.setProperty("IMAGE_S3_ENDPOINT", server.getEndpoint());
+        try {
+            int concurrency = (int)longArg("concurrency", 8);
+            int numRequests = (int)longArg("requests", 200);
+            int numWarmup = (int)longArg("warmup", 20);
+            int numImages = (int)longArg("images", 16);
+            int megapixels = (int)longArg("megapixels", 4);
+            long timeoutMillis = longArg("timeoutMs", 60000);
+            boolean verbose = Boolean.parseBoolean( arg("verbose", "false") );
+            List<String> mix = parseMix( arg("mix", "maxDim:4,thumbnail:3,height:1,heightWidth:1,renditions:1") );
+            // spread the request types through the mix, rather than running each type in a block
+            Collections.shuffle(mix, new Random( 17 ));
+            long originalBytes = 0;
+            for (int i = 0; i < numImages; i++) {
+                byte[] data = original(megapixels, i);
+                originalBytes += data.length;
+                server.putObjectData(BUCKET, "originals/image" + i + ".jpg", data, "image/jpeg");
+            }
+            System.out.println("LocalS3Server " + server.getEndpoint() + ": " + profile);
+            System.out.println(numImages + " originals of " + megapixels + " megapixels, " + (originalBytes / numImages / 1024) + " KB average");
+            System.out.println("concurrency " + concurrency + ", mix " + arg("mix", "maxDim:4,thumbnail:3,height:1,heightWidth:1,renditions:1"));
+            AtomicInteger failures = new AtomicInteger();
+            runRequests(numWarmup, concurrency, mix, numImages, "warmup", timeoutMillis, verbose, failures);
+            failures.set( 0 );
+            mImagesWritten.set( 0 );
+            System.gc();
+            long serverRequests = server.getRequests();
+            long bytesIn = server.getBytesIn();
+            long bytesOut = server.getBytesOut();
+            Thread sampler = startHeapSampler();
+            long start = System.nanoTime();
+            long[] latency = runRequests(numRequests, concurrency, mix, numImages, "run", timeoutMillis, verbose, failures);
+            double seconds = (System.nanoTime() - start) / 1.0e9;
+            mSampling = false;
+            sampler.join();
+            System.out.println(String.format("requests %d, failed %d, %.2f s", numRequests, failures.get(), seconds));
+            System.out.println(String.format("images/second %.2f (%d scaled images), requests/second %.2f",
+                                             mImagesWritten.get() / seconds, mImagesWritten.get(), latency.length / seconds));
+            System.out.println(String.format("latency ms: p50 %.1f, p95 %.1f, p99 %.1f, max %.1f", percentileMillis(latency, 50),
+                                             percentileMillis(latency, 95), percentileMillis(latency, 99), percentileMillis(latency, 100)));
+            System.out.println(String.format("peak heap used %.1f MB (max heap %.1f MB)", mPeakHeap.get() / (1024.0 * 1024.0),
+                                             Runtime.getRuntime().maxMemory() / (1024.0 * 1024.0)));
+            System.out.println(String.format("S3 requests %d, %.1f MB downloaded, %.1f MB uploaded", server.getRequests() - serverRequests,
+                                             (server.getBytesOut() - bytesOut) / (1024.0 * 1024.0), (server.getBytesIn() - bytesIn) / (1024.0 * 1024.0)));
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * @param args name=value arguments (see the class comment)
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> argMap = new HashMap<String, String>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Arguments are name=value pairs: " + arg);
+            }
+            argMap.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        new ImageLoadHarness( argMap ).run();
+    }
+
+}
@@ -0,0 +1,175 @@
+/** \file
+ *
+ * Feb 27, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Tests for the ImageMetrics EMF records and for the metrics recorded by the image pipeline.
+ */
+public class ImageMetricsTest {
+    private final static ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * A logger that keeps the metrics records.
+     */
+    private static class MetricsLogger extends JavaLoggerWrapper {
+        final List<String> mRecords = Collections.synchronizedList( new ArrayList<String>() );
+
+        MetricsLogger() {
+            super("ImageMetricsTest");
+        }
+
+        @Override
+        public void logMetrics(String record) {
+            mRecords.add( record );
+        }
+    }
+
+    private static byte[] jpeg(int width, int height, int seed) throws IOException {
+        BufferedImage image = ParallelResizeEngineTest.randomImage(width, height, BufferedImage.TYPE_INT_RGB, seed);
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", outStream);
+        return outStream.toByteArray();
+    }
+
+
+    @Test
+    public void testEMF() throws IOException {
+        ImageMetrics metrics = new ImageMetrics("MAX_DIM");
+        metrics.setS3Path("dir/\"quoted\".jpg");
+        metrics.setEngine("scalr");
+        long start = metrics.begin();
+        metrics.end(ImageMetrics.Stage.DECODE, start);
+        metrics.add(ImageMetrics.Counter.SOURCE_BYTES, 12345);
+        metrics.increment(ImageMetrics.Counter.IMAGES);
+        ImageMetrics other = new ImageMetrics("MAX_DIM");
+        other.add(ImageMetrics.Counter.SOURCE_BYTES, 5);
+        metrics.merge( other );
+        JsonNode record = mapper.readTree( metrics.toEMF( 1519689600000L ) );
+        JsonNode aws = record.get("_aws");
+        assertEquals(1519689600000L, aws.get("Timestamp").asLong());
+        JsonNode directive = aws.get("CloudWatchMetrics").get(0);
+        assertEquals(ImageMetrics.DEFAULT_NAMESPACE, directive.get("Namespace").asText());
+        assertEquals("Operation", directive.get("Dimensions").get(0).get(0).asText());
+        // every metric in the directive has a value in the record
+        JsonNode metricList = directive.get("Metrics");
+        assertEquals(1 + ImageMetrics.Stage.values().length + ImageMetrics.Counter.values().length, metricList.size());
+        for (JsonNode metric : metricList) {
+            assertTrue(record.get( metric.get("Name").asText() ).isNumber());
+        }
+        assertEquals("MAX_DIM", record.get("Operation").asText());
+        assertEquals("scalr", record.get("Engine").asText());
+        assertEquals("dir/\"quoted\".jpg", record.get("S3Path").asText());
+        assertEquals(12350, record.get("SourceBytes").asLong());
+        assertEquals(1, record.get("Images").asLong());
+        assertTrue(record.get("DecodeTime").asDouble() >= 0);
+    }
+
+
+    /**
+     * When metrics are off, nothing is recorded or written.
+     */
+    @Test
+    public void testDisabled() throws IOException {
+        assertFalse(ImageMetrics.isEnabled());
+        ImageMetrics metrics = ImageMetrics.start("MAX_DIM");
+        assertFalse(metrics.isActive());
+        assertEquals(0, metrics.begin());
+        metrics.increment(ImageMetrics.Counter.IMAGES);
+        assertEquals(0, metrics.getCount(ImageMetrics.Counter.IMAGES));
+        assertSame(metrics, ImageMetrics.current());
+        FakeS3 s3 = new FakeS3();
+        s3.putObjectData("original.jpg", jpeg(200, 100, 1));
+        MetricsLogger logger = new MetricsLogger();
+        ScaleImageByMaxDim imageInfo = request("original.jpg", "scaled.jpg", 50);
+        assertTrue(s3.newScaler("metrics-test", logger).scaleAsync(imageInfo, ScaleMode.MAX_DIM, 50, 50).join());
+        assertEquals(0, logger.mRecords.size());
+    }
+
+
+    /**
+     * One record for a scale request, and one record for a batch.
+     */
+    @Test
+    public void testPipelineMetrics() throws IOException {
+        ImageMetrics.setEnabled( true );
+        try {
+            FakeS3 s3 = new FakeS3();
+            byte[] original = jpeg(400, 300, 2);
+            s3.putObjectData("original.jpg", original);
+            MetricsLogger logger = new MetricsLogger();
+            LambdaImageScaler scaler = s3.newScaler("metrics-test", logger);
+            assertTrue(scaler.scaleAsync(request("original.jpg", "scaled.jpg", 100), ScaleMode.MAX_DIM, 100, 100).join());
+            assertEquals(1, logger.mRecords.size());
+            JsonNode record = mapper.readTree( logger.mRecords.get(0) );
+            assertEquals("MAX_DIM", record.get("Operation").asText());
+            assertEquals("original.jpg", record.get("S3Path").asText());
+            assertNotNull(record.get("Engine"));
+            assertEquals(1, record.get("Images").asLong());
+            assertEquals(0, record.get("Failures").asLong());
+            assertEquals(original.length, record.get("SourceBytes").asLong());
+            assertEquals(400 * 300, record.get("SourcePixels").asLong());
+            assertEquals(100 * 75, record.get("OutputPixels").asLong());
+            assertEquals(s3.getObjectData("scaled.jpg").length, record.get("OutputBytes").asLong());
+            assertTrue(record.get("DownloadTime").asDouble() > 0);
+            assertTrue(record.get("ResizeTime").asDouble() > 0);
+            assertTrue(record.get("EncodeTime").asDouble() > 0);
+            assertTrue(record.get("UploadTime").asDouble() > 0);
+            // the same request is up to date
+            assertTrue(scaler.scaleAsync(request("original.jpg", "scaled.jpg", 100), ScaleMode.MAX_DIM, 100, 100).join());
+            assertEquals(1, mapper.readTree( logger.mRecords.get(1) ).get("UpToDate").asLong());
+            // a batch is one record, with the totals for the jobs
+            logger.mRecords.clear();
+            List<BatchJob> jobs = new ArrayList<BatchJob>();
+            jobs.add( new BatchJob("original.jpg", "maxDim", 0, 0, 64, "batch0.jpg", null) );
+            jobs.add( new BatchJob("original.jpg", "maxDim", 0, 0, 32, "batch1.jpg", null) );
+            jobs.add( new BatchJob("missing.jpg", "maxDim", 0, 0, 32, "batch2.jpg", null) );
+            ScaleImageBatch batch = new ScaleImageBatch("us-west-1", "metrics-test", "id", "key", "image/jpeg", jobs);
+            scaler.scaleBatchLocal(batch, () -> 60000L);
+            assertEquals(1, logger.mRecords.size());
+            record = mapper.readTree( logger.mRecords.get(0) );
+            assertEquals("BATCH", record.get("Operation").asText());
+            assertEquals(2, record.get("Images").asLong());
+            assertEquals(1, record.get("Failures").asLong());
+        }
+        finally {
+            ImageMetrics.setEnabled( false );
+        }
+    }
+
+    private static ScaleImageByMaxDim request(String s3Path, String s3ScaledPath, int maxDim) {
+        ScaleImageByMaxDim imageInfo = new ScaleImageByMaxDim();
+        imageInfo.setS3Bucket("metrics-test");
+        imageInfo.setS3Path( s3Path );
+        imageInfo.setS3ScaledPath( s3ScaledPath );
+        imageInfo.setContentType("image/jpeg");
+        imageInfo.setMaxDim( maxDim );
+        return imageInfo;
+    }
+
+}
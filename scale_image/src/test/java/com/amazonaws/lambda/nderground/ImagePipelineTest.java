@@ -0,0 +1,244 @@
+/** \file
+ *
+ * Feb 23, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+/**
+ * Local tests for the asynchronous image pipeline, with the FakeS3 stand-in for S3.
+ */
+public class ImagePipelineTest {
+    private final static JavaLoggerWrapper logger = new JavaLoggerWrapper("ImagePipelineTest");
+    private final static int NUM_IMAGES = 6;
+
+    private static byte[] jpeg(int width, int height, int seed) throws IOException {
+        BufferedImage image = ParallelResizeEngineTest.randomImage(width, height, BufferedImage.TYPE_INT_RGB, seed);
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", outStream);
+        return outStream.toByteArray();
+    }
+
+    private static ScaleImageByMaxDim request(String s3Path, String s3ScaledPath, int maxDim) {
+        ScaleImageByMaxDim imageInfo = new ScaleImageByMaxDim();
+        imageInfo.setS3Bucket("pipeline-test");
+        imageInfo.setS3Path( s3Path );
+        imageInfo.setS3ScaledPath( s3ScaledPath );
+        imageInfo.setContentType("image/jpeg");
+        imageInfo.setMaxDim( maxDim );
+        return imageInfo;
+    }
+
+
+    @Test
+    public void testScaleAsync() throws IOException {
+        FakeS3 s3 = new FakeS3();
+        LambdaImageScaler scaler = s3.newScaler( "pipeline-test", logger );
+        List<CompletableFuture<Boolean>> results = new ArrayList<CompletableFuture<Boolean>>();
+        for (int i = 0; i < NUM_IMAGES; i++) {
+            s3.putObjectData("original" + i + ".jpg", jpeg(400 + i * 10, 300, i));
+            ScaleImageByMaxDim imageInfo = request("original" + i + ".jpg", "scaled" + i + ".jpg", 100);
+            results.add( scaler.scaleAsync(imageInfo, ScaleMode.MAX_DIM, 100, 100) );
+        }
+        for (int i = 0; i < NUM_IMAGES; i++) {
+            assertTrue(results.get(i).join());
+            byte[] scaledData = s3.getObjectData("scaled" + i + ".jpg");
+            assertNotNull(scaledData);
+            BufferedImage scaled = ImageIO.read( new ByteArrayInputStream( scaledData ) );
+            assertEquals(100, scaled.getWidth());
+            assertNotNull(s3.getUserMetadata("scaled" + i + ".jpg").get( RenditionFingerprint.METADATA_KEY ));
+        }
+        // the same requests again: every scaled image is up to date, so no original is read
+        int gets = s3.getGets();
+        results.clear();
+        for (int i = 0; i < NUM_IMAGES; i++) {
+            ScaleImageByMaxDim imageInfo = request("original" + i + ".jpg", "scaled" + i + ".jpg", 100);
+            results.add( scaler.scaleAsync(imageInfo, ScaleMode.MAX_DIM, 100, 100) );
+        }
+        for (CompletableFuture<Boolean> result : results) {
+            assertTrue(result.join());
+        }
+        assertEquals(gets, s3.getGets());
+        // a missing original fails without failing the future
+        assertFalse(scaler.scaleAsync(request("missing.jpg", "scaled.jpg", 100), ScaleMode.MAX_DIM, 100, 100).join());
+        assertFalse(scaler.scaleAsync(request("original0.jpg", "scaled.jpg", 0), ScaleMode.MAX_DIM, 0, 0).join());
+    }
+
+
+    /**
+     * More requests than there are I/O threads and places in the pipeline: the requests that wait for a place do
+     * not hold an I/O thread, so the upload stages that free the places can run.
+     */
+    @Test
+    public void testScaleAsyncOverload() throws Exception {
+        FakeS3 s3 = new FakeS3();
+        LambdaImageScaler scaler = s3.newScaler( "pipeline-test", logger );
+        s3.putObjectData("small.jpg", jpeg(40, 30, 1));
+        int numRequests = ImagePipelineExecutors.DEFAULT_IO_THREADS + ImagePipelineExecutors.getMaxInFlight() + 16;
+        List<CompletableFuture<Boolean>> results = new ArrayList<CompletableFuture<Boolean>>();
+        for (int i = 0; i < numRequests; i++) {
+            results.add( scaler.scaleAsync(request("small.jpg", "smallScaled" + i + ".jpg", 20), ScaleMode.MAX_DIM, 20, 20) );
+        }
+        for (CompletableFuture<Boolean> result : results) {
+            assertTrue(result.get(60, TimeUnit.SECONDS));
+        }
+        assertEquals(0, ImagePipelineExecutors.getWaiting());
+    }
+
+
+    /**
+     * The S3 transfer pool is bounded, and a transfer that finds every thread busy runs on the thread that submits it,
+     * so a transfer that waits for another transfer cannot deadlock the pool.
+     */
+    @Test
+    public void testS3TransferExecutor() throws Exception {
+        ThreadPoolExecutor pool = (ThreadPoolExecutor)ImagePipelineExecutors.getS3TransferExecutor();
+        S3TransferSettings settings = S3TransferSettings.getDefaultSettings();
+        assertEquals(2 * ImagePipelineExecutors.getMaxInFlight() * (settings.getUploadConcurrency() + settings.getDownloadConcurrency()),
+                     pool.getMaximumPoolSize());
+        final CountDownLatch release = new CountDownLatch( 1 );
+        final Thread caller = Thread.currentThread();
+        List<Future<?>> busy = new ArrayList<Future<?>>();
+        for (int i = 0; i < pool.getMaximumPoolSize(); i++) {
+            // a pool thread may still be busy with a transfer from another test
+            busy.add( pool.submit(() -> {
+                if (Thread.currentThread() != caller) {
+                    release.await();
+                }
+                return null;
+            }) );
+        }
+        assertTrue(pool.submit(() -> Thread.currentThread() == caller).get(10, TimeUnit.SECONDS));
+        release.countDown();
+        for (Future<?> task : busy) {
+            task.get(10, TimeUnit.SECONDS);
+        }
+    }
+
+
+    /**
+     * The header probe for the height mode: a header after a large JPEG comment is read without reading the start
+     * of the file again, and the header of an original that is too large to be passed through is not read.
+     */
+    @Test
+    public void testProbe() throws IOException {
+        FakeS3 s3 = new FakeS3();
+        LambdaImageScaler scaler = s3.newScaler( "pipeline-test", logger );
+        byte[] data = jpeg(40, 30, 3);
+        int commentLength = 40000;
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        outStream.write(data, 0, 2);
+        outStream.write( new byte[]{ (byte)0xff, (byte)0xfe, (byte)((commentLength + 2) >> 8), (byte)(commentLength + 2) } );
+        outStream.write( new byte[ commentLength ] );
+        outStream.write(data, 2, data.length - 2);
+        byte[] commented = outStream.toByteArray();
+        s3.putObjectData("commented.jpg", commented);
+        int gets = s3.getGets();
+        long getBytes = s3.getGetBytes();
+        assertTrue(scaler.scaleAsync(request("commented.jpg", "commentedScaled.jpg", 0), ScaleMode.HEIGHT, 100, 0).join());
+        // passed through: 16K, then the next 16K, then the rest of the file. Each byte is read once.
+        assertEquals(commented.length, s3.getObjectData("commentedScaled.jpg").length);
+        assertEquals(gets + 3, s3.getGets());
+        assertEquals(getBytes + commented.length, s3.getGetBytes());
+
+        outStream = new ByteArrayOutputStream();
+        outStream.write( data );
+        int padding = (int)LambdaImageScaler.maxPassThroughBytes(ScaleMode.HEIGHT, 10, 0);
+        outStream.write( new byte[ padding ] );
+        byte[] large = outStream.toByteArray();
+        s3.putObjectData("large.jpg", large);
+        getBytes = s3.getGetBytes();
+        assertTrue(scaler.scaleAsync(request("large.jpg", "largeScaled.jpg", 0), ScaleMode.HEIGHT, 10, 0).join());
+        // only the whole file is read
+        assertEquals(getBytes + large.length, s3.getGetBytes());
+        BufferedImage scaled = ImageIO.read( new ByteArrayInputStream( s3.getObjectData("largeScaled.jpg") ) );
+        assertEquals(10, scaled.getHeight());
+    }
+
+
+    /**
+     * An original in the decoded image cache with the ETag from the HEAD of the original is not read again.
+     */
+    @Test
+    public void testDecodedCacheHit() throws IOException {
+        FakeS3 s3 = new FakeS3();
+        LambdaImageScaler scaler = s3.newScaler( "pipeline-test", logger );
+        s3.putObjectData("cached.jpg", jpeg(400, 300, 4));
+        assertTrue(scaler.scaleAsync(request("cached.jpg", "cachedScaled1.jpg", 100), ScaleMode.MAX_DIM, 100, 100).join());
+        assertNotNull(DecodedImageCache.getCache().get("pipeline-test", "cached.jpg"));
+        int gets = s3.getGets();
+        assertTrue(scaler.scaleAsync(request("cached.jpg", "cachedScaled2.jpg", 80), ScaleMode.MAX_DIM, 80, 80).join());
+        assertEquals(gets, s3.getGets());
+        BufferedImage scaled = ImageIO.read( new ByteArrayInputStream( s3.getObjectData("cachedScaled2.jpg") ) );
+        assertEquals(80, scaled.getWidth());
+        // the original is replaced: the HEAD has a new ETag, so the original is read
+        s3.putObjectData("cached.jpg", jpeg(200, 150, 5));
+        assertTrue(scaler.scaleAsync(request("cached.jpg", "cachedScaled3.jpg", 80), ScaleMode.MAX_DIM, 80, 80).join());
+        assertTrue(s3.getGets() > gets);
+        scaled = ImageIO.read( new ByteArrayInputStream( s3.getObjectData("cachedScaled3.jpg") ) );
+        assertEquals(60, scaled.getHeight());
+    }
+
+
+    /**
+     * A batch with a failed job, and a batch that is out of time.
+     */
+    @Test
+    public void testBatch() throws IOException {
+        FakeS3 s3 = new FakeS3();
+        LambdaImageScaler scaler = s3.newScaler( "pipeline-test", logger );
+        List<BatchJob> jobs = new ArrayList<BatchJob>();
+        for (int i = 0; i < NUM_IMAGES; i++) {
+            s3.putObjectData("batch" + i + ".jpg", jpeg(300, 200 + i * 10, i));
+            jobs.add( new BatchJob("batch" + i + ".jpg", "maxDim", 0, 0, 64, "batchScaled" + i + ".jpg", null) );
+        }
+        jobs.add(2, new BatchJob("missing.jpg", "thumbnail", 50, 50, 0, "missingScaled.jpg", null) );
+        jobs.add(3, new BatchJob("batch0.jpg", "noSuchMode", 50, 50, 0, "badScaled.jpg", null) );
+        ScaleImageBatch batch = new ScaleImageBatch("us-west-1", "pipeline-test", "id", "key", "image/jpeg", jobs);
+        ScaleImageBatchResult result = scaler.scaleBatchLocal(batch, () -> 60000L);
+        assertEquals(jobs.size(), result.getStatus().size());
+        assertEquals(ScaleImageBatchResult.STATUS_FAILED, result.getStatus().get(2));
+        assertEquals(ScaleImageBatchResult.STATUS_FAILED, result.getStatus().get(3));
+        assertEquals(0, result.getUnstarted().size());
+        assertFalse(result.isAllOK());
+        // the path for each job: the small images fit in the time, and the failed jobs did not write an image
+        assertEquals(jobs.size(), result.getPath().size());
+        assertEquals(DeadlinePlanner.Path.FULL.getName(), result.getPath().get(0));
+        assertNull(result.getPath().get(2));
+        for (int i = 0; i < NUM_IMAGES; i++) {
+            assertNotNull(s3.getObjectData("batchScaled" + i + ".jpg"));
+        }
+        // no time left: nothing is started and every job is returned
+        result = scaler.scaleBatchLocal(batch, () -> 1000L);
+        assertEquals(jobs.size(), result.getUnstarted().size());
+        for (String status : result.getStatus()) {
+            assertEquals(ScaleImageBatchResult.STATUS_NOT_STARTED, status);
+        }
+    }
+
+}
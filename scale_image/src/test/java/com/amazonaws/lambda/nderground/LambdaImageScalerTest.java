@@ -13,7 +13,9 @@ import static org.junit.Assert.fail;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 import javax.imageio.ImageIO;
 
@@ -313,4 +315,35 @@ public class LambdaImageScalerTest {
         }
     }
 
+    @Test
+    public void testScaleRenditions() {
+        final int thumbHeight = 140;
+        final int thumbWidth = 190;
+        final int newHeight = originalHeight >> 1;
+        final int newMaxDim = Math.max(originalWidth, originalHeight) >> 2;
+        final String thumbnailPath = "image_scale_test_renditions_thumb.jpg";
+        final String heightPath = "image_scale_test_renditions_height.jpg";
+        final String maxDimPath = "image_scale_test_renditions_max_dim.jpg";
+        AbstractLoggerInterface logger = new JavaLoggerWrapper("testScaleRenditions");
+        ScaleImageRenditions imageInfo = new ScaleImageRenditions();
+        initializeImageInfoBase(imageInfo, null );
+        List<RenditionSpec> renditions = new ArrayList<RenditionSpec>();
+        renditions.add( new RenditionSpec("thumbnail", thumbHeight, thumbWidth, 0, thumbnailPath, null) );
+        renditions.add( new RenditionSpec("height", newHeight, 0, 0, heightPath, null) );
+        renditions.add( new RenditionSpec("maxDim", 0, 0, newMaxDim, maxDimPath, null) );
+        imageInfo.setRenditions( renditions );
+        boolean scaleOK = LambdaImageScaler.scaleRenditions(imageInfo, logger);
+        if (scaleOK && 
+            checkImageThumbnail(s3Service, path, thumbnailPath, thumbHeight, thumbWidth, logger) &&
+            checkImageHeight(s3Service, heightPath, newHeight, logger) &&
+            checkImageMaxDim(s3Service, maxDimPath, newMaxDim, logger)) {
+            s3Service.deleteFile(thumbnailPath);
+            s3Service.deleteFile(heightPath);
+            s3Service.deleteFile(maxDimPath);
+            logger.log("testScaleRenditions: test passed");
+        } else {
+            fail("testScaleRenditions: result images either not present or not correct dimensions");
+        }
+    }
+
 }
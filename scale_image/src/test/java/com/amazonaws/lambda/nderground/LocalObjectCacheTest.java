@@ -0,0 +1,161 @@
+/** \file
+ *
+ * Feb 21, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.stream.ImageInputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Local tests for the cache of image files in the local file system.
+ */
+public class LocalObjectCacheTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static byte[] data(int length, int seed) {
+        byte[] data = new byte[ length ];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte)(i * 31 + seed);
+        }
+        return data;
+    }
+
+    private static void assertStreamData(byte[] data, ImageInputStream imageStream) throws IOException {
+        assertNotNull(imageStream);
+        try {
+            assertEquals(data.length, imageStream.length());
+            byte[] readData = new byte[ data.length ];
+            imageStream.readFully( readData );
+            for (int i = 0; i < data.length; i++) {
+                assertEquals(data[i], readData[i]);
+            }
+            assertEquals(-1, imageStream.read());
+        } finally {
+            imageStream.close();
+        }
+    }
+
+
+    @Test
+    public void testPutAndOpen() throws IOException {
+        LocalObjectCache cache = new LocalObjectCache( mFolder.getRoot(), 1024 * 1024 );
+        byte[] data = data(10000, 1);
+        String eTag = FakeS3.md5Hex( data );
+        assertNull(cache.getETag("bucket", "a.jpg"));
+        assertTrue(cache.put("bucket", "a.jpg", eTag, data, data.length));
+        assertEquals(eTag, cache.getETag("bucket", "a.jpg"));
+        assertStreamData(data, cache.open("bucket", "a.jpg", eTag));
+        // a different ETag is a miss
+        assertNull(cache.open("bucket", "a.jpg", "0123"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        // replacing the object replaces the file
+        byte[] newData = data(500, 2);
+        assertTrue(cache.put("bucket", "a.jpg", FakeS3.md5Hex( newData ), newData, newData.length));
+        assertEquals(1, mFolder.getRoot().listFiles().length);
+        assertEquals(500, cache.getBytes());
+        assertStreamData(newData, cache.open("bucket", "a.jpg", FakeS3.md5Hex( newData )));
+    }
+
+
+    @Test
+    public void testBoundedByBytes() {
+        LocalObjectCache cache = new LocalObjectCache( mFolder.getRoot(), 2000 );
+        assertTrue(cache.put("bucket", "a.jpg", "a", data(1000, 1), 1000));
+        assertTrue(cache.put("bucket", "b.jpg", "b", data(1000, 2), 1000));
+        // a is now the most recently used file
+        assertNotNull(cache.getETag("bucket", "a.jpg"));
+        assertTrue(cache.put("bucket", "c.jpg", "c", data(1000, 3), 1000));
+        assertNull(cache.getETag("bucket", "b.jpg"));
+        assertNotNull(cache.getETag("bucket", "a.jpg"));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2, mFolder.getRoot().listFiles().length);
+        // a file larger than the cache is not added
+        assertFalse(cache.put("bucket", "big.jpg", "big", data(3000, 4), 3000));
+        assertEquals(2000, cache.getBytes());
+    }
+
+
+    /**
+     * A new cache (for example, after the container is restarted) finds the files written by an earlier cache and
+     * deletes a partial write.
+     */
+    @Test
+    public void testRestart() throws IOException {
+        File dir = mFolder.getRoot();
+        byte[] data = data(1000, 5);
+        LocalObjectCache cache = new LocalObjectCache( dir, 1024 * 1024 );
+        assertTrue(cache.put("bucket", "a.jpg", "etag-a", data, data.length));
+        File partial = new File(dir, "partial.tmp");
+        try (FileOutputStream ostream = new FileOutputStream( partial )) {
+            ostream.write( data, 0, 100 );
+        }
+        LocalObjectCache restarted = new LocalObjectCache( dir, 1024 * 1024 );
+        assertFalse(partial.exists());
+        assertEquals(1, restarted.size());
+        assertEquals(1000, restarted.getBytes());
+        assertEquals("etag-a", restarted.getETag("bucket", "a.jpg"));
+        assertStreamData(data, restarted.open("bucket", "a.jpg", "etag-a"));
+    }
+
+
+    /**
+     * The second read of an image is validated with a conditional GET and read from the local cache. The image is
+     * written to the cache on the write executor, after the stream is closed.
+     */
+    @Test
+    public void testS3ServiceReadThrough() throws IOException {
+        final FakeS3 s3 = new FakeS3();
+        S3Service s3Service = s3.newS3Service();
+        LocalObjectCache cache = new LocalObjectCache( mFolder.getRoot(), 1024 * 1024 );
+        s3Service.setLocalCache( cache );
+        List<Runnable> writes = new ArrayList<Runnable>();
+        cache.setWriteExecutor( writes::add );
+        JavaLoggerWrapper logger = new JavaLoggerWrapper("LocalObjectCacheTest");
+        byte[] data = data(20000, 6);
+        s3.putObjectData("image.jpg", data);
+        ImageInputStream imageStream = s3Service.s3ToImageInputStream("image.jpg", logger);
+        assertEquals(0, writes.size());
+        assertStreamData(data, imageStream);
+        assertNull(cache.getETag("bucket", "image.jpg"));
+        assertEquals(1, writes.size());
+        writes.get(0).run();
+        assertEquals(FakeS3.md5Hex( data ), cache.getETag("bucket", "image.jpg"));
+        cache.setWriteExecutor( Runnable::run );
+        S3Service.ImageRead read = s3Service.readImage("image.jpg", null, logger);
+        imageStream = read.getStream();
+        assertTrue(imageStream instanceof ByteBufferImageInputStream);
+        assertStreamData(data, imageStream);
+        assertEquals(FakeS3.md5Hex( data ), read.getETag());
+        assertEquals(1, cache.getHits());
+        // the image is replaced: S3 sends the new image, which replaces the cached file
+        byte[] newData = data(3000, 7);
+        s3.putObjectData("image.jpg", newData);
+        imageStream = s3Service.s3ToImageInputStream("image.jpg", logger);
+        assertFalse(imageStream instanceof ByteBufferImageInputStream);
+        assertStreamData(newData, imageStream);
+        assertEquals(FakeS3.md5Hex( newData ), cache.getETag("bucket", "image.jpg"));
+    }
+
+}
@@ -0,0 +1,620 @@
+/** \file
+ *
+ * Feb 26, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.util.Base64;
+import com.amazonaws.util.BinaryUtils;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * <h3>
+ * LocalS3Server
+ * </h3>
+ * <p>
+ * An in-process HTTP server that implements the part of the S3 REST API that S3Service uses: GET (with ranges and
+ * If-None-Match), HEAD, PUT (with Content-MD5 and user metadata), copy (with x-amz-copy-source-if-match), DELETE and
+ * multipart uploads. The objects are held in memory. S3Service is pointed at the server with the IMAGE_S3_ENDPOINT
+ * setting (see S3TransferSettings), and the AmazonS3 client sends path style requests (/bucket/key). Request
+ * signatures are not checked.
+ * </p>
+ * <p>
+ * A NetworkProfile adds latency and bandwidth limits to every request, to model S3 in the same region as the Lambda
+ * function or in another region. The first byte of each response is delayed by the profile latency (with jitter),
+ * and request and response bodies are transferred at the profile bandwidth, per connection.
+ * </p>
+ * <p>
+ * Feb 26, 2018
+ * </p>
+ *
+ * @author Ian Kaplan, iank@bearcave.com
+ */
+public class LocalS3Server {
+    private final static int TRANSFER_BLOCK = 16 * 1024;
+    private final static String XML_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n";
+
+    /**
+     * The network between the client and the server: the time to first byte and the bandwidth of a connection.
+     */
+    public static class NetworkProfile {
+        /** no added latency or bandwidth limit */
+        public final static NetworkProfile NONE = new NetworkProfile(0, 0, 0);
+        /** S3 in the same region as the Lambda function */
+        public final static NetworkProfile SAME_REGION = new NetworkProfile(15, 10, 80L * 1024 * 1024);
+        /** S3 in another region (e.g., us-west-1 to us-east-1) */
+        public final static NetworkProfile CROSS_REGION = new NetworkProfile(80, 30, 20L * 1024 * 1024);
+
+        private final long mFirstByteMillis;
+        private final long mJitterMillis;
+        private final long mBytesPerSecond;
+
+        /**
+         * @param firstByteMillis the time to the first byte of a response
+         * @param jitterMillis the maximum random time added to firstByteMillis
+         * @param bytesPerSecond the transfer rate of a connection, or 0 for no limit
+         */
+        public NetworkProfile(long firstByteMillis, long jitterMillis, long bytesPerSecond) {
+            this.mFirstByteMillis = firstByteMillis;
+            this.mJitterMillis = jitterMillis;
+            this.mBytesPerSecond = bytesPerSecond;
+        }
+
+        /**
+         * @param name none, same-region or cross-region
+         * @return the profile or null if the name is not a profile name
+         */
+        public static NetworkProfile forName(String name) {
+            NetworkProfile profile = null;
+            if (name.equalsIgnoreCase("none")) {
+                profile = NONE;
+            } else if (name.equalsIgnoreCase("same-region")) {
+                profile = SAME_REGION;
+            } else if (name.equalsIgnoreCase("cross-region")) {
+                profile = CROSS_REGION;
+            }
+            return profile;
+        }
+
+        public long getFirstByteMillis() { return mFirstByteMillis; }
+        public long getJitterMillis() { return mJitterMillis; }
+        public long getBytesPerSecond() { return mBytesPerSecond; }
+
+        @Override
+        public String toString() {
+            return "first byte " + mFirstByteMillis + " ms (+" + mJitterMillis + " ms jitter), " +
+                   ((mBytesPerSecond > 0) ? (mBytesPerSecond / (1024 * 1024)) + " MB/s per connection" : "no bandwidth limit");
+        }
+    }
+
+    private static class StoredObject {
+        final byte[] mData;
+        final String mETag;
+        final String mContentType;
+        final Map<String, String> mUserMetadata;
+        final long mLastModified = System.currentTimeMillis();
+
+        StoredObject(byte[] data, String eTag, String contentType, Map<String, String> userMetadata) {
+            this.mData = data;
+            this.mETag = eTag;
+            this.mContentType = (contentType != null) ? contentType : "application/octet-stream";
+            this.mUserMetadata = userMetadata;
+        }
+    }
+
+    private static class MultipartUpload {
+        final TreeMap<Integer, byte[]> mParts = new TreeMap<Integer, byte[]>();
+        final String mContentType;
+        final Map<String, String> mUserMetadata;
+
+        MultipartUpload(String contentType, Map<String, String> userMetadata) {
+            this.mContentType = contentType;
+            this.mUserMetadata = userMetadata;
+        }
+    }
+
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor;
+    private final ConcurrentHashMap<String, StoredObject> mObjects = new ConcurrentHashMap<String, StoredObject>();
+    private final ConcurrentHashMap<String, MultipartUpload> mUploads = new ConcurrentHashMap<String, MultipartUpload>();
+    private final AtomicLong mUploadIds = new AtomicLong();
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mBytesIn = new AtomicLong();
+    private final AtomicLong mBytesOut = new AtomicLong();
+    private final Random mRandom = new Random( 42 );
+    private volatile NetworkProfile mProfile;
+
+    /**
+     * Start a server on a free local port.
+     *
+     * @param profile the network latency and bandwidth
+     * @throws IOException if the server socket cannot be opened
+     */
+    public LocalS3Server(NetworkProfile profile) throws IOException {
+        this.mProfile = profile;
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 256);
+        mExecutor = Executors.newCachedThreadPool( r -> {
+            Thread thread = new Thread(r, "local-s3");
+            thread.setDaemon( true );
+            return thread;
+        });
+        mServer.setExecutor( mExecutor );
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    dispatch( exchange );
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        mServer.start();
+    }
+
+    /**
+     * @return the endpoint URL, for IMAGE_S3_ENDPOINT
+     */
+    public String getEndpoint() {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort();
+    }
+
+    /**
+     * @param s3Bucket the bucket name
+     * @param settings the transfer settings. The endpoint is set to this server.
+     * @return an S3Service that sends its requests to this server, with no LocalObjectCache (see FakeS3.newS3Service)
+     */
+    public S3Service newS3Service(String s3Bucket, S3TransferSettings settings) {
+        settings.setEndpoint( getEndpoint() );
+        S3Service s3Service = new S3Service("us-west-1", s3Bucket, "id", "key");
+        s3Service.setTransferSettings( settings );
+        s3Service.setLocalCache( null );
+        return s3Service;
+    }
+
+    public NetworkProfile getProfile() { return mProfile; }
+    public void setProfile(NetworkProfile profile) { this.mProfile = profile; }
+
+    public long getRequests() { return mRequests.get(); }
+    public long getBytesIn() { return mBytesIn.get(); }
+    public long getBytesOut() { return mBytesOut.get(); }
+    public int getOpenUploads() { return mUploads.size(); }
+
+    public void stop() {
+        mServer.stop( 0 );
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Store an object directly, without a request (e.g., the originals for a load test).
+     */
+    public void putObjectData(String bucket, String key, byte[] data, String contentType) {
+        mObjects.put(bucket + "/" + key, new StoredObject(data, md5Hex( data ), contentType, new HashMap<String, String>()));
+    }
+
+    /**
+     * @return the data for an object, or null if there is no object
+     */
+    public byte[] getObjectData(String bucket, String key) {
+        StoredObject object = mObjects.get( bucket + "/" + key );
+        return (object != null) ? object.mData : null;
+    }
+
+    /**
+     * @return the user metadata for an object, or null if there is no object
+     */
+    public Map<String, String> getUserMetadata(String bucket, String key) {
+        StoredObject object = mObjects.get( bucket + "/" + key );
+        return (object != null) ? object.mUserMetadata : null;
+    }
+
+    static String md5Hex(byte[] data) {
+        return BinaryUtils.toHex( Md5.digest( data ) );
+    }
+
+    /** MessageDigest is not thread safe, so each thread has its own MD5 digest */
+    private static class Md5 {
+        private final static ThreadLocal<MessageDigest> mDigest = ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException( e );
+            }
+        });
+
+        static byte[] digest(byte[] data) {
+            return mDigest.get().digest( data );
+        }
+    }
+
+    private void dispatch(HttpExchange exchange) throws IOException {
+        mRequests.incrementAndGet();
+        String path = exchange.getRequestURI().getRawPath();
+        Map<String, String> query = parseQuery( exchange.getRequestURI().getRawQuery() );
+        String method = exchange.getRequestMethod();
+        // path style: /bucket/key
+        String objectName = decode( path.substring(1) );
+        String bucket = objectName;
+        int slash = objectName.indexOf('/');
+        if (slash > 0) {
+            bucket = objectName.substring(0, slash);
+        }
+        Headers requestHeaders = exchange.getRequestHeaders();
+        if (slash <= 0 || slash == objectName.length() - 1) {
+            error(exchange, 400, "InvalidRequest", "Bucket operations are not supported", objectName);
+        } else if (method.equals("HEAD")) {
+            getObject(exchange, objectName, false);
+        } else if (method.equals("GET")) {
+            getObject(exchange, objectName, true);
+        } else if (method.equals("PUT") && query.containsKey("uploadId")) {
+            uploadPart(exchange, query.get("uploadId"), Integer.parseInt( query.get("partNumber") ));
+        } else if (method.equals("PUT") && requestHeaders.getFirst("x-amz-copy-source") != null) {
+            copyObject(exchange, objectName);
+        } else if (method.equals("PUT")) {
+            putObject(exchange, objectName);
+        } else if (method.equals("POST") && query.containsKey("uploads")) {
+            initiateUpload(exchange, bucket, objectName);
+        } else if (method.equals("POST") && query.containsKey("uploadId")) {
+            completeUpload(exchange, bucket, objectName, query.get("uploadId"));
+        } else if (method.equals("DELETE") && query.containsKey("uploadId")) {
+            readBody( exchange );
+            mUploads.remove( query.get("uploadId") );
+            respond(exchange, 204, null);
+        } else if (method.equals("DELETE")) {
+            readBody( exchange );
+            mObjects.remove( objectName );
+            respond(exchange, 204, null);
+        } else {
+            error(exchange, 405, "MethodNotAllowed", "The method is not supported", objectName);
+        }
+    }
+
+    private void getObject(HttpExchange exchange, String objectName, boolean withBody) throws IOException {
+        StoredObject object = mObjects.get( objectName );
+        Headers requestHeaders = exchange.getRequestHeaders();
+        String noneMatch = requestHeaders.getFirst("If-None-Match");
+        String range = requestHeaders.getFirst("Range");
+        if (object == null) {
+            if (withBody) {
+                error(exchange, 404, "NoSuchKey", "The specified key does not exist.", objectName);
+            } else {
+                respond(exchange, 404, null);
+            }
+        } else if (noneMatch != null && unquote( noneMatch ).equals( object.mETag )) {
+            objectHeaders(exchange, object);
+            respond(exchange, 304, null);
+        } else {
+            objectHeaders(exchange, object);
+            int start = 0;
+            int end = object.mData.length - 1;
+            int status = 200;
+            if (range != null && range.startsWith("bytes=")) {
+                String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                start = Integer.parseInt( bounds[0].trim() );
+                if (bounds.length > 1 && bounds[1].trim().length() > 0) {
+                    end = (int)Math.min(end, Long.parseLong( bounds[1].trim() ));
+                }
+                status = 206;
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + object.mData.length);
+            }
+            if (start > end) {
+                error(exchange, 416, "InvalidRange", "The requested range is not satisfiable", objectName);
+            } else if (withBody) {
+                respond(exchange, status, object.mData, start, end - start + 1);
+            } else {
+                exchange.getResponseHeaders().set("Content-Length", Integer.toString( object.mData.length ));
+                respond(exchange, status, null);
+            }
+        }
+    }
+
+    private void putObject(HttpExchange exchange, String objectName) throws IOException {
+        byte[] data = readBody( exchange );
+        if (checkMD5(exchange, data, objectName)) {
+            StoredObject object = new StoredObject(data, md5Hex( data ), exchange.getRequestHeaders().getFirst("Content-Type"),
+                                                   userMetadata( exchange.getRequestHeaders() ));
+            mObjects.put(objectName, object);
+            exchange.getResponseHeaders().set("ETag", quote( object.mETag ));
+            respond(exchange, 200, null);
+        }
+    }
+
+    private void copyObject(HttpExchange exchange, String objectName) throws IOException {
+        readBody( exchange );
+        Headers requestHeaders = exchange.getRequestHeaders();
+        String source = decode( requestHeaders.getFirst("x-amz-copy-source") );
+        if (source.startsWith("/")) {
+            source = source.substring(1);
+        }
+        String ifMatch = requestHeaders.getFirst("x-amz-copy-source-if-match");
+        StoredObject sourceObject = mObjects.get( source );
+        if (sourceObject == null) {
+            error(exchange, 404, "NoSuchKey", "The specified key does not exist.", source);
+        } else if (ifMatch != null && !unquote( ifMatch ).equals( sourceObject.mETag )) {
+            error(exchange, 412, "PreconditionFailed", "At least one of the preconditions you specified did not hold.", source);
+        } else {
+            StoredObject copy = sourceObject;
+            if ("REPLACE".equalsIgnoreCase( requestHeaders.getFirst("x-amz-metadata-directive") )) {
+                copy = new StoredObject(sourceObject.mData, sourceObject.mETag, requestHeaders.getFirst("Content-Type"),
+                                        userMetadata( requestHeaders ));
+            }
+            mObjects.put(objectName, copy);
+            String xml = XML_HEADER + "<CopyObjectResult><LastModified>" + isoDate( copy.mLastModified ) +
+                         "</LastModified><ETag>" + quote( copy.mETag ) + "</ETag></CopyObjectResult>";
+            respond(exchange, 200, xml.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void initiateUpload(HttpExchange exchange, String bucket, String objectName) throws IOException {
+        readBody( exchange );
+        String uploadId = "upload-" + mUploadIds.incrementAndGet();
+        Headers requestHeaders = exchange.getRequestHeaders();
+        mUploads.put(uploadId, new MultipartUpload(requestHeaders.getFirst("Content-Type"), userMetadata( requestHeaders )));
+        String xml = XML_HEADER + "<InitiateMultipartUploadResult><Bucket>" + bucket + "</Bucket><Key>" +
+                     objectName.substring( bucket.length() + 1 ) + "</Key><UploadId>" + uploadId +
+                     "</UploadId></InitiateMultipartUploadResult>";
+        respond(exchange, 200, xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void uploadPart(HttpExchange exchange, String uploadId, int partNumber) throws IOException {
+        byte[] data = readBody( exchange );
+        MultipartUpload upload = mUploads.get( uploadId );
+        if (upload == null) {
+            error(exchange, 404, "NoSuchUpload", "The specified upload does not exist.", uploadId);
+        } else if (checkMD5(exchange, data, uploadId)) {
+            synchronized (upload) {
+                upload.mParts.put(partNumber, data);
+            }
+            exchange.getResponseHeaders().set("ETag", quote( md5Hex( data ) ));
+            respond(exchange, 200, null);
+        }
+    }
+
+    private void completeUpload(HttpExchange exchange, String bucket, String objectName, String uploadId) throws IOException {
+        readBody( exchange );
+        MultipartUpload upload = mUploads.remove( uploadId );
+        if (upload == null) {
+            error(exchange, 404, "NoSuchUpload", "The specified upload does not exist.", uploadId);
+        } else {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            synchronized (upload) {
+                for (byte[] part : upload.mParts.values()) {
+                    data.write(part, 0, part.length);
+                }
+            }
+            byte[] bytes = data.toByteArray();
+            // the ETag of a multipart object has the number of parts after the hash, as it does on S3
+            String eTag = md5Hex( bytes ) + "-" + upload.mParts.size();
+            mObjects.put(objectName, new StoredObject(bytes, eTag, upload.mContentType, upload.mUserMetadata));
+            String xml = XML_HEADER + "<CompleteMultipartUploadResult><Location>" + getEndpoint() + "/" + objectName +
+                         "</Location><Bucket>" + bucket + "</Bucket><Key>" + objectName.substring( bucket.length() + 1 ) +
+                         "</Key><ETag>" + quote( eTag ) + "</ETag></CompleteMultipartUploadResult>";
+            respond(exchange, 200, xml.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private boolean checkMD5(HttpExchange exchange, byte[] data, String resource) throws IOException {
+        boolean md5OK = true;
+        String contentMD5 = exchange.getRequestHeaders().getFirst("Content-MD5");
+        if (contentMD5 != null && !contentMD5.equals( Base64.encodeAsString( Md5.digest( data ) ) )) {
+            md5OK = false;
+            error(exchange, 400, "BadDigest", "The Content-MD5 you specified did not match what we received.", resource);
+        }
+        return md5OK;
+    }
+
+    private static void objectHeaders(HttpExchange exchange, StoredObject object) {
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("ETag", quote( object.mETag ));
+        headers.set("Content-Type", object.mContentType);
+        headers.set("Last-Modified", httpDate( object.mLastModified ));
+        headers.set("Accept-Ranges", "bytes");
+        for (Map.Entry<String, String> entry : object.mUserMetadata.entrySet()) {
+            headers.set("x-amz-meta-" + entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static Map<String, String> userMetadata(Headers headers) {
+        Map<String, String> userMetadata = new HashMap<String, String>();
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            String name = entry.getKey().toLowerCase(Locale.US);
+            if (name.startsWith("x-amz-meta-")) {
+                userMetadata.put(name.substring("x-amz-meta-".length()), entry.getValue().get(0));
+            }
+        }
+        return userMetadata;
+    }
+
+    private void error(HttpExchange exchange, int status, String code, String message, String resource) throws IOException {
+        String xml = XML_HEADER + "<Error><Code>" + code + "</Code><Message>" + message + "</Message><Resource>" +
+                     resource + "</Resource><RequestId>local</RequestId></Error>";
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        respond(exchange, status, xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        respond(exchange, status, body, 0, (body != null) ? body.length : 0);
+    }
+
+    /**
+     * Send a response after the profile time to first byte, at the profile bandwidth.
+     */
+    private void respond(HttpExchange exchange, int status, byte[] body, int offset, int length) throws IOException {
+        NetworkProfile profile = mProfile;
+        long delay = profile.getFirstByteMillis();
+        if (profile.getJitterMillis() > 0) {
+            synchronized (mRandom) {
+                delay += (long)(mRandom.nextDouble() * profile.getJitterMillis());
+            }
+        }
+        pause( delay );
+        exchange.getResponseHeaders().set("x-amz-request-id", "local-" + mRequests.get());
+        if (body == null || length == 0) {
+            exchange.sendResponseHeaders(status, -1);
+        } else {
+            exchange.sendResponseHeaders(status, length);
+            OutputStream outStream = exchange.getResponseBody();
+            long startTime = System.nanoTime();
+            int sent = 0;
+            while (sent < length) {
+                int block = Math.min(TRANSFER_BLOCK, length - sent);
+                outStream.write(body, offset + sent, block);
+                sent += block;
+                throttle(profile, startTime, sent);
+            }
+            outStream.flush();
+            mBytesOut.addAndGet( length );
+        }
+    }
+
+    /**
+     * Read a request body at the profile bandwidth. A body sent with the aws-chunked encoding (the AmazonS3 client
+     * signs each chunk of an upload over HTTP) is decoded.
+     */
+    private byte[] readBody(HttpExchange exchange) throws IOException {
+        NetworkProfile profile = mProfile;
+        InputStream inStream = exchange.getRequestBody();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] block = new byte[ TRANSFER_BLOCK ];
+        long startTime = System.nanoTime();
+        int bytesRead;
+        while ((bytesRead = inStream.read(block)) > 0) {
+            body.write(block, 0, bytesRead);
+            throttle(profile, startTime, body.size());
+        }
+        mBytesIn.addAndGet( body.size() );
+        byte[] data = body.toByteArray();
+        Headers headers = exchange.getRequestHeaders();
+        String contentSha256 = headers.getFirst("x-amz-content-sha256");
+        String contentEncoding = headers.getFirst("Content-Encoding");
+        if ((contentSha256 != null && contentSha256.startsWith("STREAMING-")) ||
+            (contentEncoding != null && contentEncoding.contains("aws-chunked"))) {
+            data = decodeChunks( data );
+        }
+        return data;
+    }
+
+    /**
+     * Decode aws-chunked data: each chunk is [hex size];chunk-signature=[signature]\r\n[data]\r\n, and the last chunk
+     * has a size of zero.
+     */
+    private static byte[] decodeChunks(byte[] data) throws IOException {
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream( data.length );
+        int ix = 0;
+        int size = -1;
+        while (size != 0 && ix < data.length) {
+            int lineEnd = ix;
+            while (lineEnd < data.length - 1 && !(data[lineEnd] == '\r' && data[lineEnd + 1] == '\n')) {
+                lineEnd++;
+            }
+            String line = new String(data, ix, lineEnd - ix, StandardCharsets.US_ASCII);
+            int semi = line.indexOf(';');
+            try {
+                size = Integer.parseInt( (semi >= 0) ? line.substring(0, semi) : line, 16 );
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad aws-chunked chunk header: " + line);
+            }
+            ix = lineEnd + 2;
+            decoded.write(data, ix, size);
+            ix += size + 2;
+        }
+        return decoded.toByteArray();
+    }
+
+    private static void throttle(NetworkProfile profile, long startTime, long bytes) {
+        if (profile.getBytesPerSecond() > 0) {
+            long targetNanos = (bytes * 1000000000L) / profile.getBytesPerSecond();
+            long aheadMillis = (targetNanos - (System.nanoTime() - startTime)) / 1000000L;
+            pause( aheadMillis );
+        }
+    }
+
+    private static void pause(long millis) {
+        if (millis > 0) {
+            try {
+                Thread.sleep( millis );
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<String, String>();
+        if (rawQuery != null) {
+            for (String param : rawQuery.split("&")) {
+                int eq = param.indexOf('=');
+                if (eq >= 0) {
+                    query.put(decode( param.substring(0, eq) ), decode( param.substring(eq + 1) ));
+                } else if (param.length() > 0) {
+                    query.put(decode( param ), "");
+                }
+            }
+        }
+        return query;
+    }
+
+    private static String decode(String str) {
+        try {
+            return URLDecoder.decode(str.replace("+", "%2B"), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return str;
+        }
+    }
+
+    private static String quote(String eTag) {
+        return "\"" + eTag + "\"";
+    }
+
+    private static String unquote(String eTag) {
+        String str = eTag.trim();
+        if (str.length() >= 2 && str.startsWith("\"") && str.endsWith("\"")) {
+            str = str.substring(1, str.length() - 1);
+        }
+        return str;
+    }
+
+    private static String httpDate(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone( TimeZone.getTimeZone("GMT") );
+        return format.format( new Date( millis ) );
+    }
+
+    private static String isoDate(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        format.setTimeZone( TimeZone.getTimeZone("GMT") );
+        return format.format( new Date( millis ) );
+    }
+
+}
@@ -0,0 +1,115 @@
+/** \file
+ *
+ * Feb 26, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * Tests for the LocalS3Server, through S3Service and the AmazonS3 client, with the endpoint set in the transfer
+ * settings.
+ */
+public class LocalS3ServerTest {
+    private final static JavaLoggerWrapper logger = new JavaLoggerWrapper("LocalS3ServerTest");
+    private final static String BUCKET = "local-test";
+    private static LocalS3Server server;
+
+    @BeforeClass
+    public static void startServer() throws IOException {
+        server = new LocalS3Server( LocalS3Server.NetworkProfile.NONE );
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop();
+    }
+
+    private static byte[] jpeg(int width, int height) throws IOException {
+        BufferedImage image = ParallelResizeEngineTest.randomImage(width, height, BufferedImage.TYPE_INT_RGB, 5);
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", outStream);
+        return outStream.toByteArray();
+    }
+
+
+    @Test
+    public void testReadWrite() throws IOException {
+        S3Service s3Service = server.newS3Service( BUCKET, new S3TransferSettings() );
+        byte[] original = jpeg(300, 200);
+        server.putObjectData(BUCKET, "dir/original image.jpg", original, "image/jpeg");
+        assertNull(s3Service.getObjectMetadata("missing.jpg", logger));
+        ObjectMetadata metadata = s3Service.getObjectMetadata("dir/original image.jpg", logger);
+        assertNotNull(metadata);
+        assertEquals(original.length, metadata.getContentLength());
+        // a GET, then a conditional GET on the ETag of the first GET
+        S3Service.ImageRead read = s3Service.readImage("dir/original image.jpg", null, logger);
+        assertNotNull(read.getStream());
+        assertEquals(300, ImageIO.read( read.getStream() ).getWidth());
+        assertEquals(metadata.getETag(), read.getETag());
+        assertNull(s3Service.readImage("dir/original image.jpg", read.getETag(), logger).getStream());
+        ImageHeader header = s3Service.probeImage("dir/original image.jpg", logger);
+        assertNotNull(header);
+        assertEquals(200, header.getHeight());
+        // a write with user metadata and a copy
+        Map<String, String> userMetadata = RenditionFingerprint.userMetadata("fingerprint");
+        BufferedImage image = ParallelResizeEngineTest.randomImage(60, 40, BufferedImage.TYPE_INT_RGB, 9);
+        assertTrue(s3Service.writeBufferedImage("scaled.jpg", image, "Content-Type: image/jpeg", userMetadata, logger));
+        assertEquals("fingerprint", s3Service.getObjectMetadata("scaled.jpg", logger).getUserMetaDataOf( RenditionFingerprint.METADATA_KEY ));
+        assertTrue(s3Service.copyObject("dir/original image.jpg", "copy.jpg", metadata, userMetadata, logger));
+        assertArrayEquals(original, server.getObjectData(BUCKET, "copy.jpg"));
+        server.putObjectData(BUCKET, "dir/original image.jpg", jpeg(30, 20), "image/jpeg");
+        assertFalse(s3Service.copyObject("dir/original image.jpg", "copy2.jpg", metadata, userMetadata, logger));
+    }
+
+
+    /**
+     * A multipart upload and a ranged download.
+     */
+    @Test
+    public void testMultipartAndRanges() throws IOException {
+        S3TransferSettings settings = new S3TransferSettings();
+        settings.setMultipartThreshold( 1 );
+        settings.setPartSize( S3TransferSettings.MIN_PART_SIZE );
+        settings.setRangedGetThreshold( 256 * 1024 );
+        settings.setRangeSize( S3TransferSettings.MIN_RANGE_SIZE );
+        S3Service s3Service = server.newS3Service( BUCKET, settings );
+        BufferedImage image = ParallelResizeEngineTest.randomImage(2000, 1500, BufferedImage.TYPE_INT_RGB, 3);
+        assertTrue(s3Service.writeBufferedImage("large.png", image, "Content-Type: image/png", logger));
+        assertEquals(0, server.getOpenUploads());
+        byte[] data = server.getObjectData(BUCKET, "large.png");
+        assertTrue(data.length > S3TransferSettings.MIN_PART_SIZE);
+        ImageInputStream imageStream = s3Service.s3ToImageInputStream("large.png", logger);
+        assertNotNull(imageStream);
+        // ImageIO.read() closes the stream
+        BufferedImage read = ImageIO.read( imageStream );
+        assertEquals(2000, read.getWidth());
+        assertEquals(image.getRGB(1999, 1499), read.getRGB(1999, 1499));
+        assertEquals(2000, ImageIO.read( new ByteArrayInputStream( data ) ).getWidth());
+    }
+
+}
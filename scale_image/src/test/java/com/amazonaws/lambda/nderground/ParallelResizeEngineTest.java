@@ -0,0 +1,82 @@
+/** \file
+ * 
+ * Feb 12, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.imgscalr.Scalr;
+import org.junit.Test;
+
+/**
+ * Local tests for the ParallelResizeEngine. These tests do not use AWS.
+ */
+public class ParallelResizeEngineTest {
+    
+    public static BufferedImage randomImage(int width, int height, int imageType, long seed) {
+        Random rand = new Random( seed );
+        BufferedImage image = new BufferedImage(width, height, imageType);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, rand.nextInt());
+            }
+        }
+        return image;
+    }
+    
+    
+    private static void checkSameImage(String testName, BufferedImage expected, BufferedImage actual) {
+        assertEquals(testName + ": width", expected.getWidth(), actual.getWidth());
+        assertEquals(testName + ": height", expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                if (expected.getRGB(x, y) != actual.getRGB(x, y)) {
+                    fail(testName + ": pixel (" + x + "," + y + ") is different");
+                }
+            }
+        }
+    }
+    
+    
+    private static void checkBands(Scalr.Method method, BufferedImage image, int width, int height) {
+        ResizeEngine singleThread = new ParallelResizeEngine( method, 1 );
+        ResizeEngine parallel = new ParallelResizeEngine( method, 7 );
+        BufferedImage expected = singleThread.resize(image, width, height);
+        BufferedImage actual = parallel.resize(image, width, height);
+        checkSameImage("checkBands " + method + " " + width + "x" + height, expected, actual);
+    }
+    
+    
+    @Test
+    public void testBandsMatchSingleThread() {
+        BufferedImage rgbImage = randomImage(1931, 1277, BufferedImage.TYPE_3BYTE_BGR, 1);
+        for (Scalr.Method method : Scalr.Method.values()) {
+            checkBands(method, rgbImage, 1003, 663);
+        }
+        checkBands(Scalr.Method.QUALITY, rgbImage, 2500, 1653);
+        BufferedImage argbImage = randomImage(1200, 1500, BufferedImage.TYPE_INT_ARGB, 2);
+        checkBands(Scalr.Method.QUALITY, argbImage, 600, 750);
+        checkBands(Scalr.Method.BALANCED, argbImage, 700, 1200);
+    }
+    
+    
+    @Test
+    public void testResizeSize() {
+        BufferedImage image = randomImage(640, 480, BufferedImage.TYPE_INT_RGB, 3);
+        ResizeEngine engine = new ParallelResizeEngine( Scalr.Method.AUTOMATIC );
+        BufferedImage thumb = engine.resize(image, 190, 143);
+        assertEquals(190, thumb.getWidth());
+        assertEquals(143, thumb.getHeight());
+        assertEquals(BufferedImage.TYPE_INT_RGB, thumb.getType());
+    }
+
+}
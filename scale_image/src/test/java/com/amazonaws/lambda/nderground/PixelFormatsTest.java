@@ -0,0 +1,88 @@
+/** \file
+ *
+ * Feb 14, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+/**
+ * Local tests for PixelFormats. These tests do not use AWS.
+ */
+public class PixelFormatsTest {
+
+    @Test
+    public void testNormalize() {
+        BufferedImage rgb = ParallelResizeEngineTest.randomImage(120, 80, BufferedImage.TYPE_INT_RGB, 5);
+        assertSame(rgb, PixelFormats.normalize( rgb ));
+
+        BufferedImage bgr = ParallelResizeEngineTest.randomImage(120, 80, BufferedImage.TYPE_3BYTE_BGR, 6);
+        BufferedImage normalized = PixelFormats.normalize( bgr );
+        assertEquals(BufferedImage.TYPE_INT_RGB, normalized.getType());
+        for (int y = 0; y < bgr.getHeight(); y++) {
+            for (int x = 0; x < bgr.getWidth(); x++) {
+                assertEquals(bgr.getRGB(x, y), normalized.getRGB(x, y));
+            }
+        }
+
+        BufferedImage gray = ParallelResizeEngineTest.randomImage(120, 80, BufferedImage.TYPE_BYTE_GRAY, 7);
+        assertEquals(BufferedImage.TYPE_INT_RGB, PixelFormats.normalize( gray ).getType());
+
+        // an alpha channel where every pixel is opaque
+        BufferedImage opaque = opaqueImage(64, 48, BufferedImage.TYPE_4BYTE_ABGR);
+        assertFalse(PixelFormats.hasAlpha( opaque ));
+        assertEquals(BufferedImage.TYPE_INT_RGB, PixelFormats.normalize( opaque ).getType());
+
+        BufferedImage opaqueArgb = opaqueImage(64, 48, BufferedImage.TYPE_INT_ARGB);
+        BufferedImage view = PixelFormats.normalize( opaqueArgb );
+        assertEquals(BufferedImage.TYPE_INT_RGB, view.getType());
+        assertEquals(opaqueArgb.getRGB(5, 7), view.getRGB(5, 7));
+
+        BufferedImage argb = ParallelResizeEngineTest.randomImage(64, 48, BufferedImage.TYPE_INT_ARGB, 8);
+        assertTrue(PixelFormats.hasAlpha( argb ));
+        assertSame(argb, PixelFormats.normalize( argb ));
+    }
+
+
+    private static BufferedImage opaqueImage(int width, int height, int imageType) {
+        BufferedImage image = ParallelResizeEngineTest.randomImage(width, height, imageType, 10);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, 0xff000000 | image.getRGB(x, y));
+            }
+        }
+        return image;
+    }
+
+
+    @Test
+    public void testEncodeReady() throws IOException {
+        BufferedImage argb = ParallelResizeEngineTest.randomImage(64, 48, BufferedImage.TYPE_INT_ARGB, 9);
+        argb.setRGB(1, 1, 0x00000000);
+        BufferedImage jpegImage = PixelFormats.encodeReady(argb, "jpeg");
+        assertEquals(BufferedImage.TYPE_INT_RGB, jpegImage.getType());
+        // a transparent pixel is composited on white
+        assertEquals(0xffffffff, jpegImage.getRGB(1, 1));
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(jpegImage, "jpeg", outStream));
+        assertTrue(outStream.size() > 0);
+
+        assertSame(argb, PixelFormats.encodeReady(argb, "png"));
+    }
+
+}
@@ -0,0 +1,64 @@
+/** \file
+ *
+ * Feb 16, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+/**
+ * Local tests for the PooledImageOutputStream. These tests do not use AWS.
+ */
+public class PooledImageOutputStreamTest {
+
+    private static void checkEncode(BufferPool pool, BufferedImage image, String imageType, int initialSize)
+                                    throws IOException, NoSuchAlgorithmException {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(image, imageType, expected));
+        byte[] expectedBytes = expected.toByteArray();
+
+        PooledImageOutputStream outStream = new PooledImageOutputStream( pool, initialSize );
+        assertTrue(ImageIO.write(image, imageType, outStream));
+        assertEquals(expectedBytes.length, outStream.size());
+        assertArrayEquals(expectedBytes, Arrays.copyOf(outStream.getBuffer(), outStream.size()));
+        byte[] md5 = MessageDigest.getInstance("MD5").digest( expectedBytes );
+        assertArrayEquals(imageType + " MD5", md5, outStream.getMD5());
+        outStream.close();
+        outStream.release();
+    }
+
+
+    @Test
+    public void testEncodeAndDigest() throws IOException, NoSuchAlgorithmException {
+        BufferPool pool = new BufferPool( BufferPool.DEFAULT_MAX_POOLED_BYTES );
+        BufferedImage image = ParallelResizeEngineTest.randomImage(700, 500, BufferedImage.TYPE_INT_RGB, 12);
+        // a small initial size, so the buffer grows
+        checkEncode(pool, image, "jpeg", 1024);
+        checkEncode(pool, image, "png", 1024);
+        checkEncode(pool, image, "jpeg", PooledImageOutputStream.estimateSize(700, 500, "jpeg"));
+        checkEncode(pool, image, "png", PooledImageOutputStream.estimateSize(700, 500, "png"));
+        // steady state: the same encodes reuse the pooled buffers
+        long allocations = pool.getAllocations();
+        checkEncode(pool, image, "jpeg", PooledImageOutputStream.estimateSize(700, 500, "jpeg"));
+        checkEncode(pool, image, "png", PooledImageOutputStream.estimateSize(700, 500, "png"));
+        assertEquals(allocations, pool.getAllocations());
+    }
+
+}
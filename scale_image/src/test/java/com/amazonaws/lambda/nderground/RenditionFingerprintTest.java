@@ -0,0 +1,113 @@
+/** \file
+ *
+ * Feb 22, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * Local tests for the scaled image fingerprint and the S3 metadata that stores it.
+ */
+public class RenditionFingerprintTest {
+    private final static JavaLoggerWrapper logger = new JavaLoggerWrapper("RenditionFingerprintTest");
+
+    @Test
+    public void testFingerprint() {
+        String fingerprint = RenditionFingerprint.fingerprint("etag", ScaleMode.MAX_DIM, 200, 200, "image/jpeg", null);
+        assertEquals(fingerprint, RenditionFingerprint.fingerprint("etag", ScaleMode.MAX_DIM, 200, 200, "image/jpeg", ""));
+        assertEquals(64, fingerprint.length());
+        assertFalse(fingerprint.equals( RenditionFingerprint.fingerprint("etag2", ScaleMode.MAX_DIM, 200, 200, "image/jpeg", null) ));
+        assertFalse(fingerprint.equals( RenditionFingerprint.fingerprint("etag", ScaleMode.THUMBNAIL, 200, 200, "image/jpeg", null) ));
+        assertFalse(fingerprint.equals( RenditionFingerprint.fingerprint("etag", ScaleMode.MAX_DIM, 201, 200, "image/jpeg", null) ));
+        assertFalse(fingerprint.equals( RenditionFingerprint.fingerprint("etag", ScaleMode.MAX_DIM, 200, 200, "image/png", null) ));
+        assertFalse(fingerprint.equals( RenditionFingerprint.fingerprint("etag", ScaleMode.MAX_DIM, 200, 200, "image/jpeg", "scalr") ));
+    }
+
+
+    /**
+     * The fingerprint is written with the scaled image and read back with a HEAD request.
+     */
+    @Test
+    public void testMetadata() {
+        FakeS3 s3 = new FakeS3();
+        S3Service s3Service = s3.newS3Service();
+        assertNull(s3Service.getObjectMetadata("scaled.jpg", logger));
+        String fingerprint = RenditionFingerprint.fingerprint("etag", ScaleMode.MAX_DIM, 50, 50, "image/jpeg", null);
+        Map<String, String> userMetadata = RenditionFingerprint.userMetadata( fingerprint );
+        BufferedImage image = ParallelResizeEngineTest.randomImage(60, 40, BufferedImage.TYPE_INT_RGB, 17);
+        assertTrue(s3Service.writeBufferedImage("scaled.jpg", image, "image/jpeg", userMetadata, logger));
+        ObjectMetadata metadata = s3Service.getObjectMetadata("scaled.jpg", logger);
+        assertNotNull(metadata);
+        assertEquals(fingerprint, metadata.getUserMetaDataOf( RenditionFingerprint.METADATA_KEY ));
+        assertEquals(FakeS3.md5Hex( s3.getObjectData("scaled.jpg") ), metadata.getETag());
+        // a pass through copy gets the fingerprint too, if the original has not changed
+        s3.putObjectData("original.jpg", new byte[]{ 1, 2, 3 });
+        ObjectMetadata sourceMetadata = s3Service.getObjectMetadata("original.jpg", logger);
+        assertTrue(s3Service.copyObject("original.jpg", "copy.jpg", sourceMetadata, userMetadata, logger));
+        assertEquals(fingerprint, s3.getUserMetadata("copy.jpg").get( RenditionFingerprint.METADATA_KEY ));
+        s3.putObjectData("original.jpg", new byte[]{ 4, 5, 6 });
+        assertFalse(s3Service.copyObject("original.jpg", "copy2.jpg", sourceMetadata, userMetadata, logger));
+        assertNull(s3.getObjectData("copy2.jpg"));
+    }
+
+
+    /**
+     * Each rendition is written with its fingerprint. A request for renditions that are all up to date does not read
+     * the original; a rendition that has changed in the request is built again.
+     */
+    @Test
+    public void testRenditions() throws IOException {
+        FakeS3 s3 = new FakeS3();
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        ImageIO.write(ParallelResizeEngineTest.randomImage(400, 300, BufferedImage.TYPE_INT_RGB, 18), "jpeg", outStream);
+        s3.putObjectData("renditions.jpg", outStream.toByteArray());
+        LambdaImageScaler scaler = s3.newScaler( logger );
+        List<RenditionSpec> renditions = new ArrayList<RenditionSpec>();
+        renditions.add( new RenditionSpec("maxDim", 0, 0, 400, "same.jpg", null) );
+        renditions.add( new RenditionSpec("maxDim", 0, 0, 200, "large.jpg", null) );
+        renditions.add( new RenditionSpec("heightWidth", 75, 100, 0, "small.jpg", null) );
+        ScaleImageRenditions imageInfo = new ScaleImageRenditions("us-west-1", "bucket", "id", "key", "renditions.jpg", 
+                                                                  "image/jpeg", renditions);
+        assertTrue(scaler.scaleRenditionsLocal(imageInfo, null).isOK());
+        byte[][] data = new byte[ renditions.size() ][];
+        for (int i = 0; i < renditions.size(); i++) {
+            String s3ScaledPath = renditions.get(i).getS3ScaledPath();
+            assertNotNull(s3.getUserMetadata( s3ScaledPath ).get( RenditionFingerprint.METADATA_KEY ));
+            data[i] = s3.getObjectData( s3ScaledPath );
+        }
+        int gets = s3.getGets();
+        assertTrue(scaler.scaleRenditionsLocal(imageInfo, null).isOK());
+        assertEquals(gets, s3.getGets());
+        for (int i = 0; i < renditions.size(); i++) {
+            assertSame(data[i], s3.getObjectData( renditions.get(i).getS3ScaledPath() ));
+        }
+        renditions.get(2).setWidth( 90 );
+        assertTrue(scaler.scaleRenditionsLocal(imageInfo, null).isOK());
+        assertNotSame(data[2], s3.getObjectData("small.jpg"));
+    }
+
+}
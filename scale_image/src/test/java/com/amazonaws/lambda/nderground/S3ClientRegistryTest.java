@@ -0,0 +1,56 @@
+/** \file
+ *
+ * Feb 2, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+/**
+ * Local tests for the S3 client registry, with FakeS3 clients.
+ */
+public class S3ClientRegistryTest {
+
+    /**
+     * A client that is evicted is not shut down, since it may still be in use.
+     */
+    @Test
+    public void testEviction() {
+        final AtomicInteger shutdowns = new AtomicInteger();
+        S3ClientRegistry registry = new S3ClientRegistry( 1 ) {
+            @Override
+            protected AmazonS3 buildClient(String regionName, String AWS_ID, String AWS_KEY, String endpoint) {
+                return new FakeS3() {
+                    @Override
+                    public void shutdown() {
+                        shutdowns.incrementAndGet();
+                    }
+                };
+            }
+        };
+        AmazonS3 first = registry.getClient("us-west-1", "bucket-a", "id", "key");
+        assertSame(first, registry.getClient("us-west-1", "bucket-a", "id", "key"));
+        AmazonS3 second = registry.getClient("us-west-1", "bucket-b", "id", "key");
+        assertNotSame(first, second);
+        assertEquals(1, registry.size());
+        assertEquals(1, registry.getEvictions());
+        assertEquals(0, shutdowns.get());
+        // clear() is the only place where clients are shut down
+        registry.clear();
+        assertEquals(1, shutdowns.get());
+        assertEquals(0, registry.size());
+    }
+
+}
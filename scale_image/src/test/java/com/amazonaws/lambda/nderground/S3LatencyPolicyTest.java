@@ -0,0 +1,120 @@
+/** \file
+ *
+ * Feb 19, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+/**
+ * Local tests for the S3 deadlines, retries and hedged GETs, with faults injected by the FakeS3 stand-in for S3.
+ */
+public class S3LatencyPolicyTest {
+    private final static JavaLoggerWrapper logger = new JavaLoggerWrapper("S3LatencyPolicyTest");
+
+    private static S3Service s3Service(FakeS3 s3, S3LatencyPolicy policy) {
+        S3Service s3Service = s3.newS3Service();
+        s3Service.setLatencyPolicy( policy );
+        return s3Service;
+    }
+
+    private static FakeS3 fakeS3() {
+        FakeS3 s3 = new FakeS3();
+        s3.putObjectData("image.dat", new byte[]{ 1, 2, 3, 4 });
+        return s3;
+    }
+
+    private static void readAndClose(InputStream istream) throws IOException {
+        assertNotNull(istream);
+        try {
+            assertEquals(1, istream.read());
+        } finally {
+            istream.close();
+        }
+    }
+
+
+    @Test
+    public void testRetry() throws IOException {
+        FakeS3 s3 = fakeS3();
+        S3LatencyPolicy policy = new S3LatencyPolicy();
+        S3Service s3Service = s3Service(s3, policy);
+        s3.addFailure( 503 );
+        s3.addFailure( 500 );
+        readAndClose( s3Service.s3ToInputStream("image.dat", logger) );
+        assertEquals(2, policy.getRetries());
+        assertEquals(3, policy.getRequests());
+        assertEquals(0, policy.getFailures());
+    }
+
+
+    @Test
+    public void testNoRetryForMissingObject() {
+        FakeS3 s3 = fakeS3();
+        S3LatencyPolicy policy = new S3LatencyPolicy();
+        assertNull( s3Service(s3, policy).s3ToInputStream("missing.dat", logger) );
+        assertEquals(0, policy.getRetries());
+        assertEquals(1, policy.getFailures());
+    }
+
+
+    @Test
+    public void testDeadline() {
+        FakeS3 s3 = fakeS3();
+        S3LatencyPolicy policy = new S3LatencyPolicy();
+        policy.setGetDeadlineMillis( 200 );
+        policy.setMaxRetries( 0 );
+        s3.addDelay( 5000 );
+        long start = System.currentTimeMillis();
+        assertNull( s3Service(s3, policy).s3ToInputStream("image.dat", logger) );
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(1, policy.getTimeouts());
+    }
+
+
+    /**
+     * After enough GETs to know the latency, a slow GET is hedged and the hedge wins.
+     */
+    @Test
+    public void testHedgedGet() throws IOException {
+        FakeS3 s3 = fakeS3();
+        S3LatencyPolicy policy = new S3LatencyPolicy();
+        S3Service s3Service = s3Service(s3, policy);
+        for (int i = 0; i < S3LatencyPolicy.MIN_LATENCY_SAMPLES; i++) {
+            readAndClose( s3Service.s3ToInputStream("image.dat", logger) );
+        }
+        assertEquals(0, policy.getHedgesSent());
+        s3.addDelay( 5000 );
+        long start = System.currentTimeMillis();
+        readAndClose( s3Service.s3ToInputStream("image.dat", logger) );
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(1, policy.getHedgesSent());
+        assertEquals(1, policy.getHedgesWon());
+    }
+
+
+    @Test
+    public void testPutRetry() {
+        FakeS3 s3 = fakeS3();
+        S3LatencyPolicy policy = new S3LatencyPolicy();
+        s3.addFailure( 500 );
+        BufferedImage image = ParallelResizeEngineTest.randomImage(100, 80, BufferedImage.TYPE_INT_RGB, 31);
+        assertTrue( s3Service(s3, policy).writeBufferedImage("scaled.png", image, "Content-Type: image/png", logger) );
+        assertEquals(1, policy.getRetries());
+        assertNotNull(s3.getObjectData("scaled.png"));
+    }
+
+}
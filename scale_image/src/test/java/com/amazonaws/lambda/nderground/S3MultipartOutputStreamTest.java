@@ -0,0 +1,126 @@
+/** \file
+ *
+ * Feb 17, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+/**
+ * Local tests for the streaming multipart upload, with the FakeS3 stand-in for S3.
+ */
+public class S3MultipartOutputStreamTest {
+    private final static int PART_SIZE = 256 * 1024;
+
+    private static byte[] encode(BufferedImage image, String imageType) throws IOException {
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        ImageIO.write(image, imageType, outStream);
+        return outStream.toByteArray();
+    }
+
+
+    @Test
+    public void testMultipartUpload() throws IOException {
+        BufferedImage image = ParallelResizeEngineTest.randomImage(1200, 900, BufferedImage.TYPE_INT_RGB, 13);
+        for (String imageType : new String[]{ "png", "bmp", "jpeg" }) {
+            FakeS3 s3 = new FakeS3();
+            S3MultipartOutputStream outStream = new S3MultipartOutputStream(s3, new S3LatencyPolicy(), "bucket", "scaled." + imageType, PART_SIZE, 2, 
+                                                                            new BufferPool( BufferPool.DEFAULT_MAX_POOLED_BYTES ));
+            assertTrue(ImageIO.write(image, imageType, outStream));
+            outStream.finish();
+            byte[] expected = encode(image, imageType);
+            assertTrue(imageType, outStream.isMultipart());
+            assertEquals(imageType, (expected.length + PART_SIZE - 1) / PART_SIZE, outStream.getNumParts(), 1);
+            assertArrayEquals(imageType, expected, s3.getObjectData("scaled." + imageType));
+            assertEquals(0, s3.getOpenUploads());
+        }
+    }
+
+
+    @Test
+    public void testSinglePart() throws IOException {
+        BufferedImage image = ParallelResizeEngineTest.randomImage(100, 80, BufferedImage.TYPE_INT_RGB, 14);
+        FakeS3 s3 = new FakeS3();
+        S3MultipartOutputStream outStream = new S3MultipartOutputStream(s3, new S3LatencyPolicy(), "bucket", "small.png", PART_SIZE, 2, BufferPool.getPool());
+        assertTrue(ImageIO.write(image, "png", outStream));
+        outStream.finish();
+        assertFalse(outStream.isMultipart());
+        assertArrayEquals(encode(image, "png"), s3.getObjectData("small.png"));
+    }
+
+
+    @Test
+    public void testPartFailureAborts() {
+        BufferedImage image = ParallelResizeEngineTest.randomImage(800, 600, BufferedImage.TYPE_INT_RGB, 15);
+        FakeS3 s3 = new FakeS3();
+        s3.setFailPart( 2 );
+        S3MultipartOutputStream outStream = new S3MultipartOutputStream(s3, new S3LatencyPolicy(), "bucket", "failed.bmp", PART_SIZE, 2, BufferPool.getPool());
+        try {
+            ImageIO.write(image, "bmp", outStream);
+            outStream.finish();
+            fail("the upload should fail");
+        } catch (IOException e) {
+            outStream.cancel();
+        }
+        assertNull(s3.getObjectData("failed.bmp"));
+        assertEquals(1, s3.getAborts());
+        assertEquals(0, s3.getOpenUploads());
+    }
+
+
+    /**
+     * A part upload that fails with a retryable error is sent again, with the same bytes.
+     */
+    @Test
+    public void testPartRetry() throws IOException {
+        BufferedImage image = ParallelResizeEngineTest.randomImage(800, 600, BufferedImage.TYPE_INT_RGB, 16);
+        FakeS3 s3 = new FakeS3();
+        s3.addFailure( 500 );
+        S3LatencyPolicy policy = new S3LatencyPolicy();
+        S3MultipartOutputStream outStream = new S3MultipartOutputStream(s3, policy, "bucket", "retried.bmp", PART_SIZE, 2, BufferPool.getPool());
+        assertTrue(ImageIO.write(image, "bmp", outStream));
+        outStream.finish();
+        assertTrue(outStream.isMultipart());
+        assertEquals(1, policy.getRetries());
+        assertArrayEquals(encode(image, "bmp"), s3.getObjectData("retried.bmp"));
+    }
+
+
+    /**
+     * S3Service.writeBufferedImage uses the multipart upload when the estimated size is over the threshold.
+     */
+    @Test
+    public void testWriteBufferedImage() throws IOException {
+        final FakeS3 s3 = new FakeS3();
+        S3Service s3Service = s3.newS3Service();
+        S3TransferSettings settings = new S3TransferSettings();
+        settings.setMultipartThreshold( 64 * 1024 );
+        s3Service.setTransferSettings( settings );
+        BufferedImage image = ParallelResizeEngineTest.randomImage(2400, 1600, BufferedImage.TYPE_INT_RGB, 16);
+        JavaLoggerWrapper logger = new JavaLoggerWrapper("S3MultipartOutputStreamTest");
+        assertTrue(s3Service.writeBufferedImage("big.bmp", image, "Content-Type: image/bmp", logger));
+        assertTrue(s3.getPartUploads() > 1);
+        assertArrayEquals(encode(image, "bmp"), s3.getObjectData("big.bmp"));
+        assertTrue(s3Service.writeBufferedImage("small.jpg", ParallelResizeEngineTest.randomImage(100, 80, BufferedImage.TYPE_INT_RGB, 17),
+                                                "Content-Type: image/jpeg", logger));
+        assertTrue(s3.getObjectData("small.jpg").length > 0);
+    }
+
+}
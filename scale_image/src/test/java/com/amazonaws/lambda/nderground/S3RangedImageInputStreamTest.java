@@ -0,0 +1,204 @@
+/** \file
+ *
+ * Feb 18, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * Local tests for the parallel ranged download, with the FakeS3 stand-in for S3.
+ */
+public class S3RangedImageInputStreamTest {
+    private final static int RANGE_SIZE = S3TransferSettings.MIN_RANGE_SIZE;
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static S3Service s3Service(FakeS3 s3, boolean decodeWhileDownloading) {
+        S3Service s3Service = s3.newS3Service();
+        S3TransferSettings settings = new S3TransferSettings();
+        settings.setRangedGetThreshold( 2 * RANGE_SIZE );
+        settings.setRangeSize( RANGE_SIZE );
+        settings.setDownloadConcurrency( 4 );
+        settings.setDecodeWhileDownloading( decodeWhileDownloading );
+        s3Service.setTransferSettings( settings );
+        return s3Service;
+    }
+
+
+    @Test
+    public void testRangedDownload() throws IOException {
+        FakeS3 s3 = new FakeS3();
+        s3.setReadDelay( 2 );
+        byte[] data = new byte[ 20 * RANGE_SIZE + 1234 ];
+        new Random(21).nextBytes( data );
+        s3.putObjectData("big.dat", data);
+        JavaLoggerWrapper logger = new JavaLoggerWrapper("S3RangedImageInputStreamTest");
+        for (boolean decodeWhileDownloading : new boolean[]{ true, false }) {
+            ImageInputStream imageStream = s3Service(s3, decodeWhileDownloading).s3ToImageInputStream("big.dat", logger);
+            try {
+                assertTrue(imageStream instanceof S3RangedImageInputStream);
+                assertEquals(data.length, imageStream.length());
+                byte[] copy = new byte[ data.length ];
+                imageStream.readFully( copy );
+                assertArrayEquals(data, copy);
+                assertEquals(-1, imageStream.read());
+                // seek back, as an image reader may
+                imageStream.seek( 5 );
+                assertEquals(data[5] & 0xff, imageStream.read());
+            } finally {
+                imageStream.close();
+            }
+        }
+        assertTrue(s3.getGets() > 2);
+    }
+
+
+    @Test
+    public void testDecodeWhileDownloading() throws IOException {
+        FakeS3 s3 = new FakeS3();
+        BufferedImage image = ParallelResizeEngineTest.randomImage(800, 600, BufferedImage.TYPE_INT_RGB, 22);
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", outStream);
+        s3.putObjectData("image.png", outStream.toByteArray());
+        s3.setReadDelay( 2 );
+        ImageInputStream imageStream = s3Service(s3, true).s3ToImageInputStream("image.png", new JavaLoggerWrapper("S3RangedImageInputStreamTest"));
+        assertTrue(imageStream instanceof S3RangedImageInputStream);
+        // ImageIO.read() closes the stream
+        BufferedImage decoded = ImageIO.read( imageStream );
+        assertNotNull(decoded);
+        assertArrayEquals(image.getRGB(0, 0, 800, 600, null, 0, 800), decoded.getRGB(0, 0, 800, 600, null, 0, 800));
+    }
+
+
+    /**
+     * A complete download is added to the local cache on the cache's write executor, after the stream is closed.
+     */
+    @Test
+    public void testLocalCache() throws IOException {
+        FakeS3 s3 = new FakeS3();
+        byte[] data = new byte[ 4 * RANGE_SIZE + 17 ];
+        new Random(24).nextBytes( data );
+        s3.putObjectData("cached.dat", data);
+        LocalObjectCache cache = new LocalObjectCache( mFolder.getRoot(), 1024L * 1024 * 1024 );
+        List<Runnable> writes = new ArrayList<Runnable>();
+        cache.setWriteExecutor( writes::add );
+        S3Service s3Service = s3Service(s3, false);
+        s3Service.setLocalCache( cache );
+        ImageInputStream imageStream = s3Service.s3ToImageInputStream("cached.dat", new JavaLoggerWrapper("S3RangedImageInputStreamTest"));
+        assertTrue(imageStream instanceof S3RangedImageInputStream);
+        imageStream.close();
+        assertNull(cache.getETag("bucket", "cached.dat"));
+        assertEquals(1, writes.size());
+        writes.get(0).run();
+        assertEquals(FakeS3.md5Hex( data ), cache.getETag("bucket", "cached.dat"));
+        imageStream = cache.open("bucket", "cached.dat", FakeS3.md5Hex( data ));
+        try {
+            byte[] copy = new byte[ data.length ];
+            imageStream.readFully( copy );
+            assertArrayEquals(data, copy);
+        } finally {
+            imageStream.close();
+        }
+    }
+
+
+    /**
+     * Images below the threshold are read with one GET.
+     */
+    @Test
+    public void testBelowThreshold() throws IOException {
+        FakeS3 s3 = new FakeS3();
+        byte[] data = new byte[ RANGE_SIZE ];
+        new Random(23).nextBytes( data );
+        s3.putObjectData("small.dat", data);
+        ImageInputStream imageStream = s3Service(s3, true).s3ToImageInputStream("small.dat", new JavaLoggerWrapper("S3RangedImageInputStreamTest"));
+        try {
+            assertTrue(imageStream instanceof ByteArrayImageInputStream);
+            assertEquals(1, s3.getGets());
+        } finally {
+            imageStream.close();
+        }
+    }
+
+
+    /**
+     * If the object is replaced during the download, the ranged GETs fail the ETag constraint.
+     */
+    @Test
+    public void testObjectChanged() {
+        final byte[] data = new byte[ 8 * RANGE_SIZE ];
+        new Random(24).nextBytes( data );
+        FakeS3 s3 = new FakeS3() {
+            @Override
+            public S3Object getObject(GetObjectRequest request) {
+                S3Object s3Object = super.getObject( request );
+                byte[] newData = data.clone();
+                newData[0]++;
+                putObjectData(request.getKey(), newData);
+                return s3Object;
+            }
+        };
+        s3.setReadDelay( 2 );
+        s3.putObjectData("changed.dat", data);
+        ImageInputStream imageStream = s3Service(s3, false).s3ToImageInputStream("changed.dat", new JavaLoggerWrapper("S3RangedImageInputStreamTest"));
+        assertNull(imageStream);
+    }
+
+
+
+    /**
+     * A download that makes no progress for the GET deadline fails, rather than blocking the reader.
+     */
+    @Test
+    public void testStalledDownload() throws IOException {
+        FakeS3 s3 = new FakeS3();
+        byte[] data = new byte[ 4 * RANGE_SIZE ];
+        new Random(25).nextBytes( data );
+        s3.putObjectData("stalled.dat", data);
+        S3LatencyPolicy policy = new S3LatencyPolicy();
+        policy.setGetDeadlineMillis( 200 );
+        S3Service s3Service = s3Service(s3, true);
+        s3Service.setLatencyPolicy( policy );
+        // the GETs return their response headers, and then the bodies stall
+        s3.setReadDelay( 5000 );
+        ImageInputStream imageStream = s3Service.s3ToImageInputStream("stalled.dat", new JavaLoggerWrapper("S3RangedImageInputStreamTest"));
+        assertTrue(imageStream instanceof S3RangedImageInputStream);
+        long start = System.currentTimeMillis();
+        try {
+            ((S3RangedImageInputStream)imageStream).awaitDownload();
+            fail("the download should stall");
+        } catch (IOException e) {
+            assertTrue(System.currentTimeMillis() - start < 3000);
+        } finally {
+            imageStream.close();
+        }
+    }
+
+}
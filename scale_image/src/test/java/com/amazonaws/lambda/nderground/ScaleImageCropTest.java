@@ -0,0 +1,168 @@
+/** \file
+ *
+ * Mar 2, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+/**
+ * Tests for the fused crop and scale: the crop regions, and a crop request that decodes only the region.
+ */
+public class ScaleImageCropTest {
+
+    /**
+     * A png that is red, green and blue, in thirds from left to right.
+     */
+    private static byte[] thirds(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        Color[] colors = new Color[]{ Color.RED, Color.GREEN, Color.BLUE };
+        for (int i = 0; i < colors.length; i++) {
+            g.setColor( colors[i] );
+            g.fillRect(i * width / 3, 0, width / 3, height);
+        }
+        g.dispose();
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", outStream);
+        return outStream.toByteArray();
+    }
+
+    private static ScaleImageCrop request(String s3ScaledPath, int height, int width) {
+        ScaleImageCrop imageInfo = new ScaleImageCrop("us-west-1", "crop-test", "id", "key", "original.png", 
+                                                      s3ScaledPath, "image/png", height, width);
+        return imageInfo;
+    }
+
+    /**
+     * Check a pixel color, within the rounding of the resize filter.
+     */
+    private static void assertColor(Color expected, int rgb) {
+        Color color = new Color( rgb );
+        assertTrue(color + " is not " + expected, Math.abs(expected.getRed() - color.getRed()) <= 2 && 
+                   Math.abs(expected.getGreen() - color.getGreen()) <= 2 && Math.abs(expected.getBlue() - color.getBlue()) <= 2);
+    }
+
+    private static BufferedImage scaled(FakeS3 s3, String key) throws IOException {
+        return ImageIO.read( new ByteArrayInputStream( s3.getObjectData( key ) ) );
+    }
+
+
+    @Test
+    public void testFillRegion() {
+        // a wide original, a square crop
+        assertEquals(new Rectangle(100, 0, 300, 300), ScaleImageCrop.fillRegion(500, 300, 64, 64, null));
+        assertEquals(new Rectangle(0, 0, 300, 300), ScaleImageCrop.fillRegion(500, 300, 64, 64, "left"));
+        assertEquals(new Rectangle(200, 0, 300, 300), ScaleImageCrop.fillRegion(500, 300, 64, 64, "Right"));
+        // top and bottom do not move the region of a wide original
+        assertEquals(new Rectangle(100, 0, 300, 300), ScaleImageCrop.fillRegion(500, 300, 64, 64, "top"));
+        // a tall original, a 2:1 crop
+        assertEquals(new Rectangle(0, 150, 400, 200), ScaleImageCrop.fillRegion(400, 500, 100, 50, "center"));
+        assertEquals(new Rectangle(0, 0, 400, 200), ScaleImageCrop.fillRegion(400, 500, 100, 50, "top"));
+        assertEquals(new Rectangle(0, 300, 400, 200), ScaleImageCrop.fillRegion(400, 500, 100, 50, "bottom"));
+        // the same aspect ratio is the whole image
+        assertEquals(new Rectangle(0, 0, 400, 300), ScaleImageCrop.fillRegion(400, 300, 80, 60, null));
+    }
+
+
+    @Test
+    public void testArguments() {
+        ScaleImageCrop crop = request("scaled.png", 64, 64);
+        assertTrue(crop.hasValidArguments());
+        assertFalse(crop.isRegionCrop());
+        assertEquals("fill:center", crop.cropDescription());
+        crop.setAnchor("middle");
+        assertFalse(crop.hasValidArguments());
+        crop.setAnchor("top");
+        crop.setCrop("region");
+        // a region crop needs a region
+        assertFalse(crop.hasValidArguments());
+        crop.setRegionX(400);
+        crop.setRegionY(200);
+        crop.setRegionWidth(300);
+        crop.setRegionHeight(300);
+        assertTrue(crop.hasValidArguments());
+        assertEquals("region:400,200,300,300", crop.cropDescription());
+        // the region is clipped to the image, and a region outside of the image is null
+        assertEquals(new Rectangle(400, 200, 100, 100), crop.cropRegion(500, 300));
+        assertNull(crop.cropRegion(400, 300));
+        crop.setHeight( 0 );
+        assertFalse(crop.hasValidArguments());
+        crop.setCrop("stretch");
+        crop.setHeight( 64 );
+        assertFalse(crop.hasValidArguments());
+    }
+
+
+    /**
+     * A crop request writes an image of exactly the requested size, from the region of the original, and decodes
+     * no more than the region.
+     */
+    @Test
+    public void testCropScale() throws IOException {
+        FakeS3 s3 = new FakeS3();
+        s3.putObjectData("original.png", thirds(600, 200));
+        AbstractLoggerInterface logger = new JavaLoggerWrapper("ScaleImageCropTest");
+        LambdaImageScaler scaler = s3.newScaler("crop-test", logger);
+        // a centered square is the green third
+        ScaleImageCrop center = request("center.png", 50, 50);
+        assertFalse(LambdaImageScaler.cropScaleAsync(request("bad.png", 0, 50), logger).join());
+        assertTrue(scaler.scaleAsync(center, ScaleMode.CROP, 50, 50).join());
+        BufferedImage image = scaled(s3, "center.png");
+        assertEquals(50, image.getWidth());
+        assertEquals(50, image.getHeight());
+        assertColor(Color.GREEN, image.getRGB(25, 25));
+        // a region in the red third, scaled up to a size with a different aspect ratio
+        ScaleImageCrop region = request("region.png", 90, 120);
+        region.setCrop("region");
+        region.setRegionX(10);
+        region.setRegionY(20);
+        region.setRegionWidth(150);
+        region.setRegionHeight(100);
+        ImageMetrics.setEnabled( true );
+        try {
+            ImageMetrics metrics = new ImageMetrics("CROP");
+            assertTrue(scaler.scaleAsync(region, ScaleMode.CROP, 90, 120, metrics).join());
+            assertTrue(metrics.getCount(ImageMetrics.Counter.DECODED_PIXELS) <= 150 * 100);
+            assertEquals(120 * 90, metrics.getCount(ImageMetrics.Counter.OUTPUT_PIXELS));
+        }
+        finally {
+            ImageMetrics.setEnabled( false );
+        }
+        image = scaled(s3, "region.png");
+        assertEquals(120, image.getWidth());
+        assertEquals(90, image.getHeight());
+        assertColor(Color.RED, image.getRGB(0, 0));
+        assertColor(Color.RED, image.getRGB(119, 89));
+        // the same image, with a different crop, is a different fingerprint and is scaled again
+        String fingerprint = s3.getUserMetadata("region.png").toString();
+        region.setRegionX(450);
+        assertTrue(scaler.scaleAsync(region, ScaleMode.CROP, 90, 120).join());
+        assertNotEquals(fingerprint, s3.getUserMetadata("region.png").toString());
+        assertColor(Color.BLUE, scaled(s3, "region.png").getRGB(60, 45));
+        // a region outside of the image fails
+        region.setRegionX(1000);
+        assertFalse(scaler.scaleAsync(region, ScaleMode.CROP, 90, 120).join());
+    }
+
+}
@@ -0,0 +1,184 @@
+/** \file
+ *
+ * Mar 4, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ImagingOpException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+/**
+ * Tests for the scaling policy: the policy table, the engine that is picked for the quality hint, ratio and image
+ * size, and the quality hint in a request.
+ */
+public class ScalingPolicyTest {
+    private final static String TABLE = "speed,2,*,bilinear;speed,*,*,bicubic;quality,*,1,lanczos3;quality,*,*,scalr-quality;" +
+                                        "*,*,*,scalr-balanced";
+
+    @Test
+    public void testParse() {
+        TableScalingPolicy policy = TableScalingPolicy.parse( TableScalingPolicy.DEFAULT_TABLE );
+        assertNotNull(policy);
+        assertEquals(TableScalingPolicy.DEFAULT_TABLE, policy.toString());
+        assertEquals(TABLE, TableScalingPolicy.parse( " " + TABLE.replace(";", " ; ") + ";" ).toString());
+        assertNull(TableScalingPolicy.parse( null ));
+        assertNull(TableScalingPolicy.parse( " " ));
+        assertNull(TableScalingPolicy.parse( "speed,2,*" ));
+        assertNull(TableScalingPolicy.parse( "speed,two,*,bicubic" ));
+        assertNull(TableScalingPolicy.parse( "speed,2,*,bicubic;speed,*,*,nosuch" ));
+        assertEquals(TableScalingPolicy.getDefault().toString(), TableScalingPolicy.fromSetting().toString());
+    }
+
+
+    @Test
+    public void testSelect() {
+        TableScalingPolicy policy = TableScalingPolicy.parse( TABLE );
+        // the ratio is the larger of the width and height ratios
+        assertEquals("bilinear", policy.select(1000, 800, 500, 400, "speed").getName());
+        assertEquals("bicubic", policy.select(1000, 800, 500, 200, "speed").getName());
+        assertEquals("bicubic", policy.select(1000, 800, 100, 400, " SPEED ").getName());
+        // the image size
+        assertEquals("lanczos3", policy.select(1000, 800, 100, 80, "quality").getName());
+        assertEquals("scalr-quality", policy.select(1200, 1000, 100, 80, "quality").getName());
+        String large = policy.select(4000, 3000, 100, 75, "quality").getName();
+        assertEquals((ParallelBands.getParallelism() > 1) ? "parallel-quality" : "scalr-quality", large);
+        // no hint, or an unknown hint, is balanced
+        assertEquals("scalr-balanced", policy.select(1000, 800, 500, 400, null).getName());
+        assertEquals("scalr-balanced", policy.select(1000, 800, 500, 400, "fast").getName());
+        assertEquals(ScalingPolicy.HINT_BALANCED, TableScalingPolicy.normalizeHint("fast"));
+        assertEquals(ScalingPolicy.HINT_QUALITY, TableScalingPolicy.normalizeHint("Quality"));
+        // in the default table, each hint picks a different engine
+        TableScalingPolicy defaultPolicy = TableScalingPolicy.getDefault();
+        assertEquals("scalr-balanced", defaultPolicy.select(600, 450, 400, 300, "speed").getName());
+        assertEquals("bilinear", defaultPolicy.select(1000, 800, 100, 80, "speed").getName());
+        assertEquals("bicubic", defaultPolicy.select(1000, 800, 100, 80, "balanced").getName());
+        assertEquals("bicubic", defaultPolicy.select(600, 450, 400, 300, "quality").getName());
+        assertEquals("scalr-quality", defaultPolicy.select(1000, 800, 250, 200, "quality").getName());
+        // no rule matches
+        policy = TableScalingPolicy.parse("speed,*,*,bilinear");
+        assertEquals(ResizeEngines.scalr().getName(), policy.select(1000, 800, 500, 400, "balanced").getName());
+    }
+
+
+    /**
+     * A PolicyResizeEngine uses the ImageService policy. ImageService.resize with no engine uses the default engine.
+     */
+    @Test
+    public void testPolicyEngine() {
+        BufferedImage image = ParallelResizeEngineTest.randomImage(400, 300, BufferedImage.TYPE_INT_RGB, 1);
+        ImageService.setScalingPolicy( TableScalingPolicy.parse( TABLE ) );
+        try {
+            PolicyResizeEngine engine = new PolicyResizeEngine("speed");
+            assertEquals("policy-speed", engine.getName());
+            assertEquals("bilinear", engine.select(image, 300, 225).getName());
+            assertEquals("bicubic", engine.select(image, 100, 75).getName());
+            // a request with no hint is not resized by the policy
+            assertEquals(ResizeEngines.scalr().getName(), ImageService.defaultEngine( image ).getName());
+            // the strip filter is the filter of the engine that the policy picks for the subsampled image
+            assertEquals(SeparableResampler.Filter.BILINEAR, StripResampler.filterFor(engine, 400, 300, 1, 300, 225));
+            assertEquals(SeparableResampler.Filter.BICUBIC, StripResampler.filterFor(engine, 400, 300, 1, 100, 75));
+            assertEquals(SeparableResampler.Filter.BILINEAR, StripResampler.filterFor(engine, 400, 300, 2, 100, 75));
+            assertEquals(StripResampler.DEFAULT_FILTER,
+                         StripResampler.filterFor(new PolicyResizeEngine("quality"), 1200, 1000, 1, 100, 80));
+            BufferedImage scaled = ImageService.resize(image, 100, 75, engine);
+            assertEquals(100, scaled.getWidth());
+            assertEquals(75, scaled.getHeight());
+            scaled = ImageService.resize(image, 200, 150, null);
+            assertEquals(200, scaled.getWidth());
+        } finally {
+            ImageService.setScalingPolicy( null );
+        }
+        assertEquals(TableScalingPolicy.fromSetting().toString(), ImageService.getScalingPolicy().toString());
+    }
+
+
+    /**
+     * An engine that fails to scale the image is replaced by Scalr, and the engine that was used is reported. An
+     * unexpected failure is not hidden by the fallback.
+     */
+    @Test
+    public void testEngineFallback() {
+        BufferedImage image = ParallelResizeEngineTest.randomImage(400, 300, BufferedImage.TYPE_INT_RGB, 2);
+        ResizeEngine failing = new ResizeEngine() {
+            @Override
+            public String getName() {
+                return "failing";
+            }
+
+            @Override
+            public BufferedImage resize(BufferedImage image, int width, int height) {
+                throw new ImagingOpException("no scaling for you");
+            }
+        };
+        ImageService.ResizedImage resized = ImageService.resizeImage(image, 100, 75, failing);
+        assertTrue(resized.isFallback());
+        assertEquals(ResizeEngines.scalr().getName(), resized.getEngine().getName());
+        assertEquals(100, resized.getImage().getWidth());
+        resized = ImageService.resizeImage(image, 100, 75, ResizeEngines.forName("bicubic"));
+        assertFalse(resized.isFallback());
+        assertEquals("bicubic", resized.getEngine().getName());
+        ResizeEngine broken = new ResizeEngine() {
+            @Override
+            public String getName() {
+                return "broken";
+            }
+
+            @Override
+            public BufferedImage resize(BufferedImage image, int width, int height) {
+                throw new IllegalStateException("a bug in the engine");
+            }
+        };
+        try {
+            ImageService.resize(image, 100, 75, broken);
+            fail("the failure should not be hidden");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+
+    /**
+     * The quality hint is part of the scaled image fingerprint, so a request with a different hint scales the
+     * image again.
+     */
+    @Test
+    public void testQualityHint() throws IOException {
+        final FakeS3 s3 = new FakeS3();
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        ImageIO.write(ParallelResizeEngineTest.randomImage(400, 300, BufferedImage.TYPE_INT_RGB, 2), "jpeg", outStream);
+        s3.putObjectData("original.jpg", outStream.toByteArray());
+        LambdaImageScaler scaler = s3.newScaler( "policy-test", new JavaLoggerWrapper("ScalingPolicyTest") );
+        String[] fingerprints = new String[ 3 ];
+        String[] hints = new String[]{ null, "speed", "quality" };
+        for (int i = 0; i < hints.length; i++) {
+            ScaleImageByHeightWidth imageInfo = new ScaleImageByHeightWidth("us-west-1", "policy-test", "id", "key", "original.jpg",
+                                                                            "scaled" + i + ".jpg", "image/jpeg", 75, 100);
+            imageInfo.setQualityHint( hints[i] );
+            ScaleImageResult result = scaler.scaleAsync(imageInfo, ScaleMode.HEIGHT_WIDTH, 75, 100, null,
+                                                        new DeadlinePlanner(() -> 60000L)).join();
+            assertTrue(result.isOK());
+            fingerprints[i] = s3.getUserMetadata("scaled" + i + ".jpg").get( RenditionFingerprint.METADATA_KEY );
+            assertNotNull(fingerprints[i]);
+        }
+        assertFalse(fingerprints[0].equals( fingerprints[1] ));
+        assertFalse(fingerprints[1].equals( fingerprints[2] ));
+    }
+
+}
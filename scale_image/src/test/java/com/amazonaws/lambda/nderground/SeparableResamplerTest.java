@@ -0,0 +1,103 @@
+/** \file
+ *
+ * Feb 13, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+
+import org.junit.Test;
+
+/**
+ * Local tests for the SeparableResampler. These tests do not use AWS.
+ */
+public class SeparableResamplerTest {
+
+    private static BufferedImage solidImage(int width, int height, int imageType, int argb) {
+        BufferedImage image = new BufferedImage(width, height, imageType);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, argb);
+            }
+        }
+        return image;
+    }
+
+
+    private static void checkSameImage(String testName, BufferedImage expected, BufferedImage actual) {
+        assertEquals(testName + ": width", expected.getWidth(), actual.getWidth());
+        assertEquals(testName + ": height", expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                if (expected.getRGB(x, y) != actual.getRGB(x, y)) {
+                    fail(testName + ": pixel (" + x + "," + y + ") is different");
+                }
+            }
+        }
+    }
+
+
+    /**
+     * The filter weights add up to one, so a solid color image is the same color after it is resized.
+     */
+    @Test
+    public void testSolidColor() {
+        int color = 0xff3c7ab4;
+        BufferedImage image = solidImage(731, 419, BufferedImage.TYPE_3BYTE_BGR, color);
+        for (SeparableResampler.Filter filter : SeparableResampler.Filter.values()) {
+            ResizeEngine engine = new SeparableResampler( filter );
+            int[][] sizes = { {200, 115}, {1500, 860}, {731, 100}, {1, 1} };
+            for (int[] size : sizes) {
+                BufferedImage scaled = engine.resize(image, size[0], size[1]);
+                assertEquals(size[0], scaled.getWidth());
+                assertEquals(size[1], scaled.getHeight());
+                assertEquals(BufferedImage.TYPE_INT_RGB, scaled.getType());
+                checkSameImage("testSolidColor " + filter, solidImage(size[0], size[1], BufferedImage.TYPE_INT_RGB, color), scaled);
+            }
+        }
+        BufferedImage argbImage = solidImage(300, 200, BufferedImage.TYPE_INT_ARGB, 0x80ff8000);
+        BufferedImage scaled = new SeparableResampler( SeparableResampler.Filter.LANCZOS3 ).resize(argbImage, 97, 61);
+        assertEquals(BufferedImage.TYPE_INT_ARGB, scaled.getType());
+        checkSameImage("testSolidColor ARGB", solidImage(97, 61, BufferedImage.TYPE_INT_ARGB, 0x80ff8000), scaled);
+    }
+
+
+    /**
+     * Byte and int images with the same pixels give the same result, and a banded resize gives the same
+     * result as a single threaded resize.
+     */
+    @Test
+    public void testImageTypesAndBands() {
+        BufferedImage byteImage = ParallelResizeEngineTest.randomImage(1931, 1277, BufferedImage.TYPE_3BYTE_BGR, 4);
+        BufferedImage intImage = new BufferedImage(byteImage.getWidth(), byteImage.getHeight(), BufferedImage.TYPE_INT_RGB);
+        intImage.getGraphics().drawImage(byteImage, 0, 0, null);
+        for (SeparableResampler.Filter filter : SeparableResampler.Filter.values()) {
+            BufferedImage expected = new SeparableResampler( filter, 1 ).resize(intImage, 640, 423);
+            checkSameImage("testImageTypesAndBands " + filter + " byte", expected, new SeparableResampler( filter, 1 ).resize(byteImage, 640, 423));
+            checkSameImage("testImageTypesAndBands " + filter + " bands", expected, new SeparableResampler( filter, 7 ).resize(intImage, 640, 423));
+        }
+    }
+
+
+    @Test
+    public void testResizeEngineNames() {
+        assertTrue( ResizeEngines.forName("lanczos3") instanceof SeparableResampler );
+        assertEquals( SeparableResampler.Filter.BOX, ((SeparableResampler)ResizeEngines.forName("Box")).getFilter() );
+        assertTrue( ResizeEngines.forName("parallel") instanceof ParallelResizeEngine );
+        assertNotNull( ResizeEngines.forName("scalr-ultra-quality") );
+        assertEquals( ResizeEngines.scalr(), ResizeEngines.forName("scalr") );
+        assertNull( ResizeEngines.forName("sinc") );
+        assertNull( ResizeEngines.forName(null) );
+    }
+
+}
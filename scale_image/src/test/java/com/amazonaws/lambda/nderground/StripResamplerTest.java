@@ -0,0 +1,152 @@
+/** \file
+ *
+ * Mar 1, 2018
+ *
+ * Copyright Ian Kaplan 2018
+ *
+ * @author Ian Kaplan, www.bearcave.com, iank@bearcave.com
+ */
+package com.amazonaws.lambda.nderground;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.junit.Test;
+
+/**
+ * Tests for the strip-wise streaming resize. The result of a strip resize is the same as the result of the
+ * SeparableResampler on the fully decoded (and equally subsampled) image, for any strip height.
+ */
+public class StripResamplerTest {
+
+    private static byte[] encode(BufferedImage image, String format) throws IOException {
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        ImageIO.write(image, format, outStream);
+        return outStream.toByteArray();
+    }
+
+    private static int[] pixels(BufferedImage image) {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+
+    /**
+     * Resize an encoded image in strips, and from the full decode, and check that the results are the same.
+     */
+    private static void checkStrips(byte[] data, int subsampling, int stripRows, int width, int height,
+                                    SeparableResampler.Filter filter) throws IOException {
+        BufferedImage expected = null;
+        try (ImageInputStream imageStream = new ByteArrayImageInputStream( data, data.length )) {
+            ImageReader reader = ImageDecoder.getReader( imageStream );
+            BufferedImage decoded = ImageDecoder.read(reader, subsampling);
+            expected = new SeparableResampler(filter, 1).resize(decoded, width, height);
+            reader.dispose();
+        }
+        BufferedImage strips = null;
+        try (ImageInputStream imageStream = new ByteArrayImageInputStream( data, data.length )) {
+            ImageReader reader = ImageDecoder.getReader( imageStream );
+            strips = StripResampler.resize(reader, subsampling, stripRows, width, height, filter);
+            reader.dispose();
+        }
+        assertEquals(width, strips.getWidth());
+        assertEquals(height, strips.getHeight());
+        assertEquals(expected.getType(), strips.getType());
+        assertArrayEquals(pixels( expected ), pixels( strips ));
+    }
+
+
+    @Test
+    public void testStrips() throws IOException {
+        byte[] rgb = encode(ParallelResizeEngineTest.randomImage(301, 203, BufferedImage.TYPE_INT_RGB, 4), "png");
+        for (SeparableResampler.Filter filter : SeparableResampler.Filter.values()) {
+            checkStrips(rgb, 1, 16, 97, 61, filter);
+        }
+        // strips shorter than the filter window, a strip that is the whole image and an odd last strip
+        checkStrips(rgb, 1, 1, 60, 40, SeparableResampler.Filter.LANCZOS3);
+        checkStrips(rgb, 1, 203, 60, 40, SeparableResampler.Filter.LANCZOS3);
+        checkStrips(rgb, 1, 50, 150, 101, SeparableResampler.Filter.BICUBIC);
+        // subsampled strips, and scaling up
+        checkStrips(rgb, 2, 17, 70, 45, SeparableResampler.Filter.BICUBIC);
+        checkStrips(rgb, 3, 10, 40, 30, SeparableResampler.Filter.BOX);
+        checkStrips(rgb, 1, 20, 400, 300, SeparableResampler.Filter.BILINEAR);
+    }
+
+
+    @Test
+    public void testPixelTypes() throws IOException {
+        byte[] argb = encode(ParallelResizeEngineTest.randomImage(180, 120, BufferedImage.TYPE_INT_ARGB, 6), "png");
+        checkStrips(argb, 1, 16, 45, 30, SeparableResampler.Filter.BICUBIC);
+        BufferedImage gray = new BufferedImage(180, 120, BufferedImage.TYPE_BYTE_GRAY);
+        gray.getGraphics().drawImage(ParallelResizeEngineTest.randomImage(180, 120, BufferedImage.TYPE_INT_RGB, 7), 0, 0, null);
+        checkStrips(encode(gray, "png"), 1, 16, 45, 30, SeparableResampler.Filter.LANCZOS3);
+        checkStrips(encode(ParallelResizeEngineTest.randomImage(180, 120, BufferedImage.TYPE_INT_RGB, 8), "gif"),
+                    2, 16, 45, 30, SeparableResampler.Filter.BILINEAR);
+        checkStrips(encode(ParallelResizeEngineTest.randomImage(320, 240, BufferedImage.TYPE_INT_RGB, 9), "jpeg"),
+                    1, 16, 80, 60, SeparableResampler.Filter.BICUBIC);
+    }
+
+
+    /**
+     * Renditions built in strips, listed smallest first, with two renditions that have the same subsampling: the
+     * original is resized in strips to the rendition bounds, so no rendition is scaled up from a smaller one.
+     */
+    @Test
+    public void testRenditionStrips() throws IOException {
+        byte[] data = encode(ParallelResizeEngineTest.randomImage(600, 450, BufferedImage.TYPE_INT_RGB, 10), "png");
+        Dimension[] sizes = new Dimension[]{ new Dimension(200, 150), new Dimension(400, 300), new Dimension(150, 350) };
+        Dimension bounds = LambdaImageScaler.renditionBounds( Arrays.asList( sizes ) );
+        assertEquals(new Dimension(400, 350), bounds);
+        ResizeEngine engine = new SeparableResampler( SeparableResampler.Filter.BICUBIC );
+        BufferedImage[] renditions = null;
+        int stripRows = 0;
+        try (ImageInputStream imageStream = new ByteArrayImageInputStream( data, data.length )) {
+            ImageReader reader = ImageDecoder.getReader( imageStream );
+            ImageHeader header = ImageDecoder.readHeader( reader );
+            ImageAdmission admission = ImageAdmission.plan(header, bounds.width, bounds.height, 
+                                                           ImageAdmission.decodedBytes(header, 1, bounds.width, bounds.height) - 1, 
+                                                           Long.MAX_VALUE, StripResampler.DEFAULT_STRIP_BYTES);
+            assertEquals(ImageAdmission.Strategy.STRIPS, admission.getStrategy());
+            assertEquals(1, admission.getSubsampling());
+            stripRows = admission.getStripRows();
+            renditions = LambdaImageScaler.scaleRenditionImages(reader, header, admission, sizes, engine);
+            reader.dispose();
+        }
+        BufferedImage expected = null;
+        try (ImageInputStream imageStream = new ByteArrayImageInputStream( data, data.length )) {
+            ImageReader reader = ImageDecoder.getReader( imageStream );
+            BufferedImage stripped = StripResampler.resize(reader, 1, stripRows, bounds.width, bounds.height, SeparableResampler.Filter.BICUBIC);
+            expected = engine.resize(stripped, 400, 300);
+            reader.dispose();
+        }
+        for (int i = 0; i < sizes.length; i++) {
+            assertEquals(sizes[i].width, renditions[i].getWidth());
+            assertEquals(sizes[i].height, renditions[i].getHeight());
+        }
+        assertArrayEquals(pixels( expected ), pixels( renditions[1] ));
+    }
+
+
+    /**
+     * The rows that are kept depend on the destination width and the strip, not on the source height.
+     */
+    @Test
+    public void testWindowRows() {
+        assertEquals(7, StripResampler.windowRows(100, 100));
+        assertEquals(7, StripResampler.windowRows(100, 200));
+        assertEquals(61, StripResampler.windowRows(1000, 100));
+        assertTrue(StripResampler.windowRows(1000, 100) >= SeparableResampler.getWeights(SeparableResampler.Filter.LANCZOS3, 1000, 100).mMaxCount);
+        assertEquals(SeparableResampler.Filter.LANCZOS3, StripResampler.filterFor( new SeparableResampler( SeparableResampler.Filter.LANCZOS3 ) ));
+        assertEquals(StripResampler.DEFAULT_FILTER, StripResampler.filterFor( ResizeEngines.scalr() ));
+    }
+
+}